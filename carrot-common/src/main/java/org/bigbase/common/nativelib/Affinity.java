@@ -0,0 +1,100 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+package org.bigbase.common.nativelib;
+
+import java.io.File;
+
+/**
+ * Thread CPU affinity (Linux only). Native part is in the 'affinity' library 
+ * (src/main/native/affinity.c). When the library can not be loaded all pinning 
+ * calls return false and callers continue without pinning.
+ * 
+ * Linux allocates physical memory on the NUMA node of the CPU, which touches it first,
+ * so a pinned thread gets memory it allocates from the local NUMA node. 
+ */
+public class Affinity
+{
+    private static boolean available;
+
+    static {
+        try {
+            LibLoader.loadNativeLibrary("affinity");
+            available = true;
+        }
+        catch (Throwable t) {
+            available = false;
+        }
+    }
+
+    /**
+     * Is native library loaded
+     * @return true, false
+     */
+    public static boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Pins current thread to a given CPU
+     * @param cpu CPU id, must be in the affinity mask of the process 
+     *   (ids can be sparse under taskset, cgroup cpusets and containers)
+     * @return true on success, false - otherwise (CPU is not allowed 
+     *   or native library is not available)
+     */
+    public static boolean pin(int cpu) {
+        if (!available || cpu < 0) {
+            return false;
+        }
+        return setAffinity0(cpu) == 0;
+    }
+
+    /**
+     * Get CPU current thread is running on
+     * @return CPU id or -1 (if native library is not available)
+     */
+    public static int getCpu() {
+        return available? getCpu0(): -1;
+    }
+
+    /**
+     * Get NUMA node of a given CPU (reads Linux sysfs, no native code required)
+     * @param cpu CPU id
+     * @return NUMA node id or -1, if unknown
+     */
+    public static int getNumaNode(int cpu) {
+        File dir = new File("/sys/devices/system/cpu/cpu" + cpu);
+        String[] names = dir.list();
+        if (names == null) {
+            return -1;
+        }
+        for (String name: names) {
+            if (name.startsWith("node")) {
+                try {
+                    return Integer.parseInt(name.substring(4));
+                }
+                catch (NumberFormatException e) {
+                    // continue
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static native int setAffinity0(int cpu);
+
+    private static native int getCpu0();
+}
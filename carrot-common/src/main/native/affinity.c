@@ -0,0 +1,63 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ */
+
+#define _GNU_SOURCE
+#include <sched.h>
+#include <unistd.h>
+#include <jni.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+    /*
+     * Class:     org_bigbase_common_nativelib_Affinity
+     * Method:    setAffinity0
+     * Signature: (I)I
+     */
+    JNIEXPORT jint JNICALL Java_org_bigbase_common_nativelib_Affinity_setAffinity0
+    (JNIEnv * env, jclass cls, jint cpu)
+    {
+        cpu_set_t set;
+        if (cpu < 0 || cpu >= CPU_SETSIZE) {
+            /* CPU_SET and CPU_ISSET do not check bounds */
+            return -1;
+        }
+        /* CPU must be in the process affinity mask (taskset, cgroup cpuset) */
+        CPU_ZERO(&set);
+        if (sched_getaffinity(getpid(), sizeof(set), &set) != 0 || !CPU_ISSET(cpu, &set)) {
+            return -1;
+        }
+        CPU_ZERO(&set);
+        CPU_SET(cpu, &set);
+        /* 0 - calling thread */
+        return sched_setaffinity(0, sizeof(set), &set);
+    }
+
+    /*
+     * Class:     org_bigbase_common_nativelib_Affinity
+     * Method:    getCpu0
+     * Signature: ()I
+     */
+    JNIEXPORT jint JNICALL Java_org_bigbase_common_nativelib_Affinity_getCpu0
+    (JNIEnv * env, jclass cls)
+    {
+        return sched_getcpu();
+    }
+
+#ifdef __cplusplus
+}
+#endif
@@ -22,18 +22,26 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bigbase.carrot.compression.Codec;
 import org.bigbase.carrot.compression.CodecFactory;
 import org.bigbase.carrot.compression.CodecType;
+import org.bigbase.carrot.ops.Get;
 import org.bigbase.carrot.ops.IncrementDouble;
 import org.bigbase.carrot.ops.IncrementFloat;
 import org.bigbase.carrot.ops.IncrementInt;
@@ -41,10 +49,13 @@ import org.bigbase.carrot.ops.IncrementLong;
 import org.bigbase.carrot.ops.Operation;
 import org.bigbase.carrot.ops.OperationFailedException;
 import org.bigbase.carrot.redis.RedisConf;
+import org.bigbase.carrot.redis.WriteAheadLog;
 import org.bigbase.carrot.util.Bytes;
+import org.bigbase.carrot.util.ChecksumFileChannel;
 import org.bigbase.carrot.util.IOUtils;
 import org.bigbase.carrot.util.Key;
 import org.bigbase.carrot.util.KeysLocker;
+import org.bigbase.carrot.util.MemoryFileChannel;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 
@@ -90,8 +101,37 @@ public class BigSortedMap {
    * Thread local storage for index blocks used as a key in a 
    * Map<IndexBlock,IndexBlock> operations
    */
-  private static ThreadLocal<IndexBlock> keyBlock = new ThreadLocal<IndexBlock>(); 
-    
+  private static ThreadLocal<IndexBlock> keyBlock = new ThreadLocal<IndexBlock>();
+
+  /*
+   * Thread local get operation for batch get
+   */
+  private static ThreadLocal<Get> batchGet = new ThreadLocal<Get>() {
+    @Override
+    protected Get initialValue() {
+      return new Get();
+    }
+  };
+
+  /**
+   * Batch operation callback, see execute(Operation, long[], int[], BatchCallback)
+   */
+  public static interface BatchCallback {
+    /**
+     * Prepares operation for a key: sets key address and size and
+     * all other operation specific parameters
+     * @param index index of a key in a batch
+     */
+    public void prepare(int index);
+
+    /**
+     * Called after operation was executed for a key
+     * @param index index of a key in a batch
+     * @param result result of operation execution
+     */
+    public void done(int index, boolean result);
+  }
+
   
   /**
    * Maximum data block size - default is 4096, should support at least 8K and 16K
@@ -132,6 +172,12 @@ public class BigSortedMap {
    */
   private static AtomicLong globalExternalDataSize = new AtomicLong(0);
   
+  /*
+   * This tracks global size of data block record offset directories (they are kept 
+   * in a free space of data blocks)
+   */
+  private static AtomicLong globalDirectorySize = new AtomicLong(0);
+  
   /*
    * This tracks global index blocks size (memory allocated for index blocks) 
    */
@@ -372,6 +418,23 @@ public class BigSortedMap {
     return  globalCompressedDataInDataBlocksSize.addAndGet(incr);
   }
   
+  /**
+   * Get global size of data block record offset directories
+   * @return global directories size
+   */
+  public static long getGlobalDirectorySize() {
+    return globalDirectorySize.get();
+  }
+  
+  /**
+   * Increment global size of data block record offset directories
+   * @param incr increment value
+   * @return global directories size after an increment
+   */
+  public static long incrGlobalDirectorySize(long incr) {
+    return globalDirectorySize.addAndGet(incr);
+  }
+  
   /**
    * Get global external data size
    * @return global size of a compressed data
@@ -443,6 +506,7 @@ public class BigSortedMap {
     System.out.println("Total index size           :" + getGlobalIndexSize());
     System.out.println("Total compressed data size :" + getGlobalCompressedDataSize());
     System.out.println("Total external data size   :" + getGlobalExternalDataSize());   
+    System.out.println("Total directory size       :" + getGlobalDirectorySize());
     System.out.println("Copmpression ratio         :" + ((double)getGlobalDataSize()/ 
         getGlobalAllocatedMemory())+"\n");
   }
@@ -491,15 +555,38 @@ public class BigSortedMap {
   private ConcurrentSkipListMap<IndexBlock, IndexBlock> map = 
       new ConcurrentSkipListMap<IndexBlock, IndexBlock>();
   /*
-   * Read-Write Lock TODO: StampedLock (Java 8), decrease # of locks
-   * too high
+   * Read-Write Locks (lock stripes). Number of stripes is a power of 2 and by default
+   * is derived from number of available CPUs
+   */
+  ReentrantReadWriteLock[] locks;
+  
+  /*
+   * Versions of lock stripes. Writer holds stamped write lock of a stripe together with 
+   * its read-write lock, lock - free readers validate optimistic stamps against them.
+   * Stamped locks are not reentrant, therefore read-write locks are kept for all 
+   * pessimistic (nested) locking
+   */
+  StampedLock[] stamps;
+  
+  /*
+   * Read-Write Lock for index blocks
+   */
+  ReentrantReadWriteLock[] indexLocks;
+  
+  /*
+   * Versions of index block lock stripes
+   */
+  StampedLock[] indexStamps;
+  
+  /*
+   * Lock stripe mask (number of stripes - 1)
    */
-  ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[11113];
+  int lockMask;
   
   /*
-   * Read-Write Lock for index blocks. TODO: StampedLock (Java 8)
+   * Lock - free (optimistic) reads enabled
    */
-  ReentrantReadWriteLock[] indexLocks = new ReentrantReadWriteLock[11113];
+  boolean optimisticReads = RedisConf.getInstance().isStoreOptimisticReadsEnabled();
   
   /**
    * This tracks instance allocated memory 
@@ -529,6 +616,11 @@ public class BigSortedMap {
    */
   AtomicLong externalDataSize = new AtomicLong(0);
   
+  /*
+   * This tracks instance size of data block record offset directories
+   */
+  AtomicLong directorySize = new AtomicLong(0);
+  
   /*
    * This tracks instance index blocks size (memory allocated for index blocks) 
    */
@@ -555,6 +647,92 @@ public class BigSortedMap {
    */
   String snapshotDir;
   
+  /**
+   * Number of snapshot partitions (files written in parallel)
+   */
+  int snapshotPartitions = RedisConf.getInstance().getSnapshotPartitions();
+  
+  /**
+   * Compression codec of this store (null - global codec is used)
+   */
+  Codec storeCodec;
+  
+  /**
+   * Background compactor (null - not started)
+   */
+  private Compactor compactor;
+  
+  /**
+   * Write - back set of dirty data blocks (null - deferred recompression is disabled)
+   */
+  volatile WriteBackSet writeBack;
+  
+  /**
+   * Write - ahead log (null - disabled)
+   */
+  volatile WriteAheadLog wal;
+  
+  /**
+   * Active snapshot epoch (null - no snapshot is running)
+   */
+  volatile SnapshotEpoch snapshotEpoch;
+  
+  /**
+   * Last snapshot epoch id
+   */
+  private long lastSnapshotEpoch;
+  
+  /*
+   * Copy - on - write statistics of the last snapshot: number and total size of 
+   * index block copies, maximum size of copies kept in memory at once
+   */
+  private volatile long lastSnapshotCopies;
+  private volatile long lastSnapshotCopySize;
+  private volatile long lastSnapshotMaxPendingSize;
+  
+  /**
+   * Epoch of mutations (index blocks modified after the last snapshot epoch was opened)
+   */
+  private volatile long writeEpoch = 1;
+  
+  /**
+   * Incremental snapshot (null - no incremental snapshot yet)
+   */
+  volatile IncrementalSnapshot incremental;
+  
+  /**
+   * Write incremental snapshots (base and delta files)
+   */
+  private volatile boolean incrementalSnapshots = RedisConf.getInstance().isSnapshotIncremental();
+  
+  /**
+   * Snapshots (and merges of incremental snapshot files) are serialized
+   */
+  private final ReentrantLock snapshotLock = new ReentrantLock();
+  
+  /**
+   * Background merger of incremental snapshot files (null - not running)
+   */
+  private volatile Thread snapshotMerger;
+  
+  /**
+   * Periodic snapshots (null - not started)
+   */
+  private volatile Thread snapshotScheduler;
+  
+  private final Object schedulerMonitor = new Object();
+  
+  /**
+   * Interval between periodic snapshots in seconds
+   */
+  private int snapshotInterval;
+  
+  /**
+   * Write commands in progress, snapshot epoch is opened when there are none
+   */
+  private final MutationBarrier mutations = 
+      new MutationBarrier(Runtime.getRuntime().availableProcessors());
+  
   /**
    * Little hack
    */
@@ -589,6 +767,9 @@ public class BigSortedMap {
   public BigSortedMap(boolean init) {
     initLocks();
     if (init) initNodes();
+    if (RedisConf.getInstance().isDeferredCompressionEnabled()) {
+      enableDeferredCompression();
+    }
   }
   
   /**
@@ -602,10 +783,33 @@ public class BigSortedMap {
    * Initialize locks
    */
   private void initLocks() {
-    for (int i = 0; i < locks.length; i++) {
+    int n = getLockStripes(RedisConf.getInstance().getStoreLockStripes());
+    locks = new ReentrantReadWriteLock[n];
+    stamps = new StampedLock[n];
+    indexLocks = new ReentrantReadWriteLock[n];
+    indexStamps = new StampedLock[n];
+    lockMask = n - 1;
+    for (int i = 0; i < n; i++) {
       locks[i] = new ReentrantReadWriteLock();
+      stamps[i] = new StampedLock();
       indexLocks[i] = new ReentrantReadWriteLock();
+      indexStamps[i] = new StampedLock();
+    }
+  }
+  
+  /**
+   * Get number of lock stripes
+   * @param configured configured number (0 - auto)
+   * @return number of lock stripes (power of 2)
+   */
+  public static int getLockStripes(int configured) {
+    int n = configured > 0? configured: 64 * Runtime.getRuntime().availableProcessors();
+    n = Math.max(n, 1);
+    int stripes = Integer.highestOneBit(n);
+    if (stripes < n) {
+      stripes <<= 1;
     }
+    return stripes;
   }
   
   /**
@@ -616,6 +820,39 @@ public class BigSortedMap {
     return this.indexLocks;
   }
   
+  /**
+   * Get index lock versions (stamped locks)
+   * @return index lock versions
+   */
+  StampedLock[] getIndexStamps() {
+    return this.indexStamps;
+  }
+  
+  /**
+   * Get version (stamped lock) of a lock stripe of a given index block 
+   * @param b index block
+   * @return stamped lock
+   */
+  StampedLock getStamp(IndexBlock b) {
+    return stamps[b.hashCode() & lockMask];
+  }
+  
+  /**
+   * Enables/disables lock - free (optimistic) reads 
+   * @param b true - enable, false - disable
+   */
+  public void setOptimisticReadsEnabled(boolean b) {
+    this.optimisticReads = b;
+  }
+  
+  /**
+   * Are lock - free (optimistic) reads enabled
+   * @return true - if yes, false - otherwise
+   */
+  public boolean isOptimisticReadsEnabled() {
+    return this.optimisticReads;
+  }
+  
   /**
    * Part of snapshot loading procedure
    */
@@ -644,6 +881,203 @@ public class BigSortedMap {
     this.lastSnapshotTimestamp = timestamp;
   }
     
+  /**
+   * Starts background compactor of this store
+   */
+  public synchronized void startCompactor() {
+    if (compactor == null) {
+      compactor = new Compactor(this);
+    }
+    compactor.start();
+  }
+  
+  /**
+   * Stops background compactor of this store
+   */
+  public synchronized void stopCompactor() {
+    if (compactor != null) {
+      compactor.stop();
+    }
+  }
+  
+  /**
+   * Starts periodic snapshots of this store
+   * @param interval interval between snapshots in seconds
+   */
+  public synchronized void startSnapshotScheduler(int interval) {
+    if (interval <= 0 || snapshotScheduler != null) {
+      return;
+    }
+    this.snapshotInterval = interval;
+    Thread t = new Thread(() -> {
+      Thread current = Thread.currentThread();
+      while (true) {
+        synchronized (schedulerMonitor) {
+          long deadline = System.currentTimeMillis() + interval * 1000L;
+          long wait;
+          while (snapshotScheduler == current && 
+              (wait = deadline - System.currentTimeMillis()) > 0) {
+            try {
+              schedulerMonitor.wait(wait);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+          if (snapshotScheduler != current) {
+            return;
+          }
+        }
+        try {
+          snapshot();
+        } catch (RuntimeException e) {
+          System.err.println("Periodic snapshot failed");
+          e.printStackTrace();
+        }
+      }
+    }, "carrot-snapshot-scheduler");
+    t.setDaemon(true);
+    snapshotScheduler = t;
+    t.start();
+  }
+  
+  /**
+   * Stops periodic snapshots, waits for a running snapshot to finish. 
+   * Write commands (FLUSHALL) do not wait: snapshot waits for them
+   */
+  public void stopSnapshotScheduler() {
+    Thread t;
+    synchronized (schedulerMonitor) {
+      t = snapshotScheduler;
+      snapshotScheduler = null;
+      schedulerMonitor.notifyAll();
+    }
+    if (t == null || t == Thread.currentThread() || mutations.isInMutation()) {
+      return;
+    }
+    try {
+      t.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /**
+   * Are periodic snapshots running
+   * @return true or false
+   */
+  public boolean isSnapshotSchedulerRunning() {
+    return snapshotScheduler != null;
+  }
+  
+  /**
+   * Get background compactor
+   * @return compactor or null, if it was never started
+   */
+  public Compactor getCompactor() {
+    return compactor;
+  }
+  
+  /**
+   * Enables deferred recompression of mutated data blocks (compressed store)
+   */
+  public synchronized void enableDeferredCompression() {
+    if (writeBack == null) {
+      writeBack = new WriteBackSet(this);
+    }
+    writeBack.start();
+  }
+  
+  /**
+   * Disables deferred recompression and recompresses all dirty data blocks
+   */
+  public synchronized void disableDeferredCompression() {
+    WriteBackSet wb = this.writeBack;
+    if (wb == null) {
+      return;
+    }
+    wb.stop();
+    wb.flush();
+    this.writeBack = null;
+    // Blocks which became dirty concurrently with the first flush 
+    wb.flush();
+  }
+  
+  /**
+   * Get write - back set of dirty data blocks
+   * @return write - back set or null, if deferred recompression is disabled
+   */
+  public WriteBackSet getWriteBackSet() {
+    return writeBack;
+  }
+  
+  /**
+   * Opens write - ahead log, replays it and attaches it to the store
+   * @param dir log directory
+   * @return true on success, false - otherwise
+   */
+  public boolean openWAL(String dir) {
+    try {
+      WriteAheadLog log = new WriteAheadLog(dir);
+      // Replayed mutations are not logged again
+      log.replay(this);
+      this.wal = log;
+      return true;
+    } catch (IOException e) {
+      System.err.println("Can not open WAL: " + dir + ". WAL is disabled");
+      e.printStackTrace();
+      return false;
+    }
+  }
+  
+  /**
+   * Get write - ahead log
+   * @return log or null, if it is disabled
+   */
+  public WriteAheadLog getWAL() {
+    return wal;
+  }
+  
+  /**
+   * Set write - ahead log
+   * @param wal write - ahead log (null - disable logging)
+   */
+  public void setWAL(WriteAheadLog wal) {
+    this.wal = wal;
+  }
+  
+  /**
+   * Starts a mutation (write command), which must not be split by a snapshot. Mutations
+   * which modify several keys (SMOVE, LMOVE, ...) are either in a snapshot or not.
+   * Write commands executed by CommandProcessor are mutations. Direct callers of 
+   * BigSortedMap and data type APIs get point - in - time guarantee only for updates 
+   * they wrap in beginMutation() / endMutation() themselves. Mutations can be nested
+   */
+  public void beginMutation() {
+    mutations.enter();
+  }
+  
+  /**
+   * Finishes a mutation
+   */
+  public void endMutation() {
+    mutations.exit();
+  }
+  
+  /**
+   * Hands a copy of index block to an active snapshot, if the block was not saved yet.
+   * Caller holds write lock of the block
+   * @param b index block
+   */
+  void copyOnWrite(IndexBlock b) {
+    SnapshotEpoch epoch = this.snapshotEpoch;
+    if (epoch != null && b.savedEpoch < epoch.id) {
+      epoch.copy(b);
+      b.savedEpoch = epoch.id;
+    }
+    // Epoch is read after snapshot epoch (see snapshot())
+    b.modifiedEpoch = writeEpoch;
+  }
+  
   /**
    * Get snapshot directory for this store
    * @return directory
@@ -660,6 +1094,34 @@ public class BigSortedMap {
     this.snapshotDir = dir;
   }
   
+  /**
+   * Sets compression codec for this store, overrides global compression codec.
+   * Must be set before any data is added to the store. Blocks already compressed 
+   * keep their codec
+   * @param codec compression codec (null - global codec is used)
+   */
+  public void setStoreCompressionCodec(Codec codec) {
+    this.storeCodec = codec;
+  }
+  
+  /**
+   * Get compression codec of this store
+   * @return compression codec
+   */
+  public Codec getStoreCompressionCodec() {
+    Codec c = this.storeCodec;
+    return c != null? c: codec;
+  }
+  
+  /**
+   * Is compression enabled for this store
+   * @return true, if - yes, false otherwise
+   */
+  public boolean isStoreCompressionEnabled() {
+    Codec c = getStoreCompressionCodec();
+    return c != null && c.getType() != CodecType.NONE;
+  }
+  
   /**
    * Prints memory allocation statistics for the store
    */
@@ -675,6 +1137,7 @@ public class BigSortedMap {
     System.out.println("Total index size           :" + getInstanceIndexSize());
     System.out.println("Total compressed data size :" + getInstanceCompressedDataSize());
     System.out.println("Total external data size   :" + getInstanceExternalDataSize());   
+    System.out.println("Total directory size       :" + getInstanceDirectorySize());
     System.out.println("Copmpression ratio         :" + ((double)getInstanceDataSize()/ 
         getInstanceAllocatedMemory())+"\n");
   }
@@ -788,6 +1251,27 @@ public class BigSortedMap {
     return  compressedDataInDataBlocksSize.addAndGet(incr);
   }
   
+  /**
+   * Get instance size of data block record offset directories. Directories are kept 
+   * in a free space of data blocks, therefore this is not included into allocated memory
+   * @return directories size
+   */
+  public long getInstanceDirectorySize() {
+    return directorySize.get();
+  }
+  
+  /**
+   * Increment instance size of data block record offset directories
+   * @param incr increment value
+   * @return directories size after an increment
+   */
+  public long incrInstanceDirectorySize(long incr) {
+    // Increment global
+    incrGlobalDirectorySize(incr);
+    // Increment instance
+    return directorySize.addAndGet(incr);
+  }
+  
   /**
    * Get instance external data size
    * @return  size of a compressed data
@@ -959,7 +1443,7 @@ public class BigSortedMap {
    * @param b index block
    */
   public void readLock(IndexBlock b) {
-    int index = (b.hashCode() % locks.length);
+    int index = b.hashCode() & lockMask;
     ReentrantReadWriteLock lock = locks[index];
     lock.readLock().lock();
   }
@@ -969,28 +1453,41 @@ public class BigSortedMap {
    */
   public void readUnlock(IndexBlock b) {
 
-    int index = (b.hashCode() % locks.length);
+    int index = b.hashCode() & lockMask;
     ReentrantReadWriteLock lock = locks[index];
     lock.readLock().unlock();
   }
 
   /**
-   * Write lock
+   * Write lock. Outermost write lock of a stripe advances stripe's version
    * @throws RetryOperationException
    * @throws InterruptedException
    */
   public void writeLock(IndexBlock b) {
-    int index = (b.hashCode() % locks.length);
+    int index = b.hashCode() & lockMask;
     ReentrantReadWriteLock lock = locks[index];
     lock.writeLock().lock();
+    if (lock.getWriteHoldCount() == 1) {
+      // Never blocks: stamped lock is taken only by holders of write lock 
+      stamps[index].writeLock();
+    }
+    SnapshotEpoch epoch = this.snapshotEpoch;
+    if (epoch != null && b.savedEpoch < epoch.id) {
+      // In place updates (Operation) do not write - lock index block
+      b.copyOnWrite();
+    }
+    b.modifiedEpoch = writeEpoch;
   }
 
   /**
    * Write unlock
    */
   public void writeUnlock(IndexBlock b) {
-    int index = (b.hashCode() % locks.length);
+    int index = b.hashCode() & lockMask;
     ReentrantReadWriteLock lock = locks[index];
+    if (lock.getWriteHoldCount() == 1) {
+      stamps[index].tryUnlockWrite();
+    }
     lock.writeLock().unlock();
   }
   
@@ -1093,7 +1590,7 @@ public class BigSortedMap {
         // Execute operation
         boolean result = op.execute();
         boolean updateInPlace = op.isUpdateInPlace();
-        boolean compressionEnabled = isCompressionEnabled();
+        boolean compressionEnabled = isStoreCompressionEnabled();
         int updatesCount = op.getUpdatesCount();
 
         if (result == false || (updatesCount == 0 && !compressionEnabled)) {
@@ -1189,37 +1686,183 @@ public class BigSortedMap {
   }
   
   /**
-   * Put key-value (for testing only)
-   * @param key key byte array
-   * @param off key offset in a byte array
-   * @param len key's length
-   * @param value value byte array
-   * @param valoff value offset
-   * @param vallen value length
-   * @param expire expire
-   * @return true - success, false - otherwise (OOM)
+   * Executes read - only operation for a batch of keys. Keys are visited in a sorted order,
+   * keys which belong to the same index block share one lock acquisition, keys which belong
+   * to the same data block share one data block de-compression (if compression is enabled).
+   * For every key callback prepares operation, then operation is executed and callback 
+   * receives result. Callback must not access data store.
+   * @param op read - only operation
+   * @param keyPtrs key addresses
+   * @param keySizes key sizes
+   * @param callback batch callback
    */
-  public boolean put(byte[] key, int off, int len, byte[] value, int valoff, int vallen, long expire) {
-    long keyPtr = UnsafeAccess.allocAndCopy(key, off, len);
-    long valuePtr = UnsafeAccess.allocAndCopy(value, valoff, vallen);
-    int keySize = len;
-    int valueSize = vallen;
-    boolean result = put(keyPtr, keySize, valuePtr, valueSize, expire);
-    UnsafeAccess.free(keyPtr);
-    UnsafeAccess.free(valuePtr);
-    return result;
-  }
-  
-  /**
-   * Put key-value operation
-   * @param keyPtr key address
-   * @param keyLength key length
-   * @param valuePtr value address
-   * @param valueLength value length
-   * @param expire expiration time
-   * @return true, if success, false otherwise
-   */ 
-  public boolean put(long keyPtr, int keyLength, long valuePtr, int valueLength, 
+  // Operation.setVersion() is deprecated, but operations still get the same read
+  // version as in execute(Operation)
+  @SuppressWarnings("deprecation")
+  public void execute(Operation op, long[] keyPtrs, int[] keySizes, BatchCallback callback) {
+    if (!op.isReadOnly()) {
+      throw new IllegalArgumentException("Operation must be read-only");
+    }
+    int[] order = sortedOrder(keyPtrs, keySizes);
+    int count = order.length;
+    long version = getSequenceId();
+    int i = 0;
+    while (i < count) {
+      int index = order[i];
+      IndexBlock kvBlock = getThreadLocalBlock();
+      kvBlock.putForSearch(keyPtrs[index], keySizes[index], version);
+      IndexBlock b = map.floorKey(kvBlock);
+      if (b == null) {
+        callback.prepare(index);
+        callback.done(index, false);
+        i++;
+        continue;
+      }
+      boolean reuse = false;
+      boolean lowerKey = false;
+      readLock(b);
+      try {
+        if (!b.isValid() || map.floorKey(kvBlock) != b) {
+          continue;
+        }
+        // All keys less than the first key of the next index block belong to b
+        IndexBlock next = map.higherKey(b);
+        byte[] limit = next == null? null: next.getFirstKey();
+        boolean firstBlock = b.isFirstIndexBlock();
+        for (; i < count; i++) {
+          index = order[i];
+          if (limit != null && 
+              Utils.compareTo(limit, 0, limit.length, keyPtrs[index], keySizes[index]) <= 0) {
+            break;
+          }
+          callback.prepare(index);
+          op.setVersion(version);
+          long recordAddress = 
+              b.get(op.getKeyAddress(), op.getKeySize(), version, op.isFloorKey(), reuse);
+          reuse = true;
+          if (recordAddress < 0 && op.isFloorKey() && !firstBlock) {
+            // Floor key is in a previous index block
+            lowerKey = true;
+            break;
+          }
+          op.setFoundRecordAddress(recordAddress);
+          callback.done(index, op.execute());
+        }
+      } catch (RetryOperationException e) {
+        continue;
+      } finally {
+        if (reuse) {
+          b.compressLastUsedDataBlock();
+        }
+        readUnlock(b);
+      }
+      if (lowerKey) {
+        // Rare case, execute it as a single operation outside of the index block lock
+        callback.prepare(index);
+        callback.done(index, execute(op));
+        i++;
+      }
+    }
+  }
+  
+  /**
+   * Get values for a batch of keys. Keys are visited in a sorted order and keys,
+   * which belong to the same index and data block share lock acquisition and data 
+   * block de-compression. Values are copied to a buffer in a sorted order of keys
+   * @param keyPtrs key addresses
+   * @param keySizes key sizes
+   * @param valueBuf values buffer
+   * @param valueBufLength values buffer size
+   * @param version version
+   * @param sizes value sizes (output), -1 - key was not found
+   * @param offsets value offsets in a values buffer (output), -1 - value was not found
+   *        or was not copied, because buffer is too small 
+   * @return total size of found values, if it is greater than valueBufLength,
+   *         the call must be repeated with appropriately sized value buffer
+   */
+  public long get(long[] keyPtrs, int[] keySizes, long valueBuf, int valueBufLength, 
+      long version, int[] sizes, int[] offsets) {
+    Get get = batchGet.get();
+    long[] total = new long[1];
+    execute(get, keyPtrs, keySizes, new BatchCallback() {
+      @Override
+      public void prepare(int index) {
+        int off = (int) Math.min(total[0], valueBufLength);
+        get.reset();
+        get.setKeyAddress(keyPtrs[index]);
+        get.setKeySize(keySizes[index]);
+        get.setBufferPtr(valueBuf + off);
+        get.setBufferSize(valueBufLength - off);
+        offsets[index] = off;
+      }
+
+      @Override
+      public void done(int index, boolean result) {
+        int size = get.getFoundValueSize();
+        sizes[index] = size;
+        if (size < 0 || offsets[index] + size > valueBufLength) {
+          offsets[index] = -1;
+        }
+        if (size > 0) {
+          total[0] += size;
+        }
+      }
+    });
+    return total[0];
+  }
+  
+  /**
+   * Returns indexes of keys in a sorted order of keys
+   * @param keyPtrs key addresses
+   * @param keySizes key sizes
+   * @return indexes
+   */
+  private static int[] sortedOrder(long[] keyPtrs, int[] keySizes) {
+    Integer[] order = new Integer[keyPtrs.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (x, y) -> Utils.compareTo(keyPtrs[x], keySizes[x], 
+      keyPtrs[y], keySizes[y]));
+    int[] result = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      result[i] = order[i];
+    }
+    return result;
+  }
+  
+  /**
+   * Put key-value (for testing only)
+   * @param key key byte array
+   * @param off key offset in a byte array
+   * @param len key's length
+   * @param value value byte array
+   * @param valoff value offset
+   * @param vallen value length
+   * @param expire expire
+   * @return true - success, false - otherwise (OOM)
+   */
+  public boolean put(byte[] key, int off, int len, byte[] value, int valoff, int vallen, long expire) {
+    long keyPtr = UnsafeAccess.allocAndCopy(key, off, len);
+    long valuePtr = UnsafeAccess.allocAndCopy(value, valoff, vallen);
+    int keySize = len;
+    int valueSize = vallen;
+    boolean result = put(keyPtr, keySize, valuePtr, valueSize, expire);
+    UnsafeAccess.free(keyPtr);
+    UnsafeAccess.free(valuePtr);
+    return result;
+  }
+  
+  /**
+   * Put key-value operation
+   * @param keyPtr key address
+   * @param keyLength key length
+   * @param valuePtr value address
+   * @param valueLength value length
+   * @param expire expiration time
+   * @return true, if success, false otherwise
+   */ 
+  public boolean put(long keyPtr, int keyLength, long valuePtr, int valueLength, 
       long expire) {
     return put(keyPtr, keyLength, valuePtr, valueLength, expire, false);
   }
@@ -1454,13 +2097,24 @@ public class BigSortedMap {
 
     boolean locked = false;
     IndexBlock b = null;
+    boolean optimistic = this.optimisticReads && !isStoreCompressionEnabled();
     while (true) {
       try {
         b = map.floorKey(kvBlock);
-        long result = b.get(keyPtr, keyLength, valueBuf, valueBufLength, version);
-        if (result < 0 && b.hasRecentUnsafeModification()) {
+        long result;
+        if (optimistic) {
+          result = b.optimisticGet(keyPtr, keyLength, valueBuf, valueBufLength, version);
+          if (result == IndexBlock.NOT_FOUND && map.floorKey(kvBlock) != b) {
+            // Index block was split after we had found it
+            continue;
+          }
+        } else {
+          result = b.get(keyPtr, keyLength, valueBuf, valueBufLength, version);
+        }
+        if (result == IndexBlock.RETRY || 
+            (result < 0 && b.hasRecentUnsafeModification())) {
           // check one more time with lock
-          // - we caught split in flight
+          // - we caught split in flight or concurrent modification
           IndexBlock bb = null;
           while (true) {
             b = map.floorKey(kvBlock);
@@ -2165,18 +2819,40 @@ public class BigSortedMap {
    * Disposes map, deallocate all the memory
    */
   public void dispose() {
+    stopSnapshotScheduler();
+    stopCompactor();
+    WriteBackSet wb = this.writeBack;
+    if (wb != null) {
+      wb.stop();
+    }
     synchronized(map) {
       for(IndexBlock b: map.keySet()) {
         b.free();
       }
       map.clear();      
     }
+    if (wb != null) {
+      wb.clear();
+    }
   }
   
   public void flushAll() {
     long start = System.currentTimeMillis();
+    boolean compacting = compactor != null && compactor.isRunning();
+    WriteBackSet wb = this.writeBack;
+    boolean writingBack = wb != null && wb.isRunning();
+    int interval = isSnapshotSchedulerRunning()? snapshotInterval: 0;
     dispose();
     initNodes();
+    if (compacting) {
+      startCompactor();
+    }
+    if (interval > 0) {
+      startSnapshotScheduler(interval);
+    }
+    if (writingBack) {
+      wb.start();
+    }
     long end = System.currentTimeMillis();
     System.out.println("["+ Thread.currentThread().getName()+"] flushall took:"+ (end - start) + "ms");
   }
@@ -2239,8 +2915,40 @@ public class BigSortedMap {
   
   private static int BUFFER_SIZE = 256 * 1024;
   
+  /*
+   * Single file snapshot
+   */
+  final static String SNAPSHOT_FILE = "snapshot.data";
+  
+  /*
+   * Manifest of a partitioned snapshot
+   */
+  final static String SNAPSHOT_MANIFEST_FILE = "snapshot.manifest";
+  
+  private final static int SNAPSHOT_MANIFEST_VERSION = 1;
+  
+  /*
+   * Partition files: snapshot.<generation>.<partition>.data
+   */
+  private final static String SNAPSHOT_PARTITION_PREFIX = "snapshot.";
+  private final static String SNAPSHOT_PARTITION_SUFFIX = ".data";
+  
   // WRITE DATA  
   public void snapshot() {
+    snapshotLock.lock();
+    try {
+      doSnapshot();
+    } finally {
+      snapshotLock.unlock();
+    }
+  }
+  
+  private void doSnapshot() {
+    WriteBackSet wb = this.writeBack;
+    if (wb != null) {
+      // Snapshot compressed data blocks
+      wb.flush();
+    }
     // Check if dir exists
     // Check if snapshotDir is NULL - during tests
     if (snapshotDir == null) {
@@ -2253,70 +2961,280 @@ public class BigSortedMap {
         return;
       }
     }
-
-    File snapshotFile = new File(dir, "snapshot.data_tmp");
-    RandomAccessFile raf = null;
-    FileChannel fc = null;
+    IncrementalSnapshot inc = null;
+    if (incrementalSnapshots) {
+      inc = this.incremental;
+      if (inc == null || !inc.dir.equals(dir)) {
+        inc = new IncrementalSnapshot(dir);
+        this.incremental = inc;
+      }
+    }
+    WriteAheadLog wal = this.wal;
+    long walSegment = 0;
+    SnapshotEpoch epoch;
+    // Wait for write commands in progress
+    mutations.close();
     try {
-      raf = new RandomAccessFile(snapshotFile, "rw");
-      fc = raf.getChannel();
-      // Save store meta data
-      saveStoreMeta(fc);
+      // Mutations logged before this point are in the snapshot
+      walSegment = wal != null? wal.roll(): 0;
+      epoch = new SnapshotEpoch(++lastSnapshotEpoch, inc);
+      // Index blocks modified from now on are not in the snapshot
+      this.writeEpoch = epoch.id + 1;
+      this.snapshotEpoch = epoch;
+    } finally {
+      mutations.open();
+    }
+    boolean result;
+    try {
+      int partitions = snapshotPartitions;
+      result = inc != null? snapshotIncremental(inc, epoch): 
+        partitions > 1? snapshotPartitioned(dir, partitions, epoch): 
+          snapshotSingle(dir, epoch);
+    } finally {
+      this.snapshotEpoch = null;
+    }
+    // Copy - on - write statistics (INFO PERSISTENCE)
+    lastSnapshotCopies = epoch.getCopyCount();
+    lastSnapshotCopySize = epoch.getCopySize();
+    lastSnapshotMaxPendingSize = epoch.getMaxPendingSize();
+    if (!result) {
+      return;
+    }
+    if (wal != null) {
+      wal.truncate(walSegment);
+    }
+    if (inc != null) {
+      // Full snapshot (if any) is obsolete now
+      new File(dir, SNAPSHOT_FILE).delete();
+      new File(dir, SNAPSHOT_MANIFEST_FILE).delete();
+      deleteSnapshotPartitions(dir, -1);
+      RedisConf conf = RedisConf.getInstance();
+      if (inc.needsMerge(conf.getSnapshotDeltaMaxFiles(), conf.getSnapshotMergeGarbageRatio())) {
+        startSnapshotMerger();
+      }
+    } else {
+      // Incremental snapshot (if any) is obsolete now
+      IncrementalSnapshot.deleteAll(dir);
+      this.incremental = null;
+    }
+  }
+  
+  /**
+   * Enables or disables incremental snapshots
+   * @param b true - incremental (base and delta files), false - full snapshots
+   */
+  public void setIncrementalSnapshots(boolean b) {
+    this.incrementalSnapshots = b;
+  }
+  
+  /**
+   * Are snapshots incremental
+   * @return true or false
+   */
+  public boolean isIncrementalSnapshots() {
+    return incrementalSnapshots;
+  }
+  
+  /**
+   * Writes incremental snapshot: index blocks changed since the previous snapshot
+   * are written into a new delta file (all index blocks into a base file, if there 
+   * is no previous snapshot), others are referenced in their old locations
+   * @param inc incremental snapshot
+   * @param epoch snapshot epoch
+   * @return true on success, false - otherwise
+   */
+  private boolean snapshotIncremental(IncrementalSnapshot inc, SnapshotEpoch epoch) {
+    IncrementalSnapshot.Writer writer;
+    MemoryFileChannel meta = new MemoryFileChannel(Utils.SIZEOF_LONG * 7);
+    try {
+      saveStoreMeta(meta);
+      writer = inc.newWriter();
     } catch (IOException e) {
-      System.err.println(
-        "Snapshot failed. Can not create snapshot file: " + snapshotFile.getAbsolutePath());
+      System.err.println("Snapshot failed. Can not create snapshot file in: " + 
+          inc.dir.getAbsolutePath());
       e.printStackTrace();
-      return;
+      return false;
     }
-    
-    System.out.println("Snapshot file opened: " + snapshotFile.getAbsolutePath());
-     
-    // main loop over all index blocks
+    try {
+      saveIncremental(writer, epoch);
+    } catch (IOException e) {
+      System.err.println("Snapshot failed. Can not write snapshot file in: " + 
+          inc.dir.getAbsolutePath());
+      e.printStackTrace();
+      writer.abort();
+      return false;
+    }
+    long timestamp = System.currentTimeMillis();
+    if (!writer.commit(epoch.id, meta.toByteArray(), timestamp)) {
+      return false;
+    }
+    setLastSnapshotTimestamp(timestamp);
+    return true;
+  }
+  
+  /**
+   * Adds all index blocks to incremental snapshot in key order, index blocks
+   * are locked one at a time (see saveRange())
+   * @param writer snapshot writer
+   * @param epoch snapshot epoch
+   * @throws IOException
+   */
+  private void saveIncremental(IncrementalSnapshot.Writer writer, SnapshotEpoch epoch) 
+      throws IOException {
     IndexBlock ib = null, cur = null;
-    int version = -1;
-    ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);//bb.get();
-    buf.clear();
     boolean locked = false;
+    Object copy;
     while (true) {
       locked = false;
       try {
-        if (ib != null) {
-          version = ib.getSeqNumberSplitOrMerge();
-        }
         cur = nextIndexBlock(ib);
         if (cur == null) {
           break;
         } else if (cur.isValid() == false) {
-          //TODO: is it safe?
           continue;
         }
-        // Lock current index block
-        cur.readLock();
+        // Lock current index block (lock is held when it throws)
         locked = true;
-        if (ib != null && ib.hasRecentUnsafeModification()) {
-          int v = ib.getSeqNumberSplitOrMerge();
-          if (v != version) {
-            // We caught IB split in fly
-            ib = cur;
-            continue;
-          }
+        cur.readLock();
+        byte[] key = cur.getFirstKey();
+        while ((copy = epoch.poll(null, key, true)) != null) {
+          writer.add(copy);
         }
-        // Process index block    
-        cur.saveData(fc, buf);
         ib = cur;
+        if (cur.savedEpoch >= epoch.id) {
+          // Saved from a copy or split from a saved block
+          continue;
+        }
+        if (epoch.incremental.isSaved(cur)) {
+          writer.add(cur.snapshotBlock);
+        } else {
+          writer.add(cur, SnapshotEpoch.serialize(cur));
+        }
+        cur.savedEpoch = epoch.id;
       } catch (RetryOperationException e) {
         continue;
-      } catch (IOException e) {
-        System.err.println(
-          "Snapshot failed. Can not create snapshot file: " + snapshotFile.getAbsolutePath());
-        e.printStackTrace();
-        return;
       } finally {
         if (cur != null && locked) {
           cur.readUnlock();
         }
       }
     }
+    while ((copy = epoch.poll(null, null, false)) != null) {
+      writer.add(copy);
+    }
+  }
+  
+  /**
+   * Merges base and delta files of incremental snapshot into a new base file
+   * @return true on success, false - otherwise (or if there is no incremental snapshot)
+   */
+  public boolean mergeSnapshot() {
+    snapshotLock.lock();
+    try {
+      IncrementalSnapshot inc = this.incremental;
+      return inc != null && inc.merge();
+    } finally {
+      snapshotLock.unlock();
+    }
+  }
+  
+  /**
+   * Starts background merge of incremental snapshot files
+   */
+  private void startSnapshotMerger() {
+    if (snapshotMerger != null) {
+      return;
+    }
+    Thread t = new Thread(() -> {
+      try {
+        mergeSnapshot();
+      } finally {
+        snapshotMerger = null;
+      }
+    }, "carrot-snapshot-merger");
+    t.setDaemon(true);
+    snapshotMerger = t;
+    t.start();
+  }
+  
+  /**
+   * Get snapshot statistics (INFO PERSISTENCE)
+   * @return list of statistics
+   */
+  public List<String> getSnapshotStats() {
+    List<String> stats = new ArrayList<String>();
+    stats.add("snapshot_interval_secs:" + (isSnapshotSchedulerRunning()? snapshotInterval: 0));
+    stats.add("snapshot_last_time:" + lastSnapshotTimestamp);
+    stats.add("snapshot_last_cow_blocks:" + lastSnapshotCopies);
+    stats.add("snapshot_last_cow_size:" + lastSnapshotCopySize);
+    stats.add("snapshot_last_cow_max_pending_size:" + lastSnapshotMaxPendingSize);
+    IncrementalSnapshot inc = this.incremental;
+    if (inc != null) {
+      stats.addAll(inc.getStats());
+    } else {
+      stats.add("snapshot_incremental:0");
+    }
+    return stats;
+  }
+  
+  /**
+   * Get incremental snapshot
+   * @return incremental snapshot or null
+   */
+  IncrementalSnapshot getIncrementalSnapshot() {
+    return incremental;
+  }
+  
+  /**
+   * Set number of snapshot partitions (files written in parallel)
+   * @param n number of partitions (1 - single snapshot file)
+   */
+  public void setSnapshotPartitions(int n) {
+    this.snapshotPartitions = Math.max(1, n);
+  }
+  
+  /**
+   * Get number of snapshot partitions
+   * @return number of partitions
+   */
+  public int getSnapshotPartitions() {
+    return snapshotPartitions;
+  }
+  
+  /**
+   * Writes snapshot into a single file
+   * @param dir snapshot directory
+   * @param epoch snapshot epoch
+   * @return true on success, false - otherwise
+   */
+  private boolean snapshotSingle(File dir, SnapshotEpoch epoch) {
+    File snapshotFile = new File(dir, "snapshot.data_tmp");
+    RandomAccessFile raf = null;
+    FileChannel fc = null;
+    try {
+      raf = new RandomAccessFile(snapshotFile, "rw");
+      fc = raf.getChannel();
+      // Save store meta data
+      saveStoreMeta(fc);
+    } catch (IOException e) {
+      System.err.println(
+        "Snapshot failed. Can not create snapshot file: " + snapshotFile.getAbsolutePath());
+      e.printStackTrace();
+      return false;
+    }
+    
+    System.out.println("Snapshot file opened: " + snapshotFile.getAbsolutePath());
+     
+    ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);//bb.get();
+    buf.clear();
+    try {
+      saveRange(fc, buf, null, null, epoch);
+    } catch (IOException e) {
+      System.err.println(
+        "Snapshot failed. Can not create snapshot file: " + snapshotFile.getAbsolutePath());
+      e.printStackTrace();
+      return false;
+    }
 
     // Close file
     try {
@@ -2336,20 +3254,294 @@ public class BigSortedMap {
     }
         
     // Delete old snapshot
-    File oldSnapshotFile = new File(dir, "snapshot.data");
+    File oldSnapshotFile = new File(dir, SNAPSHOT_FILE);
     if (oldSnapshotFile.exists()) {
       boolean result = oldSnapshotFile.delete();
       if (!result) {
         System.err.println("ERROR! Can not delete old snapshot file.");
-        return;
+        return false;
       }
     }
     boolean result = snapshotFile.renameTo(oldSnapshotFile);
     if (!result) {
       System.err.println("ERROR! Can not rename new snapshot file: "+ snapshotFile.getAbsolutePath() + 
         " to "+ oldSnapshotFile.getAbsolutePath());
+      return false;
     } else {
       System.out.println("Snapshot file created: " + oldSnapshotFile.getAbsolutePath());
+      // Partitioned snapshot (if any) is obsolete now
+      new File(dir, SNAPSHOT_MANIFEST_FILE).delete();
+      deleteSnapshotPartitions(dir, -1);
+      return true;
+    }
+  }
+  
+  /**
+   * Writes snapshot partitioned by key range into several files in parallel, 
+   * one thread and one buffer per partition. Manifest (snapshot.manifest) keeps 
+   * store meta data, first keys of partitions, sizes and CRC32 checksums of partition 
+   * files. New snapshot replaces the old one when manifest is renamed.
+   * @param dir snapshot directory
+   * @param partitions number of partitions
+   * @param epoch snapshot epoch
+   * @return true on success, false - otherwise
+   */
+  private boolean snapshotPartitioned(File dir, int partitions, SnapshotEpoch epoch) {
+    long start = System.currentTimeMillis();
+    final long generation = start;
+    final List<byte[]> keys = getPartitionKeys(partitions);
+    final int n = keys.size();
+    final long[] sizes = new long[n];
+    final long[] checksums = new long[n];
+    final boolean[] failed = new boolean[n];
+    Thread[] workers = new Thread[n];
+    for (int i = 0; i < n; i++) {
+      final int index = i;
+      workers[i] = new Thread(() -> {
+        File file = new File(dir, getSnapshotPartitionName(generation, index));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+          ChecksumFileChannel fc = new ChecksumFileChannel(raf.getChannel());
+          ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+          saveRange(fc, buf, keys.get(index), index < n - 1? keys.get(index + 1): null, 
+            epoch);
+          IOUtils.drainBuffer(buf, fc);
+          // Partition time stamp (end of data marker)
+          buf.putLong(System.currentTimeMillis());
+          IOUtils.drainBuffer(buf, fc);
+          sizes[index] = fc.getLength();
+          checksums[index] = fc.getChecksum();
+        } catch (IOException e) {
+          System.err.println("Snapshot failed. Can not write snapshot file: " + 
+              file.getAbsolutePath());
+          e.printStackTrace();
+          failed[index] = true;
+        }
+      }, "carrot-snapshot-" + i);
+      workers[i].start();
+    }
+    boolean success = true;
+    for (int i = 0; i < n; i++) {
+      try {
+        workers[i].join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      success &= !failed[i];
+    }
+    if (!success) {
+      deleteSnapshotPartitions(dir, generation, true);
+      return false;
+    }
+    long timestamp = System.currentTimeMillis();
+    File tmpManifest = new File(dir, SNAPSHOT_MANIFEST_FILE + "_tmp");
+    try (RandomAccessFile raf = new RandomAccessFile(tmpManifest, "rw")) {
+      raf.setLength(0);
+      FileChannel fc = raf.getChannel();
+      ByteBuffer buf = ByteBuffer.allocate(Utils.SIZEOF_INT * 2 + Utils.SIZEOF_LONG * 2);
+      buf.putInt(SNAPSHOT_MANIFEST_VERSION);
+      buf.putLong(generation);
+      buf.putLong(timestamp);
+      buf.putInt(n);
+      IOUtils.drainBuffer(buf, fc);
+      saveStoreMeta(fc);
+      for (int i = 0; i < n; i++) {
+        byte[] key = keys.get(i);
+        int keySize = key == null? 0: key.length;
+        buf = ByteBuffer.allocate(Utils.SIZEOF_INT + keySize + 2 * Utils.SIZEOF_LONG);
+        // First key of a partition (-1 - the first partition)
+        buf.putInt(key == null? -1: keySize);
+        if (key != null) {
+          buf.put(key);
+        }
+        buf.putLong(sizes[i]);
+        buf.putLong(checksums[i]);
+        IOUtils.drainBuffer(buf, fc);
+      }
+      fc.force(true);
+    } catch (IOException e) {
+      System.err.println("Snapshot failed. Can not write manifest: " + tmpManifest.getAbsolutePath());
+      e.printStackTrace();
+      deleteSnapshotPartitions(dir, generation, true);
+      return false;
+    }
+    try {
+      Files.move(tmpManifest.toPath(), new File(dir, SNAPSHOT_MANIFEST_FILE).toPath(), 
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.err.println("ERROR! Can not rename new manifest file: " + tmpManifest.getAbsolutePath());
+      e.printStackTrace();
+      deleteSnapshotPartitions(dir, generation, true);
+      return false;
+    }
+    setLastSnapshotTimestamp(timestamp);
+    // Delete old snapshot
+    deleteSnapshotPartitions(dir, generation);
+    new File(dir, SNAPSHOT_FILE).delete();
+    long end = System.currentTimeMillis();
+    System.out.println("Snapshot created: " + dir.getAbsolutePath() + " partitions=" + n + 
+      " in " + (end - start) + "ms");
+    return true;
+  }
+  
+  /**
+   * Splits store into key ranges with (approximately) the same number of index blocks
+   * @param partitions maximum number of partitions
+   * @return first keys of ranges (null - the first range)
+   */
+  private List<byte[]> getPartitionKeys(int partitions) {
+    List<byte[]> keys = new ArrayList<byte[]>();
+    keys.add(null);
+    int total = map.size();
+    int step = total / partitions;
+    if (step == 0) {
+      return keys;
+    }
+    int count = 0;
+    byte[] last = null;
+    for (IndexBlock b: map.keySet()) {
+      if (count > 0 && count % step == 0 && keys.size() < partitions) {
+        byte[] key = b.getFirstKey();
+        // Index blocks can be split or merged concurrently
+        if (last == null || Utils.compareTo(key, 0, key.length, last, 0, last.length) > 0) {
+          keys.add(key);
+          last = key;
+        }
+      }
+      count++;
+    }
+    return keys;
+  }
+  
+  /**
+   * Saves all index blocks with first keys in a given range. Index blocks 
+   * are locked one at a time, blocks mutated during snapshot are saved 
+   * from copies made by writers (point - in - time snapshot)
+   * @param fc file channel
+   * @param buf write buffer
+   * @param startKey first key of a range, inclusive (null - from the beginning)
+   * @param stopKey last key of a range, exclusive (null - till the end) 
+   * @param epoch snapshot epoch
+   * @throws IOException
+   */
+  private void saveRange(FileChannel fc, ByteBuffer buf, byte[] startKey, byte[] stopKey, 
+      SnapshotEpoch epoch) throws IOException {
+    // main loop over all index blocks
+    IndexBlock ib = null, cur = null;
+    boolean locked = false;
+    while (true) {
+      locked = false;
+      try {
+        cur = ib == null && startKey != null? ceilingIndexBlock(startKey): nextIndexBlock(ib);
+        if (cur == null) {
+          break;
+        } else if (cur.isValid() == false) {
+          //TODO: is it safe?
+          continue;
+        }
+        // Lock current index block (lock is held when it throws)
+        locked = true;
+        cur.readLock();
+        byte[] key = cur.getFirstKey();
+        if (stopKey != null && 
+            Utils.compareTo(key, 0, key.length, stopKey, 0, stopKey.length) >= 0) {
+          // Next range
+          break;
+        }
+        // Copies of preceding blocks (and of this one) are all in place: 
+        // a block can be copied only before it is saved
+        epoch.write(fc, buf, startKey, key, true);
+        ib = cur;
+        if (cur.savedEpoch >= epoch.id) {
+          // Saved from a copy or split from a saved block
+          continue;
+        }
+        // Process index block    
+        cur.saveData(fc, buf);
+        cur.savedEpoch = epoch.id;
+      } catch (RetryOperationException e) {
+        continue;
+      } finally {
+        if (cur != null && locked) {
+          cur.readUnlock();
+        }
+      }
+    }
+    // Copies of the tail of a range
+    epoch.write(fc, buf, startKey, stopKey, false);
+  }
+  
+  /**
+   * Get the first index block with a first key greater or equal to a given one 
+   * @param key key
+   * @return index block or null
+   */
+  private IndexBlock ceilingIndexBlock(byte[] key) {
+    long ptr = UnsafeAccess.allocAndCopy(key, 0, key.length);
+    try {
+      IndexBlock kvBlock = getThreadLocalBlock();
+      kvBlock.putForSearch(ptr, key.length, 0);
+      return map.ceilingKey(kvBlock);
+    } finally {
+      UnsafeAccess.free(ptr);
+    }
+  }
+  
+  static String getSnapshotPartitionName(long generation, int index) {
+    return SNAPSHOT_PARTITION_PREFIX + generation + "." + index + SNAPSHOT_PARTITION_SUFFIX;
+  }
+  
+  /**
+   * Deletes partition files of all snapshots, but a given one
+   * @param dir snapshot directory
+   * @param generation generation to keep (-1 - delete all)
+   */
+  private static void deleteSnapshotPartitions(File dir, long generation) {
+    deleteSnapshotPartitions(dir, generation, false);
+  }
+  
+  /**
+   * Deletes partition files of a snapshot or of all snapshots, but a given one
+   * @param dir snapshot directory
+   * @param generation snapshot generation
+   * @param only true - delete given generation only, false - all, but the given one
+   */
+  private static void deleteSnapshotPartitions(File dir, long generation, boolean only) {
+    String[] names = dir.list();
+    if (names == null) {
+      return;
+    }
+    for (String name: names) {
+      long gen = getSnapshotPartitionGeneration(name);
+      if (gen < 0 || (only? gen != generation: gen == generation)) {
+        continue;
+      }
+      if (!new File(dir, name).delete()) {
+        System.err.println("WARNING! Can not delete old snapshot file: " + name);
+      }
+    }
+  }
+  
+  /**
+   * Get generation of a snapshot partition file
+   * @param name file name
+   * @return generation or -1, if it is not a partition file
+   */
+  private static long getSnapshotPartitionGeneration(String name) {
+    if (!name.startsWith(SNAPSHOT_PARTITION_PREFIX) || !name.endsWith(SNAPSHOT_PARTITION_SUFFIX) ||
+        name.length() <= SNAPSHOT_PARTITION_PREFIX.length() + SNAPSHOT_PARTITION_SUFFIX.length()) {
+      return -1;
+    }
+    String[] parts = name.substring(SNAPSHOT_PARTITION_PREFIX.length(), 
+      name.length() - SNAPSHOT_PARTITION_SUFFIX.length()).split("\\.");
+    if (parts.length != 2) {
+      return -1;
+    }
+    try {
+      Integer.parseInt(parts[1]);
+      return Long.parseLong(parts[0]);
+    } catch (NumberFormatException e) {
+      return -1;
     }
   }
 
@@ -2376,13 +3568,21 @@ public class BigSortedMap {
   public static BigSortedMap loadStore(String server, int port) {
     RedisConf conf = RedisConf.getInstance();
     String snapshotDir = conf.getDataDirForNode(server, port);
-    return loadStoreFromSnapshot(snapshotDir);
+    BigSortedMap map = loadStoreFromSnapshot(snapshotDir);
+    if (map != null && conf.isWALEnabled()) {
+      map.openWAL(conf.getWALDirForNode(server, port));
+    }
+    return map;
   }
   
   public static BigSortedMap loadStore(int storeId) {
     RedisConf conf = RedisConf.getInstance();
     String snapshotDir = conf.getDataDir(storeId);
-    return loadStoreFromSnapshot(snapshotDir);
+    BigSortedMap map = loadStoreFromSnapshot(snapshotDir);
+    if (map != null && conf.isWALEnabled()) {
+      map.openWAL(conf.getWALDir(storeId));
+    }
+    return map;
   }
   
   // READ DATA
@@ -2396,7 +3596,23 @@ public class BigSortedMap {
       return new BigSortedMap();
     }
 
-    File snapshotFile = new File(dir, "snapshot.data");
+    File incManifestFile = new File(dir, IncrementalSnapshot.MANIFEST_FILE);
+    if (incManifestFile.exists()) {
+      map = IncrementalSnapshot.load(dir, incManifestFile);
+      if (map != null) {
+        map.setSnapshotDir(snapshotDir);
+        map.adjustCountersAfterLoad();
+        map.printMemoryAllocationStats();
+      }
+      return map;
+    }
+    
+    File manifestFile = new File(dir, SNAPSHOT_MANIFEST_FILE);
+    if (manifestFile.exists()) {
+      return loadStoreFromManifest(dir, manifestFile);
+    }
+    
+    File snapshotFile = new File(dir, SNAPSHOT_FILE);
     if (!snapshotFile.exists()) {
       System.err.println("Snapshot file does not exists: " + snapshotFile.getAbsolutePath());
       return new BigSortedMap();
@@ -2418,39 +3634,10 @@ public class BigSortedMap {
       return null;
     }
 
-    ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);//bb.get();
-    buf.clear();
-
     try {
-      // Read first chunk from file
-      fc.read(buf);
-      buf.flip();
-      DataBlock block = null;
-      boolean first = true;
-      do {
-        IndexBlock ib = new IndexBlock(map, maxIndexBlockSize);
-        if (first) {
-          ib.isFirst = true;
-          first = false;
-        }
-        if (block != null) {
-          //TODO: insert block into an empty index? Never tested
-          ib.insertBlock(block);
-          block.compressDataBlockIfNeeded();
-        }
-        block = ib.loadData(fc, buf);
-        if (!ib.isEmpty()) {
-          map.map.put(ib, ib);
-        }
-      } while (block != null);
+      long timestamp = loadData(map, fc, true);
       System.out
           .println("Loaded store from: " + snapshotFile.getAbsolutePath() + " at " + new Date());
-      
-      // Last read timestamp, buffer MUST have correct position
-      if (buf.remaining() < Utils.SIZEOF_LONG) {
-        IOUtils.ensureAvailable(fc, buf, Utils.SIZEOF_LONG);
-      }
-      long timestamp = buf.getLong();
       map.setLastSnapshotTimestamp(timestamp);
       map.setSnapshotDir(snapshotDir);
       map.adjustCountersAfterLoad();
@@ -2472,7 +3659,174 @@ public class BigSortedMap {
     return null;
   }
 
-  private static BigSortedMap loadStoreMeta(FileChannel fc) throws IOException {
+  /**
+   * Loads index blocks from a snapshot (partition) file
+   * @param map data store
+   * @param fc file channel (positioned after meta data)
+   * @param first true - the first index block of a store is loaded
+   * @return time stamp, which follows data
+   * @throws IOException
+   */
+  private static long loadData(BigSortedMap map, FileChannel fc, boolean first) 
+      throws IOException {
+    ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);//bb.get();
+    return loadData(map, fc, buf, first, null);
+  }
+  
+  /**
+   * Loads index blocks from a snapshot file
+   * @param map data store
+   * @param fc file channel (positioned after meta data)
+   * @param buf read buffer
+   * @param first true - the first index block of a store is loaded
+   * @param loaded list of loaded index blocks (can be null)
+   * @return time stamp, which follows data
+   * @throws IOException
+   */
+  static long loadData(BigSortedMap map, FileChannel fc, ByteBuffer buf, boolean first, 
+      List<IndexBlock> loaded) throws IOException {
+    buf.clear();
+    // Read first chunk from file
+    fc.read(buf);
+    buf.flip();
+    DataBlock block = null;
+    do {
+      IndexBlock ib = new IndexBlock(map, maxIndexBlockSize);
+      if (first) {
+        ib.isFirst = true;
+        first = false;
+      }
+      if (block != null) {
+        //TODO: insert block into an empty index? Never tested
+        ib.insertBlock(block);
+        block.compressDataBlockIfNeeded();
+      }
+      block = ib.loadData(fc, buf);
+      if (!ib.isEmpty()) {
+        map.map.put(ib, ib);
+        if (loaded != null) {
+          loaded.add(ib);
+        }
+      }
+    } while (block != null);
+    // Last read timestamp, buffer MUST have correct position
+    if (buf.remaining() < Utils.SIZEOF_LONG) {
+      IOUtils.ensureAvailable(fc, buf, Utils.SIZEOF_LONG);
+    }
+    return buf.getLong();
+  }
+  
+  /**
+   * Loads partitioned snapshot. Sizes and checksums of partition files are verified
+   * @param dir snapshot directory
+   * @param manifestFile manifest
+   * @return data store or null on failure
+   */
+  private static BigSortedMap loadStoreFromManifest(File dir, File manifestFile) {
+    System.out.println(
+      "Started loading store data from: " + manifestFile.getAbsolutePath() + " at " + new Date());
+    BigSortedMap map = null;
+    long generation, timestamp;
+    int n;
+    long[] sizes, checksums;
+    try (RandomAccessFile raf = new RandomAccessFile(manifestFile, "r")) {
+      FileChannel fc = raf.getChannel();
+      ByteBuffer buf = ByteBuffer.allocate((int) fc.size());
+      while (buf.hasRemaining() && fc.read(buf) >= 0);
+      buf.flip();
+      int version = buf.getInt();
+      if (version != SNAPSHOT_MANIFEST_VERSION) {
+        throw new IOException("Unsupported snapshot manifest version: " + version);
+      }
+      generation = buf.getLong();
+      timestamp = buf.getLong();
+      n = buf.getInt();
+      // Store meta data follows header
+      fc.position(buf.position());
+      map = loadStoreMeta(fc);
+      buf.position(buf.position() + Utils.SIZEOF_LONG * 7);
+      sizes = new long[n];
+      checksums = new long[n];
+      for (int i = 0; i < n; i++) {
+        int keySize = buf.getInt();
+        // Skip first key of a partition
+        buf.position(buf.position() + Math.max(0, keySize));
+        sizes[i] = buf.getLong();
+        checksums[i] = buf.getLong();
+      }
+    } catch (IOException | RuntimeException e) {
+      System.err.println(
+        "Loading store failed. Corrupted (?) manifest file: " + manifestFile.getAbsolutePath());
+      e.printStackTrace();
+      return null;
+    }
+    if (!loadPartitions(map, dir, generation, sizes, checksums)) {
+      map.dispose();
+      return null;
+    }
+    System.out.println(
+      "Loaded store from: " + manifestFile.getAbsolutePath() + " at " + new Date());
+    map.setLastSnapshotTimestamp(timestamp);
+    map.setSnapshotDir(dir.getPath());
+    map.adjustCountersAfterLoad();
+    map.printMemoryAllocationStats();
+    return map;
+  }
+  
+  /**
+   * Loads snapshot partitions in parallel. Partitions cover disjoint key ranges, 
+   * therefore every thread builds index blocks of its range independently and 
+   * inserts them into the (concurrent) index. The last index block of a range 
+   * is not merged with the first one of the next range, background compaction 
+   * merges under-filled blocks.
+   * @param map data store
+   * @param dir snapshot directory
+   * @param generation snapshot generation
+   * @param sizes partition file sizes
+   * @param checksums partition file checksums
+   * @return true on success, false - otherwise
+   */
+  private static boolean loadPartitions(BigSortedMap map, File dir, long generation, 
+      long[] sizes, long[] checksums) {
+    final int n = sizes.length;
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicBoolean failed = new AtomicBoolean();
+    Runnable loader = () -> {
+      int i;
+      while (!failed.get() && (i = next.getAndIncrement()) < n) {
+        File file = new File(dir, getSnapshotPartitionName(generation, i));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+          ChecksumFileChannel fc = new ChecksumFileChannel(raf.getChannel());
+          loadData(map, fc, i == 0);
+          if (fc.getLength() != sizes[i] || fc.getChecksum() != checksums[i]) {
+            throw new IOException("Checksum mismatch");
+          }
+        } catch (IOException | RuntimeException e) {
+          System.err.println(
+            "Loading store failed. Corrupted (?) snapshot file: " + file.getAbsolutePath());
+          e.printStackTrace();
+          failed.set(true);
+        }
+      }
+    };
+    int threads = Math.min(n, Runtime.getRuntime().availableProcessors());
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread(loader, "carrot-snapshot-loader-" + i);
+      workers[i].start();
+    }
+    for (Thread t: workers) {
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failed.set(true);
+      }
+    }
+    return !failed.get();
+  }
+  
+  static BigSortedMap loadStoreMeta(FileChannel fc) throws IOException {
     BigSortedMap map;
     int toRead = Utils.SIZEOF_LONG * 7;
     ByteBuffer buf = ByteBuffer.allocate(toRead);
@@ -0,0 +1,288 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bigbase.carrot.redis.RedisConf;
+
+/**
+ * Background compactor of a data store. Runs in a low priority thread and
+ * works incrementally in short time slices: every slice it scans next 
+ * batch of index blocks (continues from where the previous slice stopped), 
+ * selects the sparsest ones - average fill of data blocks (uncompressed) below 
+ * DataBlock.MIN_MERGE_FACTOR / 2, which have something to merge or shrink - 
+ * and compacts them one by one, 
+ * the sparsest first, until slice time is over (at least one per slice):
+ * 
+ * 1. Adjacent data blocks are merged while combined data fits 
+ *    DataBlock.MIN_MERGE_FACTOR of maximum block size
+ * 2. Data blocks with more than DataBlock.MIN_COMPACT_RATIO of free space 
+ *    are shrunk (compression disabled)
+ *    
+ * Only one index block is write-locked at a time. Compaction is rate-limited by
+ * a pause between slices (compaction.interval.ms) and maximum slice duration 
+ * (compaction.slice.ms).
+ */
+public class Compactor implements Runnable {
+
+  private BigSortedMap map;
+  
+  private Thread runner;
+  
+  private volatile boolean running;
+  
+  /*
+   * Pause between two slices in ms
+   */
+  private long interval;
+  
+  /*
+   * Maximum slice duration in ms
+   */
+  private long slice;
+  
+  /*
+   * Number of index blocks scanned per slice
+   */
+  private int batchSize;
+  
+  /*
+   * Last scanned index block
+   */
+  private IndexBlock cursor;
+  
+  /*
+   * Statistics, updated by compactor thread only
+   */
+  private volatile long slices;
+  private volatile long passes;
+  private volatile long indexBlocksScanned;
+  private volatile long indexBlocksCompacted;
+  private volatile long dataBlocksMerged;
+  private volatile long dataBlocksShrunk;
+  private volatile long memoryFreed;
+  private volatile long totalTime;
+  
+  /**
+   * Constructor
+   * @param map data store
+   */
+  public Compactor(BigSortedMap map) {
+    this.map = map;
+    RedisConf conf = RedisConf.getInstance();
+    this.interval = conf.getCompactionInterval();
+    this.slice = conf.getCompactionSlice();
+    this.batchSize = conf.getCompactionBatchSize();
+  }
+  
+  /**
+   * Starts compactor thread
+   */
+  public synchronized void start() {
+    if (runner != null) {
+      return;
+    }
+    running = true;
+    cursor = null;
+    runner = new Thread(this, "carrot-compactor");
+    runner.setDaemon(true);
+    runner.setPriority(Thread.MIN_PRIORITY);
+    runner.start();
+  }
+  
+  /**
+   * Stops compactor thread and waits for its termination
+   */
+  public synchronized void stop() {
+    if (runner == null) {
+      return;
+    }
+    running = false;
+    runner.interrupt();
+    try {
+      runner.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    runner = null;
+  }
+  
+  /**
+   * Is compactor running
+   * @return true - if yes, false - otherwise
+   */
+  public boolean isRunning() {
+    return running;
+  }
+  
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        // stop() was called
+        continue;
+      }
+      try {
+        runSlice();
+      } catch (Throwable t) {
+        // Compactor must survive any failure
+        t.printStackTrace();
+        cursor = null;
+      }
+    }
+  }
+  
+  /**
+   * Runs one compaction slice
+   * @return number of compacted index blocks
+   */
+  int runSlice() {
+    long start = System.nanoTime();
+    long deadline = start + slice * 1000000L;
+    List<IndexBlock> candidates = new ArrayList<IndexBlock>();
+    List<Double> fills = new ArrayList<Double>();
+    double threshold = DataBlock.MIN_MERGE_FACTOR / 2;
+    // Scan next batch
+    for (int i = 0; i < batchSize; i++) {
+      // Start from the beginning if cursor was removed
+      cursor = cursor == null || !cursor.isValid()? map.nextIndexBlock(null): 
+        map.nextIndexBlock(cursor);
+      if (cursor == null) {
+        // End of store, next slice starts from the beginning
+        passes++;
+        break;
+      }
+      double fill = getFillRatio(cursor);
+      indexBlocksScanned++;
+      if (fill < threshold && isCompactable(cursor)) {
+        int pos = 0;
+        // Keep candidates sorted by fill, the sparsest first
+        while (pos < fills.size() && fills.get(pos) <= fill) {
+          pos++;
+        }
+        candidates.add(pos, cursor);
+        fills.add(pos, fill);
+      }
+    }
+    int compacted = 0;
+    long allocated = map.getInstanceAllocatedMemory();
+    for (IndexBlock ib: candidates) {
+      // At least one index block per slice to guarantee progress
+      if (compacted > 0 && System.nanoTime() > deadline) {
+        break;
+      }
+      if (compact(ib)) {
+        compacted++;
+      }
+    }
+    memoryFreed += Math.max(0, allocated - map.getInstanceAllocatedMemory());
+    indexBlocksCompacted += compacted;
+    totalTime += System.nanoTime() - start;
+    slices++;
+    return compacted;
+  }
+  
+  private double getFillRatio(IndexBlock ib) {
+    try {
+      map.readLock(ib);
+      if (!ib.isValid()) {
+        return 1;
+      }
+      return ib.getDataBlocksFillRatio();
+    } finally {
+      map.readUnlock(ib);
+    }
+  }
+  
+  private boolean isCompactable(IndexBlock ib) {
+    try {
+      map.readLock(ib);
+      if (!ib.isValid()) {
+        return false;
+      }
+      return ib.isCompactable(DataBlock.MIN_MERGE_FACTOR, DataBlock.MIN_COMPACT_RATIO, 
+        !map.isStoreCompressionEnabled());
+    } finally {
+      map.readUnlock(ib);
+    }
+  }
+  
+  /**
+   * Compacts index block
+   * @param ib index block
+   * @return true - if data blocks were merged or shrunk, false - otherwise
+   */
+  private boolean compact(IndexBlock ib) {
+    try {
+      map.writeLock(ib);
+      if (!ib.isValid()) {
+        return false;
+      }
+      long merged = ib.mergeDataBlocks(DataBlock.MIN_MERGE_FACTOR);
+      long shrunk = 0;
+      dataBlocksMerged += merged;
+      if (!map.isStoreCompressionEnabled()) {
+        shrunk = ib.shrinkDataBlocks(DataBlock.MIN_COMPACT_RATIO);
+        dataBlocksShrunk += shrunk;
+      }
+      return merged > 0 || shrunk > 0;
+    } catch (RetryOperationException e) {
+      return false;
+    } finally {
+      map.writeUnlock(ib);
+    }
+  }
+  
+  /**
+   * Get compaction statistics in INFO format
+   * @return list of statistics
+   */
+  public List<String> getStats() {
+    List<String> stats = new ArrayList<String>();
+    stats.add("compactor_running:" + (running? 1: 0));
+    stats.add("compactor_slices:" + slices);
+    stats.add("compactor_passes:" + passes);
+    stats.add("compactor_time_ms:" + totalTime / 1000000);
+    stats.add("compactor_index_blocks_scanned:" + indexBlocksScanned);
+    stats.add("compactor_index_blocks_compacted:" + indexBlocksCompacted);
+    stats.add("compactor_data_blocks_merged:" + dataBlocksMerged);
+    stats.add("compactor_data_blocks_shrunk:" + dataBlocksShrunk);
+    stats.add("compactor_memory_freed:" + memoryFreed);
+    return stats;
+  }
+  
+  /**
+   * Get number of completed passes over the whole store
+   * @return number of passes
+   */
+  public long getPasses() {
+    return passes;
+  }
+  
+  public long getDataBlocksMerged() {
+    return dataBlocksMerged;
+  }
+  
+  public long getMemoryFreed() {
+    return memoryFreed;
+  }
+}
@@ -421,12 +421,22 @@ public final class DataBlock  {
   }
   
   /**
-   * Is compression enabled
+   * Is compression enabled for the store this block belongs to
    * @return true, if - yes, false otherwise
    */
   
-  static boolean isCompressionEnabled() {
-    return BigSortedMap.isCompressionEnabled();
+  boolean isCompressionEnabled() {
+    BigSortedMap map = indexBlock == null? null: indexBlock.getMap();
+    return map == null? BigSortedMap.isCompressionEnabled(): map.isStoreCompressionEnabled();
+  }
+  
+  /**
+   * Get compression codec of the store this block belongs to
+   * @return codec
+   */
+  Codec getDefaultCodec() {
+    BigSortedMap map = indexBlock == null? null: indexBlock.getMap();
+    return map == null? BigSortedMap.codec: map.getStoreCompressionCodec();
   }
   
   /** 
@@ -462,7 +472,7 @@ public final class DataBlock  {
   };
   
   // The greater factor is the worse is overall performance
-  private static double MIN_MERGE_FACTOR = 0.75; 
+  static double MIN_MERGE_FACTOR = 0.75; 
   /*
    * TODO: make this configurable
    * TODO: Optimal block ratios (check jemalloc sizes)
@@ -474,10 +484,21 @@ public final class DataBlock  {
   static int[] BLOCK_SIZES = new int[] {256, 320, 384, 448, 512, 768, 1024, 1280, 1536, 1792, 2048, 
       2304, 2560, 2816, 3072, 3328, 3584, 3840, 4096};
   
+  /*
+   * Record offset directory keeps offsets (2 bytes) of every DIRECTORY_INTERVAL-th record
+   * of a block (anchors), which allows binary search inside a block. Directory is built 
+   * lazily by the first search and is stored at the end of block's free space, hence
+   * it does not require additional memory. Blocks without enough free space, small and 
+   * compressed blocks are searched linearly. Any change of a block layout invalidates 
+   * the directory. 0 - disabled
+   */
+  static int DIRECTORY_INTERVAL = RedisConf.DEFAULT_DATA_BLOCK_DIRECTORY_INTERVAL;
+  
   static {
     RedisConf conf = RedisConf.getInstance();
     int[] sizes = conf.getDataBlockSizes();
     if (sizes != null) BLOCK_SIZES = sizes;
+    DIRECTORY_INTERVAL = conf.getDataBlockDirectoryInterval();
   }
   
   /*
@@ -592,6 +613,17 @@ public final class DataBlock  {
   
   final static int COMPRESSED_MASK = 8; // 000001000;
   
+  /*
+   * Bit 5 of auxiliary byte: 1 - record offset directory is valid
+   */
+  final static int DIRECTORY_MASK = 16; // 00010000;
+  
+  /*
+   * Bit 6 of auxiliary byte: 1 - block was mutated and is kept decompressed,
+   * its recompression is deferred (see WriteBackSet)
+   */
+  final static int DIRTY_MASK = 32; // 00100000;
+  
   /*
    * Number of records with external allocations (key, value or both)
    * This is used to optimize snapshot of a data block
@@ -625,6 +657,11 @@ public final class DataBlock  {
   
   short compDataBlockSize = 0;
   
+  /*
+   * Decompressed data was copied from the block cache
+   */
+  boolean fromCache = false;
+  
   /*
    * Initial block size
    */
@@ -775,6 +812,29 @@ public final class DataBlock  {
     this.numCustomAllocs = 0;
   }
   
+  /**
+   * Binds detached block to a private copy of a data block (used by lock - free readers)
+   * @param ptr address of a copy
+   * @param dataSize data size
+   * @param numRecords number of records
+   */
+  final void setCopy(long ptr, int dataSize, int numRecords) {
+    this.indexBlock = null;
+    this.indexPtr = 0;
+    this.dataPtr = ptr;
+    this.blockSize = (short) dataSize;
+    this.dataInBlockSize = (short) dataSize;
+    this.numRecords = (short) numRecords;
+    this.compressedDataPtr = 0;
+    this.compDataSize = 0;
+    this.compDataBlockSize = 0;
+    this.codecCompressData = 0;
+    this.numExtAllocs = 0;
+    this.numCustomAllocs = 0;
+    this.valid = true;
+    this.mutation = false;
+  }
+  
   protected boolean isMutationOp() {
     return this.mutation;
   }
@@ -807,8 +867,12 @@ public final class DataBlock  {
     Codec codec = getCompressionCodec();
     int compSize = UnsafeAccess.toInt(this.compressedDataPtr);
     long buf = useSecondBuffer ? decompBuffer2.get() : decompBuffer1.get();
-    int dataSize = codec.decompress(this.compressedDataPtr + Utils.SIZEOF_INT, compSize, buf,
-      MAX_BLOCK_SIZE + 80);
+    int dataSize = DataBlockCache.get(this.compressedDataPtr, buf);
+    this.fromCache = dataSize >= 0;
+    if (!this.fromCache) {
+      dataSize = codec.decompress(this.compressedDataPtr + Utils.SIZEOF_INT, compSize, buf,
+        MAX_BLOCK_SIZE + 80);
+    }
     this.dataPtr = buf;
     
     setDataPtr(this.dataPtr);
@@ -833,12 +897,30 @@ public final class DataBlock  {
     
     // used for compression
     long buf = compBuffer.get();
-    Codec codec = wasCompressed? getCompressionCodec(): BigSortedMap.codec /* default*/;  
+    Codec codec = wasCompressed? getCompressionCodec(): getDefaultCodec();  
 
     //TODO: do not compress if data size is small
-    if ((isMutationOp() || !wasCompressed)) {
+    if (isMutationOp() && wasCompressed && deferCompression()) {
+      // Keep block decompressed, it will be recompressed by write - back set 
+      DataBlockCache.invalidate(this.compressedDataPtr);
+      size = getDataInBlockSize();
+      short newBlockSize = (short)getMinSizeGreaterOrEqualsThan(MAX_BLOCK_SIZE, size);
+      ptr = moveDecompressedData(newBlockSize, blockSize);
+      blockSize = newBlockSize;
+      setCompressed(false);
+    } else if (!wasCompressed && isDirty()) {
+      // Dirty block: no compression until write - back
+      setCompressed(false);
+    } else if ((isMutationOp() || !wasCompressed)) {
+      if (wasCompressed) {
+        // Compressed data is going to be overwritten or freed
+        DataBlockCache.invalidate(this.compressedDataPtr);
+      }
       size = (short)codec.compress(this.dataPtr, getDataInBlockSize(), buf, 
         MAX_BLOCK_SIZE + 80);
+      if (DataBlockSizePolicy.isAdaptive()) {
+        DataBlockSizePolicy.compressionDone(getKeyRange(), getDataInBlockSize(), size);
+      }
 
       if (size + Utils.SIZEOF_INT < getDataInBlockSize()) {
         short newBlockSize = (short)getMinSizeGreaterOrEqualsThan(MAX_BLOCK_SIZE, size + Utils.SIZEOF_INT);
@@ -881,20 +963,7 @@ public final class DataBlock  {
         short newBlockSize = (short)getMinSizeGreaterOrEqualsThan(MAX_BLOCK_SIZE, size);
         if ((this.dataPtr == decompBuffer1.get() ||
             this.dataPtr == decompBuffer2.get()) && this.compressedDataPtr > 0) {
-          ptr = UnsafeAccess.malloc(newBlockSize);
-          UnsafeAccess.copy(this.dataPtr, ptr, size);
-          UnsafeAccess.free(this.compressedDataPtr);
-          // Update memory stats
-          BigSortedMap map = indexBlock.getMap();
-          if (map != null) {
-            map.incrInstanceAllocatedMemory(newBlockSize - blockSize);
-            map.incrInstanceBlockDataSize(newBlockSize - blockSize);
-            map.incrInstanceCompressedDataSize(- this.compDataSize);
-          } else {
-            BigSortedMap.incrGlobalBlockDataSize(newBlockSize - blockSize);
-            BigSortedMap.incrGlobalAllocatedMemory(newBlockSize - blockSize);
-            BigSortedMap.incrGlobalCompressedDataSize(- this.compDataSize);
-          }
+          ptr = moveDecompressedData(newBlockSize, blockSize);
           blockSize = newBlockSize;
         }       
         // disable compression
@@ -902,6 +971,9 @@ public final class DataBlock  {
       }
     } else {
       // not mutation (GET) and was compressed
+      if (!this.fromCache) {
+        DataBlockCache.put(ptr, this.dataPtr, getDataInBlockSize());
+      }
       // restore compressed ptr, size and block size
       setCompressed(true);
       setCompressionCodec(codec);
@@ -916,6 +988,84 @@ public final class DataBlock  {
     setMutationOp(false);
   }
   
+  /**
+   * Moves decompressed data from a thread local buffer to its own memory 
+   * and frees compressed data
+   * @param newBlockSize new block size
+   * @param blockSize compressed data block size
+   * @return address of data
+   */
+  private long moveDecompressedData(short newBlockSize, short blockSize) {
+    long ptr = UnsafeAccess.malloc(newBlockSize);
+    UnsafeAccess.copy(this.dataPtr, ptr, getDataInBlockSize());
+    UnsafeAccess.free(this.compressedDataPtr);
+    // Update memory stats
+    BigSortedMap map = indexBlock.getMap();
+    if (map != null) {
+      map.incrInstanceAllocatedMemory(newBlockSize - blockSize);
+      map.incrInstanceBlockDataSize(newBlockSize - blockSize);
+      map.incrInstanceCompressedDataSize(- this.compDataSize);
+    } else {
+      BigSortedMap.incrGlobalBlockDataSize(newBlockSize - blockSize);
+      BigSortedMap.incrGlobalAllocatedMemory(newBlockSize - blockSize);
+      BigSortedMap.incrGlobalCompressedDataSize(- this.compDataSize);
+    }
+    return ptr;
+  }
+  
+  /**
+   * Marks mutated block dirty if data store defers recompression 
+   * and its write - back set is not full
+   * @return true - if block was marked dirty, false - block must be compressed
+   */
+  private boolean deferCompression() {
+    if (detached()) {
+      return false;
+    }
+    BigSortedMap map = indexBlock.getMap();
+    WriteBackSet writeBack = map == null? null: map.writeBack;
+    if (writeBack == null || !writeBack.tryAdd(indexBlock)) {
+      return false;
+    }
+    setDirty(true);
+    return true;
+  }
+  
+  /**
+   * Is block dirty (mutated and kept decompressed)
+   * @return true - if yes, false - otherwise
+   */
+  final boolean isDirty() {
+    return !detached() && (UnsafeAccess.toByte(indexPtr + auxOffset) & DIRTY_MASK) != 0;
+  }
+  
+  /**
+   * Sets/clears dirty flag
+   * @param b true - dirty
+   */
+  private void setDirty(boolean b) {
+    int v = UnsafeAccess.toByte(indexPtr + auxOffset);
+    if (b) {
+      v |= DIRTY_MASK;
+    } else {
+      v &= ~DIRTY_MASK;
+    }
+    UnsafeAccess.putByte(indexPtr + auxOffset, (byte)v);
+  }
+  
+  /**
+   * Recompresses dirty block (write - back). Caller must hold write lock
+   */
+  final void compressDirty() {
+    setDirty(false);
+    BigSortedMap map = indexBlock.getMap();
+    if (map != null && map.writeBack != null) {
+      map.writeBack.removed();
+    }
+    setMutationOp(true);
+    compressDataBlockIfNeeded();
+  }
+  
   /**
    *  Register new block
    * @param indexBlock - parent index block
@@ -924,6 +1074,8 @@ public final class DataBlock  {
   final void register(IndexBlock indexBlock, long off) {
     this.indexBlock = indexBlock;
     this.indexPtr = indexBlock.getAddress() + off;
+    // New index record, there is no valid directory yet
+    UnsafeAccess.putByte(this.indexPtr + auxOffset, (byte) 0);
     setDataPtr(this.dataPtr);
     setBlockSize(this.blockSize);
     setDataInBlockSize(dataInBlockSize);
@@ -932,7 +1084,7 @@ public final class DataBlock  {
     setThreadSafe(threadSafe);
     if (codecCompressData < 0) {
       setCompressed(false);
-      setCompressionCodec(BigSortedMap.codec);
+      setCompressionCodec(getDefaultCodec());
     } else {
       setCompressed((codecCompressData & COMPRESSED_MASK) != 0);
       setCompressionCodec(CodecFactory.getCodec(this.codecCompressData & CODEC_MASK));
@@ -1095,6 +1247,9 @@ public final class DataBlock  {
    */
   final void setDataPtr(long ptr) {
     if (!detached()) {
+      if (UnsafeAccess.toLong(this.indexPtr) != ptr) {
+        invalidateDirectory();
+      }
       UnsafeAccess.putLong(this.indexPtr, ptr);
       UnsafeAccess.storeFence();
     } else {
@@ -1124,6 +1279,9 @@ public final class DataBlock  {
    */
   final void setBlockSize(short v) {
     if (!detached()) {
+      if (UnsafeAccess.toShort(this.indexPtr + blockSizeOffset) != v) {
+        invalidateDirectory();
+      }
       UnsafeAccess.putShort(this.indexPtr + blockSizeOffset, v);
       UnsafeAccess.storeFence();
     } else {
@@ -1158,6 +1316,9 @@ public final class DataBlock  {
    */
   final void setDataInBlockSize(short v) {
     if (!detached()) {
+      if (UnsafeAccess.toShort(indexPtr + dataSizeOffset) != v) {
+        invalidateDirectory();
+      }
       UnsafeAccess.putShort(indexPtr + dataSizeOffset, v);
       UnsafeAccess.storeFence();
     } else {
@@ -1199,6 +1360,10 @@ public final class DataBlock  {
    */
   final void setNumberOfRecords(short v) {
     if (!detached()) {
+      if (UnsafeAccess.toShort(indexPtr + numRecordsOffset) != v) {
+        // Must be done before update: directory size depends on number of records
+        invalidateDirectory();
+      }
       UnsafeAccess.putShort(indexPtr + numRecordsOffset, v);
       UnsafeAccess.storeFence();
     } else {
@@ -1400,6 +1565,129 @@ public final class DataBlock  {
     UnsafeAccess.storeFence();
   }
   
+  /**
+   * Has block a valid record offset directory
+   * @return true, false
+   */
+  final boolean hasDirectory() {
+    return !detached() && (UnsafeAccess.toByte(indexPtr + auxOffset) & DIRECTORY_MASK) != 0;
+  }
+  
+  /**
+   * Sets/clears record offset directory flag
+   * @param b true - directory is valid
+   */
+  private void setDirectory(boolean b) {
+    int v = UnsafeAccess.toByte(indexPtr + auxOffset);
+    if (b) {
+      v |= DIRECTORY_MASK;
+    } else {
+      v &= ~DIRECTORY_MASK;
+    }
+    UnsafeAccess.putByte(indexPtr + auxOffset, (byte)v);
+    UnsafeAccess.storeFence();
+  }
+  
+  /**
+   * Get size of a record offset directory
+   * @param numRecords number of records in a block
+   * @return size in bytes
+   */
+  static int getDirectorySize(int numRecords) {
+    return ((numRecords - 1) / DIRECTORY_INTERVAL + 1) * Utils.SIZEOF_SHORT;
+  }
+  
+  /**
+   * Invalidates record offset directory. It is called before block layout
+   * (data pointer, block size, data size or number of records) changes
+   */
+  final void invalidateDirectory() {
+    if (!hasDirectory()) {
+      return;
+    }
+    setDirectory(false);
+    BigSortedMap map = this.indexBlock.getMap();
+    if (map != null) {
+      map.incrInstanceDirectorySize(-getDirectorySize(getNumberOfRecords()));
+    } else {
+      BigSortedMap.incrGlobalDirectorySize(-getDirectorySize(getNumberOfRecords()));
+    }
+  }
+  
+  /**
+   * Get record offset directory, builds it if it does not exist yet
+   * @param numRecords number of records
+   * @param dataSize data size
+   * @return directory address or 0, if block does not have directory
+   */
+  private long getDirectory(int numRecords, int dataSize) {
+    if (DIRECTORY_INTERVAL <= 0 || detached() || this.compressedDataPtr != 0 || 
+        numRecords < 2 * DIRECTORY_INTERVAL) {
+      // Disabled, block was decompressed into a temporary buffer or block is too small
+      return 0;
+    }
+    int size = getDirectorySize(numRecords);
+    int blockSize = getBlockSize();
+    if (dataSize + size > blockSize) {
+      // Not enough free space
+      return 0;
+    }
+    long dir = this.dataPtr + blockSize - size;
+    if (hasDirectory()) {
+      return dir;
+    }
+    // Concurrent readers can build directory of the same block
+    synchronized (this.indexBlock) {
+      if (!hasDirectory()) {
+        long ptr = this.dataPtr;
+        for (int i = 0; i < numRecords; i++) {
+          if (i % DIRECTORY_INTERVAL == 0) {
+            UnsafeAccess.putShort(dir + (i / DIRECTORY_INTERVAL) * Utils.SIZEOF_SHORT,
+              (short) (ptr - this.dataPtr));
+          }
+          ptr += blockKeyLength(ptr) + blockValueLength(ptr) + RECORD_TOTAL_OVERHEAD;
+        }
+        setDirectory(true);
+        BigSortedMap map = this.indexBlock.getMap();
+        if (map != null) {
+          map.incrInstanceDirectorySize(size);
+        } else {
+          BigSortedMap.incrGlobalDirectorySize(size);
+        }
+      }
+    }
+    return dir;
+  }
+  
+  /**
+   * Binary search over record offset directory. Finds the last anchor record, 
+   * which is less (or equals) than a given key
+   * @param dir directory address
+   * @param numRecords number of records
+   * @param keyPtr key address
+   * @param keyLength key length
+   * @param inclusive if true - anchor can be equal to a key
+   * @return anchor record address or NOT_FOUND (all anchors are greater)
+   */
+  private long searchDirectory(long dir, int numRecords, long keyPtr, int keyLength, 
+      boolean inclusive) {
+    int low = 0;
+    int high = (numRecords - 1) / DIRECTORY_INTERVAL;
+    long found = NOT_FOUND;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long ptr = this.dataPtr + (UnsafeAccess.toShort(dir + mid * Utils.SIZEOF_SHORT) & 0xffff);
+      int res = Utils.compareTo(keyPtr, keyLength, keyAddress(ptr), keyLength(ptr));
+      if (res > 0 || (res == 0 && inclusive)) {
+        found = ptr;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found;
+  }
+  
   //TODO: not used - elegible for removal
   final void setAllCompressData(byte v) {
     UnsafeAccess.putByte(indexPtr + auxOffset, v);
@@ -1420,7 +1708,7 @@ public final class DataBlock  {
     int blockSize = getBlockSize();
     int dataSize = getDataInBlockSize();
     int nextSize = getMinSizeGreaterOrEqualsThan(BigSortedMap.maxBlockSize, required);
-    if (nextSize < 0 || nextSize < blockSize) {
+    if (nextSize < 0 || nextSize < blockSize || nextSize > getMaxBlockSize()) {
       return false;
     }
     
@@ -1680,6 +1968,10 @@ public final class DataBlock  {
     if (kvLength <= 0) return false;
     int dataSize = getDataInBlockSize();
     int blockSize = getBlockSize();
+    if (dataSize + kvLength + RECORD_TOTAL_OVERHEAD > getMaxBlockSize()) {
+      // Block reached maximum size of its range 
+      return true;
+    }
     if (dataSize + kvLength + RECORD_TOTAL_OVERHEAD > blockSize) {
       boolean res = expand(dataSize + kvLength + RECORD_TOTAL_OVERHEAD);
       blockSize = getBlockSize();
@@ -2260,6 +2552,15 @@ public final class DataBlock  {
     long stopAddress =0;
     int dataSize = getDataInBlockSize();
     stopAddress = dataPtr + dataSize;
+    int numRecords = getNumberOfRecords();
+    long dir = getDirectory(numRecords, dataSize);
+    if (dir != 0) {
+      // Start from the last anchor, which is less than the key
+      long anchor = searchDirectory(dir, numRecords, keyPtr, keyLength, false);
+      if (anchor != NOT_FOUND) {
+        ptr = anchor;
+      }
+    }
     while (ptr < stopAddress) {
       int keylen = keyLength(ptr);     
       int vallen = blockValueLength(ptr);
@@ -2295,6 +2596,16 @@ public final class DataBlock  {
     int dataSize = getDataInBlockSize();
     long prevPtr = NOT_FOUND;
     stopAddress = dataPtr + dataSize;
+    int numRecords = getNumberOfRecords();
+    long dir = getDirectory(numRecords, dataSize);
+    if (dir != 0) {
+      // Start from the last anchor, which is less or equals to the key
+      ptr = searchDirectory(dir, numRecords, keyPtr, keyLength, true);
+      if (ptr == NOT_FOUND) {
+        // First record is greater than the key
+        return NOT_FOUND;
+      }
+    }
     while (ptr < stopAddress) {
       int keylen = keyLength(ptr);     
       int vallen = blockValueLength(ptr);
@@ -2853,11 +3164,43 @@ public final class DataBlock  {
   }
 
   /**
-   * Get max block size
+   * Get data size before compression. Compressed data is decompressed into 
+   * a thread local buffer, the block itself is not modified, so read lock is enough 
+   * @return uncompressed data size
+   */
+  final int getUncompressedDataSize() {
+    if (!isCompressed()) {
+      return getDataInBlockSize();
+    }
+    long ptr = getDataPtr();
+    long buf = decompBuffer2.get();
+    int size = DataBlockCache.get(ptr, buf);
+    if (size >= 0) {
+      return size;
+    }
+    int compSize = UnsafeAccess.toInt(ptr);
+    return getCompressionCodec().decompress(ptr + Utils.SIZEOF_INT, compSize, buf, 
+      MAX_BLOCK_SIZE + 80);
+  }
+  
+  /**
+   * Get max block size of this block's key range
    * @return maxBlockSize
    */
   final int getMaxBlockSize() {
-    return BigSortedMap.maxBlockSize;
+    return DataBlockSizePolicy.getMaxBlockSize(getKeyRange());
+  }
+  
+  /**
+   * Get key range (data type) of this block, see DataBlockSizePolicy
+   * @return key range
+   */
+  final int getKeyRange() {
+    // Keys of a compressed block can not be read without decompression
+    if (getNumberOfRecords() == 0 || isCompressed()) {
+      return DataBlockSizePolicy.DEFAULT_RANGE;
+    }
+    return DataBlockSizePolicy.getRange(keyAddress(dataPtr), keyLength(dataPtr));
   }
 
   /**
@@ -3031,6 +3374,7 @@ public final class DataBlock  {
           return null; // split is not possible
         }
       }
+      DataBlockSizePolicy.splitDone(getKeyRange(), oldNumRecords);
       // Increment sequence number
       incrSeqNumberSplitOrMerge();
       int off = 0;
@@ -3250,6 +3594,7 @@ public final class DataBlock  {
    *        external Key-Value allocations
    */
   final void free(boolean freeExternalAllocs) {
+    invalidateDirectory();
     int count = 0;
     int blockSize = getBlockSize();
     int numRecords = getNumberOfRecords();
@@ -3295,7 +3640,14 @@ public final class DataBlock  {
     }
     valid = false;
 
+    if (isDirty()) {
+      setDirty(false);
+      if (map != null && map.writeBack != null) {
+        map.writeBack.removed();
+      }
+    }
     if (this.compressedDataPtr > 0) {
+      DataBlockCache.invalidate(this.compressedDataPtr);
       UnsafeAccess.free(this.compressedDataPtr);
       if (map == null) {
         BigSortedMap.incrGlobalCompressedDataSize(-this.compDataSize);
@@ -3486,8 +3838,8 @@ public final class DataBlock  {
 
   private void saveMeta(ByteBuffer buf) {
    
-    // Compression data
-    buf.put(getAllCompressData());
+    // Compression data (directory is not saved)
+    buf.put((byte) (getAllCompressData() & ~DIRECTORY_MASK));
     buf.putShort(getNumberOfRecords());
     buf.putShort(getDataInBlockSize());
     buf.putShort(getNumberOfExtAllocsRecords());
@@ -0,0 +1,490 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bigbase.carrot.redis.RedisConf;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * Cache of decompressed data blocks (compressed stores only). Every access to a 
+ * compressed data block decompresses it into a thread local buffer and for read 
+ * operations the decompressed copy is discarded on release. This cache keeps 
+ * decompressed copies of data blocks which were accessed by read operations, 
+ * so the next access to a hot block is a memory copy instead of decompression.
+ * 
+ * Entries are keyed by address of a compressed data. Data at this address
+ * never changes while the entry is cached: entry is invalidated when block is 
+ * recompressed after mutation (new data can be stored at the same address) and 
+ * when block memory is freed (address can be reused by a different block). 
+ * Compressed size is verified on every hit as an additional safety check.
+ * 
+ * Cache is global (shared by all data stores) and is bounded by 
+ * compression.cache.size bytes (0 - disabled). It is split into shards, 
+ * every shard has its own lock, a fixed number of slots (one decompressed 
+ * data block each, allocated on first use) and CLOCK eviction: hit sets slot's 
+ * reference bit, clock hand skips (and clears) referenced slots and evicts the 
+ * first not referenced one. New entries are not referenced, hence blocks which 
+ * are read only once are evicted first.
+ */
+public final class DataBlockCache {
+  
+  /*
+   * Cache shard
+   */
+  private static final class Shard {
+    /*
+     * Compressed data address per slot (0 - empty slot)
+     */
+    final long[] keys;
+    /*
+     * Decompressed data per slot
+     */
+    final long[] buffers;
+    /*
+     * Decompressed data size per slot
+     */
+    final int[] sizes;
+    /*
+     * Compressed data size per slot
+     */
+    final int[] compSizes;
+    /*
+     * CLOCK reference bits
+     */
+    final boolean[] referenced;
+    /*
+     * Open addressing hash table (linear probing) of slot indexes + 1 (0 - empty)
+     */
+    final int[] index;
+    final int indexMask;
+    /*
+     * CLOCK hand
+     */
+    int hand;
+    /*
+     * Shard was disposed
+     */
+    boolean disposed;
+    /*
+     * Statistics, updated under shard lock
+     */
+    long hits;
+    long misses;
+    long evictions;
+    long invalidations;
+    long allocated;
+    int count;
+    
+    Shard(int slots) {
+      keys = new long[slots];
+      buffers = new long[slots];
+      sizes = new int[slots];
+      compSizes = new int[slots];
+      referenced = new boolean[slots];
+      int size = Integer.highestOneBit(slots) << 2;
+      index = new int[size];
+      indexMask = size - 1;
+    }
+    
+    /**
+     * Find slot by key
+     * @param key compressed data address
+     * @return slot or -1
+     */
+    int find(long key) {
+      int i = hash(key) & indexMask;
+      int slot;
+      while ((slot = index[i]) != 0) {
+        if (keys[slot - 1] == key) {
+          return slot - 1;
+        }
+        i = (i + 1) & indexMask;
+      }
+      return -1;
+    }
+    
+    /**
+     * Adds key of a slot to the hash table
+     * @param slot slot
+     */
+    void link(int slot) {
+      int i = hash(keys[slot]) & indexMask;
+      while (index[i] != 0) {
+        i = (i + 1) & indexMask;
+      }
+      index[i] = slot + 1;
+    }
+    
+    /**
+     * Removes key of a slot from the hash table and marks slot empty
+     * (backward shift deletion, no tombstones)
+     * @param slot slot
+     */
+    void unlink(int slot) {
+      int i = hash(keys[slot]) & indexMask;
+      while (index[i] != slot + 1) {
+        i = (i + 1) & indexMask;
+      }
+      int j = i;
+      while (true) {
+        j = (j + 1) & indexMask;
+        int s = index[j];
+        if (s == 0) {
+          break;
+        }
+        int k = hash(keys[s - 1]) & indexMask;
+        // Entry at j can be moved to i only if its home position 
+        // is not cyclically in (i, j]
+        boolean inRange = i <= j? (i < k && k <= j): (i < k || k <= j);
+        if (inRange) {
+          continue;
+        }
+        index[i] = s;
+        i = j;
+      }
+      index[i] = 0;
+      keys[slot] = 0;
+      referenced[slot] = false;
+      count--;
+    }
+    
+    /**
+     * Selects slot for a new entry (evicts if necessary)
+     * @return slot
+     */
+    int victim() {
+      int n = keys.length;
+      while (true) {
+        int slot = hand;
+        hand = hand + 1 == n? 0: hand + 1;
+        if (keys[slot] == 0) {
+          return slot;
+        }
+        if (referenced[slot]) {
+          // Second chance
+          referenced[slot] = false;
+          continue;
+        }
+        unlink(slot);
+        evictions++;
+        return slot;
+      }
+    }
+    
+    /**
+     * Frees all slots
+     */
+    void dispose() {
+      for (int i = 0; i < buffers.length; i++) {
+        if (buffers[i] != 0) {
+          UnsafeAccess.free(buffers[i]);
+          buffers[i] = 0;
+        }
+        keys[i] = 0;
+      }
+      allocated = 0;
+      count = 0;
+      disposed = true;
+    }
+  }
+  
+  /*
+   * Shards (null - cache is disabled)
+   */
+  private static volatile Shard[] shards;
+  
+  /*
+   * Cache capacity in bytes
+   */
+  private static long capacity;
+  
+  /*
+   * Size of a slot
+   */
+  private static int slotSize;
+  
+  static {
+    setCapacity(RedisConf.getInstance().getCompressionCacheSize());
+  }
+  
+  private DataBlockCache() {
+  }
+  
+  static int hash(long key) {
+    // Addresses are aligned, mix all the bits
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+  
+  private static Shard getShard(Shard[] shards, long key) {
+    // Shard is selected by upper bits, slot index - by lower bits
+    return shards[(hash(key) >>> 24) & (shards.length - 1)];
+  }
+  
+  /**
+   * Sets cache capacity, drops all cached blocks
+   * @param size capacity in bytes (0 - disable cache)
+   */
+  public static synchronized void setCapacity(long size) {
+    Shard[] old = shards;
+    shards = null;
+    if (old != null) {
+      for (Shard s: old) {
+        synchronized (s) {
+          s.dispose();
+        }
+      }
+    }
+    capacity = Math.max(size, 0);
+    slotSize = DataBlock.MAX_BLOCK_SIZE;
+    int slots = (int) Math.min(capacity / slotSize, Integer.MAX_VALUE);
+    if (slots == 0) {
+      capacity = 0;
+      return;
+    }
+    int num = Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+    // at least 16 slots per shard
+    while (num > 1 && slots / num < 16) {
+      num >>>= 1;
+    }
+    Shard[] arr = new Shard[num];
+    for (int i = 0; i < num; i++) {
+      arr[i] = new Shard(slots / num);
+    }
+    shards = arr;
+  }
+  
+  /**
+   * Get cache capacity
+   * @return capacity in bytes (0 - cache is disabled)
+   */
+  public static long getCapacity() {
+    return capacity;
+  }
+  
+  /**
+   * Is cache enabled
+   * @return true - if yes, false - otherwise
+   */
+  public static boolean isEnabled() {
+    return shards != null;
+  }
+  
+  /**
+   * Drops all cached blocks
+   */
+  public static synchronized void clear() {
+    setCapacity(capacity);
+  }
+  
+  /**
+   * Copies decompressed data of a block to a buffer
+   * @param compPtr address of compressed data 
+   *        (compressed size followed by compressed data)
+   * @param buf buffer (at least maximum block size)
+   * @return decompressed size or -1 (not cached)
+   */
+  static int get(long compPtr, long buf) {
+    Shard[] shards = DataBlockCache.shards;
+    if (shards == null) {
+      return -1;
+    }
+    Shard s = getShard(shards, compPtr);
+    synchronized (s) {
+      int slot = s.disposed? -1: s.find(compPtr);
+      if (slot < 0) {
+        s.misses++;
+        return -1;
+      }
+      if (s.compSizes[slot] != UnsafeAccess.toInt(compPtr)) {
+        // Must never happen
+        s.unlink(slot);
+        s.invalidations++;
+        s.misses++;
+        return -1;
+      }
+      int size = s.sizes[slot];
+      UnsafeAccess.copy(s.buffers[slot], buf, size);
+      s.referenced[slot] = true;
+      s.hits++;
+      return size;
+    }
+  }
+  
+  /**
+   * Caches decompressed data of a block (does nothing if block is cached already) 
+   * @param compPtr address of compressed data
+   * @param dataPtr decompressed data
+   * @param size decompressed data size
+   */
+  static void put(long compPtr, long dataPtr, int size) {
+    Shard[] shards = DataBlockCache.shards;
+    if (shards == null || size > slotSize) {
+      return;
+    }
+    Shard s = getShard(shards, compPtr);
+    synchronized (s) {
+      if (s.disposed || s.find(compPtr) >= 0) {
+        return;
+      }
+      int slot = s.victim();
+      if (s.buffers[slot] == 0) {
+        s.buffers[slot] = UnsafeAccess.malloc(slotSize);
+        s.allocated += slotSize;
+      }
+      UnsafeAccess.copy(dataPtr, s.buffers[slot], size);
+      s.keys[slot] = compPtr;
+      s.sizes[slot] = size;
+      s.compSizes[slot] = UnsafeAccess.toInt(compPtr);
+      s.referenced[slot] = false;
+      s.link(slot);
+      s.count++;
+    }
+  }
+  
+  /**
+   * Invalidates cached block. Must be called before compressed data is 
+   * overwritten or freed
+   * @param compPtr address of compressed data
+   */
+  static void invalidate(long compPtr) {
+    Shard[] shards = DataBlockCache.shards;
+    if (shards == null) {
+      return;
+    }
+    Shard s = getShard(shards, compPtr);
+    synchronized (s) {
+      int slot = s.disposed? -1: s.find(compPtr);
+      if (slot >= 0) {
+        s.unlink(slot);
+        s.invalidations++;
+      }
+    }
+  }
+  
+  /**
+   * Get total number of hits
+   * @return number of hits
+   */
+  public static long getHits() {
+    long total = 0;
+    for (Shard s: shardsOrEmpty()) {
+      synchronized (s) {
+        total += s.hits;
+      }
+    }
+    return total;
+  }
+  
+  /**
+   * Get total number of misses
+   * @return number of misses
+   */
+  public static long getMisses() {
+    long total = 0;
+    for (Shard s: shardsOrEmpty()) {
+      synchronized (s) {
+        total += s.misses;
+      }
+    }
+    return total;
+  }
+  
+  /**
+   * Get hit ratio
+   * @return hit ratio (0 - if cache was not accessed)
+   */
+  public static double getHitRatio() {
+    long hits = 0, misses = 0;
+    for (Shard s: shardsOrEmpty()) {
+      synchronized (s) {
+        hits += s.hits;
+        misses += s.misses;
+      }
+    }
+    return hits + misses == 0? 0: (double) hits / (hits + misses);
+  }
+  
+  /**
+   * Get number of cached blocks
+   * @return number of blocks
+   */
+  public static long size() {
+    long total = 0;
+    for (Shard s: shardsOrEmpty()) {
+      synchronized (s) {
+        total += s.count;
+      }
+    }
+    return total;
+  }
+  
+  /**
+   * Get memory allocated by cache
+   * @return memory size
+   */
+  public static long getAllocatedMemory() {
+    long total = 0;
+    for (Shard s: shardsOrEmpty()) {
+      synchronized (s) {
+        total += s.allocated;
+      }
+    }
+    return total;
+  }
+  
+  /**
+   * Get cache statistics in INFO format
+   * @return list of "name:value" lines
+   */
+  public static List<String> getStats() {
+    long hits = 0, misses = 0, evictions = 0, invalidations = 0, allocated = 0, count = 0;
+    Shard[] arr = shardsOrEmpty();
+    for (Shard s: arr) {
+      synchronized (s) {
+        hits += s.hits;
+        misses += s.misses;
+        evictions += s.evictions;
+        invalidations += s.invalidations;
+        allocated += s.allocated;
+        count += s.count;
+      }
+    }
+    List<String> stats = new ArrayList<String>();
+    stats.add("block_cache_capacity:" + capacity);
+    stats.add("block_cache_shards:" + arr.length);
+    stats.add("block_cache_used_memory:" + allocated);
+    stats.add("block_cache_blocks:" + count);
+    stats.add("block_cache_hits:" + hits);
+    stats.add("block_cache_misses:" + misses);
+    stats.add("block_cache_hit_ratio:" + 
+        Utils.toString(hits + misses == 0? 0: (double) hits / (hits + misses), 4));
+    stats.add("block_cache_evictions:" + evictions);
+    stats.add("block_cache_invalidations:" + invalidations);
+    return stats;
+  }
+  
+  private static Shard[] shardsOrEmpty() {
+    Shard[] arr = shards;
+    return arr == null? new Shard[0]: arr;
+  }
+}
@@ -0,0 +1,241 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot;
+
+import org.bigbase.carrot.redis.RedisConf;
+import org.bigbase.carrot.redis.util.DataType;
+import org.bigbase.carrot.util.UnsafeAccess;
+
+/**
+ * Data block size policy. Defines maximum size a data block can grow to (before
+ * it gets split) per key range. Range is defined by a data type of the first key 
+ * of a block (first byte of a key), keys which do not start with a data type 
+ * share the default range.
+ * 
+ * Maximum sizes are either fixed (datablock.max.size.<type>) or adaptive. Adaptive 
+ * policy collects split and compression statistics for every range and every 
+ * ADAPT_INTERVAL splits adjusts range's maximum size:
+ * 
+ * 1. Blocks are split with only few records (large values) or data compresses well
+ *    - maximum size is increased (less splits and external allocations, better 
+ *    compression ratio)
+ * 2. Blocks are split with many small records and data does not compress (or 
+ *    compression is disabled) - maximum size is decreased (less data to move 
+ *    on update and to copy on read)
+ *    
+ * Maximum size is always between half and full maximum block size (the largest 
+ * of data block sizes), because records up to a half of maximum block size
+ * are embedded into a block.
+ * 
+ * Statistics are approximate, they are updated without synchronization.
+ */
+public final class DataBlockSizePolicy {
+
+  /*
+   * Number of splits in a range between two adaptations
+   */
+  static int ADAPT_INTERVAL = 1024;
+  
+  /*
+   * Blocks split with less records are considered too small
+   */
+  static int MIN_RECORDS_PER_SPLIT = 8;
+  
+  /*
+   * Blocks split with more records are considered too large
+   */
+  static int MAX_RECORDS_PER_SPLIT = 64;
+  
+  /*
+   * Compression ratio (raw / compressed) starting from which
+   * range benefits from larger blocks
+   */
+  static double GOOD_COMPRESSION_RATIO = 2.0;
+  
+  /*
+   * Compression ratio below which compression is considered not efficient
+   */
+  static double POOR_COMPRESSION_RATIO = 1.25;
+  
+  /*
+   * Default range (keys which do not start with a data type)
+   */
+  static final int DEFAULT_RANGE = DataType.values().length;
+  
+  private static int[] maxSizes = new int[DEFAULT_RANGE + 1];
+  
+  private static boolean adaptive;
+  
+  /*
+   * Per range statistics since last adaptation
+   */
+  private static long[] splits = new long[DEFAULT_RANGE + 1];
+  private static long[] splitRecords = new long[DEFAULT_RANGE + 1];
+  private static long[] rawBytes = new long[DEFAULT_RANGE + 1];
+  private static long[] compressedBytes = new long[DEFAULT_RANGE + 1];
+  
+  static {
+    RedisConf conf = RedisConf.getInstance();
+    for (DataType type: DataType.values()) {
+      setMaxBlockSize(type, conf.getDataBlockMaxSize(type));
+    }
+    setMaxBlockSize(DEFAULT_RANGE, 0);
+    adaptive = conf.isDataBlockSizeAdaptive();
+  }
+  
+  private DataBlockSizePolicy() {
+  }
+  
+  /**
+   * Get range of a key
+   * @param keyPtr key address
+   * @param keySize key size
+   * @return range
+   */
+  static int getRange(long keyPtr, int keySize) {
+    if (keySize == 0) {
+      return DEFAULT_RANGE;
+    }
+    int ordinal = UnsafeAccess.toByte(keyPtr);
+    return ordinal >= 0 && ordinal < DEFAULT_RANGE? ordinal: DEFAULT_RANGE;
+  }
+  
+  /**
+   * Get maximum block size for a range
+   * @param range range
+   * @return maximum block size
+   */
+  static int getMaxBlockSize(int range) {
+    return maxSizes[range];
+  }
+  
+  /**
+   * Get maximum block size for a data type
+   * @param type data type
+   * @return maximum block size
+   */
+  public static int getMaxBlockSize(DataType type) {
+    return maxSizes[type.ordinal()];
+  }
+  
+  /**
+   * Set maximum block size for a data type
+   * @param type data type
+   * @param size maximum size, 0 - maximum block size
+   */
+  public static void setMaxBlockSize(DataType type, int size) {
+    setMaxBlockSize(type.ordinal(), size);
+  }
+  
+  private static void setMaxBlockSize(int range, int size) {
+    maxSizes[range] = bound(size <= 0? DataBlock.getMaximumBlockSize(): size);
+  }
+  
+  /**
+   * Is adaptive policy enabled
+   * @return true - if yes, false - otherwise
+   */
+  public static boolean isAdaptive() {
+    return adaptive;
+  }
+  
+  /**
+   * Enables/disables adaptive policy
+   * @param b true - enable, false - disable
+   */
+  public static synchronized void setAdaptive(boolean b) {
+    adaptive = b;
+    for (int i = 0; i <= DEFAULT_RANGE; i++) {
+      resetStats(i);
+    }
+  }
+  
+  /**
+   * Rounds size to a valid block size between half and full maximum block size
+   * @param size size
+   * @return block size
+   */
+  private static int bound(int size) {
+    int max = DataBlock.getMaximumBlockSize();
+    int min = DataBlock.getMinSizeGreaterOrEqualsThan(max, DataBlock.MAX_BLOCK_SIZE / 2);
+    size = DataBlock.getMinSizeGreaterOrEqualsThan(max, size);
+    if (size < 0 || size > max) {
+      return max;
+    }
+    return Math.max(size, min);
+  }
+  
+  /**
+   * Records data block split
+   * @param range range of a block
+   * @param numRecords number of records in a block before split
+   */
+  static void splitDone(int range, int numRecords) {
+    if (!adaptive) {
+      return;
+    }
+    splitRecords[range] += numRecords;
+    if (++splits[range] % ADAPT_INTERVAL == 0) {
+      adapt(range);
+    }
+  }
+  
+  /**
+   * Records data block compression
+   * @param range range of a block
+   * @param rawSize size of uncompressed data
+   * @param compressedSize size of compressed data
+   */
+  static void compressionDone(int range, int rawSize, int compressedSize) {
+    if (!adaptive) {
+      return;
+    }
+    rawBytes[range] += rawSize;
+    compressedBytes[range] += compressedSize;
+  }
+  
+  /**
+   * Adjusts maximum block size of a range 
+   * @param range range
+   */
+  private static synchronized void adapt(int range) {
+    long n = splits[range];
+    if (n == 0) {
+      return;
+    }
+    double recordsPerSplit = (double) splitRecords[range] / n;
+    long comp = compressedBytes[range];
+    // 0 - compression is disabled
+    double ratio = comp > 0? (double) rawBytes[range] / comp: 0;
+    int size = maxSizes[range];
+    if (recordsPerSplit < MIN_RECORDS_PER_SPLIT || ratio >= GOOD_COMPRESSION_RATIO) {
+      size = bound(size + size / 4);
+    } else if (recordsPerSplit > MAX_RECORDS_PER_SPLIT && ratio < POOR_COMPRESSION_RATIO) {
+      size = bound(size - size / 4);
+    }
+    maxSizes[range] = size;
+    resetStats(range);
+  }
+  
+  private static void resetStats(int range) {
+    splits[range] = 0;
+    splitRecords[range] = 0;
+    rawBytes[range] = 0;
+    compressedBytes[range] = 0;
+  }
+}
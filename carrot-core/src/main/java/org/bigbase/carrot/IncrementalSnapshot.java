@@ -0,0 +1,821 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.bigbase.carrot.util.IOUtils;
+import org.bigbase.carrot.util.MemoryFileChannel;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * Incremental snapshot of a data store. The first snapshot writes all index blocks
+ * into a base file (snapshot.base.<id>), every next one writes only index blocks
+ * changed since the previous snapshot into a delta file (snapshot.delta.<id>).
+ * Every index block keeps location of its last saved copy (Block) and an epoch of
+ * its last modification: a block not modified since the last snapshot is referenced,
+ * not written again.
+ *
+ * Manifest (snapshot.inc.manifest) lists all files and locations of all index blocks
+ * in key order, it is replaced atomically - new snapshot (or merge) becomes visible
+ * when manifest is renamed. Files, which are not referenced by the manifest anymore,
+ * are deleted. When number of delta files or size of obsolete data in files exceed
+ * configured thresholds, live index blocks are merged into a new base file
+ * in a background.
+ *
+ * Manifest format:
+ *
+ * [VERSION][TIMESTAMP][STORE META (7 longs)]
+ * [NUMBER OF FILES]([FILE ID][BASE (1 byte)][SIZE])*
+ * [NUMBER OF BLOCKS]([FILE INDEX][OFFSET][LENGTH][CRC32])*
+ * [CRC32 of all above]
+ *
+ * Index block in a file: serialized data blocks followed by 8 bytes trailer (epoch).
+ */
+final class IncrementalSnapshot {
+
+  /*
+   * Manifest file
+   */
+  final static String MANIFEST_FILE = "snapshot.inc.manifest";
+
+  private final static int MANIFEST_VERSION = 1;
+
+  /*
+   * Base and delta files: snapshot.base.<id>, snapshot.delta.<id>
+   */
+  private final static String BASE_FILE_PREFIX = "snapshot.base.";
+  private final static String DELTA_FILE_PREFIX = "snapshot.delta.";
+
+  private final static int BUFFER_SIZE = 256 * 1024;
+
+  /**
+   * Base or delta file
+   */
+  static final class SnapshotFile {
+
+    final long id;
+
+    final boolean base;
+
+    long size;
+
+    SnapshotFile(long id, boolean base) {
+      this.id = id;
+      this.base = base;
+    }
+
+    String getName() {
+      return (base? BASE_FILE_PREFIX: DELTA_FILE_PREFIX) + id;
+    }
+  }
+
+  /**
+   * Location of a saved index block
+   */
+  static final class Block {
+
+    /*
+     * Incremental snapshot, which wrote this block
+     */
+    final IncrementalSnapshot owner;
+
+    /*
+     * File and offset change on merge
+     */
+    volatile SnapshotFile file;
+
+    volatile long offset;
+
+    /*
+     * Length in bytes (including trailer)
+     */
+    final int length;
+
+    /*
+     * CRC32 checksum
+     */
+    final long checksum;
+
+    Block(IncrementalSnapshot owner, SnapshotFile file, long offset, int length, long checksum) {
+      this.owner = owner;
+      this.file = file;
+      this.offset = offset;
+      this.length = length;
+      this.checksum = checksum;
+    }
+  }
+
+  /*
+   * Snapshot directory
+   */
+  final File dir;
+
+  /*
+   * Files of the current snapshot
+   */
+  private List<SnapshotFile> files = new ArrayList<SnapshotFile>();
+
+  /*
+   * Index blocks of the current snapshot in key order (null - no snapshot yet)
+   */
+  private List<Block> blocks;
+
+  /*
+   * Store meta data of the current snapshot
+   */
+  private byte[] meta;
+
+  /*
+   * Time stamp of the current snapshot
+   */
+  private long timestamp;
+
+  /*
+   * Store epoch of the last snapshot: index blocks modified
+   * after that were not saved yet (0 - loaded store)
+   */
+  private volatile long lastEpoch;
+
+  /*
+   * Last used file id
+   */
+  private long lastFileId;
+
+  /*
+   * Statistics
+   */
+  private volatile long snapshots;
+  private volatile long merges;
+  private volatile long lastBlocksWritten;
+  private volatile long lastBytesWritten;
+  private volatile long lastBlocksReferenced;
+
+  /**
+   * Constructor
+   * @param dir snapshot directory
+   */
+  IncrementalSnapshot(File dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * Is index block saved and not modified since the last snapshot
+   * @param b index block
+   * @return true or false
+   */
+  boolean isSaved(IndexBlock b) {
+    Block sb = b.snapshotBlock;
+    return sb != null && sb.owner == this && b.modifiedEpoch <= lastEpoch;
+  }
+
+  /**
+   * Starts next snapshot: a base file, if there is no snapshot yet, a delta file otherwise
+   * @return writer
+   * @throws IOException
+   */
+  Writer newWriter() throws IOException {
+    return new Writer(new SnapshotFile(nextFileId(), blocks == null));
+  }
+
+  private long nextFileId() {
+    lastFileId = Math.max(System.currentTimeMillis(), lastFileId + 1);
+    return lastFileId;
+  }
+
+  /**
+   * Writer of a snapshot, index blocks are added in key order
+   */
+  final class Writer {
+
+    private final SnapshotFile file;
+
+    private final RandomAccessFile raf;
+
+    private final FileChannel fc;
+
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final CRC32 crc = new CRC32();
+
+    private final byte[] trailer = new byte[Utils.SIZEOF_LONG];
+
+    /*
+     * Index blocks of a new snapshot
+     */
+    private final List<Block> entries = new ArrayList<Block>();
+
+    /*
+     * Live index blocks written by this writer and their locations
+     */
+    private final List<IndexBlock> saved = new ArrayList<IndexBlock>();
+    private final List<Block> savedBlocks = new ArrayList<Block>();
+
+    private long blocksWritten;
+
+    Writer(SnapshotFile file) throws IOException {
+      this.file = file;
+      this.raf = new RandomAccessFile(new File(dir, file.getName()), "rw");
+      this.raf.setLength(0);
+      this.fc = raf.getChannel();
+    }
+
+    /**
+     * Adds a copy of index block made by a writer
+     * @param copy serialized data blocks or location of a saved block
+     * @throws IOException
+     */
+    void add(Object copy) throws IOException {
+      if (copy instanceof Block) {
+        add((Block) copy);
+      } else {
+        write((byte[]) copy);
+      }
+    }
+
+    /**
+     * Adds index block, which was not modified since the last snapshot
+     * @param b location of a saved block
+     */
+    void add(Block b) {
+      entries.add(b);
+    }
+
+    /**
+     * Adds live index block
+     * @param b index block
+     * @param data serialized data blocks
+     * @throws IOException
+     */
+    void add(IndexBlock b, byte[] data) throws IOException {
+      Block sb = write(data);
+      saved.add(b);
+      savedBlocks.add(sb);
+    }
+
+    private Block write(byte[] data) throws IOException {
+      long epoch = lastEpoch;
+      for (int i = 0; i < trailer.length; i++) {
+        trailer[i] = (byte) (epoch >>> (56 - 8 * i));
+      }
+      crc.reset();
+      crc.update(data, 0, data.length);
+      crc.update(trailer, 0, trailer.length);
+      Block b = new Block(IncrementalSnapshot.this, file, file.size,
+        data.length + trailer.length, crc.getValue());
+      put(data);
+      put(trailer);
+      file.size += b.length;
+      entries.add(b);
+      blocksWritten++;
+      return b;
+    }
+
+    private void put(byte[] data) throws IOException {
+      if (buf.capacity() - buf.position() < data.length) {
+        IOUtils.drainBuffer(buf, fc);
+      }
+      if (data.length <= buf.capacity()) {
+        buf.put(data);
+      } else {
+        ByteBuffer src = ByteBuffer.wrap(data);
+        while (src.hasRemaining()) {
+          fc.write(src);
+        }
+      }
+    }
+
+    /**
+     * Makes snapshot visible: writes manifest and deletes files not referenced anymore
+     * @param epoch store epoch of a snapshot
+     * @param meta store meta data
+     * @param timestamp snapshot time stamp
+     * @return true on success, false - otherwise
+     */
+    boolean commit(long epoch, byte[] meta, long timestamp) {
+      File f = new File(dir, file.getName());
+      try {
+        IOUtils.drainBuffer(buf, fc);
+        fc.force(true);
+        raf.close();
+        if (blocksWritten == 0) {
+          // Nothing has changed
+          f.delete();
+        }
+        writeManifest(getFiles(entries), entries, meta, timestamp);
+      } catch (IOException e) {
+        System.err.println("Snapshot failed. Can not write snapshot file: " + f.getAbsolutePath());
+        e.printStackTrace();
+        abort();
+        return false;
+      }
+      for (int i = 0; i < saved.size(); i++) {
+        saved.get(i).snapshotBlock = savedBlocks.get(i);
+      }
+      IncrementalSnapshot.this.files = getFiles(entries);
+      IncrementalSnapshot.this.blocks = entries;
+      IncrementalSnapshot.this.meta = meta;
+      IncrementalSnapshot.this.timestamp = timestamp;
+      IncrementalSnapshot.this.lastEpoch = epoch;
+      snapshots++;
+      lastBlocksWritten = blocksWritten;
+      lastBytesWritten = file.size;
+      lastBlocksReferenced = entries.size() - blocksWritten;
+      deleteUnreferencedFiles();
+      System.out.println("Snapshot created: " + (file.base? "base": "delta") +
+        " blocks written=" + blocksWritten + " size=" + file.size + " blocks referenced=" +
+          lastBlocksReferenced);
+      return true;
+    }
+
+    /**
+     * Discards snapshot
+     */
+    void abort() {
+      try {
+        raf.close();
+      } catch (IOException e) {
+      }
+      new File(dir, file.getName()).delete();
+    }
+  }
+
+  /**
+   * Get files referenced by index blocks
+   * @param blocks index blocks
+   * @return files in order of first reference
+   */
+  private static List<SnapshotFile> getFiles(List<Block> blocks) {
+    List<SnapshotFile> list = new ArrayList<SnapshotFile>();
+    Set<SnapshotFile> set = new HashSet<SnapshotFile>();
+    for (Block b: blocks) {
+      if (set.add(b.file)) {
+        list.add(b.file);
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Should snapshot files be merged
+   * @param maxDeltaFiles maximum number of delta files
+   * @param maxGarbageRatio maximum ratio of obsolete data in files
+   * @return true or false
+   */
+  boolean needsMerge(int maxDeltaFiles, double maxGarbageRatio) {
+    List<SnapshotFile> files = this.files;
+    List<Block> blocks = this.blocks;
+    if (blocks == null) {
+      return false;
+    }
+    int deltas = 0;
+    long total = 0;
+    for (SnapshotFile f: files) {
+      if (!f.base) {
+        deltas++;
+      }
+      total += f.size;
+    }
+    if (deltas > maxDeltaFiles) {
+      return true;
+    }
+    if (total == 0) {
+      return false;
+    }
+    return 1 - (double) getLiveSize(blocks) / total > maxGarbageRatio;
+  }
+
+  private static long getLiveSize(List<Block> blocks) {
+    long size = 0;
+    for (Block b: blocks) {
+      size += b.length;
+    }
+    return size;
+  }
+
+  /**
+   * Merges all index blocks of the current snapshot into a new base file.
+   * Caller makes sure, that no snapshot runs concurrently
+   * @return true on success, false - otherwise
+   */
+  boolean merge() {
+    List<Block> blocks = this.blocks;
+    List<SnapshotFile> oldFiles = this.files;
+    if (blocks == null) {
+      return false;
+    }
+    long start = System.currentTimeMillis();
+    SnapshotFile base = new SnapshotFile(nextFileId(), true);
+    File baseFile = new File(dir, base.getName());
+    Map<SnapshotFile, RandomAccessFile> sources = new HashMap<SnapshotFile, RandomAccessFile>();
+    long[] offsets = new long[blocks.size()];
+    try (RandomAccessFile raf = new RandomAccessFile(baseFile, "rw")) {
+      raf.setLength(0);
+      FileChannel fc = raf.getChannel();
+      ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      for (int i = 0; i < blocks.size(); i++) {
+        Block b = blocks.get(i);
+        RandomAccessFile src = sources.get(b.file);
+        if (src == null) {
+          src = new RandomAccessFile(new File(dir, b.file.getName()), "r");
+          sources.put(b.file, src);
+        }
+        byte[] data = read(src.getChannel(), b);
+        offsets[i] = base.size;
+        base.size += data.length;
+        if (buf.capacity() - buf.position() < data.length) {
+          IOUtils.drainBuffer(buf, fc);
+        }
+        if (data.length <= buf.capacity()) {
+          buf.put(data);
+        } else {
+          ByteBuffer bb = ByteBuffer.wrap(data);
+          while (bb.hasRemaining()) {
+            fc.write(bb);
+          }
+        }
+      }
+      IOUtils.drainBuffer(buf, fc);
+      fc.force(true);
+    } catch (IOException e) {
+      System.err.println("Snapshot merge failed: " + baseFile.getAbsolutePath());
+      e.printStackTrace();
+      baseFile.delete();
+      return false;
+    } finally {
+      closeAll(sources);
+    }
+    List<SnapshotFile> newFiles = new ArrayList<SnapshotFile>();
+    newFiles.add(base);
+    List<Block> newBlocks = new ArrayList<Block>(blocks.size());
+    for (int i = 0; i < blocks.size(); i++) {
+      Block b = blocks.get(i);
+      newBlocks.add(new Block(this, base, offsets[i], b.length, b.checksum));
+    }
+    try {
+      writeManifest(newFiles, newBlocks, meta, timestamp);
+    } catch (IOException e) {
+      System.err.println("Snapshot merge failed. Can not write manifest: " +
+          new File(dir, MANIFEST_FILE).getAbsolutePath());
+      e.printStackTrace();
+      baseFile.delete();
+      return false;
+    }
+    // Index blocks reference the same locations
+    for (int i = 0; i < blocks.size(); i++) {
+      Block b = blocks.get(i);
+      b.file = base;
+      b.offset = offsets[i];
+    }
+    this.files = newFiles;
+    merges++;
+    deleteUnreferencedFiles();
+    long end = System.currentTimeMillis();
+    System.out.println("Snapshot merged: files=" + oldFiles.size() + " blocks=" + blocks.size() +
+      " size=" + base.size + " in " + (end - start) + "ms");
+    return true;
+  }
+
+  /**
+   * Reads saved index block and verifies its checksum
+   * @param fc file channel
+   * @param b location of index block
+   * @return bytes
+   * @throws IOException
+   */
+  private static byte[] read(FileChannel fc, Block b) throws IOException {
+    byte[] data = new byte[b.length];
+    ByteBuffer bb = ByteBuffer.wrap(data);
+    long pos = b.offset;
+    while (bb.hasRemaining()) {
+      int n = fc.read(bb, pos);
+      if (n < 0) {
+        throw new IOException("Unexpected End-Of-Stream");
+      }
+      pos += n;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length);
+    if (crc.getValue() != b.checksum) {
+      throw new IOException("Checksum mismatch");
+    }
+    return data;
+  }
+
+  private static void closeAll(Map<SnapshotFile, RandomAccessFile> files) {
+    for (RandomAccessFile raf: files.values()) {
+      try {
+        raf.close();
+      } catch (IOException e) {
+        System.err.println("WARNING! " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Writes and atomically replaces manifest
+   * @param files files
+   * @param blocks index blocks
+   * @param meta store meta data
+   * @param timestamp snapshot time stamp
+   * @throws IOException
+   */
+  private void writeManifest(List<SnapshotFile> files, List<Block> blocks, byte[] meta,
+      long timestamp) throws IOException {
+    Map<SnapshotFile, Integer> indexes = new HashMap<SnapshotFile, Integer>();
+    int size = Utils.SIZEOF_INT + Utils.SIZEOF_LONG + meta.length + Utils.SIZEOF_INT +
+        files.size() * (2 * Utils.SIZEOF_LONG + Utils.SIZEOF_BYTE) + Utils.SIZEOF_INT +
+        blocks.size() * (2 * Utils.SIZEOF_INT + 2 * Utils.SIZEOF_LONG) + Utils.SIZEOF_LONG;
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    buf.putInt(MANIFEST_VERSION);
+    buf.putLong(timestamp);
+    buf.put(meta);
+    buf.putInt(files.size());
+    for (SnapshotFile f: files) {
+      indexes.put(f, indexes.size());
+      buf.putLong(f.id);
+      buf.put((byte) (f.base? 1: 0));
+      buf.putLong(f.size);
+    }
+    buf.putInt(blocks.size());
+    for (Block b: blocks) {
+      buf.putInt(indexes.get(b.file));
+      buf.putLong(b.offset);
+      buf.putInt(b.length);
+      buf.putLong(b.checksum);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(buf.array(), 0, buf.position());
+    buf.putLong(crc.getValue());
+    File tmpManifest = new File(dir, MANIFEST_FILE + "_tmp");
+    try (RandomAccessFile raf = new RandomAccessFile(tmpManifest, "rw")) {
+      raf.setLength(0);
+      FileChannel fc = raf.getChannel();
+      buf.flip();
+      while (buf.hasRemaining()) {
+        fc.write(buf);
+      }
+      fc.force(true);
+    }
+    Files.move(tmpManifest.toPath(), new File(dir, MANIFEST_FILE).toPath(),
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Deletes base and delta files not referenced by the current snapshot
+   */
+  private void deleteUnreferencedFiles() {
+    Set<String> names = new HashSet<String>();
+    for (SnapshotFile f: files) {
+      names.add(f.getName());
+    }
+    deleteFiles(dir, names);
+  }
+
+  /**
+   * Deletes incremental snapshot (manifest, base and delta files)
+   * @param dir snapshot directory
+   */
+  static void deleteAll(File dir) {
+    new File(dir, MANIFEST_FILE).delete();
+    deleteFiles(dir, new HashSet<String>());
+  }
+
+  private static void deleteFiles(File dir, Set<String> keep) {
+    String[] names = dir.list();
+    if (names == null) {
+      return;
+    }
+    for (String name: names) {
+      if (!name.startsWith(BASE_FILE_PREFIX) && !name.startsWith(DELTA_FILE_PREFIX) ||
+          keep.contains(name)) {
+        continue;
+      }
+      if (!new File(dir, name).delete()) {
+        System.err.println("WARNING! Can not delete old snapshot file: " + name);
+      }
+    }
+  }
+
+  /**
+   * Get statistics (INFO PERSISTENCE)
+   * @return list of statistics
+   */
+  List<String> getStats() {
+    List<String> stats = new ArrayList<String>();
+    List<SnapshotFile> files = this.files;
+    List<Block> blocks = this.blocks;
+    int deltas = 0;
+    long total = 0;
+    for (SnapshotFile f: files) {
+      if (!f.base) {
+        deltas++;
+      }
+      total += f.size;
+    }
+    stats.add("snapshot_incremental:1");
+    stats.add("snapshot_files:" + files.size());
+    stats.add("snapshot_delta_files:" + deltas);
+    stats.add("snapshot_files_size:" + total);
+    stats.add("snapshot_live_size:" + (blocks == null? 0: getLiveSize(blocks)));
+    stats.add("snapshot_index_blocks:" + (blocks == null? 0: blocks.size()));
+    stats.add("snapshot_last_blocks_written:" + lastBlocksWritten);
+    stats.add("snapshot_last_bytes_written:" + lastBytesWritten);
+    stats.add("snapshot_last_blocks_referenced:" + lastBlocksReferenced);
+    stats.add("snapshot_count:" + snapshots);
+    stats.add("snapshot_merges:" + merges);
+    return stats;
+  }
+
+  /**
+   * Get number of index blocks written by the last snapshot
+   * @return number of index blocks
+   */
+  long getLastBlocksWritten() {
+    return lastBlocksWritten;
+  }
+
+  /**
+   * Get number of bytes written by the last snapshot
+   * @return number of bytes
+   */
+  long getLastBytesWritten() {
+    return lastBytesWritten;
+  }
+
+  /**
+   * Get number of base and delta files
+   * @return number of files
+   */
+  int getNumberOfFiles() {
+    return files.size();
+  }
+
+  /**
+   * Get number of merges
+   * @return number of merges
+   */
+  long getMerges() {
+    return merges;
+  }
+
+  /**
+   * Loads incremental snapshot, index blocks are loaded in parallel. Every loaded
+   * index block references its saved location, therefore the next snapshot
+   * of a loaded store is a delta.
+   * @param dir snapshot directory
+   * @param manifestFile manifest
+   * @return data store or null on failure
+   */
+  static BigSortedMap load(File dir, File manifestFile) {
+    System.out.println(
+      "Started loading store data from: " + manifestFile.getAbsolutePath() + " at " + new Date());
+    IncrementalSnapshot snapshot = new IncrementalSnapshot(dir);
+    BigSortedMap map;
+    try (RandomAccessFile raf = new RandomAccessFile(manifestFile, "r")) {
+      FileChannel fc = raf.getChannel();
+      ByteBuffer buf = ByteBuffer.allocate((int) fc.size());
+      while (buf.hasRemaining() && fc.read(buf) >= 0);
+      buf.flip();
+      CRC32 crc = new CRC32();
+      crc.update(buf.array(), 0, buf.limit() - Utils.SIZEOF_LONG);
+      if (crc.getValue() != buf.getLong(buf.limit() - Utils.SIZEOF_LONG)) {
+        throw new IOException("Checksum mismatch");
+      }
+      int version = buf.getInt();
+      if (version != MANIFEST_VERSION) {
+        throw new IOException("Unsupported snapshot manifest version: " + version);
+      }
+      snapshot.timestamp = buf.getLong();
+      snapshot.meta = new byte[Utils.SIZEOF_LONG * 7];
+      buf.get(snapshot.meta);
+      int n = buf.getInt();
+      List<SnapshotFile> files = new ArrayList<SnapshotFile>(n);
+      for (int i = 0; i < n; i++) {
+        SnapshotFile f = new SnapshotFile(buf.getLong(), buf.get() != 0);
+        f.size = buf.getLong();
+        if (new File(dir, f.getName()).length() < f.size) {
+          throw new IOException("Snapshot file is truncated: " + f.getName());
+        }
+        snapshot.lastFileId = Math.max(snapshot.lastFileId, f.id);
+        files.add(f);
+      }
+      n = buf.getInt();
+      List<Block> blocks = new ArrayList<Block>(n);
+      for (int i = 0; i < n; i++) {
+        SnapshotFile f = files.get(buf.getInt());
+        blocks.add(new Block(snapshot, f, buf.getLong(), buf.getInt(), buf.getLong()));
+      }
+      snapshot.files = files;
+      snapshot.blocks = blocks;
+      map = BigSortedMap.loadStoreMeta(new MemoryFileChannel(snapshot.meta));
+    } catch (IOException | RuntimeException e) {
+      System.err.println(
+        "Loading store failed. Corrupted (?) manifest file: " + manifestFile.getAbsolutePath());
+      e.printStackTrace();
+      return null;
+    }
+    Map<SnapshotFile, RandomAccessFile> sources = new HashMap<SnapshotFile, RandomAccessFile>();
+    try {
+      for (SnapshotFile f: snapshot.files) {
+        sources.put(f, new RandomAccessFile(new File(dir, f.getName()), "r"));
+      }
+      if (!snapshot.loadBlocks(map, sources)) {
+        map.dispose();
+        return null;
+      }
+    } catch (IOException e) {
+      System.err.println("Loading store failed. Can not open snapshot file");
+      e.printStackTrace();
+      map.dispose();
+      return null;
+    } finally {
+      closeAll(sources);
+    }
+    System.out.println(
+      "Loaded store from: " + manifestFile.getAbsolutePath() + " at " + new Date());
+    map.incremental = snapshot;
+    map.setLastSnapshotTimestamp(snapshot.timestamp);
+    return map;
+  }
+
+  /**
+   * Loads index blocks in parallel
+   * @param map data store
+   * @param sources open snapshot files
+   * @return true on success, false - otherwise
+   */
+  private boolean loadBlocks(BigSortedMap map, Map<SnapshotFile, RandomAccessFile> sources) {
+    final List<Block> blocks = this.blocks;
+    final int n = blocks.size();
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicBoolean failed = new AtomicBoolean();
+    Runnable loader = () -> {
+      ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      List<IndexBlock> loaded = new ArrayList<IndexBlock>();
+      int i;
+      while (!failed.get() && (i = next.getAndIncrement()) < n) {
+        Block b = blocks.get(i);
+        try {
+          byte[] data = read(sources.get(b.file).getChannel(), b);
+          loaded.clear();
+          BigSortedMap.loadData(map, new MemoryFileChannel(data), buf, i == 0, loaded);
+          if (loaded.size() == 1) {
+            loaded.get(0).snapshotBlock = b;
+          }
+        } catch (IOException | RuntimeException e) {
+          System.err.println("Loading store failed. Corrupted (?) snapshot file: " +
+              new File(dir, b.file.getName()).getAbsolutePath());
+          e.printStackTrace();
+          failed.set(true);
+        }
+      }
+    };
+    int threads = Math.max(1, Math.min(n, Runtime.getRuntime().availableProcessors()));
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread(loader, "carrot-snapshot-loader-" + i);
+      workers[i].start();
+    }
+    for (Thread t: workers) {
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failed.set(true);
+      }
+    }
+    return !failed.get();
+  }
+}
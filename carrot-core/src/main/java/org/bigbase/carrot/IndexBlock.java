@@ -24,7 +24,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
+import org.bigbase.carrot.redis.RedisConf;
 import org.bigbase.carrot.redis.util.Commons;
 import org.bigbase.carrot.util.Bytes;
 import org.bigbase.carrot.util.Key;
@@ -63,6 +65,10 @@ public final class IndexBlock implements Comparable<IndexBlock> {
 
 	public final static int KEY_SIZE_LENGTH = 2;
 	public final static long NOT_FOUND = -1L;
+	/*
+	 * Lock - free read failed, operation must be repeated with lock
+	 */
+	final static long RETRY = -2L;
 	public final static double MIN_COMPACT_RATIO = 0.25d;
 	public final static double MAX_MERGE_RATIO = 0.25d;
 
@@ -141,15 +147,53 @@ public final class IndexBlock implements Comparable<IndexBlock> {
 
 	static float[] BLOCK_RATIOS = new float[] { 0.25f, 0.5f, 0.75f, 1.0f };
 	static final int EXPANSION_SIZE = 512;
+	
+  /*
+   * Minimum number of data blocks in an index block to locate data block by binary search 
+   * over descriptor directory (0 - disabled, descriptors are scanned linearly)
+   */
+  static int DIRECTORY_THRESHOLD = RedisConf.DEFAULT_INDEX_BLOCK_DIRECTORY_THRESHOLD;
+  
+  static {
+    DIRECTORY_THRESHOLD = RedisConf.getInstance().getIndexBlockDirectoryThreshold();
+  }
+  
 	/*
-	 * Read-Write Lock TODO: StampedLock (Java 8)
+	 * Read-Write Locks (shared lock stripes of a store)
 	 */
-	/* static */ ReentrantReadWriteLock[] locks = null;//new ReentrantReadWriteLock[11113];
-//	static {
-//		for (int i = 0; i < locks.length; i++) {
-//			locks[i] = new ReentrantReadWriteLock();
-//		}
-//	}
+	ReentrantReadWriteLock[] locks = null;
+	
+	/*
+	 * Versions of lock stripes, advanced by writers and validated by lock - free readers
+	 */
+	StampedLock[] stamps = null;
+	
+	/*
+	 * Thread local copy of a data block for lock - free readers
+	 */
+	static ThreadLocal<DataBlock> copyBlock = new ThreadLocal<DataBlock>() {
+	  @Override
+	  protected DataBlock initialValue() {
+	    return new DataBlock();
+	  }
+	};
+	
+	static ThreadLocal<Long> copyBuffer = new ThreadLocal<Long>() {
+	  @Override
+	  protected Long initialValue() {
+	    int size = BigSortedMap.maxBlockSize;
+	    long ptr = UnsafeAccess.malloc(size);
+	    BigSortedMap.incrGlobalAllocatedMemory(size);
+	    return ptr;
+	  }
+	};
+	
+	static ThreadLocal<Integer> copyBufferSize = new ThreadLocal<Integer>() {
+	  @Override
+	  protected Integer initialValue() {
+	    return BigSortedMap.maxBlockSize;
+	  }
+	};
 
 	/**
 	 * Get min size greater than current
@@ -246,6 +290,23 @@ public final class IndexBlock implements Comparable<IndexBlock> {
    * Recent unsafe modification time (ms): Creation, split, merge, update first key
    */
   volatile long lastUnsafeModTime;
+  /*
+   * Snapshot epoch this block was saved (or copied) in
+   */
+  volatile long savedEpoch;
+  /*
+   * Store epoch of the last modification (incremental snapshots)
+   */
+  volatile long modifiedEpoch;
+  /*
+   * Location of the last saved copy in incremental snapshot files (null - not saved)
+   */
+  volatile IncrementalSnapshot.Block snapshotBlock;
+  /*
+   * Data block descriptor directory: offsets of all descriptors (fixed stride),
+   * built lazily by search and dropped on any change of index block layout
+   */
+  private volatile short[] directory;
 	/**
 	 * Constructor
 	 * 
@@ -263,6 +324,7 @@ public final class IndexBlock implements Comparable<IndexBlock> {
 		  map.incrInstanceAllocatedMemory(size);
 		  map.incrInstanceBlockIndexSize(size);
 		  this.locks = map.getIndexLocks();
+		  this.stamps = map.getIndexStamps();
 		} else {
 		  BigSortedMap.incrGlobalAllocatedMemory(size);
 		  BigSortedMap.incrGlobalBlockIndexSize(size);
@@ -465,6 +527,7 @@ public final class IndexBlock implements Comparable<IndexBlock> {
 		this.seqNumberSplitOrMerge = 0;
 		this.numDataBlocks = 0;
 		this.blockDataSize = 0;
+		this.directory = null;
 		this.compressed = false;
 		this.firstKey = null;
 		this.type = 0;
@@ -494,7 +557,7 @@ public final class IndexBlock implements Comparable<IndexBlock> {
 	    if (isThreadSafe() || locks == null)
 	      return;
 	    long before = this.seqNumberSplitOrMerge;
-	    int index = (hashCode() % locks.length);
+	    int index = hashCode() & (locks.length - 1);
 	    ReentrantReadWriteLock lock = locks[index];
 	    lock.readLock().lock();	    
 	    if (!isValid()) {
@@ -513,7 +576,7 @@ public final class IndexBlock implements Comparable<IndexBlock> {
 	public void readUnlock() {
 		if (isThreadSafe() || locks == null)
 			return;
-		int index = (hashCode() % locks.length);
+		int index = hashCode() & (locks.length - 1);
 		ReentrantReadWriteLock lock = locks[index];
 		lock.readLock().unlock();
 	}
@@ -529,9 +592,13 @@ public final class IndexBlock implements Comparable<IndexBlock> {
 		if (isThreadSafe() || locks == null)
 			return;
 		long before = this.seqNumberSplitOrMerge;
-		int index = (hashCode() % locks.length);
+		int index = hashCode() & (locks.length - 1);
 		ReentrantReadWriteLock lock = locks[index];
 		lock.writeLock().lock();
+		if (lock.getWriteHoldCount() == 1) {
+		  // Advance stripe version for lock - free readers
+		  stamps[index].writeLock();
+		}
     if (!isValid()) {
       throw new RetryOperationException();
     }
@@ -539,16 +606,37 @@ public final class IndexBlock implements Comparable<IndexBlock> {
 		if (before != after) {
 			throw new RetryOperationException();
 		}
+		if (map != null) {
+		  // Hand a copy of the block to an active snapshot before it is changed
+		  map.copyOnWrite(this);
+		}
 	}
 
+	/**
+	 * Hands a copy of this block to an active snapshot, if it was not saved yet
+	 */
+	void copyOnWrite() {
+	  try {
+	    // Copy is made by write lock
+	    writeLock();
+	  } catch (RetryOperationException e) {
+	    // Invalid block, caller will retry
+	  } finally {
+	    writeUnlock();
+	  }
+	}
+	
 	/**
 	 * Write unlock
 	 */
 	public void writeUnlock() {
 		if (isThreadSafe() || locks == null)
 			return;
-		int index = (hashCode() % locks.length);
+		int index = hashCode() & (locks.length - 1);
 		ReentrantReadWriteLock lock = locks[index];
+		if (lock.getWriteHoldCount() == 1) {
+		  stamps[index].tryUnlockWrite();
+		}
 		lock.writeLock().unlock();
 	}
 
@@ -570,8 +658,10 @@ public final class IndexBlock implements Comparable<IndexBlock> {
 		  // Get to the next index record
 		  int skip = DATA_BLOCK_STATIC_OVERHEAD + KEY_SIZE_LENGTH + blockKeyLength(pos);
 		  pos += skip;
+		  invalidateDirectory();
 		  UnsafeAccess.copy(pos, pos + required, blockDataSize - (pos - dataPtr));
 		}
+		invalidateDirectory();
 		bb.register(this, pos - dataPtr);
 
 		this.blockDataSize += required;
@@ -603,11 +693,13 @@ public final class IndexBlock implements Comparable<IndexBlock> {
       // Get to the next index record
       int skip = DATA_BLOCK_STATIC_OVERHEAD + KEY_SIZE_LENGTH + blockKeyLength(pos);
       pos += skip;
+      invalidateDirectory();
       UnsafeAccess.copy(pos, pos + required, blockDataSize - (pos - dataPtr));
     } else {
       // append to the end of active section of index block
       // do nothing
     }
+    invalidateDirectory();
     bb.register(this, pos - dataPtr);
     this.blockDataSize += required;
     
@@ -764,6 +856,7 @@ public final class IndexBlock implements Comparable<IndexBlock> {
       largeKVs.decrementAndGet();
     }
     int toMove = required; 
+    invalidateDirectory();
     UnsafeAccess.copy(indexPtr+ recLength, indexPtr + recLength +toMove, 
       blockDataSize - indexPtr + dataPtr - recLength); 
       
@@ -1233,6 +1326,7 @@ public final class IndexBlock implements Comparable<IndexBlock> {
       }
       // this.version = version;
       this.type = (byte) Op.PUT.ordinal();
+      invalidateDirectory();
       this.numDataBlocks++;
       int required = DATA_BLOCK_STATIC_OVERHEAD + KEY_SIZE_LENGTH + keyLength;
       this.blockDataSize += required;
@@ -1433,6 +1527,18 @@ public final class IndexBlock implements Comparable<IndexBlock> {
    * @return
    */
   private boolean tryMergeBlocks(DataBlock left, DataBlock right) {
+    return tryMergeBlocks(left, right, 1d);
+  }
+  
+  /**
+   * This works only if right is the next block.
+   * We do not compress left block here - only right
+   * @param left left block
+   * @param right right block
+   * @param factor maximum fill factor of a merged block (relative to maximum block size)
+   * @return true if merged, false - otherwise
+   */
+  private boolean tryMergeBlocks(DataBlock left, DataBlock right, double factor) {
     boolean result = false;
     if (left == null || right == null) {
       return false;
@@ -1443,7 +1549,7 @@ public final class IndexBlock implements Comparable<IndexBlock> {
       } else {
         left.decompressDataBlockIfNeeded(true);
       }
-      int maxBlockSize = DataBlock.getMaximumBlockSize();
+      int maxBlockSize = (int) (left.getMaxBlockSize() * factor);
       int leftSize = left.getDataInBlockSize();
       int rightSize = right.getDataInBlockSize();
       if (leftSize + rightSize <= maxBlockSize) {
@@ -1476,6 +1582,15 @@ public final class IndexBlock implements Comparable<IndexBlock> {
     long ptr = dataPtr;
     long prevPtr = NOT_FOUND;
     int count = 0;
+    short[] dir = getDirectory();
+    if (dir != null) {
+      // Start from the last data block whose first key is less than a given key
+      int index = searchDirectory(dir, keyPtr, keyLength);
+      if (index > 0) {
+        count = index;
+        ptr += dir[index];
+      }
+    }
     
     while (count++ < numDataBlocks) {
       int keylen = keyLength(ptr);
@@ -1502,6 +1617,61 @@ public final class IndexBlock implements Comparable<IndexBlock> {
 
   }
   
+  /**
+   * Drops data block descriptor directory. Must be called on every change 
+   * of index block layout (descriptor insertion, deletion, key size change)
+   */
+  private void invalidateDirectory() {
+    this.directory = null;
+  }
+  
+  /**
+   * Get data block descriptor directory, builds it if necessary
+   * @return directory or null, if it is disabled or index block is too small
+   */
+  private short[] getDirectory() {
+    int num = this.numDataBlocks;
+    if (DIRECTORY_THRESHOLD <= 0 || num < DIRECTORY_THRESHOLD) {
+      return null;
+    }
+    short[] dir = this.directory;
+    if (dir != null && dir.length == num) {
+      return dir;
+    }
+    dir = new short[num];
+    long ptr = this.dataPtr;
+    for (int i = 0; i < num; i++) {
+      dir[i] = (short) (ptr - this.dataPtr);
+      ptr += blockKeyLength(ptr) + KEY_SIZE_LENGTH + DATA_BLOCK_STATIC_OVERHEAD;
+    }
+    this.directory = dir;
+    return dir;
+  }
+  
+  /**
+   * Binary search of the last data block whose first key is less than a given key
+   * @param dir descriptor directory
+   * @param keyPtr key address
+   * @param keyLength key length
+   * @return index of a data block or -1
+   */
+  private int searchDirectory(short[] dir, long keyPtr, int keyLength) {
+    int low = 0, high = dir.length - 1;
+    int found = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long ptr = this.dataPtr + dir[mid];
+      int res = Utils.compareTo(keyAddress(ptr), keyLength(ptr), keyPtr, keyLength);
+      if (res < 0) {
+        found = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found;
+  }
+  
   /**
    * Search largest block which is less than a given key
    * @param keyPtr key address
@@ -1514,6 +1684,15 @@ public final class IndexBlock implements Comparable<IndexBlock> {
     long ptr = dataPtr;
     long prevPtr = NOT_FOUND;
     int count = 0;
+    short[] dir = getDirectory();
+    if (dir != null) {
+      // Start from the last data block whose first key is less than a given key
+      int index = searchDirectory(dir, keyPtr, keyLength);
+      if (index > 0) {
+        count = index;
+        ptr += dir[index];
+      }
+    }
     long recentTxId = BigSortedMap.getMostRecentActiveTxSeqId();
     while (count++ < numDataBlocks) {
       int keylen = keyLength(ptr);
@@ -1573,6 +1752,15 @@ public final class IndexBlock implements Comparable<IndexBlock> {
     long ptr = dataPtr;
     long prevPtr = NOT_FOUND;
     int count = 0;
+    short[] dir = getDirectory();
+    if (dir != null) {
+      // Start from the last data block whose first key is less than a given key
+      int index = searchDirectory(dir, keyPtr, keyLength);
+      if (index > 0) {
+        count = index;
+        ptr += dir[index];
+      }
+    }
     while (count++ < numDataBlocks) {
       int keylen = keyLength(ptr);
       int res = Utils.compareTo(keyPtr, keyLength, keyAddress(ptr), keylen);
@@ -1921,7 +2109,8 @@ public final class IndexBlock implements Comparable<IndexBlock> {
     }
     
     b.free(extAllocs);
-
+    
+    invalidateDirectory();
     UnsafeAccess.copy(indexPtr + toMove, indexPtr, blockDataSize - indexPtr + dataPtr - toMove);
     this.blockDataSize -= toMove;
     if (map == null) {
@@ -2079,6 +2268,65 @@ public final class IndexBlock implements Comparable<IndexBlock> {
     }
   }
   
+  /**
+   * Get key-value address for the next key of a sorted batch. Unlike get(),
+   * the last used data block is not re-compressed if the key belongs to it as well,
+   * so the keys of the same data block share one de-compression. Caller must compress
+   * last used data block when batch (or its part in this index block) is done
+   * @param keyPtr key address
+   * @param keyLength key length
+   * @param version version
+   * @param floor if true returns the largest key which is less or equals
+   * @param reuse true if last used data block was used by a previous key of a batch
+   *        in this index block and it was not compressed yet
+   * @return record address or NOT_FOUND
+   * @throws RetryOperationException
+   */
+  long get(long keyPtr, int keyLength, long version, boolean floor, boolean reuse)
+      throws RetryOperationException {
+    DataBlock dataBlock = block.get();
+    try {
+      readLock();
+      long ptr = search(keyPtr, keyLength, version, Op.DELETE);
+      if (ptr <= 0) {
+        return NOT_FOUND;
+      }
+      if (!reuse || dataBlock.indexBlock != this || dataBlock.getIndexPtr() != ptr) {
+        if (reuse) {
+          dataBlock.compressDataBlockIfNeeded();
+        }
+        dataBlock.set(this, ptr - dataPtr);
+        dataBlock.decompressDataBlockIfNeeded();
+      }
+      if (floor) {
+        long res = dataBlock.get(keyPtr, keyLength, version, true);
+        if (res == NOT_FOUND) {
+          dataBlock.compressDataBlockIfNeeded();
+          dataBlock = previousBlock(dataBlock);
+          if (dataBlock == null) {
+            return NOT_FOUND;
+          }
+          dataBlock.decompressDataBlockIfNeeded();
+          return dataBlock.last();
+        }
+        return res;
+      }
+      long res = dataBlock.get(keyPtr, keyLength, version);
+      long address = ptr;
+      while (res == NOT_FOUND &&
+          (address = searchForGet(keyPtr, keyLength, address)) != NOT_FOUND) {
+        dataBlock.compressDataBlockIfNeeded();
+        dataBlock.set(this, address - this.dataPtr);
+        dataBlock.decompressDataBlockIfNeeded();
+        res = dataBlock.get(keyPtr, keyLength, version);
+      }
+      return res;
+    } finally {
+      // Keep block uncompressed
+      readUnlock();
+    }
+  }
+
   /*DEBUG*/ void dumpStartEndKeys() {
     byte[] first = getFirstKey();
     long lastRecordAddress = lastRecordAddress();
@@ -2278,6 +2526,165 @@ public final class IndexBlock implements Comparable<IndexBlock> {
     }
 	}
 
+  /**
+   * Lock - free (optimistic) version of get. Data block descriptor is located and data block
+   * is copied without locking, then lock stripe versions and split/merge sequence number 
+   * are validated. The search runs over the private copy, therefore concurrent writers can not
+   * corrupt it. Compressed blocks and blocks with external allocations are not supported
+   * @param keyPtr key address
+   * @param keyLength key length
+   * @param valueBuf value buffer address
+   * @param valueBufLength value buffer length
+   * @param version version
+   * @return value length if found, NOT_FOUND or RETRY - operation must be repeated with lock
+   */
+  long optimisticGet(long keyPtr, int keyLength, long valueBuf, int valueBufLength, 
+      long version) {
+    BigSortedMap map = this.map;
+    if (isThreadSafe() || locks == null || map == null || UnsafeAccess.debug) {
+      // Stale reads of freed memory are benign here, but not for memory debugger
+      return RETRY;
+    }
+    StampedLock mapStamp = map.getStamp(this);
+    StampedLock indexStamp = stamps[hashCode() & (stamps.length - 1)];
+    long mapStampValue = mapStamp.tryOptimisticRead();
+    long indexStampValue = indexStamp.tryOptimisticRead();
+    if (mapStampValue == 0 || indexStampValue == 0) {
+      // Write lock is held
+      return RETRY;
+    }
+    int seqNumber = this.seqNumberSplitOrMerge;
+    if (!isValid()) {
+      return RETRY;
+    }
+    long start = this.dataPtr;
+    long end = start + this.blockDataSize;
+    long ptr = optimisticSearch(keyPtr, keyLength, start, end);
+    if (ptr == NOT_FOUND) {
+      return RETRY;
+    }
+    // Read data block descriptor
+    long blockPtr = UnsafeAccess.toLong(ptr + DataBlock.dataPtrOffset);
+    int dataSize = UnsafeAccess.toShort(ptr + DataBlock.dataSizeOffset) & 0xffff;
+    int numRecords = UnsafeAccess.toShort(ptr + DataBlock.numRecordsOffset) & 0xffff;
+    int aux = UnsafeAccess.toByte(ptr + DataBlock.auxOffset);
+    int numExtAllocs = UnsafeAccess.toShort(ptr + DataBlock.numExtAllocsOffset);
+    // Next data block can start with the same key
+    boolean checkNext = false;
+    int keylen = optimisticKeyLength(ptr, start, end);
+    long next = ptr + keylen + KEY_SIZE_LENGTH + DATA_BLOCK_STATIC_OVERHEAD;
+    if (keylen < 0) {
+      return RETRY;
+    } else if (next < end) {
+      int len = optimisticKeyLength(next, start, end);
+      checkNext = len < 0 || Utils.compareTo(keyPtr, keyLength, 
+        next + DATA_BLOCK_STATIC_PREFIX + KEY_SIZE_LENGTH, len) == 0;
+    }
+    // Descriptor must be consistent before we touch data block
+    if (!mapStamp.validate(mapStampValue) || !indexStamp.validate(indexStampValue)) {
+      return RETRY;
+    }
+    if ((aux & DataBlock.COMPRESSED_MASK) != 0 || numExtAllocs != 0 || blockPtr == 0) {
+      return RETRY;
+    }
+    long buffer = copyBuffer.get();
+    int bufferSize = copyBufferSize.get();
+    if (dataSize > bufferSize) {
+      UnsafeAccess.free(buffer);
+      buffer = UnsafeAccess.malloc(dataSize);
+      BigSortedMap.incrGlobalAllocatedMemory(dataSize - bufferSize);
+      copyBuffer.set(buffer);
+      copyBufferSize.set(dataSize);
+    }
+    UnsafeAccess.copy(blockPtr, buffer, dataSize);
+    if (!mapStamp.validate(mapStampValue) || !indexStamp.validate(indexStampValue) ||
+        seqNumber != this.seqNumberSplitOrMerge || !isValid()) {
+      return RETRY;
+    }
+    DataBlock dataBlock = copyBlock.get();
+    dataBlock.setCopy(buffer, dataSize, numRecords);
+    long res = dataBlock.get(keyPtr, keyLength, valueBuf, valueBufLength, version);
+    if (res == DataBlock.NOT_FOUND && checkNext) {
+      return RETRY;
+    }
+    return res;
+  }
+  
+  /**
+   * Lock - free version of search: bounds are checked, external keys are not dereferenced
+   * @param keyPtr key address
+   * @param keyLength key length
+   * @param start start address of index block data
+   * @param end end address of index block data
+   * @return address of data block descriptor or NOT_FOUND
+   */
+  private long optimisticSearch(long keyPtr, int keyLength, long start, long end) {
+    int num = this.numDataBlocks;
+    long ptr = start;
+    int count = 0;
+    short[] dir = this.directory;
+    if (dir != null && dir.length == num) {
+      // Directory is not built here, only used
+      int low = 0, high = num - 1;
+      int found = -1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        long p = start + dir[mid];
+        int len = optimisticKeyLength(p, start, end);
+        if (len < 0) {
+          return NOT_FOUND;
+        }
+        int res = Utils.compareTo(p + DATA_BLOCK_STATIC_PREFIX + KEY_SIZE_LENGTH, len, 
+          keyPtr, keyLength);
+        if (res < 0) {
+          found = mid;
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      if (found > 0) {
+        count = found;
+        ptr = start + dir[found];
+      }
+    }
+    long prevPtr = NOT_FOUND;
+    while (count++ < num) {
+      int len = optimisticKeyLength(ptr, start, end);
+      if (len < 0) {
+        return NOT_FOUND;
+      }
+      int res = Utils.compareTo(keyPtr, keyLength, 
+        ptr + DATA_BLOCK_STATIC_PREFIX + KEY_SIZE_LENGTH, len);
+      if (res < 0) {
+        return prevPtr;
+      } else if (res == 0) {
+        return ptr;
+      }
+      prevPtr = ptr;
+      ptr += len + KEY_SIZE_LENGTH + DATA_BLOCK_STATIC_OVERHEAD;
+    }
+    return prevPtr;
+  }
+  
+  /**
+   * Get first key length of a data block descriptor without dereferencing external keys
+   * @param ptr descriptor address
+   * @param start start address of index block data
+   * @param end end address of index block data
+   * @return key length or -1 (external key or descriptor is out of bounds)
+   */
+  private int optimisticKeyLength(long ptr, long start, long end) {
+    if (ptr < start || ptr + DATA_BLOCK_STATIC_PREFIX + KEY_SIZE_LENGTH > end) {
+      return -1;
+    }
+    int len = UnsafeAccess.toShort(ptr + DATA_BLOCK_STATIC_PREFIX);
+    if (len <= 0 || ptr + len + KEY_SIZE_LENGTH + DATA_BLOCK_STATIC_OVERHEAD > end) {
+      return -1;
+    }
+    return len;
+  }
+  
 	/**
 	 * Get block size
 	 * 
@@ -2345,14 +2752,21 @@ public final class IndexBlock implements Comparable<IndexBlock> {
 			}
 			int oldDataSize = this.blockDataSize;
 			int oldNumRecords = this.numDataBlocks;
+			invalidateDirectory();
 			this.blockDataSize = (short) (ptr - dataPtr);
 			this.numDataBlocks = (short) recCount;
 			int rightBlockSize = this.blockSize;//getMinSizeGreaterThan(getBlockSize(), leftDataSize);
 			IndexBlock right = new IndexBlock(map, rightBlockSize);
+			// Data of the right block was saved (or copied) together with this one
+			right.savedEpoch = this.savedEpoch;
 
 			right.numDataBlocks = (short) (oldNumRecords - this.numDataBlocks);
 			right.blockDataSize = (short) (oldDataSize - this.blockDataSize);
 			UnsafeAccess.copy(ptr, right.dataPtr, right.blockDataSize);
+			if (map != null && map.writeBack != null) {
+			  // Right block can contain dirty data blocks
+			  map.writeBack.splitDone(this, right);
+			}
 			// Init first key
 			right.getFirstKey();
 			updateUnsafeModificationTime();
@@ -2392,6 +2806,8 @@ public final class IndexBlock implements Comparable<IndexBlock> {
 				return false;
 			}
 
+			invalidateDirectory();
+			left.invalidateDirectory();
 			UnsafeAccess.copy(left.dataPtr, this.dataPtr + blockDataSize, left.blockDataSize);
 			this.numDataBlocks += left.numDataBlocks;
 			this.blockDataSize += left.blockDataSize;
@@ -2422,6 +2838,7 @@ public final class IndexBlock implements Comparable<IndexBlock> {
 	  deallocateBlocks();
 	  // deallocate large keys
 	  deallocateLargeKeys();
+	  invalidateDirectory();
 		UnsafeAccess.free(dataPtr);
 		if (map == null) {
 		  BigSortedMap.incrGlobalDataInIndexBlocksSize(-blockDataSize);
@@ -2525,6 +2942,136 @@ public final class IndexBlock implements Comparable<IndexBlock> {
 	    db.shrink();
 	  }
 	}
+	
+	/**
+	 * Get average fill ratio of data blocks: uncompressed data size relative 
+	 * to maximum block size. Caller must hold read lock
+	 * @return fill ratio (1 - if there are no data blocks)
+	 */
+	double getDataBlocksFillRatio() {
+	  DataBlock db = null;
+	  long dataSize = 0;
+	  int count = 0;
+	  while ((db = nextBlock(db, true)) != null) {
+	    dataSize += db.getUncompressedDataSize();
+	    count++;
+	  }
+	  return count == 0? 1: (double) dataSize / ((long) count * DataBlock.getMaximumBlockSize());
+	}
+	
+	/**
+	 * Checks if mergeDataBlocks() or shrinkDataBlocks() would change anything:
+	 * there are adjacent data blocks which fit a given fill factor together or 
+	 * (when shrink is true) data blocks with more than a given ratio of free space.
+	 * Caller must hold read lock
+	 * @param factor fill factor
+	 * @param ratio free space ratio
+	 * @param shrink check shrinkable blocks as well
+	 * @return true - if yes, false - otherwise
+	 */
+	boolean isCompactable(double factor, double ratio, boolean shrink) {
+	  DataBlock db = null;
+	  int prevSize = -1;
+	  int prevMaxSize = 0;
+	  while ((db = nextBlock(db, true)) != null) {
+	    if (shrink) {
+	      int blockSize = db.getBlockSize();
+	      if (blockSize - db.getDataInBlockSize() > ratio * blockSize) {
+	        return true;
+	      }
+	    }
+	    int size = db.getUncompressedDataSize();
+	    if (prevSize >= 0 && prevSize + size <= (int) (prevMaxSize * factor)) {
+	      return true;
+	    }
+	    prevSize = size;
+	    prevMaxSize = db.getMaxBlockSize();
+	  }
+	  return false;
+	}
+	
+	/**
+	 * Merges adjacent data blocks while merged block fits a given fill factor
+	 * of maximum block size. Caller must hold write lock
+	 * @param factor fill factor
+	 * @return number of merged (deleted) blocks
+	 * @throws RetryOperationException
+	 */
+	int mergeDataBlocks(double factor) throws RetryOperationException {
+	  int merged = 0;
+	  try {
+	    writeLock();
+	    DataBlock left = firstBlock();
+	    while (left != null) {
+	      left.decompressDataBlockIfNeeded();
+	      DataBlock right = nextBlockInIndex(left);
+	      if (right == null) {
+	        left.compressDataBlockIfNeeded();
+	        break;
+	      }
+	      if (tryMergeBlocks(left, right, factor)) {
+	        // Left block must be recompressed
+	        left.setMutationOp(true);
+	        // try to merge with the next one
+	        merged++;
+	        continue;
+	      }
+	      left.compressDataBlockIfNeeded();
+	      left.set(this, right.getIndexPtr() - dataPtr);
+	    }
+	  } finally {
+	    writeUnlock();
+	  }
+	  return merged;
+	}
+	
+	/**
+	 * Shrinks data blocks which have more than a given ratio of free space 
+	 * (compression must be disabled). Caller must hold write lock
+	 * @param ratio free space ratio
+	 * @return number of shrunk blocks
+	 * @throws RetryOperationException
+	 */
+	int shrinkDataBlocks(double ratio) throws RetryOperationException {
+	  int shrunk = 0;
+	  try {
+	    writeLock();
+	    DataBlock db = null;
+	    while ((db = nextBlock(db, true)) != null) {
+	      int blockSize = db.getBlockSize();
+	      if (blockSize - db.getDataInBlockSize() > ratio * blockSize && db.shrink()) {
+	        shrunk++;
+	      }
+	    }
+	  } finally {
+	    writeUnlock();
+	  }
+	  return shrunk;
+	}
+	
+	/**
+	 * Recompresses dirty data blocks (deferred recompression). 
+	 * Caller must hold write lock
+	 * @return number of recompressed data blocks
+	 * @throws RetryOperationException
+	 */
+	int compressDirtyDataBlocks() throws RetryOperationException {
+	  int count = 0;
+	  try {
+	    writeLock();
+	    DataBlock db = null;
+	    while ((db = nextBlock(db, true)) != null) {
+	      if (db.isDirty()) {
+	        db.compressDirty();
+	        count++;
+	      }
+	    }
+	  } finally {
+	    writeUnlock();
+	  }
+	  return count;
+	}
+	
 	/**
 	 * PERSISTENCE
 	 * @throws IOException 
@@ -0,0 +1,157 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Quiescence point for snapshots. Mutations (write commands) in progress are counted
+ * in striped counters: every thread gets its own stripe (round - robin), stripes are
+ * padded to separate cache lines, so concurrent writers do not share a cache line
+ * (unlike a read lock of a single read - write lock).
+ *
+ * Snapshot closes the barrier and waits until all counters drain, new mutations wait
+ * until the barrier is open again. Writer increments its counter before it checks
+ * the barrier and snapshot closes the barrier before it reads counters, so at least one
+ * of them sees the other (both are volatile accesses).
+ */
+final class MutationBarrier {
+
+  /*
+   * Longs per stripe: 128 bytes, adjacent cache line prefetch does not
+   * bring two stripes together
+   */
+  private final static int PAD = 16;
+
+  /*
+   * Next stripe to assign to a thread
+   */
+  private final static AtomicInteger nextStripe = new AtomicInteger();
+
+  /*
+   * Mutations in progress, one padded counter per stripe
+   */
+  private final AtomicLongArray counts;
+
+  private final int mask;
+
+  /*
+   * Closed by a snapshot
+   */
+  private volatile boolean closed;
+
+  /*
+   * Per thread state: stripe and mutation depth (mutations can be nested)
+   */
+  private final ThreadLocal<int[]> threadState = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[] { nextStripe.getAndIncrement(), 0 };
+    }
+  };
+
+  /**
+   * Constructor
+   * @param stripes minimum number of stripes
+   */
+  MutationBarrier(int stripes) {
+    int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+    this.counts = new AtomicLongArray(n * PAD);
+    this.mask = n - 1;
+  }
+
+  /**
+   * Enters mutation, waits while the barrier is closed
+   */
+  void enter() {
+    int[] state = threadState.get();
+    if (state[1]++ > 0) {
+      // Nested mutation, thread is counted already
+      return;
+    }
+    int index = (state[0] & mask) * PAD;
+    while (true) {
+      counts.incrementAndGet(index);
+      if (!closed) {
+        return;
+      }
+      // Snapshot is waiting for mutations in progress: step back and wait
+      counts.decrementAndGet(index);
+      boolean interrupted = false;
+      synchronized (this) {
+        while (closed) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            // Mutation must not be lost, continue waiting
+            interrupted = true;
+          }
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Exits mutation
+   */
+  void exit() {
+    int[] state = threadState.get();
+    if (--state[1] > 0) {
+      return;
+    }
+    counts.decrementAndGet((state[0] & mask) * PAD);
+  }
+
+  /**
+   * Is current thread in a mutation
+   * @return true or false
+   */
+  boolean isInMutation() {
+    return threadState.get()[1] > 0;
+  }
+
+  /**
+   * Closes barrier and waits until all mutations in progress are finished.
+   * Only one thread can close barrier at a time (snapshots are serialized)
+   */
+  void close() {
+    closed = true;
+    // Current thread can be in a mutation itself
+    int[] state = threadState.get();
+    int own = state[1] > 0? state[0] & mask: -1;
+    for (int i = 0; i <= mask; i++) {
+      long limit = i == own? 1: 0;
+      while (counts.get(i * PAD) > limit) {
+        // Mutations are short
+        Thread.yield();
+      }
+    }
+  }
+
+  /**
+   * Opens barrier, wakes up waiting mutations
+   */
+  synchronized void open() {
+    closed = false;
+    notifyAll();
+  }
+}
@@ -0,0 +1,228 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bigbase.carrot.util.IOUtils;
+import org.bigbase.carrot.util.MemoryFileChannel;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * Snapshot epoch (point - in - time snapshot with per index block copy - on - write). 
+ * 
+ * Epoch is opened when no write command is in progress (see BigSortedMap.beginMutation()),
+ * every index block remembers the epoch it was saved in. Snapshot threads save index 
+ * blocks one at a time under read lock. A writer, which write - locks an index block not yet 
+ * saved in the current epoch, first serializes it into memory and hands the copy over 
+ * to the snapshot (copies are ordered by first keys of blocks), then the block is marked 
+ * as saved and snapshot threads skip it. New index blocks (split) inherit the epoch of 
+ * a parent block. Snapshot threads write copies in key order together with live blocks. 
+ * 
+ * Memory overhead is bounded by index blocks mutated during a snapshot, not by a data set size.
+ * Incremental snapshot does not need data of blocks not changed since the previous 
+ * snapshot, location of a saved block is handed over instead of a copy.
+ */
+final class SnapshotEpoch {
+
+  /*
+   * Copy buffer size
+   */
+  private final static int BUFFER_SIZE = 256 * 1024;
+  
+  /*
+   * Serialization buffer for copies (per writer thread)
+   */
+  private static ThreadLocal<ByteBuffer> copyBuffer = new ThreadLocal<ByteBuffer>() {
+    @Override
+    protected ByteBuffer initialValue() {
+      return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+  };
+  
+  /*
+   * Epoch id (> 0)
+   */
+  final long id;
+  
+  /*
+   * Incremental snapshot (null - full snapshot)
+   */
+  final IncrementalSnapshot incremental;
+  
+  /*
+   * Copies of index blocks: first key -> serialized data blocks (byte[]) or 
+   * location of a not changed block in incremental snapshot files
+   */
+  private final ConcurrentSkipListMap<byte[], Object> copies = 
+      new ConcurrentSkipListMap<byte[], Object>(
+        (a, b) -> Utils.compareTo(a, 0, a.length, b, 0, b.length));
+  
+  /*
+   * Number of copied index blocks
+   */
+  private final AtomicLong copyCount = new AtomicLong();
+  
+  /*
+   * Total size of copies in bytes
+   */
+  private final AtomicLong copySize = new AtomicLong();
+  
+  /*
+   * Size of copies, not yet written by snapshot threads
+   */
+  private final AtomicLong pendingSize = new AtomicLong();
+  
+  /*
+   * Maximum size of not yet written copies
+   */
+  private final AtomicLong maxPendingSize = new AtomicLong();
+  
+  /**
+   * Constructor
+   * @param id epoch id
+   * @param incremental incremental snapshot (null - full snapshot)
+   */
+  SnapshotEpoch(long id, IncrementalSnapshot incremental) {
+    this.id = id;
+    this.incremental = incremental;
+  }
+  
+  /**
+   * Serializes data blocks of index block, caller holds lock of the block
+   * @param b index block
+   * @return serialized data blocks
+   */
+  static byte[] serialize(IndexBlock b) {
+    ByteBuffer buf = copyBuffer.get();
+    buf.clear();
+    MemoryFileChannel fc = new MemoryFileChannel(BUFFER_SIZE / 16);
+    try {
+      b.saveData(fc, buf);
+      IOUtils.drainBuffer(buf, fc);
+    } catch (IOException e) {
+      // Never happens
+      throw new RuntimeException(e);
+    }
+    return fc.toByteArray();
+  }
+  
+  /**
+   * Copies index block, caller holds write lock of the block
+   * @param b index block
+   */
+  void copy(IndexBlock b) {
+    if (incremental != null && incremental.isSaved(b)) {
+      copies.putIfAbsent(b.getFirstKey(), b.snapshotBlock);
+      return;
+    }
+    byte[] data = serialize(b);
+    if (copies.putIfAbsent(b.getFirstKey(), data) != null) {
+      return;
+    }
+    copyCount.incrementAndGet();
+    copySize.addAndGet(data.length);
+    long pending = pendingSize.addAndGet(data.length);
+    long max;
+    while ((max = maxPendingSize.get()) < pending && !maxPendingSize.compareAndSet(max, pending));
+  }
+  
+  /**
+   * Writes (and releases) copies of index blocks with first keys in a given range
+   * @param fc file channel
+   * @param buf write buffer
+   * @param fromKey first key, inclusive (null - from the beginning)
+   * @param toKey last key (null - till the end)
+   * @param inclusive true - last key is inclusive, false - exclusive
+   * @throws IOException
+   */
+  void write(FileChannel fc, ByteBuffer buf, byte[] fromKey, byte[] toKey, boolean inclusive) 
+      throws IOException {
+    Object copy;
+    while ((copy = poll(fromKey, toKey, inclusive)) != null) {
+      byte[] data = (byte[]) copy;
+      if (buf.capacity() - buf.position() < data.length) {
+        IOUtils.drainBuffer(buf, fc);
+      }
+      if (data.length <= buf.capacity()) {
+        buf.put(data);
+      } else {
+        ByteBuffer src = ByteBuffer.wrap(data);
+        while (src.hasRemaining()) {
+          fc.write(src);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Removes the first copy of index block with first key in a given range
+   * @param fromKey first key, inclusive (null - from the beginning)
+   * @param toKey last key (null - till the end)
+   * @param inclusive true - last key is inclusive, false - exclusive
+   * @return serialized data blocks (byte[]), location of a saved block or null
+   */
+  Object poll(byte[] fromKey, byte[] toKey, boolean inclusive) {
+    NavigableMap<byte[], Object> range = copies;
+    if (fromKey != null) {
+      range = range.tailMap(fromKey, true);
+    }
+    if (toKey != null) {
+      range = range.headMap(toKey, inclusive);
+    }
+    Map.Entry<byte[], Object> e = range.pollFirstEntry();
+    if (e == null) {
+      return null;
+    }
+    Object copy = e.getValue();
+    if (copy instanceof byte[]) {
+      pendingSize.addAndGet(-((byte[]) copy).length);
+    }
+    return copy;
+  }
+  
+  /**
+   * Get number of copied index blocks
+   * @return number of copies
+   */
+  long getCopyCount() {
+    return copyCount.get();
+  }
+  
+  /**
+   * Get total size of copies
+   * @return size in bytes
+   */
+  long getCopySize() {
+    return copySize.get();
+  }
+  
+  /**
+   * Get maximum size of copies kept in memory at once
+   * @return size in bytes
+   */
+  long getMaxPendingSize() {
+    return maxPendingSize.get();
+  }
+}
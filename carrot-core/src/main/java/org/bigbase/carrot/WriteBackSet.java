@@ -0,0 +1,321 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bigbase.carrot.redis.RedisConf;
+
+/**
+ * Write - back set of a compressed data store (deferred recompression). 
+ * 
+ * Without it every mutation of a compressed data block recompresses it 
+ * (and reallocates compressed data), so a burst of updates of the same key 
+ * (counters, hash fields) compresses the same block again and again. 
+ * With deferred recompression a mutated data block is kept decompressed 
+ * in its own memory and is marked dirty (DataBlock.DIRTY_MASK), next 
+ * accesses and mutations of the block do not decompress / compress it at all. 
+ * Index blocks which contain dirty data blocks are kept in this set in order 
+ * of registration and are recompressed by a background thread:
+ * 
+ * 1. Every compression.deferred.interval.ms index blocks registered before 
+ *    the previous run are recompressed (lazy write - back)
+ * 2. Number of dirty data blocks is capped by compression.deferred.max.memory 
+ *    (counted in maximum data block sizes). When the set is full, mutated 
+ *    blocks are compressed immediately and the oldest index blocks are 
+ *    evicted (recompressed) by the background thread
+ *    
+ * Only one index block is locked at a time.
+ */
+public class WriteBackSet implements Runnable {
+
+  private BigSortedMap map;
+  
+  /*
+   * Index blocks with dirty data blocks -> registration time (ms)
+   */
+  private LinkedHashMap<IndexBlock, Long> blocks = new LinkedHashMap<IndexBlock, Long>();
+  
+  /*
+   * Number of dirty data blocks
+   */
+  private AtomicLong dirtyBlocks = new AtomicLong();
+  
+  /*
+   * Maximum number of dirty data blocks
+   */
+  private long maxDirtyBlocks;
+  
+  /*
+   * Write - back interval in ms
+   */
+  private volatile long interval;
+  
+  private Thread runner;
+  
+  private volatile boolean running;
+  
+  /*
+   * Wakes up write - back thread when the set is full
+   */
+  private final Object signal = new Object();
+  
+  /*
+   * Statistics
+   */
+  private volatile long deferred;
+  private volatile long rejected;
+  private volatile long written;
+  private volatile long evicted;
+  
+  /**
+   * Constructor
+   * @param map data store
+   */
+  public WriteBackSet(BigSortedMap map) {
+    this.map = map;
+    RedisConf conf = RedisConf.getInstance();
+    this.interval = conf.getDeferredCompressionInterval();
+    setMaxMemory(conf.getDeferredCompressionMaxMemory());
+  }
+  
+  /**
+   * Sets maximum memory of dirty data blocks
+   * @param max memory in bytes
+   */
+  public void setMaxMemory(long max) {
+    this.maxDirtyBlocks = Math.max(1, max / DataBlock.getMaximumBlockSize());
+  }
+  
+  /**
+   * Sets write - back interval
+   * @param interval interval in ms
+   */
+  public void setInterval(long interval) {
+    this.interval = interval;
+  }
+  
+  /**
+   * Starts background write - back thread
+   */
+  public synchronized void start() {
+    if (runner != null) {
+      return;
+    }
+    running = true;
+    runner = new Thread(this, "carrot-write-back");
+    runner.setDaemon(true);
+    runner.start();
+  }
+  
+  /**
+   * Stops background write - back thread and waits for its termination
+   */
+  public synchronized void stop() {
+    if (runner == null) {
+      return;
+    }
+    running = false;
+    runner.interrupt();
+    try {
+      runner.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    runner = null;
+  }
+  
+  /**
+   * Is write - back thread running
+   * @return true - if yes, false - otherwise
+   */
+  public boolean isRunning() {
+    return running;
+  }
+  
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        synchronized (signal) {
+          signal.wait(interval);
+        }
+      } catch (InterruptedException e) {
+        // stop() was called
+        continue;
+      }
+      try {
+        writeBack(System.currentTimeMillis() - interval);
+      } catch (Throwable t) {
+        // Write - back thread must survive any failure
+        t.printStackTrace();
+      }
+    }
+  }
+  
+  /**
+   * Registers new dirty data block. Called by data block under index block's lock
+   * @param b index block of a data block
+   * @return true - if data block can be kept dirty, false - set is full, 
+   *         data block must be compressed now
+   */
+  boolean tryAdd(IndexBlock b) {
+    if (dirtyBlocks.get() >= maxDirtyBlocks) {
+      rejected++;
+      synchronized (signal) {
+        // Wake up write - back thread to evict the oldest blocks
+        signal.notify();
+      }
+      return false;
+    }
+    dirtyBlocks.incrementAndGet();
+    deferred++;
+    synchronized (blocks) {
+      if (!blocks.containsKey(b)) {
+        blocks.put(b, System.currentTimeMillis());
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Dirty data block was compressed or deleted
+   */
+  void removed() {
+    dirtyBlocks.decrementAndGet();
+  }
+  
+  /**
+   * Index block was split, right part can contain dirty data blocks
+   * @param left left index block
+   * @param right right index block
+   */
+  void splitDone(IndexBlock left, IndexBlock right) {
+    synchronized (blocks) {
+      Long time = blocks.get(left);
+      if (time != null) {
+        blocks.put(right, time);
+      }
+    }
+  }
+  
+  /**
+   * Recompresses dirty data blocks of index blocks registered before a given time, 
+   * and the oldest ones, while number of dirty blocks is above a half of maximum
+   * @param before time in ms
+   * @return number of recompressed data blocks
+   */
+  int writeBack(long before) {
+    int total = 0;
+    while (true) {
+      IndexBlock b = null;
+      boolean evict = dirtyBlocks.get() > maxDirtyBlocks / 2;
+      synchronized (blocks) {
+        Iterator<Map.Entry<IndexBlock, Long>> it = blocks.entrySet().iterator();
+        if (!it.hasNext()) {
+          break;
+        }
+        Map.Entry<IndexBlock, Long> e = it.next();
+        if (e.getValue() > before && !evict) {
+          break;
+        }
+        b = e.getKey();
+        it.remove();
+        if (e.getValue() > before) {
+          evicted++;
+        }
+      }
+      total += writeBack(b);
+    }
+    written += total;
+    return total;
+  }
+  
+  /**
+   * Recompresses all dirty data blocks
+   * @return number of recompressed data blocks
+   */
+  public int flush() {
+    return writeBack(Long.MAX_VALUE);
+  }
+  
+  private int writeBack(IndexBlock b) {
+    try {
+      map.writeLock(b);
+      if (!b.isValid()) {
+        return 0;
+      }
+      return b.compressDirtyDataBlocks();
+    } catch (RetryOperationException e) {
+      // Concurrent split, try again later
+      synchronized (blocks) {
+        blocks.put(b, System.currentTimeMillis());
+      }
+      return 0;
+    } finally {
+      map.writeUnlock(b);
+    }
+  }
+  
+  /**
+   * Drops all registered blocks (data store was disposed)
+   */
+  void clear() {
+    synchronized (blocks) {
+      blocks.clear();
+    }
+    dirtyBlocks.set(0);
+  }
+  
+  /**
+   * Get number of dirty data blocks
+   * @return number of blocks
+   */
+  public long getDirtyBlocks() {
+    return dirtyBlocks.get();
+  }
+  
+  /**
+   * Get number of recompressed (written back) data blocks
+   * @return number of blocks
+   */
+  public long getWrittenBlocks() {
+    return written;
+  }
+  
+  /**
+   * Get statistics in INFO format
+   * @return list of statistics
+   */
+  public List<String> getStats() {
+    List<String> stats = new ArrayList<String>();
+    stats.add("write_back_running:" + (running? 1: 0));
+    stats.add("write_back_dirty_blocks:" + dirtyBlocks.get());
+    stats.add("write_back_max_dirty_blocks:" + maxDirtyBlocks);
+    stats.add("write_back_deferred:" + deferred);
+    stats.add("write_back_rejected:" + rejected);
+    stats.add("write_back_written:" + written);
+    stats.add("write_back_evicted:" + evicted);
+    return stats;
+  }
+}
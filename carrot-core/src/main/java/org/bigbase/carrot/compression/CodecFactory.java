@@ -39,7 +39,9 @@ public class CodecFactory {
     private static boolean[] supportedCodecs = new boolean[CodecType.values().length];
     private static Codec[] codecs = {
         new LZ4Codec(),
-        new LZ4HCCodec()
+        new LZ4HCCodec(),
+        new PrefixCodec(),
+        new PrefixLZ4Codec()
     };
 	
 	/**
@@ -66,7 +68,15 @@ public class CodecFactory {
 
         // test each codec and memorize if it is supported
         for (Codec codec : codecs) {
-            supportedCodecs[codec.getType().ordinal()] = checkCodec(codec, buf);
+            CodecType type = codec.getType();
+            if (type == CodecType.PREFIX) {
+                // Pure java codec
+                supportedCodecs[type.ordinal()] = true;
+            } else if (type == CodecType.PREFIX_LZ4) {
+                supportedCodecs[type.ordinal()] = supportedCodecs[CodecType.LZ4.ordinal()];
+            } else {
+                supportedCodecs[type.ordinal()] = checkCodec(codec, buf);
+            }
         }
     }
 
@@ -97,6 +107,8 @@ public class CodecFactory {
 		switch (type){
 			case LZ4: return new LZ4Codec();
 			case LZ4HC: return new LZ4HCCodec();
+			case PREFIX: return new PrefixCodec();
+			case PREFIX_LZ4: return new PrefixLZ4Codec();
 			case NONE: return null;
 		}
 		return null;
@@ -113,8 +125,8 @@ public class CodecFactory {
     switch (id){
       case 1: return codecs[0];
       case 2: return codecs[1];
-      case 3: return codecs[2];
-      case 4: return codecs[3];
+      case 5: return codecs[2];
+      case 6: return codecs[3];
       // No codec
       case 0: return null;
     }
@@ -32,7 +32,11 @@ public enum CodecType {
   /** Bitmap codec*/
   BITMAP(3),
   /** ZSTD */
-  ZSTD(4);
+  ZSTD(4),
+  /** Key prefix (front coding) */
+  PREFIX(5),
+  /** Key prefix (front coding) + LZ4 */
+  PREFIX_LZ4(6);
   /** The id. */
   private int id;
 
@@ -68,6 +72,10 @@ public enum CodecType {
         return CodecFactory.getInstance().getCodec(CodecType.LZ4);
       case 2: 
         return CodecFactory.getInstance().getCodec(CodecType.LZ4HC);  
+      case 5: 
+        return CodecFactory.getInstance().getCodec(CodecType.PREFIX);
+      case 6: 
+        return CodecFactory.getInstance().getCodec(CodecType.PREFIX_LZ4);
     }
     return null;
   }
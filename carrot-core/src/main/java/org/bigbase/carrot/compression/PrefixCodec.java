@@ -0,0 +1,295 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.bigbase.carrot.DataBlock;
+import org.bigbase.carrot.util.UnsafeAccess;
+
+/**
+ * Key prefix codec (front coding) for data blocks. 
+ * 
+ * Consecutive keys in a data block are sorted and usually share long prefixes 
+ * (all collection keys start with [TYPE][KEY_SIZE][KEY]). Encoded record keeps only 
+ * the length of a prefix, shared with a previous record's key and a rest (suffix) 
+ * of a key. Record header, type and value are copied as is.
+ * 
+ * Format of encoded stream:
+ * 
+ * Format - 1 byte (0 - raw copy, 1 - front coded)
+ * Record +
+ * 
+ * Record:
+ * 
+ * Header (key length, value length, expire) - DataBlock.RECORD_PREFIX_LENGTH
+ * Shared prefix length - 1 byte (< 128) or 2 bytes (high bit of the first byte is set)
+ * Key suffix
+ * Type + value
+ * 
+ * The whole block is decoded on access (same as any other codec), therefore 
+ * encoded stream does not need restart points for search. Input which can not be 
+ * parsed as data block records is stored as a raw copy.
+ */
+public class PrefixCodec implements Codec {
+
+  final static byte RAW = 0;
+  
+  final static byte FRONT_CODED = 1;
+  
+  /*
+   * Maximum shared prefix length (fits 2 bytes encoding)
+   */
+  final static int MAX_SHARED = 0x7fff;
+  
+  /** The total size. */
+  private long totalSize = 0;
+  
+  /** The total comp size. */
+  private long totalCompSize = 0;
+  
+  /** The min comp size. */
+  private int minCompSize = 100;
+  
+  /** The level. */
+  private int level = 1;
+  
+  public PrefixCodec() {
+    minCompSize = Integer.parseInt(System.getProperty(COMPRESSION_THRESHOLD, "100"));
+  }
+  
+  @Override
+  public int compress(ByteBuffer src, ByteBuffer dst) throws IOException {
+    long srcPtr = UnsafeAccess.address(src);
+    long dstPtr = UnsafeAccess.address(dst);
+    if (srcPtr < 0 || dstPtr < 0) {
+      throw new IOException("Only direct buffers are supported");
+    }
+    int total = compress(srcPtr + src.position(), src.remaining(), dstPtr + dst.position(), 
+      dst.remaining());
+    dst.limit(dst.position() + total);
+    return total;
+  }
+
+  @Override
+  public int decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+    long srcPtr = UnsafeAccess.address(src);
+    long dstPtr = UnsafeAccess.address(dst);
+    if (srcPtr < 0 || dstPtr < 0) {
+      throw new IOException("Only direct buffers are supported");
+    }
+    int total = decompress(srcPtr + src.position(), src.remaining(), dstPtr + dst.position(), 
+      dst.remaining());
+    dst.limit(dst.position() + total);
+    return total;
+  }
+
+  @Override
+  public int compress(long src, int srcSize, long dst, int dstCapacity) {
+    if (dstCapacity < 1) {
+      return 0;
+    }
+    this.totalSize += srcSize;
+    int size = encode(src, srcSize, dst + 1, dstCapacity - 1);
+    if (size < 0) {
+      if (srcSize + 1 > dstCapacity) {
+        return 0;
+      }
+      UnsafeAccess.putByte(dst, RAW);
+      UnsafeAccess.copy(src, dst + 1, srcSize);
+      size = srcSize;
+    } else {
+      UnsafeAccess.putByte(dst, FRONT_CODED);
+    }
+    this.totalCompSize += size + 1;
+    return size + 1;
+  }
+
+  @Override
+  public int decompress(long src, int srcSize, long dst, int dstCapacity) {
+    if (srcSize < 1) {
+      return 0;
+    }
+    if (UnsafeAccess.toByte(src) == RAW) {
+      if (srcSize - 1 > dstCapacity) {
+        return 0;
+      }
+      UnsafeAccess.copy(src + 1, dst, srcSize - 1);
+      return srcSize - 1;
+    }
+    return decode(src + 1, srcSize - 1, dst, dstCapacity);
+  }
+
+  /**
+   * Front codes data block records
+   * @param src records address
+   * @param srcSize records size
+   * @param dst destination address
+   * @param dstCapacity destination capacity
+   * @return encoded size or -1 (malformed input or result is not smaller than input)
+   */
+  private int encode(long src, int srcSize, long dst, int dstCapacity) {
+    final int headerSize = DataBlock.RECORD_PREFIX_LENGTH;
+    final int overhead = DataBlock.RECORD_TOTAL_OVERHEAD;
+    long ptr = src;
+    long end = src + srcSize;
+    long out = dst;
+    long outEnd = dst + Math.min(dstCapacity, srcSize);
+    long prevKey = 0;
+    int prevKeyLength = 0;
+    
+    while (ptr < end) {
+      if (ptr + overhead > end) {
+        return -1;
+      }
+      int keyLength = DataBlock.blockKeyLength(ptr);
+      int valueLength = DataBlock.blockValueLength(ptr);
+      if (keyLength < 0 || valueLength < 0 || 
+          ptr + overhead + keyLength + valueLength > end) {
+        return -1;
+      }
+      long key = ptr + headerSize;
+      int shared = prefixLength(prevKey, prevKeyLength, key, keyLength);
+      int required = overhead + (shared < 0x80 ? 1 : 2) + keyLength - shared + valueLength;
+      if (out + required > outEnd) {
+        return -1;
+      }
+      UnsafeAccess.copy(ptr, out, headerSize);
+      out += headerSize;
+      if (shared < 0x80) {
+        UnsafeAccess.putByte(out++, (byte) shared);
+      } else {
+        UnsafeAccess.putByte(out++, (byte) (0x80 | (shared >>> 8)));
+        UnsafeAccess.putByte(out++, (byte) shared);
+      }
+      UnsafeAccess.copy(key + shared, out, keyLength - shared);
+      out += keyLength - shared;
+      // type and value
+      UnsafeAccess.copy(key + keyLength, out, valueLength + overhead - headerSize);
+      out += valueLength + overhead - headerSize;
+      prevKey = key;
+      prevKeyLength = keyLength;
+      ptr += overhead + keyLength + valueLength;
+    }
+    return (int) (out - dst);
+  }
+  
+  /**
+   * Restores data block records
+   * @param src encoded records address
+   * @param srcSize encoded size
+   * @param dst destination address
+   * @param dstCapacity destination capacity
+   * @return decoded size or 0 if capacity was not enough
+   */
+  private int decode(long src, int srcSize, long dst, int dstCapacity) {
+    final int headerSize = DataBlock.RECORD_PREFIX_LENGTH;
+    final int overhead = DataBlock.RECORD_TOTAL_OVERHEAD;
+    long ptr = src;
+    long end = src + srcSize;
+    long out = dst;
+    long outEnd = dst + dstCapacity;
+    long prevKey = 0;
+    
+    while (ptr < end) {
+      if (out + headerSize > outEnd) {
+        return 0;
+      }
+      UnsafeAccess.copy(ptr, out, headerSize);
+      ptr += headerSize;
+      int keyLength = DataBlock.blockKeyLength(out);
+      int valueLength = DataBlock.blockValueLength(out);
+      if (out + overhead + keyLength + valueLength > outEnd) {
+        return 0;
+      }
+      int shared = UnsafeAccess.toByte(ptr++) & 0xff;
+      if (shared >= 0x80) {
+        shared = ((shared & 0x7f) << 8) | (UnsafeAccess.toByte(ptr++) & 0xff);
+      }
+      long key = out + headerSize;
+      UnsafeAccess.copy(prevKey, key, shared);
+      UnsafeAccess.copy(ptr, key + shared, keyLength - shared);
+      ptr += keyLength - shared;
+      UnsafeAccess.copy(ptr, key + keyLength, valueLength + overhead - headerSize);
+      ptr += valueLength + overhead - headerSize;
+      prevKey = key;
+      out += overhead + keyLength + valueLength;
+    }
+    return (int) (out - dst);
+  }
+  
+  /**
+   * Length of a common prefix of two keys
+   * @param ptr1 first key address
+   * @param len1 first key length
+   * @param ptr2 second key address
+   * @param len2 second key length
+   * @return common prefix length
+   */
+  private static int prefixLength(long ptr1, int len1, long ptr2, int len2) {
+    int len = Math.min(MAX_SHARED, Math.min(len1, len2));
+    int i = 0;
+    while (i + 8 <= len && UnsafeAccess.toLong(ptr1 + i) == UnsafeAccess.toLong(ptr2 + i)) {
+      i += 8;
+    }
+    while (i < len && UnsafeAccess.toByte(ptr1 + i) == UnsafeAccess.toByte(ptr2 + i)) {
+      i++;
+    }
+    return i;
+  }
+  
+  @Override
+  public int getCompressionThreshold() {
+    return minCompSize;
+  }
+
+  @Override
+  public void setCompressionThreshold(int val) {
+    minCompSize = val;
+  }
+
+  @Override
+  public CodecType getType() {
+    return CodecType.PREFIX;
+  }
+
+  @Override
+  public double getAvgCompressionRatio() {
+    if (totalCompSize == 0) {
+      return 1.d;
+    } else {
+      return ((double) totalSize) / totalCompSize;
+    }
+  }
+
+  @Override
+  public long getTotalProcessed() {
+    return totalSize;
+  }
+
+  @Override
+  public void setLevel(int level) {
+    this.level = level;
+  }
+
+  @Override
+  public int getLevel() {
+    return level;
+  }
+}
@@ -0,0 +1,166 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.bigbase.carrot.util.UnsafeAccess;
+
+/**
+ * Key prefix codec (front coding) followed by LZ4 block compression. 
+ * Front coding removes shared key prefixes, LZ4 compresses the rest 
+ * (values, record headers and key suffixes).
+ */
+public class PrefixLZ4Codec implements Codec {
+
+  /*
+   * Front coded data buffer (per thread)
+   */
+  static ThreadLocal<Long> buffer = new ThreadLocal<Long>() {
+    @Override
+    protected Long initialValue() {
+      return UnsafeAccess.malloc(INITIAL_BUFFER_SIZE);
+    }
+  };
+  
+  static ThreadLocal<Integer> bufferSize = new ThreadLocal<Integer>() {
+    @Override
+    protected Integer initialValue() {
+      return INITIAL_BUFFER_SIZE;
+    }
+  };
+  
+  final static int INITIAL_BUFFER_SIZE = 8 * 1024;
+  
+  private PrefixCodec prefix = new PrefixCodec();
+  
+  private LZ4Codec lz4 = new LZ4Codec();
+  
+  /** The total size. */
+  private long totalSize = 0;
+  
+  /** The total comp size. */
+  private long totalCompSize = 0;
+  
+  /**
+   * Get thread local buffer of a required size
+   * @param required required size
+   * @return buffer address
+   */
+  private static long getBuffer(int required) {
+    if (required > bufferSize.get()) {
+      UnsafeAccess.free(buffer.get());
+      buffer.set(UnsafeAccess.malloc(required));
+      bufferSize.set(required);
+    }
+    return buffer.get();
+  }
+  
+  @Override
+  public int compress(ByteBuffer src, ByteBuffer dst) throws IOException {
+    long srcPtr = UnsafeAccess.address(src);
+    long dstPtr = UnsafeAccess.address(dst);
+    if (srcPtr < 0 || dstPtr < 0) {
+      throw new IOException("Only direct buffers are supported");
+    }
+    int total = compress(srcPtr + src.position(), src.remaining(), dstPtr + dst.position(), 
+      dst.remaining());
+    dst.limit(dst.position() + total);
+    return total;
+  }
+
+  @Override
+  public int decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+    long srcPtr = UnsafeAccess.address(src);
+    long dstPtr = UnsafeAccess.address(dst);
+    if (srcPtr < 0 || dstPtr < 0) {
+      throw new IOException("Only direct buffers are supported");
+    }
+    int total = decompress(srcPtr + src.position(), src.remaining(), dstPtr + dst.position(), 
+      dst.remaining());
+    dst.limit(dst.position() + total);
+    return total;
+  }
+
+  @Override
+  public int compress(long src, int srcSize, long dst, int dstCapacity) {
+    // Front coded size never exceeds source size + 1
+    int capacity = srcSize + 1;
+    long buf = getBuffer(capacity);
+    int size = prefix.compress(src, srcSize, buf, capacity);
+    if (size == 0) {
+      return 0;
+    }
+    int total = lz4.compress(buf, size, dst, dstCapacity);
+    this.totalSize += srcSize;
+    this.totalCompSize += total;
+    return total;
+  }
+
+  @Override
+  public int decompress(long src, int srcSize, long dst, int dstCapacity) {
+    int capacity = dstCapacity + 1;
+    long buf = getBuffer(capacity);
+    int size = lz4.decompress(src, srcSize, buf, capacity);
+    if (size <= 0) {
+      return 0;
+    }
+    return prefix.decompress(buf, size, dst, dstCapacity);
+  }
+
+  @Override
+  public int getCompressionThreshold() {
+    return lz4.getCompressionThreshold();
+  }
+
+  @Override
+  public void setCompressionThreshold(int val) {
+    lz4.setCompressionThreshold(val);
+    prefix.setCompressionThreshold(val);
+  }
+
+  @Override
+  public CodecType getType() {
+    return CodecType.PREFIX_LZ4;
+  }
+
+  @Override
+  public double getAvgCompressionRatio() {
+    if (totalCompSize == 0) {
+      return 1.d;
+    } else {
+      return ((double) totalSize) / totalCompSize;
+    }
+  }
+
+  @Override
+  public long getTotalProcessed() {
+    return totalSize;
+  }
+
+  @Override
+  public void setLevel(int level) {
+    lz4.setLevel(level);
+  }
+
+  @Override
+  public int getLevel() {
+    return lz4.getLevel();
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.ops;
+
+import org.bigbase.carrot.DataBlock;
+import org.bigbase.carrot.util.UnsafeAccess;
+
+/**
+ * Read - only operation, which copies value of a key into a buffer. 
+ * Used by batch get in BigSortedMap
+ */
+public class Get extends Operation {
+
+  private long bufferPtr;
+  private int bufferSize;
+  private int foundValueSize = -1;
+  
+  public Get() {
+    setReadOnly(true);
+  }
+  
+  @Override
+  public void reset() {
+    super.reset();
+    setReadOnly(true);
+    bufferPtr = 0;
+    bufferSize = 0;
+    foundValueSize = -1;
+  }
+  
+  public void setBufferPtr(long ptr) {
+    this.bufferPtr = ptr;
+  }
+  
+  public void setBufferSize(int size) {
+    this.bufferSize = size;
+  }
+  
+  /**
+   * Get size of a found value
+   * @return value size or -1 if not found. If size is greater than 
+   *   buffer size, value was not copied
+   */
+  public int getFoundValueSize() {
+    return foundValueSize;
+  }
+  
+  @Override
+  public boolean execute() {
+    updatesCount = 0;
+    if (foundRecordAddress <= 0) {
+      foundValueSize = -1;
+      return false;
+    }
+    foundValueSize = DataBlock.valueLength(foundRecordAddress);
+    if (foundValueSize <= bufferSize) {
+      UnsafeAccess.copy(DataBlock.valueAddress(foundRecordAddress), bufferPtr, foundValueSize);
+    }
+    return true;
+  }
+}
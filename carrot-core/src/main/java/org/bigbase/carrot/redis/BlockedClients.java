@@ -0,0 +1,172 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.util.UnsafeAccess;
+
+/**
+ * 
+ * Registry of blocked clients, keyed by list/sorted set key. Blocked clients do not
+ * hold handler threads: connection is parked in its event loop, which is woken up
+ * when a key the client waits on is signaled (LPUSH, RPUSH, LMOVE, ZADD etc.) or when 
+ * the client's timeout expires. Every signal wakes up exactly one (the first) waiter, 
+ * waiter which has been served successfully signals the key again, so the next waiter 
+ * gets its chance when more elements are available. 
+ *
+ */
+public class BlockedClients {
+  
+  /*
+   * Waiters by key
+   */
+  private static HashMap<ByteBuffer, ArrayDeque<Waiter>> waiters = 
+      new HashMap<ByteBuffer, ArrayDeque<Waiter>>();
+  
+  /*
+   * Number of registered waiters (fast path check)
+   */
+  private static volatile int count;
+  
+  /*
+   * Incremented on every signal: waiter, which has been registered after the 
+   * key was signaled, must retry its command 
+   */
+  private static LongAdder version = new LongAdder();
+  
+  private BlockedClients() {
+  }
+  
+  /**
+   * Get current version
+   * @return version
+   */
+  static long getVersion() {
+    return version.sum();
+  }
+  
+  /**
+   * Get number of blocked clients
+   * @return number of blocked clients
+   */
+  public static int size() {
+    return count;
+  }
+  
+  /**
+   * Registers waiter for all its keys
+   * @param w waiter
+   */
+  static synchronized void register(Waiter w) {
+    if (w.registered) {
+      return;
+    }
+    for (byte[] k: w.keys) {
+      ByteBuffer key = ByteBuffer.wrap(k);
+      ArrayDeque<Waiter> queue = waiters.get(key);
+      if (queue == null) {
+        queue = new ArrayDeque<Waiter>();
+        waiters.put(key, queue);
+      }
+      if (w.first) {
+        queue.addFirst(w);
+      } else {
+        queue.addLast(w);
+      }
+    }
+    w.registered = true;
+    count++;
+  }
+  
+  /**
+   * Removes waiter from all its keys
+   * @param w waiter
+   * @return true if waiter was registered, false - otherwise (it has been signaled already)
+   */
+  static synchronized boolean unregister(Waiter w) {
+    if (!w.registered) {
+      return false;
+    }
+    for (byte[] k: w.keys) {
+      ByteBuffer key = ByteBuffer.wrap(k);
+      ArrayDeque<Waiter> queue = waiters.get(key);
+      if (queue == null) {
+        continue;
+      }
+      queue.remove(w);
+      if (queue.isEmpty()) {
+        waiters.remove(key);
+      }
+    }
+    w.registered = false;
+    count--;
+    return true;
+  }
+  
+  /**
+   * Signals key: wakes up the first client waiting on this key (if any)
+   * @param store data store
+   * @param keyPtr key address
+   * @param keySize key size
+   */
+  public static void signal(BigSortedMap store, long keyPtr, int keySize) {
+    version.increment();
+    if (count == 0) {
+      return;
+    }
+    byte[] k = new byte[keySize];
+    UnsafeAccess.copy(keyPtr, k, 0, keySize);
+    signal(store, k);
+  }
+  
+  /**
+   * Signals key: wakes up the first client waiting on this key (if any)
+   * @param store data store
+   * @param k key
+   */
+  static void signal(BigSortedMap store, byte[] k) {
+    Waiter w = null;
+    synchronized (BlockedClients.class) {
+      ArrayDeque<Waiter> queue = waiters.get(ByteBuffer.wrap(k));
+      if (queue == null) {
+        return;
+      }
+      Iterator<Waiter> it = queue.iterator();
+      while (it.hasNext()) {
+        Waiter next = it.next();
+        // Nodes of a cluster share the registry
+        if (next.store == store) {
+          w = next;
+          break;
+        }
+      }
+      if (w == null) {
+        return;
+      }
+      unregister(w);
+      w.signaledKey = k;
+    }
+    w.queue.wakeup(w);
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 
+ * Pool of direct byte buffers for network I/O. Buffer sizes are 
+ * powers of 2, starting from MIN_BUFFER_SIZE. Buffers are shared 
+ * between all connections and threads, so memory is held only by connections
+ * which have incomplete requests or pending output.
+ *
+ */
+public class BufferPool {
+  
+  /*
+   * Minimum (and default) buffer size
+   */
+  public final static int MIN_BUFFER_SIZE = 64 * 1024;
+  
+  /*
+   * Maximum total size of pooled (free) buffers in one size class
+   */
+  final static int MAX_POOLED_BYTES_PER_CLASS = 16 * 1024 * 1024;
+  
+  /*
+   * Number of size classes: MIN_BUFFER_SIZE * 2^i
+   */
+  final static int NUM_CLASSES = Integer.numberOfLeadingZeros(MIN_BUFFER_SIZE) /* up to 1GB */;
+  
+  @SuppressWarnings("unchecked")
+  private static ConcurrentLinkedQueue<ByteBuffer>[] pools = 
+      (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[NUM_CLASSES];
+  
+  private static AtomicInteger[] pooledCounts = new AtomicInteger[NUM_CLASSES];
+  
+  static {
+    for (int i = 0; i < NUM_CLASSES; i++) {
+      pools[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+      pooledCounts[i] = new AtomicInteger();
+    }
+  }
+  
+  private BufferPool() {
+  }
+  
+  /**
+   * Get buffer of a default size
+   * @return buffer (cleared)
+   */
+  public static ByteBuffer get() {
+    return get(MIN_BUFFER_SIZE);
+  }
+  
+  /**
+   * Get buffer of at least a given size
+   * @param size minimum buffer size
+   * @return buffer (cleared)
+   */
+  public static ByteBuffer get(int size) {
+    int index = sizeClass(size);
+    ByteBuffer buf = pools[index].poll();
+    if (buf != null) {
+      pooledCounts[index].decrementAndGet();
+      buf.clear();
+      return buf;
+    }
+    return ByteBuffer.allocateDirect(MIN_BUFFER_SIZE << index);
+  }
+  
+  /**
+   * Returns buffer to the pool
+   * @param buf buffer
+   */
+  public static void release(ByteBuffer buf) {
+    if (buf == null) return;
+    int capacity = buf.capacity();
+    int index = sizeClass(capacity);
+    if ((MIN_BUFFER_SIZE << index) != capacity) {
+      // Not ours
+      return;
+    }
+    int max = Math.max(2, MAX_POOLED_BYTES_PER_CLASS / capacity);
+    if (pooledCounts[index].incrementAndGet() > max) {
+      pooledCounts[index].decrementAndGet();
+      // Let GC collect it
+      return;
+    }
+    pools[index].offer(buf);
+  }
+  
+  /**
+   * Grows buffer: allocates new one of at least a given size, copies data
+   * from [0, position) range of an old buffer and releases old buffer
+   * @param buf buffer (in a write mode)
+   * @param size new minimum size
+   * @return new buffer (in a write mode)
+   */
+  public static ByteBuffer grow(ByteBuffer buf, int size) {
+    if (buf.capacity() >= size) {
+      return buf;
+    }
+    ByteBuffer b = get(size);
+    buf.flip();
+    b.put(buf);
+    release(buf);
+    return b;
+  }
+  
+  /**
+   * Get size class index for a given size
+   * @param size size
+   * @return index
+   */
+  static int sizeClass(int size) {
+    if (size <= MIN_BUFFER_SIZE) {
+      return 0;
+    }
+    int index = 32 - Integer.numberOfLeadingZeros(size - 1) - 
+        Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    if (index >= NUM_CLASSES) {
+      throw new IllegalArgumentException("Requested buffer size is too large: " + size);
+    }
+    return index;
+  }
+}
@@ -40,6 +40,7 @@ public class CarrotMain {
   private static void startNodes() {
     RedisConf conf = RedisConf.getInstance();
     String[] nodes = conf.getNodes();
+    int[] cpus = conf.getCpuList();
     CarrotNodeServer[] nodeServers = new CarrotNodeServer[nodes.length];
     CarrotNodeServer.readyToStartLatch = new CountDownLatch(nodes.length);
     // Disable global statistics update during snapshot data loading
@@ -48,9 +49,11 @@ public class CarrotMain {
       String[] parts = nodes[i].split(":");
       String host = parts[0].trim();
       int port = Integer.parseInt(parts[1].trim());
-      nodeServers[i] = new CarrotNodeServer(host, port);
+      int cpu = cpus.length > 0? cpus[i % cpus.length]: -1;
+      nodeServers[i] = new CarrotNodeServer(host, port, cpu);
       nodeServers[i].start();
     }
+    startStatsReporter(nodeServers, conf.getStatsInterval());
 
     // Wait for all of them
     for(int i = 0; i < nodeServers.length; i++) {
@@ -60,6 +63,46 @@ public class CarrotMain {
     log("Shutdown finished.");
   }
 
+  /**
+   * Starts thread which periodically reports per node throughput and memory
+   * @param nodeServers node servers
+   * @param interval report interval in seconds (0 - disabled)
+   */
+  private static void startStatsReporter(final CarrotNodeServer[] nodeServers, 
+      final int interval) {
+    if (interval <= 0) {
+      return;
+    }
+    Thread reporter = new Thread("carrot-stats") {
+      @Override
+      public void run() {
+        long[] last = new long[nodeServers.length];
+        long lastTime = System.currentTimeMillis();
+        while (true) {
+          try {
+            Thread.sleep(interval * 1000L);
+          } catch (InterruptedException e) {
+            return;
+          }
+          long time = System.currentTimeMillis();
+          for (int i = 0; i < nodeServers.length; i++) {
+            CarrotNodeServer node = nodeServers[i];
+            long count = node.getRequestCount();
+            long rps = (count - last[i]) * 1000 / Math.max(1, time - lastTime);
+            last[i] = count;
+            log(node.getHost() + ":" + node.getPort() + " cpu=" + node.getCpu() + 
+              " requests/sec=" + rps + " total requests=" + count + 
+              " memory=" + node.getAllocatedMemory());
+          }
+          log("total memory=" + BigSortedMap.getGlobalAllocatedMemory());
+          lastTime = time;
+        }
+      }
+    };
+    reporter.setDaemon(true);
+    reporter.start();
+  }
+  
   private static void usage() {
     log("Usage: java org.bigbase.carrot.redis.RedisMain config_file_path");
     System.exit(-1);
@@ -19,7 +19,6 @@ package org.bigbase.carrot.redis;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -28,7 +27,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.function.Consumer;
 
 import org.bigbase.carrot.BigSortedMap;
-import org.bigbase.carrot.redis.util.Utils;
+import org.bigbase.common.nativelib.Affinity;
 
 /**
  * 
@@ -37,40 +36,77 @@ import org.bigbase.carrot.redis.util.Utils;
  */
 public class CarrotNodeServer implements Runnable {
 
-  static int bufferSize = 256 * 1024;
   static CountDownLatch readyToStartLatch;
-  /*
-   * Input buffer
-   */
-  static ThreadLocal<ByteBuffer> inBuf = new ThreadLocal<ByteBuffer>() {
-    @Override
-    protected ByteBuffer initialValue() {
-      return ByteBuffer.allocateDirect(bufferSize);
-    }
-  };
-  
-  /*
-   * Output buffer
-   */
-  static ThreadLocal<ByteBuffer> outBuf = new ThreadLocal<ByteBuffer>() {
-    @Override
-    protected ByteBuffer initialValue() {
-      return ByteBuffer.allocateDirect(bufferSize);
-    }
-  };
   
   private String host;
   private int port;
   private BigSortedMap store;
   private Thread runner;
   private boolean shutdown = false;
+  /*
+   * CPU node thread is pinned to (-1 - not pinned)
+   */
+  private int cpu = -1;
+  /*
+   * Total number of processed requests
+   */
+  private volatile long requests;
+  /*
+   * Blocked clients
+   */
+  private WaitQueue waitQueue;
+  
   /**
    * Constructor with nodeId (server's port)
    * @param nodeId node id (server's port)
    */
   public CarrotNodeServer(String host, int port) {
+    this(host, port, -1);
+  }
+  
+  /**
+   * Constructor 
+   * @param host server host
+   * @param port server port
+   * @param cpu CPU to pin node thread to (-1 - no pinning)
+   */
+  public CarrotNodeServer(String host, int port, int cpu) {
     this.port = port;
     this.host = host;
+    this.cpu = cpu;
+  }
+  
+  public String getHost() {
+    return host;
+  }
+  
+  public int getPort() {
+    return port;
+  }
+  
+  /**
+   * Get CPU node thread is pinned to
+   * @return CPU id, -1 - if not pinned
+   */
+  public int getCpu() {
+    return cpu;
+  }
+  
+  /**
+   * Get total number of processed requests
+   * @return number of requests
+   */
+  public long getRequestCount() {
+    return requests;
+  }
+  
+  /**
+   * Get memory allocated by node's data store
+   * @return allocated memory
+   */
+  public long getAllocatedMemory() {
+    BigSortedMap store = this.store;
+    return store == null? 0: store.getInstanceAllocatedMemory();
   }
   
   public void start() {
@@ -92,6 +128,9 @@ public class CarrotNodeServer implements Runnable {
   
   @Override
   public void run() {
+    // Pin thread before loading data: memory is allocated 
+    // on the NUMA node of the CPU which touches it first
+    pinToCpu();
     loadDataStore();
     readyToStartLatch.countDown();
     try {
@@ -108,6 +147,7 @@ public class CarrotNodeServer implements Runnable {
   private void runNodeServer() throws IOException {
     final Selector selector = Selector.open(); // selector is open here
     log("Selector started");
+    waitQueue = new WaitQueue(selector);
 
     // ServerSocketChannel: selectable channel for stream-oriented listening sockets
     ServerSocketChannel serverSocket = ServerSocketChannel.open();
@@ -136,12 +176,11 @@ public class CarrotNodeServer implements Runnable {
           client.setOption(StandardSocketOptions.SO_SNDBUF, 64 * 1024);
           client.setOption(StandardSocketOptions.SO_RCVBUF, 64 * 1024);
           // Operation-set bit for read operations
-          client.register(selector, SelectionKey.OP_READ);
+          ConnectionContext ctx = new ConnectionContext(client);
+          SelectionKey clientKey = client.register(selector, SelectionKey.OP_READ, ctx);
+          ctx.setWaiter(waitQueue.newWaiter(store, clientKey));
           log("Connection Accepted: " + client.getLocalAddress());
-        } else if (key.isValid() && key.isReadable()) {
-          // Check if it is in use
-          RequestHandlers.Attachment att = (RequestHandlers.Attachment)key.attachment();
-          if (att !=null && att.inUse()) return;
+        } else if (key.isValid() && (key.isReadable() || key.isWritable())) {
           // process request
           processRequest(key);
         }
@@ -157,110 +196,63 @@ public class CarrotNodeServer implements Runnable {
     // Keep server running
     while (true) {
       // Selects a set of keys whose corresponding channels are ready for I/O operations
-      selector.select(action);
+      // or waits until the nearest blocked client's timeout expires
+      selector.select(action, waitQueue.getSelectTimeout());
+      waitQueue.poll(this::resume);
       if (shutdown) {
         break;
       }
     }    
   }
 
-  long totalReqTime = 0;
-  int ricCount = 0;
-  int iter = 0;
+  /**
+   * Pins node thread to a configured CPU
+   */
+  private void pinToCpu() {
+    if (cpu < 0) {
+      return;
+    }
+    if (Affinity.pin(cpu)) {
+      log("Pinned to CPU " + cpu + " NUMA node " + Affinity.getNumaNode(cpu));
+    } else {
+      logError("Failed to pin to CPU " + cpu + (Affinity.isAvailable()? "": 
+        ": native library is not available") + ", continue without pinning");
+      cpu = -1;
+    }
+  }
   
   /**
-   * Process incoming request
+   * Process incoming requests and pending replies of a connection
    * @param key selection key for a socket channel
    */
   private void processRequest(SelectionKey key) {
-    long startTime = System.nanoTime();
-    if (key.attachment() == null) {
-      key.attach(new RequestHandlers.Attachment());
-    }
-    
-    SocketChannel channel = (SocketChannel) key.channel();
-    // Read request first
-    ByteBuffer in = inBuf.get();
-    ByteBuffer out = outBuf.get();
-    in.clear();
-    out.clear();
-
-    try {
-      long startCounter = System.nanoTime();
-      long max_wait_ns = 100000000; // 100ms
-      long startClock = 0;
-            
-      while (true) {
-        iter++;
-        int num = channel.read(in);
-        
-        if (num < 0) {
-          // End-Of-Stream - socket was closed, cancel the key
-          key.cancel();
-          break;
-        } else if (num == 0) {
-          if (System.nanoTime() - startCounter > max_wait_ns) {
-            break;
-          }
-          continue;
-        }
-        // Try to parse
-        int oldPos = in.position();
-        if (startClock == 0) startClock = System.nanoTime();
-        if (!requestIsComplete(in)) {
-          // restore position
-          in.position(oldPos);
-          in.limit(in.capacity());
-          continue;
-        }
-        
-        ricCount++;
-        
-        in.position(oldPos);
-        // Process request
-        boolean shutdown = CommandProcessor.process(store, in, out);
-        this.shutdown = shutdown;
-        // send response back
-        out.flip();
-        while (out.hasRemaining()) {
-          channel.write(out);
-        }
-        break;
-      }
-    } catch (IOException e) {
-      String msg = e.getMessage();
-      if (!msg.equals("Connection reset by peer")) {
-        // TODO
-        e.printStackTrace();
-      }
-      key.cancel();
-    } finally {
-      // Release selection key - ready for the next request
-      release(key);
-    }
-    totalReqTime += System.nanoTime() - startTime;
-    if ((ricCount % 10000) == 0) {
-      //System.out.println("Avg request time ="+(totalReqTime / (1000 * ricCount)) + 
-      //  " requests="+ ricCount + " iterations="+ iter);
-    }
+    ConnectionContext ctx = (ConnectionContext) key.attachment();
+    countRequests(ctx.process(key, store));
   }
   
   /**
-   * Release key - mark it not in use
-   * @param key
+   * Resumes blocked client: its keys were signaled or timeout expired
+   * @param w waiter
    */
-  void release(SelectionKey key) {
-    RequestHandlers.Attachment att = (RequestHandlers.Attachment) key.attachment();
-    att.setInUse(false);
+  private void resume(Waiter w) {
+    SelectionKey key = w.key;
+    if (!key.isValid()) {
+      return;
+    }
+    ConnectionContext ctx = (ConnectionContext) key.attachment();
+    countRequests(ctx.resume(key, store));
   }
   
   /**
-   * Checks if request is complete
-   * @param in input data buffer
-   * @return true - complete, false - otherwise
+   * Updates request counter and shutdown flag
+   * @param processed number of processed requests, -1 - shutdown was requested
    */
-  private boolean requestIsComplete(ByteBuffer in) {
-    return Utils.requestIsComplete(in);
+  private void countRequests(int processed) {
+    if (processed < 0) {
+      this.shutdown = true;
+    } else {
+      requests += processed;
+    }
   }
   
   /**
@@ -273,6 +265,12 @@ public class CarrotNodeServer implements Runnable {
     log(" loaded data store in "+ (end - start)+"ms");
     RedisConf conf = RedisConf.getInstance();
     store.setSnapshotDir(conf.getDataDirForNode(host, port));
+    if (conf.isCompactionEnabled()) {
+      store.startCompactor();
+    }
+    if (conf.getSnapshotInterval() > 0) {
+      store.startSnapshotScheduler(conf.getSnapshotInterval());
+    }
   }
 
   static void log(String str) {
@@ -17,14 +17,34 @@
  */
 package org.bigbase.carrot.redis;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.commands.BLMOVE;
+import org.bigbase.carrot.redis.commands.BLPOP;
+import org.bigbase.carrot.redis.commands.BRPOP;
+import org.bigbase.carrot.redis.commands.BZPOPMAX;
+import org.bigbase.carrot.redis.commands.BZPOPMIN;
+import org.bigbase.carrot.redis.commands.BlockingCommand;
+import org.bigbase.carrot.redis.commands.DEL;
+import org.bigbase.carrot.redis.commands.FLUSHALL;
+import org.bigbase.carrot.redis.commands.LMOVE;
+import org.bigbase.carrot.redis.commands.MSET;
+import org.bigbase.carrot.redis.commands.MSETNX;
 import org.bigbase.carrot.redis.commands.RedisCommand;
+import org.bigbase.carrot.redis.commands.RedisCommand.ReplyType;
+import org.bigbase.carrot.redis.commands.RPOPLPUSH;
 import org.bigbase.carrot.redis.commands.SHUTDOWN;
+import org.bigbase.carrot.redis.commands.SMOVE;
+import org.bigbase.carrot.redis.util.RespWriter;
 import org.bigbase.carrot.redis.util.Utils;
 import org.bigbase.carrot.util.Key;
+import org.bigbase.carrot.util.KeysLocker;
 import org.bigbase.carrot.util.UnsafeAccess;
 
 public class CommandProcessor {
@@ -34,16 +54,6 @@ public class CommandProcessor {
    */
   private final static int BUFFER_SIZE = 1024 * 1024;// 1 MB
   
-  /**
-   * Keeps thread local Key instance
-   */
-  private static ThreadLocal<Key> keyTLS = new ThreadLocal<Key>() {
-    @Override
-    protected Key initialValue() {
-      return new Key(0,0);
-    }
-  };
-
   /**
    * Input buffer per thread TODO: floating size
    */
@@ -56,7 +66,18 @@ public class CommandProcessor {
   };
   
   /*
-   * Output buffer per thread TODO: floating size
+   * Input buffer size per thread 
+   */
+  private static ThreadLocal<Integer> inBufSizeTLS = new ThreadLocal<Integer>() {
+    @Override
+    protected Integer initialValue() {
+      return BUFFER_SIZE;
+    }
+  };
+  
+  /*
+   * Output buffer per thread (replies, which do not fit it, 
+   * are retried with a larger buffer from ReplyBufferPool)
    */
   private static ThreadLocal<Long> outBufTLS = new ThreadLocal<Long>() {
     @Override
@@ -67,19 +88,70 @@ public class CommandProcessor {
   };
   
   /*
-   * Redis command map. 
+   * Keys of a write command per thread (Key objects are reused)
    */
-  private static ThreadLocal<HashMap<Key, RedisCommand>> commandMapTLS = 
-      new ThreadLocal<HashMap<Key, RedisCommand>>()
-  {
+  private static ThreadLocal<List<Key>> keysTLS = new ThreadLocal<List<Key>>() {
     @Override
-    protected HashMap<Key, RedisCommand> initialValue() {
-      return new HashMap<Key, RedisCommand>();
+    protected List<Key> initialValue() {
+      return new ArrayList<Key>();
     }
   };
   
-  private static final byte[] WRONG_REQUEST_FORMAT = "-ERR: Wrong request format".getBytes();
+  private static ThreadLocal<List<Key>> keyPoolTLS = new ThreadLocal<List<Key>>() {
+    @Override
+    protected List<Key> initialValue() {
+      return new ArrayList<Key>();
+    }
+  };
+  
+  /*
+   * Reply writer per thread (for callers, which provide output buffer) 
+   */
+  private static ThreadLocal<RespWriter> writerTLS = new ThreadLocal<RespWriter>() {
+    @Override
+    protected RespWriter initialValue() {
+      return new RespWriter();
+    }
+  };
+  
+  /*
+   * Maximum number of attempts to re-execute a command with a larger output buffer
+   */
+  private final static int MAX_RETRIES = 3;
+  
+  /*
+   * Maximum reply size (in Carrot format)
+   */
+  private static volatile int maxReplySize = RedisConf.getInstance().getMaxReplySize();
+  
+  private static final ReplyType[] REPLY_TYPES = ReplyType.values();
+  
+  /*
+   * Request processing results
+   */
+  private final static int DONE = 0;
+  private final static int SHUTDOWN = 1;
+  private final static int BLOCKED = 2;
+  
+  private static final byte[] WRONG_REQUEST_FORMAT = "-ERR: Wrong request format\r\n".getBytes();
   private static final byte[] UNSUPPORTED_COMMAND = "-ERR: Unsupported command: ".getBytes();
+  private static final byte[] REPLY_TOO_LARGE = "-ERR: Reply is too large\r\n".getBytes();
+  
+  /**
+   * Set maximum reply size (can not exceed the largest reply buffer size)
+   * @param size maximum size
+   */
+  public static void setMaxReplySize(int size) {
+    maxReplySize = Math.min(size, ReplyBufferPool.MAX_BUFFER_SIZE);
+  }
+  
+  /**
+   * Get maximum reply size
+   * @return maximum size
+   */
+  public static int getMaxReplySize() {
+    return maxReplySize;
+  }
   
   /**
    * Main method
@@ -87,71 +159,395 @@ public class CommandProcessor {
    * @param out output buffer to return to a client (command response)
    * @return true , if shutdown was requested, false - otherwise
    */
+  public static boolean process(BigSortedMap storage, ByteBuffer in, ByteBuffer out) {
+    in.flip();
+    int result = process(storage, in, 0, in.limit(), writerTLS.get().reset(out, null), null);
+    commit(storage);
+    return result == SHUTDOWN;
+  }
   
-  static long executeTotal = 0;
-  static int count = 0;
+  /**
+   * Processes all complete requests in the input buffer (pipelining mode). 
+   * Replies are appended to the output buffer in the same order as requests. 
+   * Processing stops when there are no complete requests left, when output buffer 
+   * gets more than half full (caller must flush it and call this method again) or 
+   * when shutdown was requested. Processed requests are removed from the input buffer 
+   * and incomplete trailing request (if any) is moved to the beginning of the buffer.
+   * @param storage data store
+   * @param in input buffer (in a write mode: data is in [0, position) range)
+   * @param out output buffer
+   * @return number of processed requests, -1 - if shutdown was requested
+   */
+  public static int processPipeline(BigSortedMap storage, ByteBuffer in, ByteBuffer out) {
+    return processPipeline(storage, in, writerTLS.get().reset(out, null), null);
+  }
   
-  @SuppressWarnings("deprecation")
-  public static boolean process(BigSortedMap storage, ByteBuffer in, ByteBuffer out) {
-    count++;
-    long inbuf = inBufTLS.get();
-    // Convert Redis request to a Carrot internal format
-    boolean result = Utils.requestToCarrot(in, inbuf, BUFFER_SIZE);
+  /**
+   * Processes all complete requests in the input buffer (pipelining mode). 
+   * Processing stops when there are no complete requests left, when output buffer 
+   * gets more than half full, when the writer has flushed full buffer (large reply)
+   * or when shutdown was requested. 
+   * @param storage data store
+   * @param in input buffer (in a write mode: data is in [0, position) range)
+   * @param out reply writer
+   * @return number of processed requests, -1 - if shutdown was requested
+   */
+  public static int processPipeline(BigSortedMap storage, ByteBuffer in, RespWriter out) {
+    return processPipeline(storage, in, out, null);
+  }
+  
+  /**
+   * Processes all complete requests in the input buffer (pipelining mode). 
+   * Processing also stops when a blocking command has nothing to serve: the request 
+   * is saved in the waiter and the waiter is blocked (caller must park it). 
+   * Blocked request is executed again first, when the waiter is resumed.
+   * @param storage data store
+   * @param in input buffer (in a write mode: data is in [0, position) range)
+   * @param out reply writer
+   * @param waiter connection's waiter (null - blocking commands do not block)
+   * @return number of processed requests, -1 - if shutdown was requested
+   */
+  public static int processPipeline(BigSortedMap storage, ByteBuffer in, RespWriter out, 
+      Waiter waiter) {
+    int limit = in.position();
+    int pos = 0;
+    int processed = 0;
+    boolean shutdown = false;
+    int flushes = out.getFlushCount();
     
-    if (!result) {
-      out.put(WRONG_REQUEST_FORMAT);
-      return false;
-    }
-    HashMap<Key, RedisCommand> map = commandMapTLS.get();
-    Key key = getCommandKey(inbuf);
-    RedisCommand cmd = map.get(key);
-    if (cmd == null) {
-      String cmdName = org.bigbase.carrot.util.Utils.toString(key.address, key.length);
-      try {
-        @SuppressWarnings("unchecked")
-        Class<RedisCommand> cls = (Class<RedisCommand>) Class.forName("org.bigbase.carrot.redis.commands."+ cmdName);
-        cmd = cls.newInstance();
-        map.put(key,  cmd);
-      } catch (Throwable e) {
-        out.put(UNSUPPORTED_COMMAND);
-        out.put(cmdName.getBytes());
-        out.put((byte)'\r');
-        out.put((byte)'\n');
-        return false;
-      } 
+    if (waiter != null && waiter.hasRequest()) {
+      // Blocked request was resumed
+      long request = waiter.getRequest();
+      if (execute(storage, request, getCommandIndex(request), out, waiter) == BLOCKED) {
+        return 0;
+      }
+      processed++;
     }
+    while (pos < limit && out.getFlushCount() == flushes && 
+        out.getBuffer().position() <= out.getBuffer().capacity() / 2) {
+      // Request parser changes buffer's limit 
+      in.limit(limit);
+      int len = Utils.requestLength(in, pos, limit);
+      if (len == 0) {
+        // Not complete yet
+        break;
+      } else if (len < 0) {
+        // Reply with an error and skip to the next request
+        out.write(WRONG_REQUEST_FORMAT);
+        pos += Utils.skipWrongRequest(in, pos, limit);
+        processed++;
+        continue;
+      }
+      int result = process(storage, in, pos, len, out, waiter);
+      pos += len;
+      if (result == BLOCKED) {
+        // Request has been saved in the waiter
+        break;
+      }
+      processed++;
+      if (result == SHUTDOWN) {
+        shutdown = true;
+        break;
+      }
+    }
+    // Compact input buffer: move incomplete request to the beginning
+    in.limit(limit);
+    in.position(pos);
+    in.compact();
+    // Group commit: mutations of the whole batch are logged before replies are sent
+    commit(storage);
+    return shutdown? -1: processed;
+  }
+  
+  /**
+   * Commits write - ahead log records of executed requests (if log is enabled)
+   * @param storage data store
+   */
+  private static void commit(BigSortedMap storage) {
+    WriteAheadLog wal = storage.getWAL();
+    if (wal != null) {
+      wal.commit();
+    }
+  }
+  
+  /**
+   * Processes single request, which occupies [off, off + len) range of an input buffer
+   * @param storage data store
+   * @param in input buffer
+   * @param off request offset
+   * @param len request length
+   * @param out reply writer
+   * @param waiter connection's waiter (can be null)
+   * @return DONE, SHUTDOWN or BLOCKED
+   */
+  private static int process(BigSortedMap storage, ByteBuffer in, int off, int len, 
+      RespWriter out, Waiter waiter) {
+    // Convert Redis request to a Carrot internal format in place (no copy)
+    long inbuf = Utils.requestToCarrotInPlace(in, off, len);
+    if (inbuf == 0) {
+      // In-line request or heap buffer: convert to a thread local buffer
+      inbuf = getInputBuffer(in, off, len);
+      boolean result = Utils.requestToCarrot(in, off, len, inbuf, inBufSizeTLS.get());
+      if (!result) {
+        out.write(WRONG_REQUEST_FORMAT);
+        return DONE;
+      }
+    }
+    int index = getCommandIndex(inbuf);
+    if (index < 0) {
+      int cmdLen = UnsafeAccess.toInt(inbuf + org.bigbase.carrot.util.Utils.SIZEOF_INT);
+      String cmdName = org.bigbase.carrot.util.Utils.toString(
+        inbuf + 2 * org.bigbase.carrot.util.Utils.SIZEOF_INT, cmdLen);
+      out.write(UNSUPPORTED_COMMAND);
+      out.write(cmdName.getBytes());
+      out.write((byte)'\r');
+      out.write((byte)'\n');
+      return DONE;
+    }
+    return execute(storage, inbuf, index, out, waiter);
+  }
+  
+  /**
+   * Write - locks keys of a write command (all keys for FLUSHALL)
+   * @param cmd command
+   * @param inbuf request
+   * @return locked keys
+   */
+  private static List<Key> lockKeys(RedisCommand cmd, long inbuf) {
+    List<Key> keys = keysTLS.get();
+    keys.clear();
+    if (cmd instanceof FLUSHALL) {
+      KeysLocker.writeLockAll();
+      return keys;
+    }
+    int numArgs = UnsafeAccess.toInt(inbuf);
+    // Key arguments: first, last (inclusive) and step
+    int first = 1, last = Math.min(1, numArgs - 1), step = 1;
+    if (cmd instanceof DEL) {
+      last = numArgs - 1;
+    } else if (cmd instanceof MSET || cmd instanceof MSETNX) {
+      last = numArgs - 1;
+      step = 2;
+    } else if (cmd instanceof SMOVE || cmd instanceof LMOVE || cmd instanceof BLMOVE || 
+        cmd instanceof RPOPLPUSH) {
+      last = Math.min(2, numArgs - 1);
+    } else if (cmd instanceof BLPOP || cmd instanceof BRPOP || cmd instanceof BZPOPMAX || 
+        cmd instanceof BZPOPMIN) {
+      // Timeout follows keys
+      last = numArgs - 2;
+    }
+    List<Key> pool = keyPoolTLS.get();
+    long ptr = inbuf + org.bigbase.carrot.util.Utils.SIZEOF_INT;
+    for (int i = 0; i <= last; i++) {
+      int size = UnsafeAccess.toInt(ptr);
+      if (i >= first && (i - first) % step == 0) {
+        Key key;
+        if (keys.size() < pool.size()) {
+          key = pool.get(keys.size());
+          key.address = ptr + org.bigbase.carrot.util.Utils.SIZEOF_INT;
+          key.length = size;
+        } else {
+          key = new Key(ptr + org.bigbase.carrot.util.Utils.SIZEOF_INT, size);
+          pool.add(key);
+        }
+        keys.add(key);
+      }
+      ptr += org.bigbase.carrot.util.Utils.SIZEOF_INT + size;
+    }
+    KeysLocker.writeLockAllKeys(keys);
+    return keys;
+  }
+  
+  /**
+   * Write - unlocks keys of a write command
+   * @param cmd command
+   * @param keys locked keys
+   */
+  private static void unlockKeys(RedisCommand cmd, List<Key> keys) {
+    if (cmd instanceof FLUSHALL) {
+      KeysLocker.writeUnlockAll();
+    } else {
+      KeysLocker.writeUnlockAllKeys(keys);
+    }
+  }
+  
+  /**
+   * Executes single request in a Carrot internal format
+   * @param storage data store
+   * @param inbuf request
+   * @param index command index
+   * @param out reply writer
+   * @param waiter connection's waiter (can be null)
+   * @return DONE, SHUTDOWN or BLOCKED
+   */
+  private static int execute(BigSortedMap storage, long inbuf, int index, RespWriter out, 
+      Waiter waiter) {
+    RedisCommand cmd = CommandTable.getCommand(index);
     long outbuf = outBufTLS.get();
+    int outbufSize = BUFFER_SIZE;
+    ReplyBufferPool.Buffer buffer = null;
+    boolean blocking = waiter != null && cmd instanceof BlockingCommand;
+    if (blocking) {
+      waiter.version = BlockedClients.getVersion();
+    }
+    boolean write = CommandTable.isWriteCommand(index);
+    boolean mutation = false;
+    List<Key> keys = null;
     // Execute Redis command
     long start = System.nanoTime();
-    cmd.executeCommand(storage, inbuf, outbuf, BUFFER_SIZE);
-    executeTotal += System.nanoTime() - start;
-    if (count % 10000 == 0) {
-      //System.out.println(" command exe avg=" + (executeTotal / (1000 * count)));
-    }
-    if (cmd.autoconvertToRedis()) {
-      // Convert response to Redis format
-      Utils.carrotToRedisResponse(outbuf, out);
-    } else {
-      // Let command implement custom conversion
-      cmd.convertToRedis(out);
+    try {
+      if (write) {
+        // Snapshot does not split write commands
+        storage.beginMutation();
+        mutation = true;
+        // Keys are locked until command is logged: commands on the same key 
+        // are logged in order of execution
+        keys = lockKeys(cmd, inbuf);
+      }
+      cmd.executeCommand(storage, inbuf, outbuf, outbufSize);
+      if (blocking && !waiter.expired && ((BlockingCommand) cmd).isBlocked()) {
+        BlockingCommand bcmd = (BlockingCommand) cmd;
+        if (inbuf != waiter.getRequest()) {
+          // Input buffer will be reused, keep a copy
+          waiter.saveRequest(inbuf);
+        }
+        waiter.block(bcmd.getBlockingKeys(), bcmd.getBlockingTimeout());
+        return BLOCKED;
+      } else if (blocking) {
+        if (waiter.signaledKey != null && !((BlockingCommand) cmd).isBlocked()) {
+          // Served: give the next waiter a chance
+          BlockedClients.signal(storage, waiter.signaledKey);
+        }
+        waiter.reset();
+      }
+      if (write) {
+        WriteAheadLog wal = storage.getWAL();
+        if (wal != null) {
+          wal.append(cmd, inbuf, outbuf);
+        }
+        unlockKeys(cmd, keys);
+        keys = null;
+        storage.endMutation();
+        mutation = false;
+      }
+      // Writer without a flusher can not write past the end of its buffer
+      ByteBuffer replyBuf = out.getBuffer();
+      int replyStart = replyBuf.position();
+      try {
+        if (cmd.autoconvertToRedis()) {
+          long required = requiredReplySize(outbuf);
+          int retries = 0;
+          // Result does not fit the buffer: commands which do not change data can be 
+          // safely repeated with a larger one
+          while (required > outbufSize && !write && required <= maxReplySize
+              && retries++ < MAX_RETRIES) {
+            ReplyBufferPool.release(buffer);
+            buffer = ReplyBufferPool.get(required);
+            outbuf = buffer.getAddress();
+            outbufSize = buffer.getSize();
+            cmd.executeCommand(storage, inbuf, outbuf, outbufSize);
+            required = requiredReplySize(outbuf);
+          }
+          if (required > outbufSize) {
+            out.write(REPLY_TOO_LARGE);
+          } else {
+            // Convert response to Redis format
+            Utils.carrotToRedisResponse(outbuf, out);
+          }
+        } else {
+          // Let command write reply directly
+          try {
+            cmd.convertToRedis(out);
+          } catch (IOException e) {
+            // Reply is incomplete, client can not continue with this connection
+            throw new UncheckedIOException(e);
+          }
+        }
+      } catch (BufferOverflowException e) {
+        // Reply does not fit caller's buffer, discard what has been written
+        replyBuf.position(replyStart);
+        out.write(REPLY_TOO_LARGE);
+      }
+    } finally {
+      if (keys != null) {
+        unlockKeys(cmd, keys);
+      }
+      if (mutation) {
+        storage.endMutation();
+      }
+      ReplyBufferPool.release(buffer);
+    }
+    long duration = System.nanoTime() - start;
+    CommandTable.getStats(index).record(duration);
+    if (SlowLog.isSampled()) {
+      SlowLog.log(inbuf, duration);
     }
     // Done.
-    return cmd instanceof SHUTDOWN;  
+    return cmd instanceof SHUTDOWN? SHUTDOWN: DONE;  
+  }
+  
+  /**
+   * Get buffer size required for a command reply. Commands, which return arrays or 
+   * bulk strings, report required size when result does not fit the output buffer
+   * @param outbuf output buffer
+   * @return required size (0 - if unknown)
+   */
+  private static long requiredReplySize(long outbuf) {
+    int ordinal = UnsafeAccess.toByte(outbuf);
+    if (ordinal < 0 || ordinal >= REPLY_TYPES.length) {
+      return 0;
+    }
+    switch (REPLY_TYPES[ordinal]) {
+      case ARRAY:
+      case INT_ARRAY:
+      case VARRAY:
+      case ZARRAY:
+      case ZARRAY1:
+        // Serialized size includes header
+        return UnsafeAccess.toInt(outbuf + org.bigbase.carrot.util.Utils.SIZEOF_BYTE);
+      case BULK_STRING:
+        int len = UnsafeAccess.toInt(outbuf + org.bigbase.carrot.util.Utils.SIZEOF_BYTE);
+        return len < 0? 0: (long) len + org.bigbase.carrot.util.Utils.SIZEOF_BYTE + 
+            org.bigbase.carrot.util.Utils.SIZEOF_INT;
+      default:
+        return 0;
+    }
+  }
+  
+  /**
+   * Get input buffer, which is large enough to keep a request in a Carrot format
+   * @param in input buffer (Redis format)
+   * @param off request offset
+   * @param len request length
+   * @return address of a buffer
+   */
+  private static long getInputBuffer(ByteBuffer in, int off, int len) {
+    long ptr = inBufTLS.get();
+    // Carrot format is more compact than RESP, but an in-line request
+    // requires additional 4 bytes for every parameter
+    long required = in.get(off) == (byte) '*'? (long) len + 8: 3L * len + 8;
+    int size = inBufSizeTLS.get();
+    if (required <= size) {
+      return ptr;
+    }
+    int newSize = (int) Math.min(Integer.MAX_VALUE, Math.max(required, 2L * size));
+    ptr = UnsafeAccess.realloc(ptr, newSize);
+    inBufTLS.set(ptr);
+    inBufSizeTLS.set(newSize);
+    return ptr;
   }
   
   /**
-   * Extract command name from an input buffer
+   * Extract command name from an input buffer and find the command
    * @param inbuf input buffer
-   * @return command name as a Key
+   * @return command index in a command table, -1 - if not found
    */
-  private static Key getCommandKey(long inbuf) {
-    Key key = keyTLS.get();
+  private static int getCommandIndex(long inbuf) {
     int cmdLen = UnsafeAccess.toInt(inbuf + org.bigbase.carrot.util.Utils.SIZEOF_INT);
-    key.address = inbuf + 2 * org.bigbase.carrot.util.Utils.SIZEOF_INT;
-    key.length = cmdLen;
+    long ptr = inbuf + 2 * org.bigbase.carrot.util.Utils.SIZEOF_INT;
     // To upper case
-    org.bigbase.carrot.util.Utils.toUpperCase(key.address, key.length);
-    return key;
+    org.bigbase.carrot.util.Utils.toUpperCase(ptr, cmdLen);
+    return CommandTable.lookup(ptr, cmdLen);
   }
   
 }
@@ -0,0 +1,132 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-command execution statistics: number of calls, total execution time
+ * and latency histogram. Histogram buckets are powers of 2 in microseconds:
+ * bucket 0 keeps calls faster than 1us, bucket i (i > 0) keeps calls 
+ * in [2^(i-1), 2^i) us range. Counters are updated concurrently by all 
+ * event loop threads.
+ */
+public class CommandStats {
+  
+  /*
+   * Number of histogram buckets (last bucket is open - ended)
+   */
+  final static int NUM_BUCKETS = 32;
+  
+  private final String name;
+  
+  private final LongAdder calls = new LongAdder();
+  
+  private final LongAdder totalTime = new LongAdder();
+  
+  private final LongAdder[] histogram = new LongAdder[NUM_BUCKETS];
+  
+  CommandStats(String name) {
+    this.name = name;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      histogram[i] = new LongAdder();
+    }
+  }
+  
+  /**
+   * Get command name
+   * @return command name
+   */
+  public String getName() {
+    return name;
+  }
+  
+  /**
+   * Records command execution
+   * @param duration execution time in nanoseconds
+   */
+  public void record(long duration) {
+    long micros = duration / 1000;
+    calls.increment();
+    totalTime.add(micros);
+    histogram[bucket(micros)].increment();
+  }
+  
+  /**
+   * Get histogram bucket
+   * @param micros duration in microseconds
+   * @return bucket index
+   */
+  static int bucket(long micros) {
+    int index = Long.SIZE - Long.numberOfLeadingZeros(micros);
+    return Math.min(index, NUM_BUCKETS - 1);
+  }
+  
+  /**
+   * Get total number of calls
+   * @return number of calls
+   */
+  public long getCalls() {
+    return calls.sum();
+  }
+  
+  /**
+   * Get total execution time
+   * @return total execution time in microseconds
+   */
+  public long getTotalTime() {
+    return totalTime.sum();
+  }
+  
+  /**
+   * Get latency percentile (upper bound of a histogram bucket)
+   * @param p percentile (0 - 100)
+   * @return latency in microseconds
+   */
+  public long getPercentile(double p) {
+    long[] counts = new long[NUM_BUCKETS];
+    long total = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts[i] = histogram[i].sum();
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * p / 100);
+    long sum = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      sum += counts[i];
+      if (sum >= rank) {
+        return 1L << i;
+      }
+    }
+    return 1L << (NUM_BUCKETS - 1);
+  }
+  
+  /**
+   * Resets statistics
+   */
+  public void reset() {
+    calls.reset();
+    totalTime.reset();
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      histogram[i].reset();
+    }
+  }
+}
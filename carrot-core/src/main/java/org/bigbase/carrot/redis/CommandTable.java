@@ -0,0 +1,260 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.bigbase.carrot.redis.commands.*;
+import org.bigbase.carrot.util.UnsafeAccess;
+
+/**
+ * Command dispatch table. It is built once at startup and covers every supported 
+ * Redis command. Command names are resolved with a perfect hash over raw (upper case) 
+ * name bytes, therefore lookup does not allocate and does not use reflection. 
+ * Every thread gets its own preallocated set of command instances, because commands 
+ * keep state between execute() and convertToRedis() calls.
+ * 
+ * New commands MUST be registered in COMMANDS list.
+ */
+public class CommandTable {
+  
+  /*
+   * All supported commands
+   */
+  private final static List<Supplier<RedisCommand>> COMMANDS = Arrays.asList(
+    APPEND::new, BGSAVE::new, BITCOUNT::new, BITPOS::new, BLMOVE::new, BLPOP::new, 
+    BRPOP::new, BZPOPMAX::new, BZPOPMIN::new, CLUSTER::new, COMMAND::new, 
+    DECR::new, DECRBY::new, DEL::new, EXPIRE::new, FLUSHALL::new, GET::new, 
+    GETBIT::new, GETDEL::new, GETEX::new, GETEXPIRE::new, GETRANGE::new, GETSET::new, 
+    HDEL::new, HEXISTS::new, HGET::new, HGETALL::new, HINCRBY::new, HINCRBYFLOAT::new, 
+    HKEYS::new, HLEN::new, HMGET::new, HMSET::new, HRANDFIELD::new, HSCAN::new, 
+    HSET::new, HSETNX::new, HSTRLEN::new, HVALS::new, INCR::new, INCRBY::new, 
+    INCRBYFLOAT::new, INFO::new, LASTSAVE::new, LINDEX::new, LINSERT::new, LLEN::new, 
+    LMOVE::new, LPOP::new, LPUSH::new, LPUSHX::new, LRANGE::new, LREM::new, 
+    LSET::new, LTRIM::new, MGET::new, MSET::new, MSETNX::new, PING::new, 
+    PSETEX::new, RPOP::new, RPOPLPUSH::new, RPUSH::new, RPUSHX::new, SADD::new, 
+    SAVE::new, SBITCOUNT::new, SBITPOS::new, SCARD::new, SET::new, SETBIT::new, 
+    SETEX::new, SETNX::new, SETRANGE::new, SETXX::new, SGETBIT::new, SGETRANGE::new, 
+    SHUTDOWN::new, SISMEMBER::new, SLOWLOG::new, SMEMBERS::new, SMISMEMBER::new, SMOVE::new, 
+    SPOP::new, SRANDMEMBER::new, SREM::new, SSCAN::new, SSETBIT::new, SSETRANGE::new, 
+    SSTRLEN::new, STRLEN::new, TIME::new, ZADD::new, ZCARD::new, ZCOUNT::new, 
+    ZINCRBY::new, ZLEXCOUNT::new, ZMSCORE::new, ZPOPMAX::new, ZPOPMIN::new, ZRANDMEMBER::new, 
+    ZRANGE::new, ZRANGEBYLEX::new, ZRANGEBYSCORE::new, ZRANK::new, ZREM::new, ZREMRANGEBYLEX::new, 
+    ZREMRANGEBYRANK::new, ZREMRANGEBYSCORE::new, ZREVRANGE::new, ZREVRANGEBYLEX::new, 
+    ZREVRANGEBYSCORE::new, ZREVRANK::new, ZSCAN::new, ZSCORE::new
+  );
+  
+  /*
+   * Commands which change data (they are logged to a write - ahead log)
+   */
+  private final static List<Class<? extends RedisCommand>> WRITE_COMMANDS = Arrays.asList(
+    APPEND.class, BLMOVE.class, BLPOP.class, BRPOP.class, BZPOPMAX.class, BZPOPMIN.class, 
+    DECR.class, DECRBY.class, DEL.class, EXPIRE.class, FLUSHALL.class, GETDEL.class, 
+    GETEX.class, GETSET.class, HDEL.class, HINCRBY.class, HINCRBYFLOAT.class, HMSET.class, 
+    HSET.class, HSETNX.class, INCR.class, INCRBY.class, INCRBYFLOAT.class, LINSERT.class, 
+    LMOVE.class, LPOP.class, LPUSH.class, LPUSHX.class, LREM.class, LSET.class, LTRIM.class, 
+    MSET.class, MSETNX.class, PSETEX.class, RPOP.class, RPOPLPUSH.class, RPUSH.class, 
+    RPUSHX.class, SADD.class, SET.class, SETBIT.class, SETEX.class, SETNX.class, 
+    SETRANGE.class, SETXX.class, SMOVE.class, SPOP.class, SREM.class, SSETBIT.class, 
+    SSETRANGE.class, ZADD.class, ZINCRBY.class, ZPOPMAX.class, ZPOPMIN.class, ZREM.class, 
+    ZREMRANGEBYLEX.class, ZREMRANGEBYRANK.class, ZREMRANGEBYSCORE.class
+  );
+  
+  /*
+   * Command names (upper case)
+   */
+  private final static byte[][] names = new byte[COMMANDS.size()][];
+  
+  /*
+   * Command statistics
+   */
+  private final static CommandStats[] stats = new CommandStats[COMMANDS.size()];
+  
+  /*
+   * Write command flags
+   */
+  private final static boolean[] writes = new boolean[COMMANDS.size()];
+  
+  /*
+   * Maximum command name length
+   */
+  private static int maxNameLength;
+  
+  /*
+   * Hash table: slot -> command index (-1 - empty slot)
+   */
+  private static int[] slots;
+  
+  /*
+   * Hash seed, which gives no collisions
+   */
+  private static int seed;
+  
+  /*
+   * Per thread command instances
+   */
+  private static ThreadLocal<RedisCommand[]> commandsTLS = new ThreadLocal<RedisCommand[]>() {
+    @Override
+    protected RedisCommand[] initialValue() {
+      RedisCommand[] commands = new RedisCommand[COMMANDS.size()];
+      for (int i = 0; i < commands.length; i++) {
+        commands[i] = COMMANDS.get(i).get();
+      }
+      return commands;
+    }
+  };
+  
+  static {
+    for (int i = 0; i < names.length; i++) {
+      RedisCommand cmd = COMMANDS.get(i).get();
+      String name = cmd.getClass().getSimpleName();
+      names[i] = name.getBytes();
+      writes[i] = WRITE_COMMANDS.contains(cmd.getClass());
+      stats[i] = new CommandStats(name);
+      maxNameLength = Math.max(maxNameLength, names[i].length);
+    }
+    buildHashTable();
+  }
+  
+  private CommandTable() {
+  }
+  
+  /**
+   * Finds hash seed which maps all command names to different slots
+   */
+  private static void buildHashTable() {
+    int size = Integer.highestOneBit(names.length) * 4;
+    while (true) {
+      int[] table = new int[size];
+      for (int s = 1; s <= 1000; s++) {
+        Arrays.fill(table, -1);
+        boolean collision = false;
+        for (int i = 0; i < names.length; i++) {
+          int slot = hash(s, names[i]) & (size - 1);
+          if (table[slot] >= 0) {
+            collision = true;
+            break;
+          }
+          table[slot] = i;
+        }
+        if (!collision) {
+          seed = s;
+          slots = table;
+          return;
+        }
+      }
+      size *= 2;
+    }
+  }
+  
+  private static int hash(int seed, byte[] name) {
+    int h = seed * 0x9e3779b9;
+    for (int i = 0; i < name.length; i++) {
+      h = (h ^ name[i]) * 0x01000193;
+    }
+    return h ^ (h >>> 16);
+  }
+  
+  private static int hash(int seed, long ptr, int len) {
+    int h = seed * 0x9e3779b9;
+    for (int i = 0; i < len; i++) {
+      h = (h ^ UnsafeAccess.toByte(ptr + i)) * 0x01000193;
+    }
+    return h ^ (h >>> 16);
+  }
+  
+  /**
+   * Finds command by name
+   * @param ptr address of a command name (upper case)
+   * @param len name length
+   * @return command index or -1, if not found
+   */
+  public static int lookup(long ptr, int len) {
+    if (len <= 0 || len > maxNameLength) {
+      return -1;
+    }
+    int index = slots[hash(seed, ptr, len) & (slots.length - 1)];
+    if (index < 0) {
+      return -1;
+    }
+    byte[] name = names[index];
+    if (name.length != len) {
+      return -1;
+    }
+    for (int i = 0; i < len; i++) {
+      if (name[i] != UnsafeAccess.toByte(ptr + i)) {
+        return -1;
+      }
+    }
+    return index;
+  }
+  
+  /**
+   * Get command instance for the current thread
+   * @param index command index
+   * @return command
+   */
+  public static RedisCommand getCommand(int index) {
+    return commandsTLS.get()[index];
+  }
+  
+  /**
+   * Does command change data
+   * @param index command index
+   * @return true - if yes, false - otherwise
+   */
+  public static boolean isWriteCommand(int index) {
+    return writes[index];
+  }
+  
+  /**
+   * Get command statistics
+   * @param index command index
+   * @return command statistics
+   */
+  public static CommandStats getStats(int index) {
+    return stats[index];
+  }
+  
+  /**
+   * Get statistics of all commands
+   * @return statistics
+   */
+  public static CommandStats[] getStats() {
+    return stats;
+  }
+  
+  /**
+   * Get number of commands
+   * @return number of commands
+   */
+  public static int size() {
+    return names.length;
+  }
+  
+  /**
+   * Resets all command statistics
+   */
+  public static void resetStats() {
+    for (CommandStats s: stats) {
+      s.reset();
+    }
+  }
+}
@@ -0,0 +1,441 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.util.RespWriter;
+
+/**
+ * 
+ * Per-connection state, which is attached to a client's selection key. Connection
+ * is always served by the thread, which owns its selector. Context keeps 
+ * input buffer with incomplete (partially received) requests and output buffer
+ * with pending (not yet sent) replies. Buffers are taken from the {@link BufferPool}
+ * on demand, they grow when needed and are returned back to the pool when they are empty.
+ * 
+ * Replies are written by a streaming {@link RespWriter}. When the output buffer gets full, 
+ * context tries to send it to a client right away and, if the client is not ready, 
+ * queues it as a chunk and continues with a new buffer. So, large replies do not 
+ * require a single large buffer.
+ *
+ */
+class ConnectionContext implements RespWriter.Flusher {
+  
+  static long epochStartNanos = System.nanoTime();
+
+  private static final byte[] REQUEST_TOO_LARGE = "-ERR: Request is too large\r\n".getBytes();
+  
+  private long accessTime;
+  
+  /*
+   * Input buffer (write mode), keeps incomplete request
+   */
+  private ByteBuffer in;
+  
+  /*
+   * Output buffer (write mode), keeps pending replies
+   */
+  private ByteBuffer out;
+  
+  /*
+   * Full output chunks (read mode), which have not been sent yet
+   */
+  private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<ByteBuffer>();
+  
+  /*
+   * Reply writer
+   */
+  private final RespWriter writer = new RespWriter();
+  
+  /*
+   * Client's channel
+   */
+  private final SocketChannel channel;
+  
+  /*
+   * Maximum request size
+   */
+  private final int maxRequestSize;
+  
+  /*
+   * Blocking state (for blocking commands)
+   */
+  private Waiter waiter;
+  
+  ConnectionContext(SocketChannel channel) {
+    this(channel, RedisConf.getInstance().getMaxRequestSize());
+  }
+  
+  ConnectionContext(SocketChannel channel, int maxRequestSize) {
+    this.channel = channel;
+    this.maxRequestSize = maxRequestSize;
+    access();
+  }
+  
+  long lastAccess() {
+    return accessTime;
+  }
+  
+  void access() {
+    accessTime = System.nanoTime() - epochStartNanos;
+  }
+  
+  /**
+   * Set waiter
+   * @param waiter waiter
+   */
+  void setWaiter(Waiter waiter) {
+    this.waiter = waiter;
+  }
+  
+  /**
+   * Get waiter
+   * @return waiter
+   */
+  Waiter getWaiter() {
+    return waiter;
+  }
+  
+  /**
+   * Is connection blocked by a blocking command
+   * @return true, false
+   */
+  boolean isBlocked() {
+    return waiter != null && waiter.isBlocked();
+  }
+  
+  /**
+   * Get input buffer
+   * @return input buffer
+   */
+  ByteBuffer getInputBuffer() {
+    if (in == null) {
+      in = BufferPool.get();
+    }
+    return in;
+  }
+  
+  /**
+   * Get output buffer
+   * @return output buffer
+   */
+  ByteBuffer getOutputBuffer() {
+    if (out == null) {
+      out = BufferPool.get();
+    }
+    return out;
+  }
+  
+  /**
+   * Get reply writer
+   * @return writer, which writes to the output buffer
+   */
+  RespWriter getWriter() {
+    return writer.reset(getOutputBuffer(), this);
+  }
+  
+  /**
+   * Called by a writer when the output buffer is full
+   */
+  @Override
+  public ByteBuffer flush(ByteBuffer buf, int required) {
+    buf.flip();
+    if (chunks.isEmpty() && channel != null) {
+      // Try to send it right away
+      try {
+        while (buf.hasRemaining() && channel.write(buf) > 0);
+      } catch (IOException e) {
+        // Connection will be closed on a next flush
+      }
+    }
+    if (buf.hasRemaining()) {
+      chunks.add(buf);
+    } else {
+      buf.clear();
+      if (buf.capacity() >= required) {
+        return buf;
+      }
+      BufferPool.release(buf);
+    }
+    out = BufferPool.get(required);
+    return out;
+  }
+  
+  /**
+   * Has pending output
+   * @return true, if there are replies which have not been sent yet
+   */
+  boolean hasPendingOutput() {
+    return !chunks.isEmpty() || (out != null && out.position() > 0);
+  }
+  
+  /**
+   * Reads available data from a channel to the input buffer
+   * @param channel socket channel
+   * @return number of bytes read, -1 - end of stream
+   * @throws IOException
+   */
+  int read(SocketChannel channel) throws IOException {
+    ByteBuffer in = getInputBuffer();
+    int total = 0;
+    while (in.hasRemaining()) {
+      int num = channel.read(in);
+      if (num < 0) {
+        return total > 0? total: -1;
+      } else if (num == 0) {
+        break;
+      }
+      total += num;
+    }
+    return total;
+  }
+  
+  /**
+   * Grows input buffer when it is full (it contains incomplete request only)
+   * @return false - if request exceeds maximum allowed size, true - otherwise
+   */
+  boolean ensureInputCapacity() {
+    if (in == null || in.hasRemaining()) {
+      return true;
+    }
+    int capacity = in.capacity();
+    if (capacity >= maxRequestSize) {
+      return false;
+    }
+    in = BufferPool.grow(in, (int) Math.min((long) capacity * 2, maxRequestSize));
+    return true;
+  }
+  
+  /**
+   * Sends pending output to a channel, does not block
+   * @param channel socket channel
+   * @return true, if all pending data has been sent, false - otherwise 
+   * @throws IOException
+   */
+  boolean flush(SocketChannel channel) throws IOException {
+    if (!hasPendingOutput()) {
+      return true;
+    }
+    while (!chunks.isEmpty()) {
+      ByteBuffer chunk = chunks.peek();
+      while (chunk.hasRemaining()) {
+        if (channel.write(chunk) == 0) {
+          // Socket send buffer is full
+          return false;
+        }
+      }
+      BufferPool.release(chunks.poll());
+    }
+    if (out == null) {
+      return true;
+    }
+    out.flip();
+    while (out.hasRemaining()) {
+      if (channel.write(out) == 0) {
+        // Socket send buffer is full
+        break;
+      }
+    }
+    // Keep what was not sent
+    out.compact();
+    return out.position() == 0;
+  }
+  
+  /**
+   * Serves a ready connection (shared by all event loops): sends pending replies, 
+   * reads and executes all complete requests. Connection is closed on end of stream,
+   * I/O error or too large request (selection key gets cancelled).
+   * @param key selection key
+   * @param store data store
+   * @return number of processed requests, -1 - if shutdown was requested
+   */
+  int process(SelectionKey key, BigSortedMap store) {
+    SocketChannel channel = (SocketChannel) key.channel();
+    int processed = 0;
+    try {
+      access();
+      // Send pending replies first
+      if (!flush(channel)) {
+        return 0;
+      }
+      int num = read(channel);
+      if (num < 0) {
+        // End-Of-Stream - socket was closed, cancel the key
+        close(key);
+        return 0;
+      }
+      if (!isBlocked()) {
+        processed = processPipeline(channel, store);
+      }
+      if (!ensureInputCapacity()) {
+        rejectRequest(key);
+      }
+    } catch (IOException e) {
+      String msg = e.getMessage();
+      if (!"Connection reset by peer".equals(msg)) {
+        // TODO 
+        e.printStackTrace();
+      }
+      close(key);
+    } finally {
+      updateInterestOps(key);
+      releaseBuffers();
+    }
+    return processed;
+  }
+  
+  /**
+   * Resumes blocked connection: its keys were signaled or timeout expired
+   * @param key selection key
+   * @param store data store
+   * @return number of processed requests, -1 - if shutdown was requested
+   */
+  int resume(SelectionKey key, BigSortedMap store) {
+    int processed = 0;
+    try {
+      processed = processPipeline((SocketChannel) key.channel(), store);
+    } catch (IOException e) {
+      close(key);
+    } finally {
+      updateInterestOps(key);
+      releaseBuffers();
+    }
+    return processed;
+  }
+  
+  /**
+   * Processes all complete requests in the input buffer (pipelining), 
+   * replies are sent back once per batch
+   * @param channel socket channel
+   * @param store data store
+   * @return number of processed requests, -1 - if shutdown was requested
+   * @throws IOException
+   */
+  private int processPipeline(SocketChannel channel, BigSortedMap store) 
+      throws IOException {
+    int total = 0;
+    while (true) {
+      int processed;
+      try {
+        processed = CommandProcessor.processPipeline(store, getInputBuffer(), 
+          getWriter(), waiter);
+      } catch (UncheckedIOException e) {
+        // Streaming reply was cut short: connection gets closed
+        throw e.getCause();
+      }
+      if (processed < 0) {
+        // Shutdown: send what we have
+        flush(channel);
+        return -1;
+      }
+      total += processed;
+      if (waiter.isBlocked()) {
+        // Park client until its keys are signaled or timeout expires
+        waiter.queue.park(waiter);
+        flush(channel);
+        return total;
+      }
+      if (!flush(channel)) {
+        // Client is slow, wait until channel becomes writable
+        return total;
+      }
+      if (processed == 0) {
+        return total;
+      }
+    }
+  }
+  
+  /**
+   * Replies with an error and closes connection when request is too large
+   * @param key selection key
+   */
+  void rejectRequest(SelectionKey key) {
+    ByteBuffer out = getOutputBuffer();
+    if (out.remaining() >= REQUEST_TOO_LARGE.length) {
+      out.put(REQUEST_TOO_LARGE);
+    }
+    try {
+      flush((SocketChannel) key.channel());
+    } catch (IOException e) {
+      // ignore - we close connection anyway
+    }
+    close(key);
+  }
+  
+  /**
+   * Updates interest set of a selection key: we stop reading new requests from 
+   * a client while there are pending replies and wait until channel becomes writable
+   * @param key selection key
+   */
+  void updateInterestOps(SelectionKey key) {
+    if (!key.isValid()) {
+      return;
+    }
+    int ops = hasPendingOutput()? SelectionKey.OP_WRITE: SelectionKey.OP_READ;
+    if (key.interestOps() != ops) {
+      key.interestOps(ops);
+    }
+  }
+  
+  /**
+   * Returns empty buffers to the pool
+   */
+  void releaseBuffers() {
+    if (in != null && in.position() == 0) {
+      BufferPool.release(in);
+      in = null;
+    }
+    if (out != null && out.position() == 0) {
+      BufferPool.release(out);
+      out = null;
+    }
+  }
+  
+  /**
+   * Closes connection and releases all resources
+   * @param key selection key
+   */
+  void close(SelectionKey key) {
+    if (isBlocked()) {
+      waiter.queue.cancel(waiter);
+    }
+    if (waiter != null) {
+      waiter.free();
+    }
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      // ignore
+    }
+    BufferPool.release(in);
+    BufferPool.release(out);
+    while (!chunks.isEmpty()) {
+      BufferPool.release(chunks.poll());
+    }
+    in = null;
+    out = null;
+  }
+}
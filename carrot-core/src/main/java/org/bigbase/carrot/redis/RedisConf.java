@@ -20,11 +20,14 @@ package org.bigbase.carrot.redis;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import org.bigbase.carrot.compression.Codec;
 import org.bigbase.carrot.compression.CodecFactory;
 import org.bigbase.carrot.compression.CodecType;
+import org.bigbase.carrot.redis.util.DataType;
 
 /**
  * Class which keeps all the configuration parameters
@@ -41,31 +44,107 @@ public class RedisConf {
   public final static String CONF_ZSET_MAX_COMPACT_SIZE = "zset.compact.maxsize";
   public final static String CONF_SERVER_PORT = "server.port";
   public final static String CONF_THREAD_POOL_SIZE = "thread.pool.size";
+  public final static String CONF_SERVER_CPU_LIST = "server.cpu.list";
+  public final static String CONF_SERVER_STATS_INTERVAL_SECS = "server.stats.interval.seconds";
+  public final static String CONF_MAX_REQUEST_SIZE = "max.request.size";
+  public final static String CONF_MAX_REPLY_SIZE = "max.reply.size";
+  public final static String CONF_REPLY_BUFFER_IDLE_TIMEOUT = "reply.buffer.idle.timeout";
+  public final static String CONF_SLOWLOG_LOG_SLOWER_THAN = "slowlog.log.slower.than";
+  public final static String CONF_SLOWLOG_MAX_LEN = "slowlog.max.len";
+  public final static String CONF_SLOWLOG_SAMPLE_RATE = "slowlog.sample.rate";
   
   public final static String CONF_DATA_DIR_PATH = "data.dir.path";
   public final static String CONF_SNAPSHOT_INTERVAL_SECS = "snapshot.interval.seconds";
+  public final static String CONF_SNAPSHOT_PARTITIONS = "snapshot.partitions";
+  public final static String CONF_SNAPSHOT_INCREMENTAL = "snapshot.incremental";
+  public final static String CONF_SNAPSHOT_DELTA_MAX_FILES = "snapshot.delta.max.files";
+  public final static String CONF_SNAPSHOT_MERGE_GARBAGE_RATIO = "snapshot.merge.garbage.ratio";
   public final static String CONF_SERVER_LOG_DIR_PATH = "server.log.dir.path";
   public final static String CONF_SERVER_WAL_DIR_PATH = "server.wal.dir.path";
   
   
   public final static int DEFAULT_SNAPSHOT_INTERVAL_SECS = 0;// no snapshots
+  public final static int DEFAULT_SNAPSHOT_PARTITIONS = 1;// single snapshot file
+  public final static boolean DEFAULT_SNAPSHOT_INCREMENTAL = false;
+  public final static int DEFAULT_SNAPSHOT_DELTA_MAX_FILES = 8;
+  public final static double DEFAULT_SNAPSHOT_MERGE_GARBAGE_RATIO = 0.5;
+  public final static int DEFAULT_SERVER_STATS_INTERVAL_SECS = 0;// no stats reports
   public final static String DEFAULT_SERVER_WAL_DIR_PATH = "./WALs";
   public final static String DEFAULT_SERVER_LOG_DIR_PATH = "./logs";
   public final static String DEFAULT_DATA_DIR_PATH = "./snapshots";
 
   public final static int DEFAULT_SERVER_PORT = 6379; 
   // As of v. 0.1
-  public final static int DEFAULT_COMMAND_COUNT = 106;
+  public final static int DEFAULT_COMMAND_COUNT = 112;
   public final static long DEFAULT_MAX_MEMORY_LIMIT = 1024 * 1024 * 1024; // 1GB
   public final static String DEFAULT_COMPRESSION_CODEC = "none";
   public final static int DEFAULT_THREAD_POOL_SIZE = 
       Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
   public final static int DEFAULT_ZSET_MAX_COMPACT_SIZE = 512;
+  public final static int DEFAULT_MAX_REQUEST_SIZE = 256 * 1024 * 1024; // 256MB
+  public final static int DEFAULT_MAX_REPLY_SIZE = 256 * 1024 * 1024; // 256MB
+  public final static long DEFAULT_REPLY_BUFFER_IDLE_TIMEOUT = 60000; // 1 min
+  public final static long DEFAULT_SLOWLOG_LOG_SLOWER_THAN = 10000; // 10ms
+  public final static int DEFAULT_SLOWLOG_MAX_LEN = 128;
+  public final static int DEFAULT_SLOWLOG_SAMPLE_RATE = 1;
 
   
   /* Data block configuration section */
   /* Comma separated list of data block sizes*/
   public final static String DATA_BLOCK_SIZES_KEY = "datablock.sizes"; 
+  /* Data block record offset directory interval (0 - disabled) */
+  public final static String DATA_BLOCK_DIRECTORY_INTERVAL_KEY = "datablock.directory.interval";
+  public final static int DEFAULT_DATA_BLOCK_DIRECTORY_INTERVAL = 8;
+  /* Minimum number of data blocks in index block to use binary search (0 - disabled) */
+  public final static String INDEX_BLOCK_DIRECTORY_THRESHOLD_KEY = "indexblock.directory.threshold";
+  public final static int DEFAULT_INDEX_BLOCK_DIRECTORY_THRESHOLD = 8;
+  /* Number of lock stripes of a data store (0 - derived from number of CPUs) */
+  public final static String STORE_LOCK_STRIPES_KEY = "store.lock.stripes";
+  public final static int DEFAULT_STORE_LOCK_STRIPES = 0;
+  /* Lock - free (optimistic) reads */
+  public final static String STORE_OPTIMISTIC_READS_KEY = "store.optimistic.reads";
+  public final static boolean DEFAULT_STORE_OPTIMISTIC_READS = true;
+  /* Maximum data block size per data type (prefix, data type name follows), 0 - maximum block size */
+  public final static String DATA_BLOCK_MAX_SIZE_KEY_PREFIX = "datablock.max.size.";
+  /* Adaptive data block sizing */
+  public final static String DATA_BLOCK_SIZE_ADAPTIVE_KEY = "datablock.size.adaptive";
+  public final static boolean DEFAULT_DATA_BLOCK_SIZE_ADAPTIVE = false;
+  /* Background compaction */
+  public final static String COMPACTION_ENABLED_KEY = "compaction.enabled";
+  public final static boolean DEFAULT_COMPACTION_ENABLED = false;
+  /* Pause between two compaction slices in ms */
+  public final static String COMPACTION_INTERVAL_KEY = "compaction.interval.ms";
+  public final static long DEFAULT_COMPACTION_INTERVAL = 100;
+  /* Maximum duration of a compaction slice in ms */
+  public final static String COMPACTION_SLICE_KEY = "compaction.slice.ms";
+  public final static long DEFAULT_COMPACTION_SLICE = 5;
+  /* Number of index blocks scanned per compaction slice */
+  public final static String COMPACTION_BATCH_SIZE_KEY = "compaction.batch.size";
+  public final static int DEFAULT_COMPACTION_BATCH_SIZE = 64;
+  /* Decompressed data block cache size in bytes (0 - disabled) */
+  public final static String COMPRESSION_CACHE_SIZE_KEY = "compression.cache.size";
+  public final static long DEFAULT_COMPRESSION_CACHE_SIZE = 0;
+  /* Deferred recompression of mutated data blocks */
+  public final static String COMPRESSION_DEFERRED_KEY = "compression.deferred.enabled";
+  public final static boolean DEFAULT_COMPRESSION_DEFERRED = false;
+  /* Maximum memory of dirty (decompressed) data blocks per data store in bytes */
+  public final static String COMPRESSION_DEFERRED_MAX_MEMORY_KEY = "compression.deferred.max.memory";
+  public final static long DEFAULT_COMPRESSION_DEFERRED_MAX_MEMORY = 64 * 1024 * 1024;
+  /* Write - back interval of dirty data blocks in ms */
+  public final static String COMPRESSION_DEFERRED_INTERVAL_KEY = "compression.deferred.interval.ms";
+  public final static long DEFAULT_COMPRESSION_DEFERRED_INTERVAL = 1000;
+  /* Write - ahead log */
+  public final static String WAL_ENABLED_KEY = "server.wal.enabled";
+  public final static boolean DEFAULT_WAL_ENABLED = false;
+  /* WAL fsync policy: always, everysec, no */
+  public final static String WAL_FSYNC_KEY = "server.wal.fsync";
+  public final static String DEFAULT_WAL_FSYNC = "everysec";
+  /* Maximum WAL segment size in bytes */
+  public final static String WAL_SEGMENT_SIZE_KEY = "server.wal.segment.size";
+  public final static long DEFAULT_WAL_SEGMENT_SIZE = 64 * 1024 * 1024;
+  /* WAL staging buffer size in bytes */
+  public final static String WAL_BUFFER_SIZE_KEY = "server.wal.buffer.size";
+  public final static int DEFAULT_WAL_BUFFER_SIZE = 1024 * 1024;
   
   private static RedisConf conf;
   private Properties props;
@@ -122,6 +201,24 @@ public class RedisConf {
     return defValue;
   }
   
+  private double getDoubleProperty(String name, double defValue) {
+    String value = props.getProperty(name);
+    if (value == null) return defValue;
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      //TODO log error
+      e.printStackTrace();
+    }
+    return defValue;
+  }
+  
+  private boolean getBooleanProperty(String name, boolean defValue) {
+    String value = props.getProperty(name);
+    if (value == null) return defValue;
+    return Boolean.parseBoolean(value.trim());
+  }
+  
   private long getLongProperty(String name, long defValue) {
     String value = props.getProperty(name);
     if (value == null) return defValue;
@@ -140,7 +237,16 @@ public class RedisConf {
    */
   public String[] getNodes() {
     String value = props.getProperty(CONF_REDIS_NODES);
-    if (value == null) {
+    int[] cpus = getCpuList();
+    if (value == null && cpus.length > 0) {
+      // one node per configured CPU, starting from the server port
+      int port = getServerPort();
+      String[] nodes = new String[cpus.length];
+      for (int i = 0; i < cpus.length; i++) {
+        nodes[i] = "127.0.0.1:" + (port + i);
+      }
+      return nodes;
+    } else if (value == null) {
       // single  node on a default port
       return new String[] {"127.0.0.1:" + DEFAULT_SERVER_PORT};
     } else {
@@ -148,6 +254,52 @@ public class RedisConf {
       return value.split(",");
     }
   }
+  
+  /**
+   * Get list of CPUs node threads are pinned to. Format: comma separated 
+   * list of CPU ids and ranges, for example: 0-3,8,10-11
+   * @return list of CPUs (empty - if not configured)
+   */
+  public int[] getCpuList() {
+    String value = props.getProperty(CONF_SERVER_CPU_LIST);
+    if (value == null || value.trim().length() == 0) {
+      return new int[0];
+    }
+    List<Integer> list = new ArrayList<Integer>();
+    try {
+      for (String part: value.split(",")) {
+        part = part.trim();
+        int index = part.indexOf('-');
+        if (index > 0) {
+          int from = Integer.parseInt(part.substring(0, index).trim());
+          int to = Integer.parseInt(part.substring(index + 1).trim());
+          for (int cpu = from; cpu <= to; cpu++) {
+            list.add(cpu);
+          }
+        } else {
+          list.add(Integer.parseInt(part));
+        }
+      }
+    } catch (NumberFormatException e) {
+      //TODO log error
+      e.printStackTrace();
+      return new int[0];
+    }
+    int[] cpus = new int[list.size()];
+    for (int i = 0; i < cpus.length; i++) {
+      cpus[i] = list.get(i);
+    }
+    return cpus;
+  }
+  
+  /**
+   * Get interval between node statistics (throughput, memory) reports
+   * @return interval in seconds (0 - no reports)
+   */
+  public int getStatsInterval() {
+    return getIntProperty(CONF_SERVER_STATS_INTERVAL_SECS, DEFAULT_SERVER_STATS_INTERVAL_SECS);
+  }
+  
   /**
    * Maximum size of ZSet in a compact representation
    * @return maximum size
@@ -180,6 +332,58 @@ public class RedisConf {
     return getIntProperty(CONF_THREAD_POOL_SIZE, DEFAULT_THREAD_POOL_SIZE);
   }
   
+  /**
+   * Get maximum request size (network input buffer grows up to this size)
+   * @return maximum request size
+   */
+  public int getMaxRequestSize() {
+    return getIntProperty(CONF_MAX_REQUEST_SIZE, DEFAULT_MAX_REQUEST_SIZE);
+  }
+  
+  /**
+   * Get maximum reply size (in Carrot internal format). Commands, which
+   * produce larger replies fail with an error. The value can not exceed
+   * the largest reply buffer size (1GB)
+   * @return maximum reply size
+   */
+  public int getMaxReplySize() {
+    int size = getIntProperty(CONF_MAX_REPLY_SIZE, DEFAULT_MAX_REPLY_SIZE);
+    return Math.min(size, ReplyBufferPool.MAX_BUFFER_SIZE);
+  }
+  
+  /**
+   * Get idle timeout for large reply buffers, after which
+   * they are released
+   * @return timeout in ms
+   */
+  public long getReplyBufferIdleTimeout() {
+    return getLongProperty(CONF_REPLY_BUFFER_IDLE_TIMEOUT, DEFAULT_REPLY_BUFFER_IDLE_TIMEOUT);
+  }
+  
+  /**
+   * Get slow log threshold
+   * @return threshold in microseconds (negative - slow log is disabled)
+   */
+  public long getSlowLogThreshold() {
+    return getLongProperty(CONF_SLOWLOG_LOG_SLOWER_THAN, DEFAULT_SLOWLOG_LOG_SLOWER_THAN);
+  }
+  
+  /**
+   * Get slow log maximum length
+   * @return maximum length
+   */
+  public int getSlowLogMaxLength() {
+    return getIntProperty(CONF_SLOWLOG_MAX_LEN, DEFAULT_SLOWLOG_MAX_LEN);
+  }
+  
+  /**
+   * Get slow log sample rate (one of N commands is checked)
+   * @return sample rate
+   */
+  public int getSlowLogSampleRate() {
+    return getIntProperty(CONF_SLOWLOG_SAMPLE_RATE, DEFAULT_SLOWLOG_SAMPLE_RATE);
+  }
+  
   /**
    * Get maximum data store size
    * @return maximum data store size
@@ -235,6 +439,43 @@ public class RedisConf {
 
   }
   
+  /**
+   * Get number of snapshot partitions: snapshot is split by key ranges into 
+   * files, which are written in parallel
+   * @return number of partitions
+   */
+  public int getSnapshotPartitions() {
+    return getIntProperty(CONF_SNAPSHOT_PARTITIONS, DEFAULT_SNAPSHOT_PARTITIONS);
+  }
+  
+  /**
+   * Are snapshots incremental: only index blocks changed since the previous 
+   * snapshot are written into a delta file
+   * @return true - if yes, false - otherwise
+   */
+  public boolean isSnapshotIncremental() {
+    return getBooleanProperty(CONF_SNAPSHOT_INCREMENTAL, DEFAULT_SNAPSHOT_INCREMENTAL);
+  }
+  
+  /**
+   * Get maximum number of delta files, deltas are merged into a new base file
+   * when there are more of them
+   * @return maximum number of delta files
+   */
+  public int getSnapshotDeltaMaxFiles() {
+    return getIntProperty(CONF_SNAPSHOT_DELTA_MAX_FILES, DEFAULT_SNAPSHOT_DELTA_MAX_FILES);
+  }
+  
+  /**
+   * Get maximum ratio of obsolete data in snapshot files, deltas are merged into
+   * a new base file when it is exceeded
+   * @return ratio (0 - 1)
+   */
+  public double getSnapshotMergeGarbageRatio() {
+    return getDoubleProperty(CONF_SNAPSHOT_MERGE_GARBAGE_RATIO, 
+      DEFAULT_SNAPSHOT_MERGE_GARBAGE_RATIO);
+  }
+  
   /**
    * Get snapshot interval in seconds
    * @return snapshot interval
@@ -263,6 +504,57 @@ public class RedisConf {
     return props.getProperty(CONF_SERVER_WAL_DIR_PATH, DEFAULT_SERVER_WAL_DIR_PATH);
   }
   
+  /**
+   * Get WAL directory for the store ID
+   * @param storeId store ID
+   * @return path as a string
+   */
+  public String getWALDir(int storeId) {
+    return getWALDir() + File.separator + storeId;
+  }
+  
+  /**
+   * Get WAL directory for the node
+   * @param server node's server host
+   * @param port node's server port
+   * @return path as a string
+   */
+  public String getWALDirForNode(String server, int port) {
+    return getWALDir() + File.separator + server + File.separator + port;
+  }
+  
+  /**
+   * Is write - ahead log enabled
+   * @return true - if yes, false - otherwise
+   */
+  public boolean isWALEnabled() {
+    return getBooleanProperty(WAL_ENABLED_KEY, DEFAULT_WAL_ENABLED);
+  }
+  
+  /**
+   * Get WAL fsync policy
+   * @return policy
+   */
+  public WriteAheadLog.FsyncPolicy getWALFsyncPolicy() {
+    return WriteAheadLog.FsyncPolicy.fromString(props.getProperty(WAL_FSYNC_KEY, DEFAULT_WAL_FSYNC));
+  }
+  
+  /**
+   * Get maximum WAL segment size
+   * @return size in bytes
+   */
+  public long getWALSegmentSize() {
+    return getLongProperty(WAL_SEGMENT_SIZE_KEY, DEFAULT_WAL_SEGMENT_SIZE);
+  }
+  
+  /**
+   * Get WAL staging buffer size
+   * @return size in bytes
+   */
+  public int getWALBufferSize() {
+    return getIntProperty(WAL_BUFFER_SIZE_KEY, DEFAULT_WAL_BUFFER_SIZE);
+  }
+  
   /**
    * Return cluster slots
    * @return cluster slots
@@ -297,6 +589,124 @@ public class RedisConf {
     }
     return slots;
   }
+  /**
+   * Get data block record offset directory interval: every N-th record offset 
+   * is kept in the directory
+   * @return interval, 0 - directory is disabled
+   */
+  public int getDataBlockDirectoryInterval() {
+    return getIntProperty(DATA_BLOCK_DIRECTORY_INTERVAL_KEY, DEFAULT_DATA_BLOCK_DIRECTORY_INTERVAL);
+  }
+  
+  /**
+   * Get minimum number of data blocks in an index block, starting from which
+   * data blocks are located by binary search over descriptor directory
+   * @return threshold, 0 - binary search is disabled
+   */
+  public int getIndexBlockDirectoryThreshold() {
+    return getIntProperty(INDEX_BLOCK_DIRECTORY_THRESHOLD_KEY, 
+      DEFAULT_INDEX_BLOCK_DIRECTORY_THRESHOLD);
+  }
+  
+  /**
+   * Get number of lock stripes of a data store
+   * @return number of lock stripes, 0 - derived from number of available CPUs
+   */
+  public int getStoreLockStripes() {
+    return getIntProperty(STORE_LOCK_STRIPES_KEY, DEFAULT_STORE_LOCK_STRIPES);
+  }
+  
+  /**
+   * Are lock - free (optimistic) reads enabled
+   * @return true - if yes, false - otherwise
+   */
+  public boolean isStoreOptimisticReadsEnabled() {
+    return getBooleanProperty(STORE_OPTIMISTIC_READS_KEY, DEFAULT_STORE_OPTIMISTIC_READS);
+  }
+  
+  /**
+   * Get maximum data block size for a data type
+   * @param type data type
+   * @return maximum size, 0 - maximum block size
+   */
+  public int getDataBlockMaxSize(DataType type) {
+    return getIntProperty(DATA_BLOCK_MAX_SIZE_KEY_PREFIX + type.name().toLowerCase(), 0);
+  }
+  
+  /**
+   * Is adaptive data block sizing enabled
+   * @return true - if yes, false - otherwise
+   */
+  public boolean isDataBlockSizeAdaptive() {
+    return getBooleanProperty(DATA_BLOCK_SIZE_ADAPTIVE_KEY, DEFAULT_DATA_BLOCK_SIZE_ADAPTIVE);
+  }
+  
+  /**
+   * Is background compaction enabled
+   * @return true - if yes, false - otherwise
+   */
+  public boolean isCompactionEnabled() {
+    return getBooleanProperty(COMPACTION_ENABLED_KEY, DEFAULT_COMPACTION_ENABLED);
+  }
+  
+  /**
+   * Get pause between two compaction slices
+   * @return pause in ms
+   */
+  public long getCompactionInterval() {
+    return getLongProperty(COMPACTION_INTERVAL_KEY, DEFAULT_COMPACTION_INTERVAL);
+  }
+  
+  /**
+   * Get maximum duration of a compaction slice
+   * @return duration in ms
+   */
+  public long getCompactionSlice() {
+    return getLongProperty(COMPACTION_SLICE_KEY, DEFAULT_COMPACTION_SLICE);
+  }
+  
+  /**
+   * Get number of index blocks scanned per compaction slice
+   * @return number of index blocks
+   */
+  public int getCompactionBatchSize() {
+    return getIntProperty(COMPACTION_BATCH_SIZE_KEY, DEFAULT_COMPACTION_BATCH_SIZE);
+  }
+  
+  /**
+   * Get decompressed data block cache size
+   * @return size in bytes (0 - disabled)
+   */
+  public long getCompressionCacheSize() {
+    return getLongProperty(COMPRESSION_CACHE_SIZE_KEY, DEFAULT_COMPRESSION_CACHE_SIZE);
+  }
+  
+  /**
+   * Is deferred recompression of mutated data blocks enabled
+   * @return true - if yes, false - otherwise
+   */
+  public boolean isDeferredCompressionEnabled() {
+    return getBooleanProperty(COMPRESSION_DEFERRED_KEY, DEFAULT_COMPRESSION_DEFERRED);
+  }
+  
+  /**
+   * Get maximum memory of dirty data blocks per data store
+   * @return memory in bytes
+   */
+  public long getDeferredCompressionMaxMemory() {
+    return getLongProperty(COMPRESSION_DEFERRED_MAX_MEMORY_KEY, 
+      DEFAULT_COMPRESSION_DEFERRED_MAX_MEMORY);
+  }
+  
+  /**
+   * Get write - back interval of dirty data blocks
+   * @return interval in ms
+   */
+  public long getDeferredCompressionInterval() {
+    return getLongProperty(COMPRESSION_DEFERRED_INTERVAL_KEY, 
+      DEFAULT_COMPRESSION_DEFERRED_INTERVAL);
+  }
+  
   /**
    *  Get data block sizes
    */
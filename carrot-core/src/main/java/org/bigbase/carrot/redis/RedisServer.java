@@ -137,14 +137,9 @@ public class RedisServer {
           // Adjusts this channel's blocking mode to false
           client.configureBlocking(false);
           client.setOption(StandardSocketOptions.TCP_NODELAY, true);
-          // Operation-set bit for read operations
-          client.register(selector, SelectionKey.OP_READ);
+          // Pass connection to one of request handlers
+          service.submit(client);
           log("Connection Accepted: " + client.getLocalAddress());
-        } else if (key.isValid() && key.isReadable()) {
-          // Check if it is in use
-          RequestHandlers.Attachment att = (RequestHandlers.Attachment)key.attachment();
-          if (att !=null && att.inUse()) return;
-          service.submit(key);
         }
       } catch (IOException e) {
         log("Shutting down server ...");
@@ -164,6 +159,9 @@ public class RedisServer {
   }
  
   public static void shutdown() {
+    if (service != null) {
+      service.shutdown();
+    }
     if (selector != null) {
       try {
         selector.close();
@@ -177,17 +175,32 @@ public class RedisServer {
   private static void initStore(String confFilePath) {
     RedisConf conf = RedisConf.getInstance(confFilePath);
     long limit = conf.getMaxMemoryLimit();
+    // Codec and deallocator must be set before write - ahead log is replayed
+    BigSortedMap.setCompressionCodec(conf.getCompressionCodec());
+    // Register custom memory deallocator for LIST data type
+    Lists.registerDeallocator();
     store = BigSortedMap.loadStore(0);
     if (store == null) {
       store = new BigSortedMap(limit);
     }
     //TODO: Load data from a configured snapshot directory
-    BigSortedMap.setCompressionCodec(conf.getCompressionCodec());
-    // Register custom memory deallocator for LIST data type
-    Lists.registerDeallocator();
+    if (conf.isCompactionEnabled()) {
+      store.startCompactor();
+    }
+    if (conf.getSnapshotInterval() > 0) {
+      store.startSnapshotScheduler(conf.getSnapshotInterval());
+    }
   }
 
-  private static void startRequestHandlers() {
+  /**
+   * Get request handlers (for INFO command)
+   * @return request handlers or null, if server is not running
+   */
+  public static RequestHandlers getRequestHandlers() {
+    return service;
+  }
+  
+  private static void startRequestHandlers() throws IOException {
     RedisConf conf = RedisConf.getInstance();
     int numThreads = conf.getWorkingThreadPoolSize();
     service = RequestHandlers.create(store, numThreads);
@@ -0,0 +1,235 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import java.util.ArrayDeque;
+
+import org.bigbase.carrot.util.UnsafeAccess;
+
+/**
+ * 
+ * Pool of large native memory buffers for command replies, which do not fit 
+ * the default (per thread) output buffer. Buffer sizes are powers of 2, starting 
+ * from MIN_BUFFER_SIZE. Buffers which have not been used for longer than the idle timeout
+ * are freed by a background reclaimer thread, so a single huge reply does not pin memory 
+ * forever.
+ *
+ */
+public class ReplyBufferPool {
+
+  /**
+   * Native memory buffer
+   */
+  public static class Buffer {
+    final long address;
+    final int size;
+    long releaseTime;
+    
+    Buffer(long address, int size) {
+      this.address = address;
+      this.size = size;
+    }
+    
+    /**
+     * Get buffer address
+     * @return address
+     */
+    public long getAddress() {
+      return address;
+    }
+    
+    /**
+     * Get buffer size
+     * @return size
+     */
+    public int getSize() {
+      return size;
+    }
+  }
+  
+  /*
+   * Minimum buffer size
+   */
+  public final static int MIN_BUFFER_SIZE = 2 * 1024 * 1024;
+  
+  /*
+   * Number of size classes: MIN_BUFFER_SIZE * 2^i
+   */
+  final static int NUM_CLASSES = Integer.numberOfLeadingZeros(MIN_BUFFER_SIZE) /* up to 1GB */;
+  
+  /*
+   * Maximum buffer size (the largest size class)
+   */
+  public final static int MAX_BUFFER_SIZE = MIN_BUFFER_SIZE << (NUM_CLASSES - 1);
+  
+  @SuppressWarnings("unchecked")
+  private static ArrayDeque<Buffer>[] pools = (ArrayDeque<Buffer>[]) new ArrayDeque<?>[NUM_CLASSES];
+  
+  /*
+   * Total size of pooled (free) buffers
+   */
+  private static long pooledSize;
+  
+  /*
+   * Total size of allocated buffers (pooled and in use)
+   */
+  private static long allocatedSize;
+  
+  /*
+   * Idle timeout in ms
+   */
+  private static long idleTimeout = RedisConf.getInstance().getReplyBufferIdleTimeout();
+  
+  private static Thread reclaimer;
+  
+  static {
+    for (int i = 0; i < NUM_CLASSES; i++) {
+      pools[i] = new ArrayDeque<Buffer>();
+    }
+  }
+  
+  private ReplyBufferPool() {
+  }
+  
+  /**
+   * Set idle timeout
+   * @param timeout timeout in ms
+   */
+  public static synchronized void setIdleTimeout(long timeout) {
+    idleTimeout = timeout;
+    ReplyBufferPool.class.notifyAll();
+  }
+  
+  /**
+   * Get idle timeout
+   * @return timeout in ms
+   */
+  public static synchronized long getIdleTimeout() {
+    return idleTimeout;
+  }
+  
+  /**
+   * Get buffer of at least a given size
+   * @param size minimum buffer size
+   * @return buffer
+   */
+  public static synchronized Buffer get(long size) {
+    int index = sizeClass(size);
+    // Most recently used buffer first, so older ones get idle
+    Buffer buf = pools[index].pollLast();
+    if (buf != null) {
+      pooledSize -= buf.size;
+      return buf;
+    }
+    int bufSize = MIN_BUFFER_SIZE << index;
+    allocatedSize += bufSize;
+    return new Buffer(UnsafeAccess.malloc(bufSize), bufSize);
+  }
+  
+  /**
+   * Returns buffer to the pool
+   * @param buf buffer
+   */
+  public static synchronized void release(Buffer buf) {
+    if (buf == null) return;
+    buf.releaseTime = System.currentTimeMillis();
+    pools[sizeClass(buf.size)].addLast(buf);
+    pooledSize += buf.size;
+    startReclaimer();
+  }
+  
+  /**
+   * Frees all buffers, which have been idle longer than the idle timeout
+   * @return number of freed buffers
+   */
+  public static synchronized int reclaim() {
+    long now = System.currentTimeMillis();
+    int freed = 0;
+    for (int i = 0; i < NUM_CLASSES; i++) {
+      ArrayDeque<Buffer> pool = pools[i];
+      // Buffers are ordered by release time
+      while (!pool.isEmpty() && now - pool.peekFirst().releaseTime >= idleTimeout) {
+        Buffer buf = pool.pollFirst();
+        UnsafeAccess.free(buf.address);
+        pooledSize -= buf.size;
+        allocatedSize -= buf.size;
+        freed++;
+      }
+    }
+    return freed;
+  }
+  
+  /**
+   * Get total size of pooled (free) buffers
+   * @return size
+   */
+  public static synchronized long getPooledSize() {
+    return pooledSize;
+  }
+  
+  /**
+   * Get total size of allocated buffers
+   * @return size
+   */
+  public static synchronized long getAllocatedSize() {
+    return allocatedSize;
+  }
+  
+  /**
+   * Starts background reclaimer thread (if not started yet)
+   */
+  private static void startReclaimer() {
+    if (reclaimer != null) {
+      return;
+    }
+    reclaimer = new Thread("reply-buffer-reclaimer") {
+      @Override
+      public void run() {
+        synchronized (ReplyBufferPool.class) {
+          while (true) {
+            try {
+              ReplyBufferPool.class.wait(Math.max(1, idleTimeout / 2));
+            } catch (InterruptedException e) {
+              return;
+            }
+            reclaim();
+          }
+        }
+      }
+    };
+    reclaimer.setDaemon(true);
+    reclaimer.start();
+  }
+  
+  /**
+   * Get size class index for a given size
+   * @param size size
+   * @return index
+   */
+  static int sizeClass(long size) {
+    if (size <= MIN_BUFFER_SIZE) {
+      return 0;
+    }
+    int index = 64 - Long.numberOfLeadingZeros(size - 1) - 
+        Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    if (index >= NUM_CLASSES) {
+      throw new IllegalArgumentException("Requested buffer size is too large: " + size);
+    }
+    return index;
+  }
+}
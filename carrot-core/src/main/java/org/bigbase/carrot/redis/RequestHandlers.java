@@ -18,58 +18,46 @@
 package org.bigbase.carrot.redis;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bigbase.carrot.BigSortedMap;
-import org.bigbase.carrot.redis.util.Utils;
 
+/**
+ * 
+ * Request handlers: set of independent event loops. Each event loop (work thread)
+ * has its own selector and serves its own set of connections, new connections are assigned 
+ * to event loops in a round-robin manner. There is no hand-off of requests between threads,
+ * threads block in select() when idle.
+ *
+ */
 public class RequestHandlers {
   
-  static long epochStartNanos = System.nanoTime();
-  
-  static class Attachment {
-    private long accessTime;
-    private boolean inUse = false;
-    
-    Attachment(){
-      accessTime = System.nanoTime() - epochStartNanos;
-      setInUse(true);
-    }
-    
-    boolean  inUse() {
-      return inUse;
-    }
-    
-    void setInUse(boolean b) {
-      this.inUse = b;
-    }
-    
-    long lastAccess() {
-      return accessTime;
-    }
-    
-    void access() {
-      accessTime = System.nanoTime() - epochStartNanos;
-    }
-        
-  }  
   /*
    * Request handlers
    */
   WorkThread[] workers;
   
-  private RequestHandlers(BigSortedMap store, int numThreads) {
+  /*
+   * Next worker to assign new connection to (accessed by acceptor thread only)
+   */
+  private int nextWorker = 0;
+  
+  private RequestHandlers(BigSortedMap store, int numThreads) throws IOException {
     workers = new WorkThread[numThreads];
     for (int i = 0; i < numThreads; i++) {
-      workers[i] = new WorkThread(store);
+      workers[i] = new WorkThread(store, i);
     }
   }
   
-  public static RequestHandlers create(BigSortedMap store, int numThreads) {
+  public static RequestHandlers create(BigSortedMap store, int numThreads) throws IOException {
     return new RequestHandlers(store, numThreads); 
   }
   
@@ -79,208 +67,241 @@ public class RequestHandlers {
   }
   
   /**
-   * Submit next socket channel for processing
-   * @param key selection key for socket channel
+   * Submit new client connection for processing
+   * @param channel socket channel
    */
-  public void submit(SelectionKey key) {
-    while(true) {
-      for (int i = 0; i < workers.length; i++) {
-        if (workers[i].isBusy()) continue;
-        workers[i].nextKey(key);
-        return;
-      }
+  public void submit(SocketChannel channel) {
+    WorkThread worker = workers[nextWorker];
+    nextWorker = (nextWorker + 1) % workers.length;
+    worker.register(channel);
+  }
+  
+  /**
+   * Get event loops statistics (for INFO command)
+   * @return statistics, one line per event loop
+   */
+  public String[] getStats() {
+    String[] stats = new String[workers.length];
+    for (int i = 0; i < workers.length; i++) {
+      stats[i] = workers[i].getStats();
     }
+    return stats;
   }
   
   /**
    * Shutdown service
    */
   public void shutdown() {
-    //TODO
+    Arrays.stream(workers).forEach(x -> x.shutdown());
   }
 }
 
 class WorkThread extends Thread {
   
   /*
-   * Busy loop max iteration
+   * Data store
    */
-  private final static long BUSY_LOOP_MAX = 10000;
-
-  static int bufferSize = 256 * 1024;
+  private final BigSortedMap store;
   
   /*
-   * Input buffer
+   * Selector for this event loop's connections
    */
-  static ThreadLocal<ByteBuffer> inBuf = new ThreadLocal<ByteBuffer>() {
-    @Override
-    protected ByteBuffer initialValue() {
-      return ByteBuffer.allocateDirect(bufferSize);
-    }
-  };
+  private final Selector selector;
   
   /*
-   * Output buffer
+   * Blocked clients of this event loop
    */
-  static ThreadLocal<ByteBuffer> outBuf = new ThreadLocal<ByteBuffer>() {
-    @Override
-    protected ByteBuffer initialValue() {
-      return ByteBuffer.allocateDirect(bufferSize);
-    }
-  };
+  private final WaitQueue waitQueue;
   
   /*
-   * Data store
+   * New connections, which have not been registered with the selector yet
    */
-  private final BigSortedMap store;
+  private final ConcurrentLinkedQueue<SocketChannel> newConnections = 
+      new ConcurrentLinkedQueue<SocketChannel>();
   
-  /**
-   * Next selection key atomic reference
+  /*
+   * Number of connections served by this event loop
+   */
+  private final AtomicInteger connections = new AtomicInteger();
+  
+  private volatile boolean shutdown = false;
+  
+  /*
+   * Statistics: number of select() calls, which returned ready keys
+   */
+  private volatile long selects;
+  
+  /*
+   * Statistics: total number of ready keys (queue depth is the number of 
+   * ready keys per select() call)
+   */
+  private volatile long readyKeys;
+  
+  /*
+   * Statistics: maximum queue depth
+   */
+  private volatile int maxReadyKeys;
+  
+  /*
+   * Statistics: total wait time (time between select() returned and the moment 
+   * when connection's processing started) in nanoseconds
+   */
+  private volatile long totalWaitTime;
+  
+  /*
+   * Statistics: maximum wait time in nanoseconds
    */
-  private final AtomicReference<SelectionKey> nextKey = new AtomicReference<>();
+  private volatile long maxWaitTime;
   
   /*
-   * Busy flag
+   * Statistics: number of processed requests
    */
-  private volatile boolean busy = false;
+  private volatile long requests;
   
   /**
    * Default constructor
    * @param store data store
+   * @param id event loop id
+   * @throws IOException 
    */
-  WorkThread(BigSortedMap store){
+  WorkThread(BigSortedMap store, int id) throws IOException {
+    super("carrot-worker-" + id);
     this.store = store;
+    this.selector = Selector.open();
+    this.waitQueue = new WaitQueue(selector);
   }
   
   /**
-   * Is thread busy working?
-   * @return busy 
+   * Registers new connection with this event loop
+   * @param channel socket channel
    */
-  boolean isBusy() {
-    return busy;
+  void register(SocketChannel channel) {
+    newConnections.offer(channel);
+    selector.wakeup();
   }
   
   /**
-   * Submits next selection key for processing 
-   * @param key selection key
+   * Shutdown event loop
    */
-  void nextKey(SelectionKey key) {
-    key.attach(new RequestHandlers.Attachment());
-    while (!nextKey.compareAndSet(null, key)) {
-      Thread.onSpinWait();
-    }
+  void shutdown() {
+    shutdown = true;
+    selector.wakeup();
   }
   
   /**
-   * Release key - mark it not in use
-   * @param key
+   * Get event loop statistics
+   * @return statistics
    */
-  void release(SelectionKey key) {
-    RequestHandlers.Attachment att = (RequestHandlers.Attachment) key.attachment();
-    att.setInUse(false);
+  String getStats() {
+    long selects = this.selects;
+    long readyKeys = this.readyKeys;
+    return getName() + ":connections=" + connections.get() + 
+        ",pending_connections=" + newConnections.size() + 
+        ",avg_queue_depth=" + (selects > 0? readyKeys / selects: 0) + 
+        ",max_queue_depth=" + maxReadyKeys +
+        ",avg_wait_us=" + (readyKeys > 0? totalWaitTime / (1000 * readyKeys): 0) + 
+        ",max_wait_us=" + maxWaitTime / 1000 + 
+        ",blocked_with_timeout=" + waitQueue.size() +
+        ",requests=" + requests;
   }
   
-  
- /**
-  *  Busy loop with expo-linear back off
-  */
-  
-  private SelectionKey waitForKey() {
-    long counter = 0;
-    long timeout = 0;
-    SelectionKey key = null;
-    // wait for next task
-    while((key = nextKey.getAndSet(null)) == null) {    
-      // Exponential (actually, linear :)) back off
-      if (counter < BUSY_LOOP_MAX) {
-        counter ++;
-        Thread.onSpinWait();
-      } else {
-        timeout += 1;
-        if (timeout > 10) timeout = 10;
-        try {
-          Thread.sleep(timeout);
-        } catch (InterruptedException e) {
-        }
-      }  
+  /**
+   * Registers new connections with the selector
+   */
+  private void registerNewConnections() {
+    SocketChannel channel = null;
+    while ((channel = newConnections.poll()) != null) {
+      try {
+        ConnectionContext ctx = new ConnectionContext(channel);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ, ctx);
+        ctx.setWaiter(waitQueue.newWaiter(store, key));
+        connections.incrementAndGet();
+      } catch (ClosedChannelException e) {
+        // Client has gone already
+      }
     }
-    return key;
   }
+  
   /*
    * Main loop
    */
   public void run() {
     
-    // infinite loop
-    while (true) {
-      SelectionKey key = null;
-      busy = false;
-      key = waitForKey();
-      // We are busy now
-      busy = true;
-      SocketChannel channel = (SocketChannel) key.channel();
-      // Read request first
-      ByteBuffer in = inBuf.get();
-      ByteBuffer out = outBuf.get();
-      in.clear(); out.clear();
-      
+    while (!shutdown) {
       try {
-        long startCounter = System.nanoTime();
-        long max_wait_ns = 100000000; // 100ms
-        
-        while (true) {
-          int num = channel.read(in);
-          if (num < 0) {
-            // End-Of-Stream - socket was closed, cancel the key
-            key.cancel();
-            break;
-          } else if (num == 0) {
-            if (System.nanoTime() - startCounter > max_wait_ns) {
-              break;
-            }
-            continue;
-          }
-          // Try to parse
-          int oldPos = in.position();
-          if (!requestIsComplete(in)) {
-            // restore position
-            in.position(oldPos);
-            continue;
+        // Blocks until there are ready connections, we were woken up 
+        // or the nearest blocked client's timeout expires
+        int n = selector.select(waitQueue.getSelectTimeout());
+        registerNewConnections();
+        waitQueue.poll(this::resume);
+        if (n == 0) {
+          continue;
+        }
+        long startTime = System.nanoTime();
+        Set<SelectionKey> keys = selector.selectedKeys();
+        int depth = keys.size();
+        selects++;
+        readyKeys += depth;
+        if (depth > maxReadyKeys) {
+          maxReadyKeys = depth;
+        }
+        Iterator<SelectionKey> it = keys.iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          long waitTime = System.nanoTime() - startTime;
+          totalWaitTime += waitTime;
+          if (waitTime > maxWaitTime) {
+            maxWaitTime = waitTime;
           }
-          in.position(oldPos);
-          // Process request
-          CommandProcessor.process(store, in, out);
-          // send response back
-          out.flip();
-          int limit = out.limit();
-          byte[] bb = new byte[limit];
-          out.get(bb);
-          System.out.println("SERVER:\n"+ new String(bb));
-          out.position(0);
-          out.limit(limit);
-          while (out.hasRemaining()) {
-            channel.write(out);
+          if (key.isValid() && (key.isReadable() || key.isWritable())) {
+            processRequest(key);
           }
-          break;
         }
       } catch (IOException e) {
-        String msg = e.getMessage();
-        if (!msg.equals("Connection reset by peer")) {
-          // TODO 
-          e.printStackTrace();
-        }
-      } finally {
-        // Release selection key - ready for the next request
-        release(key);
-        nextKey.set(null);
-        // set busy flag to false
-        busy = false;
+        e.printStackTrace();
       }
     }
+    try {
+      selector.keys().forEach(x -> ((ConnectionContext) x.attachment()).close(x));
+      selector.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
   }
   
-  private boolean requestIsComplete(ByteBuffer in) {
-    return Utils.requestIsComplete(in);
+  /**
+   * Process incoming requests and pending replies of a connection
+   * @param key selection key for a socket channel
+   */
+  private void processRequest(SelectionKey key) {
+    ConnectionContext ctx = (ConnectionContext) key.attachment();
+    int processed = ctx.process(key, store);
+    if (processed > 0) {
+      requests += processed;
+    }
+    if (!key.isValid()) {
+      connections.decrementAndGet();
+    }
   }
   
+  /**
+   * Resumes blocked client: its keys were signaled or timeout expired
+   * @param w waiter
+   */
+  private void resume(Waiter w) {
+    SelectionKey key = w.key;
+    if (!key.isValid()) {
+      return;
+    }
+    ConnectionContext ctx = (ConnectionContext) key.attachment();
+    int processed = ctx.resume(key, store);
+    if (processed > 0) {
+      requests += processed;
+    }
+    if (!key.isValid()) {
+      connections.decrementAndGet();
+    }
+  }
+
 }
@@ -0,0 +1,251 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * 
+ * Slow log, modeled on Redis SLOWLOG. Keeps the last N commands, which execution time
+ * exceeded configured threshold. Configuration:
+ * 
+ * slowlog.log.slower.than - threshold in microseconds, negative value disables slow log, 
+ *   0 - logs every command
+ * slowlog.max.len - maximum number of entries to keep
+ * slowlog.sample.rate - only one of N commands is checked (1 - every command is checked)
+ * 
+ * When disabled, slow log does not allocate any objects.
+ *
+ */
+public class SlowLog {
+  
+  /*
+   * Maximum number of arguments to keep
+   */
+  final static int MAX_ARGS = 32;
+  
+  /*
+   * Maximum argument's length to keep
+   */
+  final static int MAX_ARG_LENGTH = 128;
+  
+  /**
+   * Slow log entry
+   */
+  public static class Entry {
+    private final long id;
+    private final long timestamp;
+    private final long duration;
+    private final byte[][] args;
+    
+    Entry(long id, long timestamp, long duration, byte[][] args) {
+      this.id = id;
+      this.timestamp = timestamp;
+      this.duration = duration;
+      this.args = args;
+    }
+    
+    /**
+     * Unique id of an entry
+     * @return id
+     */
+    public long getId() {
+      return id;
+    }
+    
+    /**
+     * Time the command was executed at
+     * @return unix time in seconds
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+    
+    /**
+     * Command's execution time
+     * @return execution time in microseconds
+     */
+    public long getDuration() {
+      return duration;
+    }
+    
+    /**
+     * Command's arguments (including command name)
+     * @return arguments
+     */
+    public byte[][] getArgs() {
+      return args;
+    }
+  }
+  
+  private static volatile long thresholdNanos;
+  
+  private static volatile int maxLength;
+  
+  private static volatile int sampleRate;
+  
+  private static long nextId = 0;
+  
+  private static ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+  
+  static {
+    RedisConf conf = RedisConf.getInstance();
+    setThreshold(conf.getSlowLogThreshold());
+    setMaxLength(conf.getSlowLogMaxLength());
+    setSampleRate(conf.getSlowLogSampleRate());
+  }
+  
+  private SlowLog() {
+  }
+  
+  /**
+   * Sets slow log threshold
+   * @param micros threshold in microseconds, negative value disables slow log
+   */
+  public static void setThreshold(long micros) {
+    thresholdNanos = micros < 0? -1: micros * 1000;
+  }
+  
+  /**
+   * Sets maximum slow log length
+   * @param max maximum length
+   */
+  public static synchronized void setMaxLength(int max) {
+    maxLength = Math.max(0, max);
+    while (entries.size() > maxLength) {
+      entries.pollLast();
+    }
+  }
+  
+  /**
+   * Sets sample rate
+   * @param rate one of rate commands is checked
+   */
+  public static void setSampleRate(int rate) {
+    sampleRate = Math.max(1, rate);
+  }
+  
+  /**
+   * Is slow log enabled
+   * @return true, if enabled
+   */
+  public static boolean isEnabled() {
+    return thresholdNanos >= 0 && maxLength > 0;
+  }
+  
+  /**
+   * Must the current command be checked against slow log threshold
+   * @return true - yes, false - otherwise
+   */
+  public static boolean isSampled() {
+    if (!isEnabled()) {
+      return false;
+    }
+    int rate = sampleRate;
+    return rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0;
+  }
+  
+  /**
+   * Logs command if it is slow
+   * @param inbuf request in a Carrot format
+   * @param duration command's execution time in nanoseconds
+   */
+  public static void log(long inbuf, long duration) {
+    long threshold = thresholdNanos;
+    if (threshold < 0 || duration < threshold) {
+      return;
+    }
+    byte[][] args = copyArgs(inbuf);
+    long timestamp = System.currentTimeMillis() / 1000;
+    synchronized (SlowLog.class) {
+      if (maxLength == 0) {
+        return;
+      }
+      entries.addFirst(new Entry(nextId++, timestamp, duration / 1000, args));
+      while (entries.size() > maxLength) {
+        entries.pollLast();
+      }
+    }
+  }
+  
+  /**
+   * Copies (possibly truncated) request arguments
+   * @param ptr request in a Carrot format
+   * @return arguments
+   */
+  private static byte[][] copyArgs(long ptr) {
+    int numArgs = UnsafeAccess.toInt(ptr);
+    ptr += Utils.SIZEOF_INT;
+    int num = Math.min(numArgs, MAX_ARGS);
+    byte[][] args = new byte[num][];
+    for (int i = 0; i < num; i++) {
+      int size = UnsafeAccess.toInt(ptr);
+      ptr += Utils.SIZEOF_INT;
+      if (i == MAX_ARGS - 1 && numArgs > MAX_ARGS) {
+        args[i] = ("... (" + (numArgs - MAX_ARGS + 1) + " more arguments)").getBytes();
+        break;
+      }
+      if (size <= MAX_ARG_LENGTH) {
+        args[i] = new byte[size];
+        UnsafeAccess.copy(ptr, args[i], 0, size);
+      } else {
+        byte[] suffix = ("... (" + (size - MAX_ARG_LENGTH) + " more bytes)").getBytes();
+        args[i] = new byte[MAX_ARG_LENGTH + suffix.length];
+        UnsafeAccess.copy(ptr, args[i], 0, MAX_ARG_LENGTH);
+        System.arraycopy(suffix, 0, args[i], MAX_ARG_LENGTH, suffix.length);
+      }
+      ptr += size;
+    }
+    return args;
+  }
+  
+  /**
+   * Get most recent entries
+   * @param count maximum number of entries to return, negative - all entries
+   * @return entries, the most recent first
+   */
+  public static synchronized Entry[] get(int count) {
+    int n = count < 0? entries.size(): Math.min(count, entries.size());
+    Entry[] result = new Entry[n];
+    Iterator<Entry> it = entries.iterator();
+    for (int i = 0; i < n; i++) {
+      result[i] = it.next();
+    }
+    return result;
+  }
+  
+  /**
+   * Get slow log length
+   * @return length
+   */
+  public static synchronized int length() {
+    return entries.size();
+  }
+  
+  /**
+   * Resets slow log
+   */
+  public static synchronized void reset() {
+    entries.clear();
+  }
+}
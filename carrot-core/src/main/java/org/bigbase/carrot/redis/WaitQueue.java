@@ -0,0 +1,153 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+import org.bigbase.carrot.BigSortedMap;
+
+/**
+ * 
+ * Blocked clients of an event loop: waiters, which have been signaled by other threads, 
+ * and timers of waiters with a timeout. All methods, except wakeup(), are called 
+ * by the event loop thread only.
+ *
+ */
+class WaitQueue {
+  
+  /*
+   * Event loop's selector
+   */
+  private final Selector selector;
+  
+  /*
+   * Signaled waiters
+   */
+  private final ConcurrentLinkedQueue<Waiter> signaled = new ConcurrentLinkedQueue<Waiter>();
+  
+  /*
+   * Waiters with a timeout ordered by deadline
+   */
+  private final PriorityQueue<Waiter> timers = 
+      new PriorityQueue<Waiter>((x, y) -> Long.compare(x.deadline, y.deadline));
+  
+  WaitQueue(Selector selector) {
+    this.selector = selector;
+  }
+  
+  /**
+   * Creates new waiter for a connection
+   * @param store data store
+   * @param key connection's selection key
+   * @return waiter
+   */
+  Waiter newWaiter(BigSortedMap store, SelectionKey key) {
+    return new Waiter(store, key, this);
+  }
+  
+  /**
+   * Parks blocked client until its keys are signaled or timeout expires
+   * @param w waiter
+   */
+  void park(Waiter w) {
+    BlockedClients.register(w);
+    if (w.deadline > 0 && !timers.contains(w)) {
+      timers.add(w);
+    }
+    if (BlockedClients.getVersion() != w.version && BlockedClients.unregister(w)) {
+      // Some key has been signaled since the command was executed, 
+      // it could be ours - retry
+      w.first = true;
+      wakeup(w);
+    }
+  }
+  
+  /**
+   * Called by a signaling thread
+   * @param w waiter
+   */
+  void wakeup(Waiter w) {
+    signaled.offer(w);
+    selector.wakeup();
+  }
+  
+  /**
+   * Removes waiter of a closed connection
+   * @param w waiter
+   */
+  void cancel(Waiter w) {
+    timers.remove(w);
+    if (!BlockedClients.unregister(w) && w.signaledKey != null) {
+      // Pass the signal to the next waiter
+      BlockedClients.signal(w.store, w.signaledKey);
+    }
+    w.reset();
+  }
+  
+  /**
+   * Get select() timeout
+   * @return time to the nearest deadline in ms, 0 - no deadlines
+   */
+  long getSelectTimeout() {
+    Waiter w = timers.peek();
+    if (w == null) {
+      return 0;
+    }
+    return Math.max(1, w.deadline - System.currentTimeMillis());
+  }
+  
+  /**
+   * Get number of parked waiters with timers
+   * @return number of waiters
+   */
+  int size() {
+    return timers.size();
+  }
+  
+  /**
+   * Resumes signaled and expired waiters
+   * @param resume action, which processes blocked request again
+   */
+  void poll(Consumer<Waiter> resume) {
+    Waiter w;
+    while ((w = signaled.poll()) != null) {
+      timers.remove(w);
+      if (!w.blocked) {
+        // Connection has been closed
+        continue;
+      }
+      w.blocked = false;
+      resume.accept(w);
+    }
+    long now = System.currentTimeMillis();
+    while ((w = timers.peek()) != null && w.deadline <= now) {
+      timers.poll();
+      // If waiter has been signaled concurrently, it will be resumed 
+      // from the signaled queue
+      if (BlockedClients.unregister(w)) {
+        w.expired = true;
+        w.blocked = false;
+        resume.accept(w);
+      }
+    }
+  }
+}
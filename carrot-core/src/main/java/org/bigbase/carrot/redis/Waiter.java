@@ -0,0 +1,216 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import java.nio.channels.SelectionKey;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * 
+ * Blocking state of a client connection. Connection is blocked when a blocking command
+ * (BLPOP, BRPOP, BLMOVE, BZPOPMIN, BZPOPMAX) has nothing to serve. Input buffer 
+ * is converted in place, therefore blocked request is copied (in a Carrot format) into 
+ * the waiter's native buffer. Waiter is registered in {@link BlockedClients} 
+ * and in the event loop's {@link WaitQueue} (for timeouts). 
+ *
+ */
+public class Waiter {
+  
+  /*
+   * Data store
+   */
+  final BigSortedMap store;
+  
+  /*
+   * Client's selection key
+   */
+  final SelectionKey key;
+  
+  /*
+   * Event loop's wait queue
+   */
+  final WaitQueue queue;
+  
+  /*
+   * Keys client waits on
+   */
+  byte[][] keys;
+  
+  /*
+   * Deadline in ms (0 - wait forever, -1 - not set yet)
+   */
+  long deadline = -1;
+  
+  /*
+   * Client is blocked
+   */
+  boolean blocked;
+  
+  /*
+   * Wait timed out, blocked request must be answered with NULL
+   */
+  boolean expired;
+  
+  /*
+   * Waiter is registered in BlockedClients (guarded by BlockedClients lock)
+   */
+  boolean registered;
+  
+  /*
+   * Waiter was signaled, but lost the race: it keeps its place at the head of queues
+   */
+  boolean first;
+  
+  /*
+   * Key, which waiter has been signaled on
+   */
+  byte[] signaledKey;
+  
+  /*
+   * BlockedClients version at the moment of the last execution of a blocked command
+   */
+  long version;
+  
+  /*
+   * Blocked request (Carrot format), 0 - no request
+   */
+  private long request;
+  
+  /*
+   * Request buffer
+   */
+  private long requestBuffer;
+  
+  /*
+   * Request buffer size
+   */
+  private int requestBufferSize;
+  
+  /**
+   * Constructor
+   * @param store data store
+   * @param key client's selection key
+   * @param queue event loop's wait queue
+   */
+  Waiter(BigSortedMap store, SelectionKey key, WaitQueue queue) {
+    this.store = store;
+    this.key = key;
+    this.queue = queue;
+  }
+  
+  /**
+   * Is client blocked
+   * @return true, false
+   */
+  public boolean isBlocked() {
+    return blocked;
+  }
+  
+  /**
+   * Has wait timed out
+   * @return true, false
+   */
+  public boolean isExpired() {
+    return expired;
+  }
+  
+  /**
+   * Has blocked request
+   * @return true, false
+   */
+  boolean hasRequest() {
+    return request != 0;
+  }
+  
+  /**
+   * Get blocked request
+   * @return request address, 0 - no request
+   */
+  long getRequest() {
+    return request;
+  }
+  
+  /**
+   * Saves copy of a blocked request
+   * @param ptr request address (Carrot format)
+   */
+  void saveRequest(long ptr) {
+    int numArgs = UnsafeAccess.toInt(ptr);
+    long p = ptr + Utils.SIZEOF_INT;
+    for (int i = 0; i < numArgs; i++) {
+      p += Utils.SIZEOF_INT + UnsafeAccess.toInt(p);
+    }
+    int size = (int) (p - ptr);
+    if (size > requestBufferSize) {
+      if (requestBuffer != 0) {
+        UnsafeAccess.free(requestBuffer);
+      }
+      requestBuffer = UnsafeAccess.malloc(size);
+      requestBufferSize = size;
+    }
+    UnsafeAccess.copy(ptr, requestBuffer, size);
+    request = requestBuffer;
+  }
+  
+  /**
+   * Releases request buffer (connection is closed)
+   */
+  void free() {
+    if (requestBuffer != 0) {
+      UnsafeAccess.free(requestBuffer);
+    }
+    requestBuffer = 0;
+    requestBufferSize = 0;
+    request = 0;
+  }
+  
+  /**
+   * Blocks client
+   * @param keys keys to wait on
+   * @param timeout timeout in ms (0 - forever)
+   */
+  void block(byte[][] keys, long timeout) {
+    this.keys = keys;
+    if (signaledKey != null) {
+      // Lost the race for a signaled key - keep the place in queues
+      first = true;
+      signaledKey = null;
+    }
+    if (deadline < 0) {
+      // First attempt, later attempts keep original deadline
+      deadline = timeout == 0? 0: System.currentTimeMillis() + timeout;
+    }
+    blocked = true;
+  }
+  
+  /**
+   * Resets waiter after blocked request has been served
+   */
+  void reset() {
+    keys = null;
+    deadline = -1;
+    blocked = false;
+    expired = false;
+    first = false;
+    signaledKey = null;
+    request = 0;
+  }
+}
@@ -0,0 +1,713 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.commands.RedisCommand;
+import org.bigbase.carrot.redis.commands.RedisCommand.ReplyType;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * Write - ahead log of a data store. 
+ * 
+ * Every successfully executed mutation is appended by the command layer as a request 
+ * in a Carrot internal format: [4 size][4 CRC32][request]. Records are collected in a 
+ * staging buffer and are written to the current log segment once per pipeline batch 
+ * (commit()). Group commit: when fsync policy is 'always', the thread which commits 
+ * first forces the file on behalf of all threads whose records were written before, 
+ * other threads wait for it and return without their own force() call. 
+ * 
+ * Fsync policies:
+ * 
+ * 1. always   - commit() returns after records are on disk (replies are sent after that) 
+ * 2. everysec - background thread forces log once per second (up to 1 sec of data 
+ *               can be lost on power failure, nothing - on a process crash)
+ * 3. no       - log is forced only on segment rotation, sync() and close() 
+ * 
+ * Log consists of segments wal-NNNNNNNNNNNNNNNN.log, new segment is started when 
+ * the current one gets larger than server.wal.segment.size and on every snapshot. 
+ * Snapshot is point - in - time: the segment is rotated at the snapshot's epoch, when no 
+ * write command is in progress, so a snapshot contains exactly the mutations logged 
+ * into older segments. Segments, which were started before a successful snapshot, 
+ * are deleted (truncate()). On load all segments are replayed on top of the last 
+ * snapshot, replay of a segment stops at the first incomplete or corrupted record 
+ * (torn tail after a crash).
+ * 
+ * Limitations: 
+ * 
+ * 1. Relative expiration times (EXPIRE, SET EX, ...) are counted from replay time
+ */
+public class WriteAheadLog implements Runnable {
+  
+  public static enum FsyncPolicy {
+    ALWAYS, EVERYSEC, NO;
+    
+    public static FsyncPolicy fromString(String value) {
+      return valueOf(value.trim().toUpperCase());
+    }
+  }
+  
+  final static String SEGMENT_PREFIX = "wal-";
+  final static String SEGMENT_SUFFIX = ".log";
+  
+  /*
+   * Record header: size + checksum
+   */
+  final static int HEADER_SIZE = 2 * Utils.SIZEOF_INT;
+  
+  /*
+   * Output buffer size for replayed commands
+   */
+  private final static int REPLAY_BUFFER_SIZE = 1024 * 1024;
+  
+  private final static byte[] SREM = "SREM".getBytes();
+  
+  private final File dir;
+  
+  private final FsyncPolicy policy;
+  
+  private final long segmentSize;
+  
+  /*
+   * Staging buffer (guarded by this)
+   */
+  private ByteBuffer buffer;
+  private long bufferAddress;
+  
+  /*
+   * Current segment (guarded by this)
+   */
+  private volatile FileChannel channel;
+  private long segmentId;
+  private long segmentLength;
+  
+  /*
+   * Segments which existed when the log was opened (to be replayed)
+   */
+  private long[] replaySegments;
+  
+  private final CRC32 crc = new CRC32();
+  
+  /*
+   * Scratch memory for rewritten requests (guarded by this)
+   */
+  private long scratch;
+  private int scratchSize;
+  
+  /*
+   * Log sequence numbers (total bytes): appended, written to a file and forced to disk
+   */
+  private volatile long appended;
+  private volatile long written;
+  private volatile long synced;
+  
+  /*
+   * Only one thread forces the log at a time
+   */
+  private final Object syncLock = new Object();
+  
+  private Thread syncer;
+  
+  private volatile boolean closed;
+  
+  /*
+   * Statistics
+   */
+  private volatile long records;
+  private volatile long syncs;
+  private volatile long commits;
+  private volatile long rotations;
+  private volatile long errors;
+  
+  /**
+   * Constructor with parameters from configuration
+   * @param dir log directory
+   * @throws IOException
+   */
+  public WriteAheadLog(String dir) throws IOException {
+    this(dir, RedisConf.getInstance().getWALFsyncPolicy(), 
+      RedisConf.getInstance().getWALSegmentSize(), RedisConf.getInstance().getWALBufferSize());
+  }
+  
+  /**
+   * Constructor
+   * @param dir log directory
+   * @param policy fsync policy
+   * @param segmentSize maximum segment size
+   * @param bufferSize staging buffer size
+   * @throws IOException
+   */
+  public WriteAheadLog(String dir, FsyncPolicy policy, long segmentSize, int bufferSize) 
+      throws IOException {
+    this.dir = new File(dir);
+    this.policy = policy;
+    this.segmentSize = segmentSize;
+    if (!this.dir.exists() && !this.dir.mkdirs()) {
+      throw new IOException("Can not create WAL directory: " + this.dir.getAbsolutePath());
+    }
+    this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    this.bufferAddress = UnsafeAccess.address(buffer);
+    this.replaySegments = listSegments();
+    long last = replaySegments.length > 0? replaySegments[replaySegments.length - 1]: 0;
+    openSegment(last + 1);
+    if (policy == FsyncPolicy.EVERYSEC) {
+      syncer = new Thread(this, "carrot-wal-sync");
+      syncer.setDaemon(true);
+      syncer.start();
+    }
+  }
+  
+  /**
+   * Get fsync policy
+   * @return policy
+   */
+  public FsyncPolicy getFsyncPolicy() {
+    return policy;
+  }
+  
+  /**
+   * Get current segment id
+   * @return segment id
+   */
+  public synchronized long getSegmentId() {
+    return segmentId;
+  }
+  
+  /**
+   * Get log sequence number of the last appended record
+   * @return total number of appended bytes
+   */
+  public long getAppendedLSN() {
+    return appended;
+  }
+  
+  /**
+   * Get log sequence number, up to which log is forced to disk
+   * @return total number of forced bytes
+   */
+  public long getSyncedLSN() {
+    return synced;
+  }
+  
+  /**
+   * Get total number of appended records
+   * @return number of records
+   */
+  public long getRecordCount() {
+    return records;
+  }
+  
+  /**
+   * Get total number of force() calls
+   * @return number of syncs
+   */
+  public long getSyncCount() {
+    return syncs;
+  }
+  
+  @Override
+  public void run() {
+    while (!closed) {
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException e) {
+        // close() was called
+        continue;
+      }
+      sync();
+    }
+  }
+  
+  /**
+   * Appends request of an executed command 
+   * @param cmd command
+   * @param request request in a Carrot internal format
+   * @param reply command's reply
+   */
+  public void append(RedisCommand cmd, long request, long reply) {
+    int type = UnsafeAccess.toByte(reply);
+    if (type == ReplyType.ERROR.ordinal()) {
+      // Failed commands do not change data
+      return;
+    }
+    if (cmd instanceof org.bigbase.carrot.redis.commands.SPOP) {
+      // Random members are popped: replay must remove the same ones
+      appendPoppedMembers(request, reply);
+    } else {
+      append(request, requestSize(request));
+    }
+  }
+  
+  /**
+   * Appends request in a Carrot internal format
+   * @param ptr request address
+   * @param size request size
+   * @return log sequence number of the record
+   */
+  public synchronized long append(long ptr, int size) {
+    if (closed) {
+      return appended;
+    }
+    try {
+      int required = size + HEADER_SIZE;
+      if (buffer.remaining() < required) {
+        flushBuffer();
+        if (buffer.capacity() < required) {
+          buffer = ByteBuffer.allocateDirect(required);
+          bufferAddress = UnsafeAccess.address(buffer);
+        }
+      }
+      int pos = buffer.position();
+      long addr = bufferAddress + pos + HEADER_SIZE;
+      UnsafeAccess.copy(ptr, addr, size);
+      ByteBuffer data = buffer.duplicate();
+      data.limit(pos + required);
+      data.position(pos + HEADER_SIZE);
+      crc.reset();
+      crc.update(data);
+      buffer.putInt(size);
+      buffer.putInt((int) crc.getValue());
+      buffer.position(pos + required);
+      appended += required;
+      records++;
+      if (segmentLength + buffer.position() >= segmentSize) {
+        nextSegment();
+      }
+    } catch (IOException e) {
+      error(e);
+    }
+    return appended;
+  }
+  
+  /**
+   * Commits appended records: writes them to the log and forces log to disk, 
+   * if fsync policy is 'always'
+   */
+  public void commit() {
+    if (policy == FsyncPolicy.ALWAYS) {
+      sync(appended);
+      return;
+    }
+    if (written == appended) {
+      return;
+    }
+    synchronized (this) {
+      try {
+        flushBuffer();
+        commits++;
+      } catch (IOException e) {
+        error(e);
+      }
+    }
+  }
+  
+  /**
+   * Writes all appended records and forces log to disk regardless of fsync policy
+   */
+  public void sync() {
+    sync(appended);
+  }
+  
+  /**
+   * Group commit: forces log up to a given log sequence number, unless 
+   * another thread has done that already
+   * @param lsn log sequence number
+   */
+  private void sync(long lsn) {
+    if (synced >= lsn) {
+      return;
+    }
+    synchronized (syncLock) {
+      if (synced >= lsn) {
+        // Forced by another thread
+        return;
+      }
+      long target;
+      FileChannel fc;
+      synchronized (this) {
+        try {
+          flushBuffer();
+        } catch (IOException e) {
+          error(e);
+          return;
+        }
+        commits++;
+        target = written;
+        fc = channel;
+      }
+      // New records are appended concurrently
+      try {
+        fc.force(false);
+        syncs++;
+      } catch (ClosedChannelException e) {
+        // Segment was rotated, rotation forces it
+      } catch (IOException e) {
+        error(e);
+        return;
+      }
+      synced = target;
+    }
+  }
+  
+  /**
+   * Starts new log segment. Called before a snapshot
+   * @return new segment id
+   */
+  public synchronized long roll() {
+    try {
+      nextSegment();
+    } catch (IOException e) {
+      error(e);
+    }
+    return segmentId;
+  }
+  
+  /**
+   * Deletes log segments, which were started before a given one. Called after 
+   * successful snapshot 
+   * @param id segment id (returned by roll())
+   * @return number of deleted segments
+   */
+  public int truncate(long id) {
+    int deleted = 0;
+    for (long seg: listSegments()) {
+      if (seg >= id) {
+        break;
+      }
+      if (getSegmentFile(seg).delete()) {
+        deleted++;
+      } else {
+        System.err.println("WARNING! Can not delete WAL segment: " + 
+          getSegmentFile(seg).getAbsolutePath());
+      }
+    }
+    return deleted;
+  }
+  
+  /**
+   * Replays log segments, which existed when the log was opened. Must be called 
+   * before log is attached to a store
+   * @param map data store
+   * @return number of replayed records
+   */
+  public long replay(BigSortedMap map) {
+    long count = 0;
+    if (replaySegments.length == 0) {
+      return count;
+    }
+    long start = System.currentTimeMillis();
+    long outbuf = UnsafeAccess.malloc(REPLAY_BUFFER_SIZE);
+    try {
+      for (long seg: replaySegments) {
+        count += replaySegment(map, getSegmentFile(seg), outbuf);
+      }
+    } finally {
+      UnsafeAccess.free(outbuf);
+    }
+    replaySegments = new long[0];
+    long end = System.currentTimeMillis();
+    System.out.println("Replayed " + count + " WAL records from: " + dir.getAbsolutePath() + 
+      " in " + (end - start) + "ms");
+    return count;
+  }
+  
+  private long replaySegment(BigSortedMap map, File file, long outbuf) {
+    long count = 0;
+    long pos = 0;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      FileChannel fc = raf.getChannel();
+      long length = fc.size();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      ByteBuffer data = ByteBuffer.allocateDirect(64 * 1024);
+      CRC32 crc = new CRC32();
+      while (pos < length) {
+        header.clear();
+        if (!readFully(fc, header, pos)) {
+          break;
+        }
+        header.flip();
+        int size = header.getInt();
+        int checksum = header.getInt();
+        if (size <= 0 || pos + HEADER_SIZE + size > length) {
+          break;
+        }
+        if (data.capacity() < size) {
+          data = ByteBuffer.allocateDirect(size);
+        }
+        data.clear();
+        data.limit(size);
+        readFully(fc, data, pos + HEADER_SIZE);
+        data.flip();
+        crc.reset();
+        crc.update(data);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+        execute(map, UnsafeAccess.address(data), outbuf);
+        pos += HEADER_SIZE + size;
+        count++;
+      }
+      if (pos < length) {
+        System.err.println("WARNING! WAL segment " + file.getAbsolutePath() + 
+          " has incomplete or corrupted record at offset " + pos + ", truncated");
+        fc.truncate(pos);
+      }
+    } catch (IOException e) {
+      System.err.println("WAL replay failed. Can not read segment: " + file.getAbsolutePath());
+      e.printStackTrace();
+    }
+    return count;
+  }
+  
+  private boolean readFully(FileChannel fc, ByteBuffer buf, long pos) throws IOException {
+    while (buf.hasRemaining()) {
+      int n = fc.read(buf, pos);
+      if (n < 0) {
+        return false;
+      }
+      pos += n;
+    }
+    return true;
+  }
+  
+  private void execute(BigSortedMap map, long request, long outbuf) {
+    int len = UnsafeAccess.toInt(request + Utils.SIZEOF_INT);
+    int index = CommandTable.lookup(request + 2 * Utils.SIZEOF_INT, len);
+    if (index < 0) {
+      System.err.println("WARNING! Unknown WAL command: " + 
+          Utils.toString(request + 2 * Utils.SIZEOF_INT, len));
+      return;
+    }
+    CommandTable.getCommand(index).executeCommand(map, request, outbuf, REPLAY_BUFFER_SIZE);
+  }
+  
+  /**
+   * Writes remaining records, forces and closes the log
+   */
+  public void close() {
+    sync();
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        channel.force(false);
+        channel.close();
+      } catch (IOException e) {
+        error(e);
+      }
+      if (scratch != 0) {
+        UnsafeAccess.free(scratch);
+        scratch = 0;
+      }
+    }
+    if (syncer != null) {
+      syncer.interrupt();
+      try {
+        syncer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      syncer = null;
+    }
+  }
+  
+  /**
+   * Get log statistics (for INFO command)
+   * @return statistics
+   */
+  public List<String> getStats() {
+    List<String> stats = new ArrayList<String>();
+    stats.add("wal_enabled:1");
+    stats.add("wal_fsync:" + policy.name().toLowerCase());
+    stats.add("wal_current_segment:" + segmentId);
+    stats.add("wal_records:" + records);
+    stats.add("wal_bytes:" + appended);
+    stats.add("wal_commits:" + commits);
+    stats.add("wal_syncs:" + syncs);
+    stats.add("wal_rotations:" + rotations);
+    stats.add("wal_errors:" + errors);
+    return stats;
+  }
+  
+  /**
+   * SPOP is logged as SREM of popped members
+   * @param request SPOP request
+   * @param reply SPOP reply (BULK_STRING or VARRAY)
+   */
+  private void appendPoppedMembers(long request, long reply) {
+    int type = UnsafeAccess.toByte(reply);
+    int count;
+    long ptr;
+    if (type == ReplyType.BULK_STRING.ordinal()) {
+      count = UnsafeAccess.toInt(reply + Utils.SIZEOF_BYTE) < 0? 0: 1;
+      ptr = reply + Utils.SIZEOF_BYTE;
+    } else if (type == ReplyType.VARRAY.ordinal()) {
+      count = UnsafeAccess.toInt(reply + Utils.SIZEOF_BYTE + Utils.SIZEOF_INT);
+      ptr = reply + Utils.SIZEOF_BYTE + 2 * Utils.SIZEOF_INT;
+    } else {
+      return;
+    }
+    if (count == 0) {
+      return;
+    }
+    // Key follows command name
+    long keyPtr = request + Utils.SIZEOF_INT;
+    keyPtr += Utils.SIZEOF_INT + UnsafeAccess.toInt(keyPtr);
+    int keySize = UnsafeAccess.toInt(keyPtr) + Utils.SIZEOF_INT;
+    synchronized (this) {
+      int size = 2 * Utils.SIZEOF_INT + SREM.length + keySize;
+      ensureScratch(size);
+      UnsafeAccess.putInt(scratch, count + 2);
+      UnsafeAccess.putInt(scratch + Utils.SIZEOF_INT, SREM.length);
+      UnsafeAccess.copy(SREM, 0, scratch + 2 * Utils.SIZEOF_INT, SREM.length);
+      UnsafeAccess.copy(keyPtr, scratch + size - keySize, keySize);
+      for (int i = 0; i < count; i++) {
+        int len;
+        if (type == ReplyType.BULK_STRING.ordinal()) {
+          len = UnsafeAccess.toInt(ptr);
+          ptr += Utils.SIZEOF_INT;
+        } else {
+          len = Utils.readUVInt(ptr);
+          ptr += Utils.sizeUVInt(len);
+        }
+        ensureScratch(size + Utils.SIZEOF_INT + len);
+        UnsafeAccess.putInt(scratch + size, len);
+        UnsafeAccess.copy(ptr, scratch + size + Utils.SIZEOF_INT, len);
+        size += Utils.SIZEOF_INT + len;
+        ptr += len;
+      }
+      append(scratch, size);
+    }
+  }
+  
+  private void ensureScratch(int size) {
+    if (scratchSize >= size) {
+      return;
+    }
+    int newSize = Math.max(size, 2 * scratchSize);
+    scratch = scratch == 0? UnsafeAccess.malloc(newSize): UnsafeAccess.realloc(scratch, newSize);
+    scratchSize = newSize;
+  }
+  
+  /**
+   * Get size of a request in a Carrot internal format
+   * @param ptr request address
+   * @return size
+   */
+  static int requestSize(long ptr) {
+    int numArgs = UnsafeAccess.toInt(ptr);
+    long p = ptr + Utils.SIZEOF_INT;
+    for (int i = 0; i < numArgs; i++) {
+      p += Utils.SIZEOF_INT + UnsafeAccess.toInt(p);
+    }
+    return (int) (p - ptr);
+  }
+  
+  /**
+   * Writes staging buffer to the current segment (under lock)
+   * @throws IOException
+   */
+  private void flushBuffer() throws IOException {
+    if (buffer.position() == 0) {
+      return;
+    }
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      segmentLength += channel.write(buffer);
+    }
+    buffer.clear();
+    written = appended;
+  }
+  
+  /**
+   * Closes current segment and starts the next one (under lock)
+   * @throws IOException
+   */
+  private void nextSegment() throws IOException {
+    flushBuffer();
+    FileChannel old = channel;
+    if (policy != FsyncPolicy.NO || closed) {
+      old.force(false);
+    }
+    synced = written;
+    old.close();
+    openSegment(segmentId + 1);
+    rotations++;
+  }
+  
+  @SuppressWarnings("resource")
+  private void openSegment(long id) throws IOException {
+    File file = getSegmentFile(id);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(0);
+    this.channel = raf.getChannel();
+    this.segmentId = id;
+    this.segmentLength = 0;
+  }
+  
+  private File getSegmentFile(long id) {
+    return new File(dir, String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+  }
+  
+  /**
+   * Get ids of all existing segments
+   * @return sorted segment ids
+   */
+  private long[] listSegments() {
+    String[] names = dir.list();
+    if (names == null) {
+      return new long[0];
+    }
+    long[] ids = new long[names.length];
+    int count = 0;
+    for (String name: names) {
+      if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+        continue;
+      }
+      try {
+        ids[count++] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), 
+          name.length() - SEGMENT_SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        count--;
+      }
+    }
+    ids = Arrays.copyOf(ids, count);
+    Arrays.sort(ids);
+    return ids;
+  }
+  
+  private void error(IOException e) {
+    errors++;
+    System.err.println("WAL write failed: " + e.getMessage());
+    e.printStackTrace();
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis.commands;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.BlockedClients;
+import org.bigbase.carrot.redis.lists.Lists;
+import org.bigbase.carrot.redis.lists.Lists.Side;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * BLMOVE source destination LEFT|RIGHT LEFT|RIGHT timeout
+ */
+public class BLMOVE implements BlockingCommand {
+
+  private boolean blocked;
+  private long srcKeyPtr;
+  private int srcKeySize;
+  private long timeout;
+
+
+  @Override
+  public void execute(BigSortedMap map, long inDataPtr, long outBufferPtr, int outBufferSize) {
+    blocked = false;
+    int numArgs = UnsafeAccess.toInt(inDataPtr);
+    if (numArgs != 6) {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_ARGS_NUMBER);
+      return;
+    }
+    inDataPtr += Utils.SIZEOF_INT;
+    // skip command name
+    inDataPtr = skip(inDataPtr, 1);
+    // read src key
+    srcKeySize = UnsafeAccess.toInt(inDataPtr);
+    inDataPtr += Utils.SIZEOF_INT;
+    srcKeyPtr = inDataPtr;
+    inDataPtr += srcKeySize;
+    
+    // read dst key
+    int dstKeySize = UnsafeAccess.toInt(inDataPtr);
+    inDataPtr += Utils.SIZEOF_INT;
+    long dstKeyPtr = inDataPtr;
+    inDataPtr += dstKeySize;
+    
+    // src LEFT | RIGHT
+    Side srcSide = Side.LEFT;
+    // dst LEFT | RIGHT
+    Side dstSide = Side.LEFT;
+    
+    int flagSize = UnsafeAccess.toInt(inDataPtr);
+    inDataPtr += Utils.SIZEOF_INT;
+    long flagPtr = inDataPtr;
+    inDataPtr += flagSize;
+    
+    if (Utils.compareTo(LEFT_FLAG, LEFT_LENGTH, flagPtr, flagSize) == 0 ||
+        Utils.compareTo(LEFT_FLAG_LOWER, LEFT_LENGTH, flagPtr, flagSize) == 0) {
+      srcSide = Side.LEFT;
+    } else if (Utils.compareTo(RIGHT_FLAG, RIGHT_LENGTH, flagPtr, flagSize) == 0 ||
+        Utils.compareTo(RIGHT_FLAG_LOWER, RIGHT_LENGTH, flagPtr, flagSize) == 0) { 
+      srcSide = Side.RIGHT;
+    } else {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_COMMAND_FORMAT,
+        ": " + Utils.toString(flagPtr, flagSize));
+      return;
+    }
+    
+    flagSize = UnsafeAccess.toInt(inDataPtr);
+    inDataPtr += Utils.SIZEOF_INT;
+    flagPtr = inDataPtr;
+    inDataPtr += flagSize;
+    
+    if (Utils.compareTo(LEFT_FLAG, LEFT_LENGTH, flagPtr, flagSize) == 0 ||
+        Utils.compareTo(LEFT_FLAG_LOWER, LEFT_LENGTH, flagPtr, flagSize) == 0) {
+      dstSide = Side.LEFT;
+    } else if (Utils.compareTo(RIGHT_FLAG, RIGHT_LENGTH, flagPtr, flagSize) == 0 ||
+        Utils.compareTo(RIGHT_FLAG_LOWER, RIGHT_LENGTH, flagPtr, flagSize) == 0) { 
+      dstSide = Side.RIGHT;
+    } else {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_COMMAND_FORMAT, 
+        ": "+ Utils.toString(flagPtr, flagSize));
+      return;
+    }
+    
+    try {
+      timeout = BlockingCommand.readTimeout(inDataPtr);
+    } catch (NumberFormatException e) {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_NUMBER_FORMAT);
+      return;
+    }
+    if (timeout < 0) {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_TIMEOUT_NEGATIVE);
+      return;
+    }
+    
+    int off = Utils.SIZEOF_BYTE + Utils.SIZEOF_INT;
+    int size = (int) Lists.BLMOVE(map, srcKeyPtr, srcKeySize, dstKeyPtr, dstKeySize, srcSide, 
+      dstSide, timeout, outBufferPtr + off, outBufferSize - off);
+    if (size < 0) {
+      blocked = true;
+      NULL_STRING_REPLY(outBufferPtr);
+      return;
+    }
+    UnsafeAccess.putByte(outBufferPtr, (byte) ReplyType.BULK_STRING.ordinal());
+    UnsafeAccess.putInt(outBufferPtr + Utils.SIZEOF_BYTE, size);
+    if (size <= outBufferSize - off) {
+      BlockedClients.signal(map, dstKeyPtr, dstKeySize);
+    }
+  }
+
+  @Override
+  public boolean isBlocked() {
+    return blocked;
+  }
+
+  @Override
+  public byte[][] getBlockingKeys() {
+    return BlockingCommand.copyKeys(new long[] {srcKeyPtr}, new int[] {srcKeySize});
+  }
+
+  @Override
+  public long getBlockingTimeout() {
+    return timeout;
+  }
+
+}
@@ -0,0 +1,109 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis.commands;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.lists.Lists;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * BRPOP key [key ...] timeout
+ */
+public class BRPOP implements BlockingCommand {
+
+  private boolean blocked;
+  private long[] keyPtrs;
+  private int[] keySizes;
+  private long timeout;
+  
+  @Override
+  public void execute(BigSortedMap map, long inDataPtr, long outBufferPtr, int outBufferSize) {
+    blocked = false;
+    int numArgs = UnsafeAccess.toInt(inDataPtr);
+    if (numArgs < 3) {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_ARGS_NUMBER);
+      return;
+    }
+    inDataPtr += Utils.SIZEOF_INT;
+    // skip command name
+    inDataPtr = skip(inDataPtr, 1);
+    keyPtrs = Utils.loadPointers(inDataPtr, numArgs - 2);
+    keySizes = Utils.loadSizes(inDataPtr, numArgs - 2);
+    inDataPtr = skip(inDataPtr, numArgs - 2);
+    try {
+      timeout = BlockingCommand.readTimeout(inDataPtr);
+    } catch (NumberFormatException e) {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_NUMBER_FORMAT);
+      return;
+    }
+    if (timeout < 0) {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_TIMEOUT_NEGATIVE);
+      return;
+    }
+    int maxKeySize = 0;
+    for (int size: keySizes) {
+      maxKeySize = Math.max(maxKeySize, size);
+    }
+    // Reply: [TYPE][SERIALIZED SIZE][COUNT][KEY SIZE][KEY][VALUE SIZE][VALUE]
+    int off = Utils.SIZEOF_BYTE + 2 * Utils.SIZEOF_INT;
+    // Lists.BRPOP writes key index followed by a value, leave space for the longest key
+    long dataPtr = outBufferPtr + off + Utils.SIZEOF_INT + maxKeySize;
+    int dataOff = (int) (dataPtr - outBufferPtr);
+    int size = (int) Lists.BRPOP(map, keyPtrs, keySizes, dataPtr, outBufferSize - dataOff);
+    if (size < 0) {
+      blocked = true;
+      NULL_ARRAY_REPLY(outBufferPtr);
+      return;
+    }
+    UnsafeAccess.putByte(outBufferPtr, (byte) ReplyType.ARRAY.ordinal());
+    if (size + dataOff > outBufferSize) {
+      // Buffer is too small
+      UnsafeAccess.putInt(outBufferPtr + Utils.SIZEOF_BYTE, size + dataOff);
+      return;
+    }
+    int index = UnsafeAccess.toInt(dataPtr);
+    int valueSize = size - Utils.SIZEOF_INT;
+    long ptr = outBufferPtr + off;
+    UnsafeAccess.putInt(ptr, keySizes[index]);
+    ptr += Utils.SIZEOF_INT;
+    UnsafeAccess.copy(keyPtrs[index], ptr, keySizes[index]);
+    ptr += keySizes[index];
+    UnsafeAccess.putInt(ptr, valueSize);
+    ptr += Utils.SIZEOF_INT;
+    UnsafeAccess.move(dataPtr + Utils.SIZEOF_INT, ptr, valueSize);
+    ptr += valueSize;
+    UnsafeAccess.putInt(outBufferPtr + Utils.SIZEOF_BYTE, (int)(ptr - outBufferPtr));
+    UnsafeAccess.putInt(outBufferPtr + Utils.SIZEOF_BYTE + Utils.SIZEOF_INT, 2);
+  }
+
+  @Override
+  public boolean isBlocked() {
+    return blocked;
+  }
+
+  @Override
+  public byte[][] getBlockingKeys() {
+    return BlockingCommand.copyKeys(keyPtrs, keySizes);
+  }
+
+  @Override
+  public long getBlockingTimeout() {
+    return timeout;
+  }
+}
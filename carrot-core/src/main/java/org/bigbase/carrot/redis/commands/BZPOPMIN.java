@@ -0,0 +1,126 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis.commands;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.zsets.ZSets;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * BZPOPMIN key [key ...] timeout
+ */
+public class BZPOPMIN implements BlockingCommand {
+
+  /*
+   * Maximum length of a score string representation
+   */
+  private final static int MAX_SCORE_LENGTH = 32;
+  
+  private boolean blocked;
+  private long[] keyPtrs;
+  private int[] keySizes;
+  private long timeout;
+  
+  @Override
+  public void execute(BigSortedMap map, long inDataPtr, long outBufferPtr, int outBufferSize) {
+    blocked = false;
+    int numArgs = UnsafeAccess.toInt(inDataPtr);
+    if (numArgs < 3) {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_ARGS_NUMBER);
+      return;
+    }
+    inDataPtr += Utils.SIZEOF_INT;
+    // skip command name
+    inDataPtr = skip(inDataPtr, 1);
+    keyPtrs = Utils.loadPointers(inDataPtr, numArgs - 2);
+    keySizes = Utils.loadSizes(inDataPtr, numArgs - 2);
+    inDataPtr = skip(inDataPtr, numArgs - 2);
+    try {
+      timeout = BlockingCommand.readTimeout(inDataPtr);
+    } catch (NumberFormatException e) {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_NUMBER_FORMAT);
+      return;
+    }
+    if (timeout < 0) {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_TIMEOUT_NEGATIVE);
+      return;
+    }
+    int maxKeySize = 0;
+    for (int size: keySizes) {
+      maxKeySize = Math.max(maxKeySize, size);
+    }
+    // Reply: [TYPE][SERIALIZED SIZE][COUNT][KEY SIZE][KEY][MEMBER SIZE][MEMBER][SCORE SIZE][SCORE]
+    int off = Utils.SIZEOF_BYTE + 2 * Utils.SIZEOF_INT;
+    // ZSets.BZPOPMIN writes key index followed by a ZPOPMIN response, 
+    // leave space for the longest key
+    long dataPtr = outBufferPtr + off + Utils.SIZEOF_INT + maxKeySize;
+    int dataOff = (int) (dataPtr - outBufferPtr);
+    int size = (int) ZSets.BZPOPMIN(map, keyPtrs, keySizes, timeout, dataPtr, 
+      outBufferSize - dataOff - MAX_SCORE_LENGTH);
+    if (size <= 0) {
+      blocked = true;
+      NULL_ARRAY_REPLY(outBufferPtr);
+      return;
+    }
+    UnsafeAccess.putByte(outBufferPtr, (byte) ReplyType.ARRAY.ordinal());
+    if (size + dataOff + MAX_SCORE_LENGTH > outBufferSize) {
+      // Buffer is too small
+      UnsafeAccess.putInt(outBufferPtr + Utils.SIZEOF_BYTE, size + dataOff + MAX_SCORE_LENGTH);
+      return;
+    }
+    int index = UnsafeAccess.toInt(dataPtr);
+    // Skip index and number of elements (always 1)
+    long pairPtr = dataPtr + 2 * Utils.SIZEOF_INT;
+    int pairSize = Utils.readUVInt(pairPtr);
+    pairPtr += Utils.sizeUVInt(pairSize);
+    byte[] score = Double.toString(Utils.lexToDouble(pairPtr)).getBytes();
+    int memberSize = pairSize - Utils.SIZEOF_DOUBLE;
+    
+    long ptr = outBufferPtr + off;
+    UnsafeAccess.putInt(ptr, keySizes[index]);
+    ptr += Utils.SIZEOF_INT;
+    UnsafeAccess.copy(keyPtrs[index], ptr, keySizes[index]);
+    ptr += keySizes[index];
+    UnsafeAccess.putInt(ptr, memberSize);
+    ptr += Utils.SIZEOF_INT;
+    UnsafeAccess.move(pairPtr + Utils.SIZEOF_DOUBLE, ptr, memberSize);
+    ptr += memberSize;
+    UnsafeAccess.putInt(ptr, score.length);
+    ptr += Utils.SIZEOF_INT;
+    UnsafeAccess.copy(score, 0, ptr, score.length);
+    ptr += score.length;
+    UnsafeAccess.putInt(outBufferPtr + Utils.SIZEOF_BYTE, (int)(ptr - outBufferPtr));
+    UnsafeAccess.putInt(outBufferPtr + Utils.SIZEOF_BYTE + Utils.SIZEOF_INT, 3);
+  }
+
+  @Override
+  public boolean isBlocked() {
+    return blocked;
+  }
+
+  @Override
+  public byte[][] getBlockingKeys() {
+    return BlockingCommand.copyKeys(keyPtrs, keySizes);
+  }
+
+  @Override
+  public long getBlockingTimeout() {
+    return timeout;
+  }
+}
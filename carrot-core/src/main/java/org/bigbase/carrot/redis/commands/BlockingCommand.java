@@ -0,0 +1,77 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis.commands;
+
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * 
+ * Blocking command (BLPOP, BRPOP, BLMOVE, BZPOPMIN, BZPOPMAX). Command never blocks
+ * a handler thread: when there is nothing to serve it writes a NULL reply and reports
+ * that client must wait. Command processor then parks the connection (request stays 
+ * in the input buffer) and command is executed again when one of the keys is signaled 
+ * or timeout expires (in this case NULL reply is sent to a client).
+ *
+ */
+public interface BlockingCommand extends RedisCommand {
+  
+  /**
+   * Did the last execution find nothing to serve
+   * @return true - client must wait, false - reply is ready
+   */
+  public boolean isBlocked();
+  
+  /**
+   * Get keys of the last blocked execution (copies)
+   * @return keys to wait on
+   */
+  public byte[][] getBlockingKeys();
+  
+  /**
+   * Get timeout of the last blocked execution
+   * @return timeout in ms (0 - wait forever)
+   */
+  public long getBlockingTimeout();
+  
+  /**
+   * Reads timeout argument (seconds, may be fractional)
+   * @param ptr address of an argument (size followed by data)
+   * @return timeout in ms
+   * @throws NumberFormatException
+   */
+  public static long readTimeout(long ptr) throws NumberFormatException {
+    int size = UnsafeAccess.toInt(ptr);
+    double secs = Utils.strToDouble(ptr + Utils.SIZEOF_INT, size);
+    return (long) (secs * 1000);
+  }
+  
+  /**
+   * Copies keys
+   * @param keyPtrs key addresses
+   * @param keySizes key sizes
+   * @return copies of keys
+   */
+  public static byte[][] copyKeys(long[] keyPtrs, int[] keySizes) {
+    byte[][] keys = new byte[keyPtrs.length][];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = Utils.toBytes(keyPtrs[i], keySizes[i]);
+    }
+    return keys;
+  }
+}
@@ -17,10 +17,9 @@
  */
 package org.bigbase.carrot.redis.commands;
 
-import java.nio.ByteBuffer;
-
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.redis.cluster.Cluster;
+import org.bigbase.carrot.redis.util.RespWriter;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 
@@ -75,7 +74,7 @@ public class CLUSTER implements RedisCommand {
   }
   
   @Override
-  public void convertToRedis(ByteBuffer buf) {
-    org.bigbase.carrot.redis.util.Utils.serializeTypedArray(result, buf);
+  public void convertToRedis(RespWriter w) {
+    org.bigbase.carrot.redis.util.Utils.serializeTypedArray(result, w);
   }
 }
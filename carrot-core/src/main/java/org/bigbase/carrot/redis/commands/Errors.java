@@ -40,6 +40,7 @@ public class Errors {
   static final String ERR_MAX_SPECIFIED = "Either '(' or '[' or '+' can be specified for a max argument";
   static final byte[] ERR_UNSUPPORTED_COMMAND = "Unsupported command".getBytes();
   static final byte[] ERR_SNAPSHOT_RUNNING = "Snapshot is already running".getBytes();
+  static final byte[] ERR_TIMEOUT_NEGATIVE = "Timeout is negative".getBytes();
   
   
   public static void write(long buffer, byte[] type, byte[] message) {
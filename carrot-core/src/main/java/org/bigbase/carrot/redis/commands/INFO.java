@@ -17,57 +17,160 @@
  */
 package org.bigbase.carrot.redis.commands;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.Compactor;
+import org.bigbase.carrot.DataBlockCache;
+import org.bigbase.carrot.WriteBackSet;
+import org.bigbase.carrot.redis.CommandStats;
+import org.bigbase.carrot.redis.CommandTable;
 import org.bigbase.carrot.redis.RedisConf;
+import org.bigbase.carrot.redis.RedisServer;
+import org.bigbase.carrot.redis.RequestHandlers;
+import org.bigbase.carrot.redis.WriteAheadLog;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 
-// Currently we support only INFO MEMORY
+/**
+ * INFO [section]
+ * Supported sections: MEMORY, STATS, COMPACTION, PERSISTENCE, COMMANDSTATS, LATENCYSTATS. 
+ * MEMORY, STATS, COMPACTION and PERSISTENCE sections are returned when section is not specified
+ */
 public class INFO implements RedisCommand {
 
   @Override
   public void execute(BigSortedMap map, long inDataPtr, long outBufferPtr, int outBufferSize) {
     int numArgs = UnsafeAccess.toInt(inDataPtr);
 
-    if (numArgs != 2) {
+    if (numArgs > 2) {
       Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_ARGS_NUMBER);
       return;
     }
     inDataPtr += Utils.SIZEOF_INT;
     inDataPtr = skip(inDataPtr, 1);
-    int size = UnsafeAccess.toInt(inDataPtr);
-    inDataPtr += Utils.SIZEOF_INT;
-    if (Utils.compareTo(MEMORY_FLAG, MEMORY_LENGTH, inDataPtr, size) != 0 && 
-          Utils.compareTo(MEMORY_LOWER_CASE_FLAG, MEMORY_LENGTH, inDataPtr, size) != 0) {
+    String section = null;
+    if (numArgs == 2) {
+      int size = UnsafeAccess.toInt(inDataPtr);
+      inDataPtr += Utils.SIZEOF_INT;
+      section = Utils.toString(inDataPtr, size).toUpperCase();
+    }
+    List<String> info = new ArrayList<String>();
+    if (section == null || section.equals("MEMORY")) {
+      memoryInfo(info);
+    }
+    if (section == null || section.equals("STATS")) {
+      statsInfo(info);
+    }
+    if (section == null || section.equals("COMPACTION")) {
+      compactionInfo(map, info);
+    }
+    if (section == null || section.equals("PERSISTENCE")) {
+      persistenceInfo(map, info);
+    }
+    if (section != null && section.equals("COMMANDSTATS")) {
+      commandStatsInfo(info);
+    }
+    if (section != null && section.equals("LATENCYSTATS")) {
+      latencyStatsInfo(info);
+    }
+    if (info.size() == 0) {
       Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_UNSUPPORTED_COMMAND, ": INFO " + 
-      Utils.toString(inDataPtr, size));
+      section);
       return;
     }
-    
-    String[] info = new String[13];
-    info[0] = "# Memory (Carrot)";
+    ARRAY_REPLY(outBufferPtr, info.toArray(new String[info.size()]));   
+  }
+  
+  private void memoryInfo(List<String> info) {
+    info.add("# Memory (Carrot)");
     long maxmemory = RedisConf.getInstance().getMaxMemoryLimit();
-    info[1] = "maxmemory:"+ maxmemory;
+    info.add("maxmemory:"+ maxmemory);
 
-    info[2] = "used_memory:"+ BigSortedMap.getGlobalAllocatedMemory();
-    info[3] = "used_memory_dataset:" + BigSortedMap.getGlobalDataSize();
-    info[4] = "used_memory_dataset_perc:" + 
-        Utils.toString(((double)BigSortedMap.getGlobalDataSize() * 100)/BigSortedMap.getGlobalAllocatedMemory() , 2) +"%";
-    info[5] = "used_memory_index:" + BigSortedMap.getGlobalIndexSize();
-    info[6] = "used_memory_index_perc:" + 
-        Utils.toString(((double)BigSortedMap.getGlobalIndexSize() * 100)/BigSortedMap.getGlobalAllocatedMemory() , 2) +"%";
-    info[7] = "used_memory_ext:" + BigSortedMap.getGlobalExternalDataSize();
-    info[8] = "used_memory_ext_perc:" + 
-        Utils.toString(((double)BigSortedMap.getGlobalExternalDataSize() * 100)/BigSortedMap.getGlobalAllocatedMemory() , 2) +"%";
+    info.add("used_memory:"+ BigSortedMap.getGlobalAllocatedMemory());
+    info.add("used_memory_dataset:" + BigSortedMap.getGlobalDataSize());
+    info.add("used_memory_dataset_perc:" + 
+        Utils.toString(((double)BigSortedMap.getGlobalDataSize() * 100)/BigSortedMap.getGlobalAllocatedMemory() , 2) +"%");
+    info.add("used_memory_index:" + BigSortedMap.getGlobalIndexSize());
+    info.add("used_memory_index_perc:" + 
+        Utils.toString(((double)BigSortedMap.getGlobalIndexSize() * 100)/BigSortedMap.getGlobalAllocatedMemory() , 2) +"%");
+    info.add("used_memory_ext:" + BigSortedMap.getGlobalExternalDataSize());
+    info.add("used_memory_ext_perc:" + 
+        Utils.toString(((double)BigSortedMap.getGlobalExternalDataSize() * 100)/BigSortedMap.getGlobalAllocatedMemory() , 2) +"%");
 
-    info[9] = "used_memory_compressed:" + BigSortedMap.getGlobalCompressedDataSize();
-    info[10] = "mem_fragmentation_ratio:" + 
-        Utils.toString(((double)BigSortedMap.getGlobalAllocatedMemory())/BigSortedMap.getGlobalDataSize() , 2);
-    info[11] = "compression_ratio:" + 
+    info.add("used_memory_compressed:" + BigSortedMap.getGlobalCompressedDataSize());
+    info.add("mem_fragmentation_ratio:" + 
+        Utils.toString(((double)BigSortedMap.getGlobalAllocatedMemory())/BigSortedMap.getGlobalDataSize() , 2));
+    info.add("compression_ratio:" + 
         (BigSortedMap.getGlobalCompressedDataSize() > 0 ?
             Utils.toString(((double)BigSortedMap.getGlobalDataSize())/BigSortedMap.getGlobalAllocatedMemory() , 2):
-              "0.0");
-    info[12] = "";
-    ARRAY_REPLY(outBufferPtr, info);   
+              "0.0"));
+    info.addAll(DataBlockCache.getStats());
+    info.add("");
+  }
+  
+  private void statsInfo(List<String> info) {
+    info.add("# Stats (Carrot)");
+    RequestHandlers handlers = RedisServer.getRequestHandlers();
+    String[] loops = handlers != null? handlers.getStats(): new String[0];
+    info.add("event_loops:" + loops.length);
+    Collections.addAll(info, loops);
+    info.add("");
+  }
+  
+  private void compactionInfo(BigSortedMap map, List<String> info) {
+    info.add("# Compaction (Carrot)");
+    Compactor compactor = map.getCompactor();
+    if (compactor != null) {
+      info.addAll(compactor.getStats());
+    } else {
+      info.add("compactor_running:0");
+    }
+    WriteBackSet writeBack = map.getWriteBackSet();
+    if (writeBack != null) {
+      info.addAll(writeBack.getStats());
+    }
+    info.add("");
+  }
+  
+  private void persistenceInfo(BigSortedMap map, List<String> info) {
+    info.add("# Persistence (Carrot)");
+    WriteAheadLog wal = map.getWAL();
+    if (wal != null) {
+      info.addAll(wal.getStats());
+    } else {
+      info.add("wal_enabled:0");
+    }
+    info.addAll(map.getSnapshotStats());
+    info.add("");
+  }
+  
+  private void commandStatsInfo(List<String> info) {
+    info.add("# Commandstats");
+    for (CommandStats stats: CommandTable.getStats()) {
+      long calls = stats.getCalls();
+      if (calls == 0) {
+        continue;
+      }
+      long usec = stats.getTotalTime();
+      info.add("cmdstat_" + stats.getName().toLowerCase() + ":calls=" + calls + ",usec=" + usec + 
+        ",usec_per_call=" + Utils.toString((double) usec / calls, 2));
+    }
+    info.add("");
+  }
+  
+  private void latencyStatsInfo(List<String> info) {
+    info.add("# Latencystats");
+    for (CommandStats stats: CommandTable.getStats()) {
+      if (stats.getCalls() == 0) {
+        continue;
+      }
+      info.add("latency_percentiles_usec_" + stats.getName().toLowerCase() + ":p50=" + 
+        stats.getPercentile(50) + ",p99=" + stats.getPercentile(99) + ",p99.9=" + 
+        stats.getPercentile(99.9));
+    }
+    info.add("");
   }
 }
@@ -18,6 +18,7 @@
 package org.bigbase.carrot.redis.commands;
 
 import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.BlockedClients;
 import org.bigbase.carrot.redis.lists.Lists;
 import org.bigbase.carrot.redis.lists.Lists.Side;
 import org.bigbase.carrot.util.UnsafeAccess;
@@ -45,7 +46,7 @@ public class LMOVE implements RedisCommand {
     int dstKeySize = UnsafeAccess.toInt(inDataPtr);
     inDataPtr += Utils.SIZEOF_INT;
     long dstKeyPtr = inDataPtr;
-    inDataPtr += srcKeySize;
+    inDataPtr += dstKeySize;
     
     // src LEFT | RIGHT
     Side srcSide = Side.LEFT;
@@ -92,6 +93,9 @@ public class LMOVE implements RedisCommand {
     
     UnsafeAccess.putByte(outBufferPtr, (byte) ReplyType.BULK_STRING.ordinal());
     UnsafeAccess.putInt(outBufferPtr + Utils.SIZEOF_BYTE, size);
+    if (size >= 0 && size <= outBufferSize - off) {
+      BlockedClients.signal(map, dstKeyPtr, dstKeySize);
+    }
   }
 
 }
@@ -18,6 +18,7 @@
 package org.bigbase.carrot.redis.commands;
 
 import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.BlockedClients;
 import org.bigbase.carrot.redis.lists.Lists;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
@@ -46,5 +47,7 @@ public class LPUSH implements RedisCommand {
     int[] sizes = Utils.loadSizes(inDataPtr, numArgs - 2);
     int num = (int) Lists.LPUSH(map, keyPtr, keySize, ptrs, sizes);
     INT_REPLY(outBufferPtr, num);
+    // Wake up client blocked on this list (if any)
+    BlockedClients.signal(map, keyPtr, keySize);
   }
 }
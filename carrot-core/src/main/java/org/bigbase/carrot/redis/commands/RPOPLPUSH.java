@@ -18,6 +18,7 @@
 package org.bigbase.carrot.redis.commands;
 
 import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.BlockedClients;
 import org.bigbase.carrot.redis.lists.Lists;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
@@ -52,5 +53,8 @@ public class RPOPLPUSH implements RedisCommand {
       outBufferPtr + off, outBufferSize - off); 
     UnsafeAccess.putByte(outBufferPtr, (byte) ReplyType.BULK_STRING.ordinal());
     UnsafeAccess.putInt(outBufferPtr + Utils.SIZEOF_BYTE, size);
+    if (size >= 0 && size <= outBufferSize - off) {
+      BlockedClients.signal(map, dstKeyPtr, dstKeySize);
+    }
   }
 }
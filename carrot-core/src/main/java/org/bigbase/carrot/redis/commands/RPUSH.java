@@ -18,6 +18,7 @@
 package org.bigbase.carrot.redis.commands;
 
 import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.BlockedClients;
 import org.bigbase.carrot.redis.lists.Lists;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
@@ -44,6 +45,8 @@ public class RPUSH implements RedisCommand {
     int num = (int) Lists.RPUSH(map, keyPtr, keySize, ptrs, sizes);
     // INT reply
     INT_REPLY(outBufferPtr, num);
+    // Wake up client blocked on this list (if any)
+    BlockedClients.signal(map, keyPtr, keySize);
 
   }
 
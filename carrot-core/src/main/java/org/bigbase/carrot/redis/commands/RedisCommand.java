@@ -17,10 +17,11 @@
  */
 package org.bigbase.carrot.redis.commands;
 
-import java.nio.ByteBuffer;
+import java.io.IOException;
 
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.redis.util.MutationOptions;
+import org.bigbase.carrot.redis.util.RespWriter;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 
@@ -279,10 +280,11 @@ public interface RedisCommand {
   }
   
   default void ARRAY_REPLY (long ptr, String[] arr) {
+    long start = ptr;
     UnsafeAccess.putByte(ptr, (byte) ReplyType.ARRAY.ordinal());
     // skip length of a string
     ptr += Utils.SIZEOF_BYTE;
-    // Skip serialized size (TODO: fix it)
+    // Skip serialized size, it is set at the end
     ptr += Utils.SIZEOF_INT;
     // Put array length
     UnsafeAccess.putInt(ptr, arr.length);
@@ -295,6 +297,7 @@ public interface RedisCommand {
       UnsafeAccess.copy(bytes, 0, ptr, bytes.length);
       ptr += bytes.length;
     }
+    UnsafeAccess.putInt(start + Utils.SIZEOF_BYTE, (int)(ptr - start));
   }
   /**
    * Execute the Redis command
@@ -482,7 +485,13 @@ public interface RedisCommand {
     return true;
   }
   
-  public default void convertToRedis(ByteBuffer buf) {
+  /**
+   * Writes reply directly in a Redis format, when automatic conversion
+   * is off. Writer flushes full buffers on its own, so reply size is not limited
+   * @param w reply writer
+   * @throws IOException when reply can not be completed (connection must be closed)
+   */
+  public default void convertToRedis(RespWriter w) throws IOException {
     // do nothing
   }
 }
@@ -0,0 +1,128 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis.commands;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.SlowLog;
+import org.bigbase.carrot.redis.util.RespWriter;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+
+/**
+ * Supported slow log commands:
+ * 
+ * 1. SLOWLOG GET [count] (default count is 10, negative - all entries)
+ * 2. SLOWLOG LEN
+ * 3. SLOWLOG RESET
+ *
+ */
+public class SLOWLOG implements RedisCommand {
+  
+  static final int DEFAULT_COUNT = 10;
+  
+  private Object[] result;
+  boolean autoConvert = false;
+  
+  private void reset() {
+    // Reset state
+    autoConvert = false;
+    result = null;
+  }
+  
+  @Override
+  public void execute(BigSortedMap map, long inDataPtr, long outBufferPtr, int outBufferSize) {
+    
+    reset();
+    
+    int numArgs = UnsafeAccess.toInt(inDataPtr);
+    if (numArgs < 2 || numArgs > 3) {
+      Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_ARGS_NUMBER);
+      autoConvert = true;
+      return;
+    }
+    inDataPtr += Utils.SIZEOF_INT;
+    inDataPtr = skip(inDataPtr, 1);
+    int size = UnsafeAccess.toInt(inDataPtr);
+    inDataPtr += Utils.SIZEOF_INT;
+    String subcommand = Utils.toString(inDataPtr, size);
+    inDataPtr += size;
+    
+    switch (subcommand.toUpperCase()) {
+      case "GET":
+        int count = DEFAULT_COUNT;
+        if (numArgs == 3) {
+          size = UnsafeAccess.toInt(inDataPtr);
+          inDataPtr += Utils.SIZEOF_INT;
+          try {
+            count = (int) Utils.strToLong(inDataPtr, size);
+          } catch (NumberFormatException e) {
+            Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_NUMBER_FORMAT, ": " + 
+                Utils.toString(inDataPtr, size));
+            autoConvert = true;
+            return;
+          }
+        }
+        result = toArray(SlowLog.get(count));
+        return;
+      case "LEN":
+      case "RESET":
+        autoConvert = true;
+        if (numArgs != 2) {
+          Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_ARGS_NUMBER);
+        } else if (subcommand.equalsIgnoreCase("LEN")) {
+          INT_REPLY(outBufferPtr, SlowLog.length());
+        } else {
+          SlowLog.reset();
+        }
+        return;
+      default:
+        Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_UNSUPPORTED_COMMAND, ": SLOWLOG " + 
+            subcommand);
+        autoConvert = true;
+    }
+  }
+  
+  /**
+   * Converts slow log entries to a Redis reply:
+   * [id, timestamp, duration, [arg1, arg2, ...]]
+   * @param entries slow log entries
+   * @return array
+   */
+  private Object[] toArray(SlowLog.Entry[] entries) {
+    Object[] arr = new Object[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      SlowLog.Entry e = entries[i];
+      Object[] args = new Object[e.getArgs().length];
+      System.arraycopy(e.getArgs(), 0, args, 0, args.length);
+      arr[i] = new Object[] {e.getId(), e.getTimestamp(), e.getDuration(), args};
+    }
+    return arr;
+  }
+  
+  /**
+   * Do automatic conversion?
+   */
+  public boolean autoconvertToRedis() {
+    return autoConvert;
+  }
+  
+  @Override
+  public void convertToRedis(RespWriter w) {
+    org.bigbase.carrot.redis.util.Utils.serializeTypedArray(result, w);
+  }
+}
@@ -17,15 +17,30 @@
  */
 package org.bigbase.carrot.redis.commands;
 
+import java.io.IOException;
+
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.redis.sets.Sets;
+import org.bigbase.carrot.redis.util.RespWriter;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 
+/**
+ * SMEMBERS key
+ * Reply (members) is written directly to a reply writer, therefore 
+ * it is not limited by the output buffer size
+ */
 public class SMEMBERS implements RedisCommand {
 
+  private BigSortedMap map;
+  private long keyPtr;
+  private int keySize;
+  boolean autoConvert = true;
+  
   @Override
   public void execute(BigSortedMap map, long inDataPtr, long outBufferPtr, int outBufferSize) {
+    this.map = null;
+    autoConvert = true;
     int numArgs = UnsafeAccess.toInt(inDataPtr);
     if (numArgs != 2) {
       Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_ARGS_NUMBER);
@@ -35,16 +50,26 @@ public class SMEMBERS implements RedisCommand {
     // skip command name
     inDataPtr = skip(inDataPtr, 1);
     // read key
-    int keySize = UnsafeAccess.toInt(inDataPtr);
+    keySize = UnsafeAccess.toInt(inDataPtr);
     inDataPtr += Utils.SIZEOF_INT;
-    long keyPtr = inDataPtr;
-    inDataPtr += keySize;
-
-    int size = (int) Sets.SMEMBERS(map, keyPtr, keySize, outBufferPtr + 
-      Utils.SIZEOF_BYTE + Utils.SIZEOF_INT, outBufferSize - Utils.SIZEOF_BYTE - Utils.SIZEOF_INT);
-    
-    // VARRAY type
-    UnsafeAccess.putByte(outBufferPtr, (byte) ReplyType.VARRAY.ordinal());
-    UnsafeAccess.putInt(outBufferPtr + Utils.SIZEOF_BYTE, size + Utils.SIZEOF_BYTE + Utils.SIZEOF_INT);
+    keyPtr = inDataPtr;
+    this.map = map;
+    autoConvert = false;
+  }
+  
+  /**
+   * Do automatic conversion?
+   */
+  public boolean autoconvertToRedis() {
+    return autoConvert;
+  }
+  
+  @Override
+  public void convertToRedis(RespWriter w) throws IOException {
+    try {
+      Sets.SMEMBERS(map, keyPtr, keySize, w);
+    } finally {
+      map = null;
+    }
   }
 }
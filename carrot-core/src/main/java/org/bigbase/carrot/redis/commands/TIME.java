@@ -43,6 +43,7 @@ public class TIME implements RedisCommand {
     long microsecs= (time - secs * 1000) * 1000;
     
     //  Array reply
+    long start = outBufferPtr;
     UnsafeAccess.putByte(outBufferPtr, (byte) ReplyType.ARRAY.ordinal());
     // Skip serialized size
     outBufferPtr += Utils.SIZEOF_BYTE + Utils.SIZEOF_INT;
@@ -56,5 +57,8 @@ public class TIME implements RedisCommand {
     
     size = Utils.longToStr(microsecs, outBufferPtr + Utils.SIZEOF_INT, outBufferSize);
     UnsafeAccess.putInt(outBufferPtr, size);
+    outBufferPtr += Utils.SIZEOF_INT + size;
+    // Write serialized size
+    UnsafeAccess.putInt(start + Utils.SIZEOF_BYTE, (int) (outBufferPtr - start));
   }
 }
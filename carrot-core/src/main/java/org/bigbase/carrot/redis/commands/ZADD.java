@@ -21,9 +21,12 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.BlockedClients;
 import org.bigbase.carrot.redis.sets.Sets;
 import org.bigbase.carrot.redis.util.MutationOptions;
 import org.bigbase.carrot.redis.zsets.ZSets;
+import org.bigbase.carrot.util.Key;
+import org.bigbase.carrot.util.KeysLocker;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
 import org.bigbase.carrot.util.ValueScore;
@@ -105,12 +108,24 @@ public class ZADD implements RedisCommand {
       // Now check if zset exists and mutation option is not MutationOption.XX
       // and this is a bulk operation. In this case we call *fast* version
       if (opt != MutationOptions.XX && number > 1) {
-        if (!Sets.keyExists(map, keyPtr, keySize)) {
-          List<ValueScore> members = populateAndGetValueScores(inDataPtr, number);
-          long num = ZSets.ZADD_NEW(map, keyPtr, keySize, members);
+        long num = -1;
+        Key k = new Key(keyPtr, keySize);
+        try {
+          // Concurrent ZADD can create the set between check and update
+          KeysLocker.writeLock(k);
+          if (!Sets.keyExists(map, keyPtr, keySize)) {
+            List<ValueScore> members = populateAndGetValueScores(inDataPtr, number);
+            num = ZSets.ZADD_NEW(map, keyPtr, keySize, members);
+          }
+        } finally {
+          KeysLocker.writeUnlock(k);
+        }
+        if (num >= 0) {
           INT_REPLY(outBufferPtr, num);
+          // Wake up client blocked on this sorted set (if any)
+          BlockedClients.signal(map, keyPtr, keySize);
           return;
-        };
+        }
       }
       // For all other cases still old version (TODO: optimize general case)
       long[] ptrs = new long[number];
@@ -120,6 +135,8 @@ public class ZADD implements RedisCommand {
       
       long num = ZSets.ZADD_GENERIC(map, keyPtr, keySize, scores, ptrs, ptrSizes, changed, opt);
       INT_REPLY(outBufferPtr, num);
+      // Wake up client blocked on this sorted set (if any)
+      BlockedClients.signal(map, keyPtr, keySize);
       
     } catch (NumberFormatException e) {
       Errors.write(outBufferPtr, Errors.TYPE_GENERIC, 
@@ -18,6 +18,7 @@
 package org.bigbase.carrot.redis.commands;
 
 import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.BlockedClients;
 import org.bigbase.carrot.redis.zsets.ZSets;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
@@ -53,6 +54,8 @@ public class ZINCRBY implements RedisCommand {
 
       double newValue = ZSets.ZINCRBY(map, keyPtr, keySize, incrValue, fieldPtr, fieldSize);
       DOUBLE_REPLY(outBufferPtr, outBufferSize, newValue);
+      // Wake up client blocked on this sorted set (if any)
+      BlockedClients.signal(map, keyPtr, keySize);
     } catch (NumberFormatException e) {
       Errors.write(outBufferPtr, Errors.TYPE_GENERIC, Errors.ERR_WRONG_NUMBER_FORMAT,
         ": " + e.getMessage());
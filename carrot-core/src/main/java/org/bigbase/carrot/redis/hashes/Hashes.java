@@ -39,6 +39,7 @@ import org.bigbase.carrot.ops.OperationFailedException;
 import org.bigbase.carrot.redis.util.Commons;
 import org.bigbase.carrot.redis.util.DataType;
 import org.bigbase.carrot.redis.util.MutationOptions;
+import org.bigbase.carrot.redis.util.RespWriter;
 import org.bigbase.carrot.util.Key;
 import org.bigbase.carrot.util.KeyValue;
 import org.bigbase.carrot.util.KeysLocker;
@@ -351,14 +352,15 @@ public class Hashes {
    */
   public static int HSET(BigSortedMap map, long keyPtr, int keySize, List<KeyValue> kvs) {
 
-    if (!keyExists(map, keyPtr, keySize)) {
-      // Much faster version
-      return HSET_NEW(map, keyPtr, keySize, kvs);
-    }
     Key k = getKey(keyPtr, keySize);
     int count = 0;
     try {
       writeLock(k);
+      // Check under lock, concurrent HSET can create the hash
+      if (!keyExists(map, keyPtr, keySize)) {
+        // Much faster version
+        return HSET_NEW(map, keyPtr, keySize, kvs);
+      }
       
       for(KeyValue kv: kvs) {
         long fieldPtr = kv.keyPtr;
@@ -1415,39 +1417,115 @@ public class Hashes {
    
   public static long HMGET (BigSortedMap map, long keyPtr, int keySize, long[] fieldPtrs, int[] fieldSizes,
       long valueBuf, int valueBufSize) {
+    return HMGET(map, keyPtr, keySize, fieldPtrs, fieldSizes, valueBuf, valueBufSize, true);
+  }
+  
+  /**
+   * Returns the values associated with the specified fields in the hash stored at key.
+   * Fields are looked up in a single batch, see BigSortedMap.execute(Operation, long[], int[], 
+   * BatchCallback): fields which belong to the same data block share one lock acquisition 
+   * and one de-compression 
+   * @param map sorted map 
+   * @param keyPtr key address
+   * @param keySize key size
+   * @param fieldPtrs field pointers
+   * @param fieldSizes field sizes
+   * @param valueBuf values buffer
+   * @param valueBufSize values buffer size
+   * @param lock lock if true
+   * @return total size of serialized values (see above)
+   */
+  public static long HMGET (BigSortedMap map, long keyPtr, int keySize, long[] fieldPtrs, 
+      int[] fieldSizes, long valueBuf, int valueBufSize, boolean lock) {
    
     Key k = getKey(keyPtr, keySize);
+    int num = fieldPtrs.length;
+    long[] kPtrs = new long[num];
+    int[] kSizes = new int[num];
+    int[] sizes = new int[num];
+    int[] offsets = new int[num];
+    // Build all keys in a key arena
+    int required = 0;
+    for (int i = 0; i < num; i++) {
+      required += keySize + KEY_SIZE + fieldSizes[i] + Utils.SIZEOF_BYTE;
+    }
+    checkKeyArena(required);
+    long arena = keyArena.get();
+    for (int i = 0; i < num; i++) {
+      kPtrs[i] = arena;
+      kSizes[i] = buildKey(keyPtr, keySize, fieldPtrs[i], fieldSizes[i], arena);
+      arena += kSizes[i];
+    }
+    try {
+      if (lock) {
+        KeysLocker.readLock(k);
+      }
+      long total;
+      while ((total = getAll(map, kPtrs, kSizes, sizes, offsets)) > valueArenaSize.get()) {
+        checkValueArena((int) total);
+      }
+    } finally {
+      if (lock) {
+        KeysLocker.readUnlock(k);
+      }
+    }
     long ptr = valueBuf + Utils.SIZEOF_INT;
     long buf = valueArena.get();
-    int bufSize = valueArenaSize.get();
     int count = 0;
-    try {
-      KeysLocker.readLock(k);  
-      for (int i = 0; i < fieldPtrs.length; i++) {
-        long fieldPtr = fieldPtrs[i];
-        int fieldSize = fieldSizes[i];
-        int size = HGET(map, keyPtr, keySize, fieldPtr, fieldSize, buf, bufSize);
-        if (size > bufSize) {
-          checkValueArena(size);
-          buf = valueArena.get();
-          bufSize = size;
-          // size == -1 - nil
-          size = HGET(map, keyPtr, keySize, fieldPtr, fieldSize, buf, bufSize);
-        }
-        if (ptr + Utils.SIZEOF_INT + (size > 0? size:0) <= valueBuf + valueBufSize) {
-          count++;
-          UnsafeAccess.putInt(ptr, size);
-          if (size > 0) {
-            UnsafeAccess.copy(buf, ptr + Utils.SIZEOF_INT, size);
-          }
-          UnsafeAccess.putInt(valueBuf, count);
+    UnsafeAccess.putInt(valueBuf, 0);
+    for (int i = 0; i < num; i++) {
+      int size = sizes[i];
+      if (ptr + Utils.SIZEOF_INT + (size > 0? size:0) <= valueBuf + valueBufSize) {
+        count++;
+        UnsafeAccess.putInt(ptr, size);
+        if (size > 0) {
+          UnsafeAccess.copy(buf + offsets[i], ptr + Utils.SIZEOF_INT, size);
         }
-        ptr += Utils.SIZEOF_INT + (size > 0? size: 0);
+        UnsafeAccess.putInt(valueBuf, count);
       }
-      return ptr - valueBuf;
-    } finally {
-      KeysLocker.readUnlock(k);
+      ptr += Utils.SIZEOF_INT + (size > 0? size: 0);
     }
+    return ptr - valueBuf;
+  }
+  
+  /**
+   * Gets values of a batch of hash keys into a value arena
+   * @param map sorted map
+   * @param kPtrs hash key addresses (key + field)
+   * @param kSizes hash key sizes
+   * @param sizes value sizes (output), -1 - not found
+   * @param offsets value offsets in a value arena (output)
+   * @return total size of values, if it is greater than value arena size, 
+   *         call must be repeated with a larger arena 
+   */
+  private static long getAll(BigSortedMap map, long[] kPtrs, int[] kSizes, int[] sizes, 
+      int[] offsets) {
+    HashGet get = hashGet.get();
+    long buf = valueArena.get();
+    int bufSize = valueArenaSize.get();
+    long[] total = new long[1];
+    map.execute(get, kPtrs, kSizes, new BigSortedMap.BatchCallback() {
+      @Override
+      public void prepare(int index) {
+        int off = (int) Math.min(total[0], bufSize);
+        get.reset();
+        get.setKeyAddress(kPtrs[index]);
+        get.setKeySize(kSizes[index]);
+        get.setBufferPtr(buf + off);
+        get.setBufferSize(bufSize - off);
+        offsets[index] = off;
+      }
+
+      @Override
+      public void done(int index, boolean result) {
+        int size = get.getFoundValueSize();
+        sizes[index] = size;
+        if (size > 0) {
+          total[0] += size;
+        }
+      }
+    });
+    return total[0];
   }
   
   /**
@@ -1948,6 +2026,55 @@ public class Hashes {
   }
   
   
+  /**
+   * Streaming version of HGETALL: fields and values are written directly 
+   * to a Redis reply writer, so reply size is not limited by a buffer size.
+   * @param map sorted map storage
+   * @param keyPtr hash key address
+   * @param keySize hash key size
+   * @param w reply writer
+   * @throws IOException 
+   */
+  public static void HGETALL(BigSortedMap map, long keyPtr, int keySize, RespWriter w) 
+      throws IOException {
+    Key key = getKey(keyPtr, keySize);
+    HashScanner scanner = null;
+    try {
+      KeysLocker.readLock(key);
+      // Count fields under the same lock, so that array header matches the reply
+      long count = 0;
+      scanner = getScanner(map, keyPtr, keySize, false);
+      while (scanner != null && scanner.hasNext()) {
+        count++;
+        scanner.next();
+      }
+      if (scanner != null) {
+        scanner.close();
+        scanner = null;
+      }
+      w.writeArrayHeader(2 * count);
+      if (count == 0) {
+        return;
+      }
+      scanner = getScanner(map, keyPtr, keySize, false);
+      while (count > 0) {
+        if (scanner == null || !scanner.hasNext()) {
+          throw new IOException("HGETALL: hash has changed during the reply");
+        }
+        w.writeBulk(scanner.fieldAddress(), scanner.fieldSize());
+        w.writeBulk(scanner.fieldValueAddress(), scanner.fieldValueSize());
+        count--;
+        scanner.next();
+      }
+    } finally {
+      if (scanner != null) {
+        scanner.close();
+      }
+      KeysLocker.readUnlock(key);
+    }
+  }
+
+  
   /**
    * Available since 2.0.0.
    * Time complexity: O(N) where N is the size of the hash.
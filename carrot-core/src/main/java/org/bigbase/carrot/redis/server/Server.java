@@ -25,6 +25,7 @@ import java.util.List;
 
 import org.bigbase.carrot.BigSortedMap;
 import org.bigbase.carrot.redis.RedisConf;
+import org.bigbase.carrot.redis.WriteAheadLog;
 import org.bigbase.carrot.redis.util.DataType;
 import org.bigbase.carrot.util.UnsafeAccess;
 import org.bigbase.carrot.util.Utils;
@@ -178,6 +179,11 @@ public class Server {
     if (save) {
       SAVE(map);
     }
+    WriteAheadLog wal = map.getWAL();
+    if (wal != null) {
+      // Force log regardless of fsync policy
+      wal.sync();
+    }
     return true;
   }
   
@@ -36,6 +36,7 @@ import org.bigbase.carrot.BigSortedMapScanner;
 import org.bigbase.carrot.DataBlock;
 import org.bigbase.carrot.redis.util.Commons;
 import org.bigbase.carrot.redis.util.DataType;
+import org.bigbase.carrot.redis.util.RespWriter;
 import org.bigbase.carrot.util.Key;
 import org.bigbase.carrot.util.KeysLocker;
 import org.bigbase.carrot.util.UnsafeAccess;
@@ -1058,7 +1059,6 @@ public class Sets {
   }
   
   /**
-   * TODO: optimize for speed
    * Returns whether each member is a member of the set stored at key.
    * For every member, 1 is returned if the value is a member of the set, 
    * or 0 if the element is not a member of the set or if key does not exist.
@@ -1072,12 +1072,37 @@ public class Sets {
   public static long SMISMEMBER (BigSortedMap map, long keyPtr, int keySize, long[] elemPtrs,
       int[] elemSizes) {
     
-    checkValueArena(elemPtrs.length);
+    int num = elemPtrs.length;
+    checkValueArena(num);
     long buffer = valueArena.get();
-    for (int i = 0; i < elemPtrs.length; i++) {
-      int result = SISMEMBER(map, keyPtr, keySize, elemPtrs[i], elemSizes[i]);
-      UnsafeAccess.putByte(buffer + i, (byte) result);
+    long[] kPtrs = new long[num];
+    int[] kSizes = new int[num];
+    // Build all keys in a key arena and check them in a single batch
+    int required = 0;
+    for (int i = 0; i < num; i++) {
+      required += keySize + KEY_SIZE + elemSizes[i] + Utils.SIZEOF_BYTE;
+    }
+    checkKeyArena(required);
+    long arena = keyArena.get();
+    for (int i = 0; i < num; i++) {
+      kPtrs[i] = arena;
+      kSizes[i] = buildKey(keyPtr, keySize, elemPtrs[i], elemSizes[i], arena);
+      arena += kSizes[i];
     }
+    SetExists exists = setExists.get();
+    map.execute(exists, kPtrs, kSizes, new BigSortedMap.BatchCallback() {
+      @Override
+      public void prepare(int index) {
+        exists.reset();
+        exists.setKeyAddress(kPtrs[index]);
+        exists.setKeySize(kSizes[index]);
+      }
+
+      @Override
+      public void done(int index, boolean result) {
+        UnsafeAccess.putByte(buffer + index, (byte) (result? 1: 0));
+      }
+    });
     return buffer;
   }
   
@@ -1538,6 +1563,54 @@ public class Sets {
     return list;
   }
   
+  /**
+   * Streaming version of SMEMBERS: members are written directly to a Redis
+   * reply writer, so reply size is not limited by a buffer size.
+   * @param map sorted map storage
+   * @param keyPtr key address
+   * @param keySize key size
+   * @param w reply writer
+   * @throws IOException 
+   */
+  public static void SMEMBERS(BigSortedMap map, long keyPtr, int keySize, RespWriter w) 
+      throws IOException {
+    Key key = getKey(keyPtr, keySize);
+    SetScanner scanner = null;
+    try {
+      readLock(key);
+      // Count members under the same lock, so that array header matches the reply
+      long count = 0;
+      scanner = getScanner(map, keyPtr, keySize, false);
+      while (scanner != null && scanner.hasNext()) {
+        count++;
+        scanner.next();
+      }
+      if (scanner != null) {
+        scanner.close();
+        scanner = null;
+      }
+      w.writeArrayHeader(count);
+      if (count == 0) {
+        return;
+      }
+      scanner = getScanner(map, keyPtr, keySize, false);
+      while (count > 0) {
+        if (scanner == null || !scanner.hasNext()) {
+          throw new IOException("SMEMBERS: set has changed during the reply");
+        }
+        w.writeBulk(scanner.memberAddress(), scanner.memberSize());
+        count--;
+        scanner.next();
+      }
+    } finally {
+      if (scanner != null) {
+        scanner.close();
+      }
+      readUnlock(key);
+    }
+  }
+
+  
   /**
    * Returns all the members of the set value stored at key.
    * Serialized format : [SET_SIZE][MEMBER]+
@@ -21,6 +21,7 @@ import static org.bigbase.carrot.redis.util.Commons.KEY_SIZE;
 import static org.bigbase.carrot.util.KeysLocker.writeLock;
 import static org.bigbase.carrot.util.KeysLocker.writeUnlock;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.bigbase.carrot.BigSortedMap;
@@ -267,7 +268,17 @@ public class Strings {
    
   private static int buildKey( long keyPtr, int keySize) {
     checkKeyArena(keySize + KEY_SIZE + Utils.SIZEOF_BYTE);
-    long arena = keyArena.get();
+    return buildKey(keyPtr, keySize, keyArena.get());
+  }
+  
+  /**
+   * Build key for String at a given address
+   * @param keyPtr original key address
+   * @param keySize original key size
+   * @param arena address to build key at
+   * @return new key size
+   */
+  private static int buildKey(long keyPtr, int keySize, long arena) {
     int kSize = KEY_SIZE + keySize + Utils.SIZEOF_BYTE;
     UnsafeAccess.putByte(arena, (byte)DataType.STRING.ordinal());
     UnsafeAccess.putInt(arena + Utils.SIZEOF_BYTE, keySize);
@@ -608,18 +619,51 @@ public class Strings {
    */
   public static long MGET (BigSortedMap map, long[] keyPtrs, int[] keySizes, long buffer, int bufferSize) {
     
-    long ptr = buffer + Utils.SIZEOF_INT;
+    int num = keyPtrs.length;
+    long[] kPtrs = new long[num];
+    int[] kSizes = new int[num];
+    int[] sizes = new int[num];
+    int[] offsets = new int[num];
+    List<Key> keys = new ArrayList<Key>(num);
+    // Build all keys in a key arena, batch get visits them in a sorted order
+    int required = 0;
+    for (int i = 0; i < num; i++) {
+      required += keySizes[i] + KEY_SIZE + Utils.SIZEOF_BYTE;
+    }
+    checkKeyArena(required);
+    long arena = keyArena.get();
+    for (int i = 0; i < num; i++) {
+      kPtrs[i] = arena;
+      kSizes[i] = buildKey(keyPtrs[i], keySizes[i], arena);
+      arena += kSizes[i];
+      keys.add(new Key(keyPtrs[i], keySizes[i]));
+    }
+    try {
+      KeysLocker.readLockAllKeys(keys);
+      long total;
+      while ((total = map.get(kPtrs, kSizes, valueArena.get(), valueArenaSize.get(), 
+          Long.MAX_VALUE, sizes, offsets)) > valueArenaSize.get()) {
+        checkValueArena((int) total);
+      }
+    } finally {
+      KeysLocker.readUnlockAllKeys(keys);
+    }
     
+    long ptr = buffer + Utils.SIZEOF_INT;
+    long values = valueArena.get();
     int count = 1;
     UnsafeAccess.putInt(buffer, 0);
 
-    for(int i = 0; i < keyPtrs.length; i++, count++) {
+    for(int i = 0; i < num; i++, count++) {
       int available = (int)(bufferSize - (ptr - buffer) - Utils.SIZEOF_INT);
-      long size = GET(map, keyPtrs[i], keySizes[i], ptr + Utils.SIZEOF_INT, available);
+      int size = sizes[i];
       if (size <= available) {
         UnsafeAccess.putInt(buffer, count);
-        UnsafeAccess.putInt(ptr, (int)size);
         // size == -1 means NULL
+        UnsafeAccess.putInt(ptr, size);
+        if (size > 0) {
+          UnsafeAccess.copy(values + offsets[i], ptr + Utils.SIZEOF_INT, size);
+        }
       }
       if (size < 0) size = 0;
       ptr += size + Utils.SIZEOF_INT;
@@ -0,0 +1,234 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis.util;
+
+import static org.bigbase.carrot.util.Utils.longToStr;
+import static org.bigbase.carrot.util.Utils.stringSize;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import org.bigbase.carrot.util.UnsafeAccess;
+
+/**
+ * 
+ * Streaming RESP writer. Commands and reply converters write Redis replies directly 
+ * into the output buffer. When the buffer gets full, it is handed over to a {@link Flusher}, 
+ * which sends it to a client (or queues it) and returns the buffer to continue with. 
+ * This way a reply of any size can be produced with a limited amount of memory. 
+ * Writer without a flusher writes into a single buffer and throws 
+ * BufferOverflowException, when the buffer is full.
+ *
+ */
+public class RespWriter {
+  
+  /**
+   * Receives full buffers
+   */
+  public static interface Flusher {
+    /**
+     * Flushes full buffer
+     * @param buf buffer (in a write mode)
+     * @param required required number of bytes
+     * @return buffer (in a write mode) with at least required bytes remaining
+     */
+    public ByteBuffer flush(ByteBuffer buf, int required);
+  }
+  
+  /*
+   * Maximum size of a RESP header: type + number + CRLF 
+   */
+  final static int MAX_HEADER_SIZE = 1 + 20 + 2;
+  
+  final static byte[] CRLF = Utils.CRLF;
+  
+  private ByteBuffer buf;
+  
+  private Flusher flusher;
+  
+  private int flushes;
+  
+  public RespWriter() {
+  }
+  
+  public RespWriter(ByteBuffer buf) {
+    reset(buf, null);
+  }
+  
+  public RespWriter(ByteBuffer buf, Flusher flusher) {
+    reset(buf, flusher);
+  }
+  
+  /**
+   * Resets writer
+   * @param buf output buffer
+   * @param flusher flusher (can be null)
+   * @return this writer
+   */
+  public RespWriter reset(ByteBuffer buf, Flusher flusher) {
+    this.buf = buf;
+    this.flusher = flusher;
+    this.flushes = 0;
+    return this;
+  }
+  
+  /**
+   * Get current output buffer
+   * @return buffer
+   */
+  public ByteBuffer getBuffer() {
+    return buf;
+  }
+  
+  /**
+   * Get number of times full buffer was handed over to a flusher
+   * @return number of flushes
+   */
+  public int getFlushCount() {
+    return flushes;
+  }
+  
+  /**
+   * Makes sure that current buffer has at least n bytes remaining
+   * @param n number of bytes
+   * @return current buffer
+   */
+  public ByteBuffer ensure(int n) {
+    if (buf.remaining() >= n) {
+      return buf;
+    }
+    if (flusher == null) {
+      throw new BufferOverflowException();
+    }
+    buf = flusher.flush(buf, n);
+    flushes++;
+    return buf;
+  }
+  
+  /**
+   * Writes single byte
+   * @param b byte
+   */
+  public void write(byte b) {
+    ensure(1).put(b);
+  }
+  
+  /**
+   * Writes byte array, array can span multiple buffers
+   * @param b byte array
+   */
+  public void write(byte[] b) {
+    int off = 0;
+    while (off < b.length) {
+      ByteBuffer buf = ensure(1);
+      int n = Math.min(buf.remaining(), b.length - off);
+      buf.put(b, off, n);
+      off += n;
+    }
+  }
+  
+  /**
+   * Writes memory, data can span multiple buffers
+   * @param ptr address
+   * @param size size
+   */
+  public void write(long ptr, int size) {
+    while (size > 0) {
+      ByteBuffer buf = ensure(1);
+      int n = Math.min(buf.remaining(), size);
+      UnsafeAccess.copy(ptr, buf, n);
+      ptr += n;
+      size -= n;
+    }
+  }
+  
+  /**
+   * Writes RESP header: type, number and CRLF
+   * @param type type
+   * @param value number
+   */
+  public void writeHeader(byte type, long value) {
+    int size = value == Long.MIN_VALUE? MAX_HEADER_SIZE - 3: 
+      value < 0? stringSize(-value) + 1: stringSize(value);
+    ByteBuffer buf = ensure(size + 3);
+    buf.put(type);
+    longToStr(value, buf, buf.position());
+    buf.put(CRLF);
+  }
+  
+  /**
+   * Writes array header
+   * @param len array length (-1 - null array)
+   */
+  public void writeArrayHeader(long len) {
+    writeHeader(Utils.ARR_TYPE, len);
+  }
+  
+  /**
+   * Writes integer
+   * @param value value
+   */
+  public void writeInteger(long value) {
+    writeHeader(Utils.INT_TYPE, value);
+  }
+  
+  /**
+   * Writes bulk string
+   * @param ptr address
+   * @param size size (-1 - null)
+   */
+  public void writeBulk(long ptr, int size) {
+    writeHeader(Utils.BULK_TYPE, size);
+    if (size >= 0) {
+      write(ptr, size);
+      write(CRLF);
+    }
+  }
+  
+  /**
+   * Writes bulk string
+   * @param b byte array (null - null string)
+   */
+  public void writeBulk(byte[] b) {
+    writeHeader(Utils.BULK_TYPE, b == null? -1: b.length);
+    if (b != null) {
+      write(b);
+      write(CRLF);
+    }
+  }
+  
+  /**
+   * Writes simple string
+   * @param b string bytes
+   */
+  public void writeSimple(byte[] b) {
+    write(Utils.PLUS);
+    write(b);
+    write(CRLF);
+  }
+  
+  /**
+   * Writes error
+   * @param b error message bytes
+   */
+  public void writeError(byte[] b) {
+    write(Utils.ERR_TYPE);
+    write(b);
+    write(CRLF);
+  }
+}
@@ -55,6 +55,16 @@ public class Utils {
   static final byte[] OK_RESP = "+OK\r\n".getBytes();
   static final byte[] CRLF = "\r\n".getBytes();
   
+  /*
+   * Request arguments table (offset, length) for in place request conversion
+   */
+  private static ThreadLocal<int[]> argsTLS = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[64];
+    }
+  };
+  
   
   /**
    * Converts Redis request (raw) to an internal Carrot 
@@ -104,7 +114,7 @@ public class Utils {
         return false;
       }
       int strlen =  (int) strToLong(buf, pos + 1, lsize - 3);
-      if (strlen <= 0) {
+      if (strlen < 0) {
         return false;
       }
       if (buf.get(pos) != BULK_TYPE) {
@@ -202,13 +212,37 @@ public class Utils {
   public static boolean requestToCarrot(ByteBuffer buf, long ptr, int size) {
     
     buf.flip(); // do not double flip!!!
+    return requestToCarrot(buf, 0, buf.limit(), ptr, size);
+  }
+  
+  /**
+   * Converts a single Redis request (raw), which occupies [off, off + length) 
+   * range of a buffer, to an internal Carrot representation. This is used in 
+   * a pipelining mode, when buffer contains multiple requests. 
+   * Provided memory buffer MUST be sufficient to keep all converted data
+   * @param buf request data
+   * @param off request offset in a buffer
+   * @param length request length (see {@link #requestLength(ByteBuffer, int, int)})
+   * @param ptr memory pointer, for Carrot representation
+   * @param size memory size
+   * @return true if success, false - otherwise (wrong request format)
+   */
+  public static boolean requestToCarrot(ByteBuffer buf, int off, int length, long ptr, int size) {
     int len = 0;
+    int end = off + length;
     // Check first byte
-    if (ARR_TYPE != buf.get(0)) {
-      buf.rewind();
+    if (ARR_TYPE != buf.get(off)) {
+      // Cut trailing CR/LF (if any) from in-line request
+      while (end > off && (buf.get(end - 1) == (byte) '\n' || buf.get(end - 1) == (byte) '\r')) {
+        end--;
+      }
+      buf.limit(end);
+      buf.position(off);
       // Try in-line request mode
       return inlineRequestToCarrot(buf, ptr, size);
     }
+    buf.limit(end);
+    buf.position(off);
     // Read first line to get array length
     int lsize = readLine(buf);
     if (lsize < 0) {
@@ -216,7 +250,7 @@ public class Utils {
       return false;
     }
     // Read array length
-    len = (int) strToLong(buf, 1, lsize - 3 /*less first byte and last two */);
+    len = (int) strToLong(buf, off + 1, lsize - 3 /*less first byte and last two */);
     if (len <= 0) {
       return false;
     }
@@ -225,7 +259,7 @@ public class Utils {
     // Advance memory pointer
     ptr += SIZEOF_INT;
 
-    int pos = lsize;
+    int pos = off + lsize;
     // move to next line
     buf.position(pos);
     
@@ -236,7 +270,7 @@ public class Utils {
         return false;
       }
       int strlen =  (int) strToLong(buf, pos + 1, lsize - 3);
-      if (strlen <= 0) {
+      if (strlen < 0) {
         return false;
       }
       if (buf.get(pos) != BULK_TYPE) {
@@ -258,6 +292,197 @@ public class Utils {
     return true;
   }
   
+  /**
+   * Returns length of a first complete Redis request (either RESP array of bulk strings 
+   * or in-line request terminated by LF), which starts at a given offset. 
+   * Buffer position and limit are not changed.
+   * @param buf request data
+   * @param off offset of a request
+   * @param limit end of a data (exclusive)
+   * @return length of a request in bytes, 0 - if request is not complete yet, 
+   *         -1 - wrong request format
+   */
+  public static int requestLength(ByteBuffer buf, int off, int limit) {
+    if (off >= limit) {
+      return 0;
+    }
+    if (ARR_TYPE != buf.get(off)) {
+      // In-line request
+      for (int i = off; i < limit; i++) {
+        if (buf.get(i) == (byte) '\n') {
+          return i - off + 1;
+        }
+      }
+      return 0;
+    }
+    int eol = findCRLF(buf, off, limit);
+    if (eol < 0) {
+      return 0;
+    }
+    int len = (int) strToLongOrMin(buf, off + 1, eol - off - 1);
+    if (len <= 0) {
+      return -1;
+    }
+    int pos = eol + 2;
+    for (int i = 0; i < len; i++) {
+      if (pos >= limit) {
+        return 0;
+      }
+      if (buf.get(pos) != BULK_TYPE) {
+        return -1;
+      }
+      eol = findCRLF(buf, pos, limit);
+      if (eol < 0) {
+        return 0;
+      }
+      int strlen = (int) strToLongOrMin(buf, pos + 1, eol - pos - 1);
+      if (strlen < 0) {
+        return -1;
+      }
+      pos = eol + 2 + strlen + 2; // 2 - \r\n
+      if (pos > limit) {
+        return 0;
+      }
+    }
+    return pos - off;
+  }
+  
+  /**
+   * Finds the next request boundary after a request in a wrong format: the next line,
+   * which starts with an array type byte. Buffer position and limit are not changed.
+   * @param buf request data
+   * @param off offset of a wrong request
+   * @param limit end of a data (exclusive)
+   * @return number of bytes to skip
+   */
+  public static int skipWrongRequest(ByteBuffer buf, int off, int limit) {
+    int pos = off + 1;
+    int eol;
+    while ((eol = findCRLF(buf, pos, limit)) >= 0) {
+      pos = eol + 2;
+      if (pos == limit || buf.get(pos) == ARR_TYPE) {
+        return pos - off;
+      }
+    }
+    // Keep trailing CR, LF can follow
+    return buf.get(limit - 1) == (byte) '\r'? limit - 1 - off: limit - off;
+  }
+  
+  /**
+   * Converts a single RESP request (array of bulk strings), which occupies 
+   * [off, off + length) range of a direct buffer, to an internal Carrot 
+   * representation in place, inside the buffer itself. Carrot representation 
+   * is always more compact than RESP, so it is aligned to the end of the last 
+   * argument: the last argument (usually the largest one - a value) is never copied,
+   * and only preceding arguments are moved towards it. Buffer position and limit 
+   * are not changed, request data in the buffer is overwritten.
+   * @param buf request data (direct buffer)
+   * @param off request offset in a buffer
+   * @param length request length (see {@link #requestLength(ByteBuffer, int, int)})
+   * @return address of a request in a Carrot format or 0, if request can not be
+   *   converted in place (heap buffer, in-line request or wrong format)
+   */
+  public static long requestToCarrotInPlace(ByteBuffer buf, int off, int length) {
+    if (!buf.isDirect() || ARR_TYPE != buf.get(off)) {
+      return 0;
+    }
+    int limit = off + length;
+    int eol = findCRLF(buf, off, limit);
+    if (eol < 0) {
+      return 0;
+    }
+    int len = (int) strToLongOrMin(buf, off + 1, eol - off - 1);
+    if (len <= 0) {
+      return 0;
+    }
+    int[] args = getArgsTable(len);
+    int pos = eol + 2;
+    for (int i = 0; i < len; i++) {
+      if (pos >= limit || buf.get(pos) != BULK_TYPE) {
+        return 0;
+      }
+      eol = findCRLF(buf, pos, limit);
+      if (eol < 0) {
+        return 0;
+      }
+      int strlen = (int) strToLongOrMin(buf, pos + 1, eol - pos - 1);
+      if (strlen < 0 || eol + 2 + strlen > limit) {
+        return 0;
+      }
+      // Argument's offset and length
+      args[2 * i] = eol + 2;
+      args[2 * i + 1] = strlen;
+      pos = eol + 2 + strlen + 2; // 2 - \r\n
+    }
+    long address = UnsafeAccess.address(buf);
+    if (address <= 0) {
+      return 0;
+    }
+    // Build Carrot representation backwards, starting from the end of the last argument
+    long ptr = address + args[2 * len - 2] + args[2 * len - 1];
+    for (int i = len - 1; i >= 0; i--) {
+      int strlen = args[2 * i + 1];
+      ptr -= strlen;
+      long src = address + args[2 * i];
+      if (src != ptr) {
+        UnsafeAccess.move(src, ptr, strlen);
+      }
+      ptr -= SIZEOF_INT;
+      UnsafeAccess.putInt(ptr, strlen);
+    }
+    ptr -= SIZEOF_INT;
+    UnsafeAccess.putInt(ptr, len);
+    return ptr;
+  }
+  
+  /**
+   * Get thread local argument table (offset, length pairs) 
+   * @param numArgs number of arguments
+   * @return table
+   */
+  private static int[] getArgsTable(int numArgs) {
+    int[] args = argsTLS.get();
+    if (args.length < 2 * numArgs) {
+      args = new int[2 * numArgs];
+      argsTLS.set(args);
+    }
+    return args;
+  }
+  
+  /**
+   * Finds position of a next CR/LF combo
+   * @param buf byte buffer
+   * @param off start offset
+   * @param limit end of a data (exclusive)
+   * @return position of CR or -1, if not found
+   */
+  private static int findCRLF(ByteBuffer buf, int off, int limit) {
+    for (int i = off; i < limit - 1; i++) {
+      if (buf.get(i) == (byte) '\r' && buf.get(i + 1) == (byte) '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+  
+  /**
+   * Parses number, does not throw exception
+   * @param buf byte buffer
+   * @param off offset
+   * @param size size of a number string
+   * @return number or Long.MIN_VALUE, if format is wrong
+   */
+  private static long strToLongOrMin(ByteBuffer buf, int off, int size) {
+    if (size <= 0) {
+      return Long.MIN_VALUE;
+    }
+    try {
+      return strToLong(buf, off, size);
+    } catch (NumberFormatException e) {
+      return Long.MIN_VALUE;
+    }
+  }
+  
   /**
    * Scans byte buffer till next CR/LF combo
    * 
@@ -369,43 +594,51 @@ public class Utils {
    * @param buf Redis response buffer
    */
   public static void carrotToRedisResponse(long ptr, ByteBuffer buf) {
-    buf.rewind();
+    carrotToRedisResponse(ptr, new RespWriter(buf));
+  }
+  
+  /**
+   * Converts internal Carrot message to a Redis response format
+   * @param ptr memory address of a serialized Carrot response
+   * @param w Redis response writer
+   */
+  public static void carrotToRedisResponse(long ptr, RespWriter w) {
     int val = UnsafeAccess.toByte(ptr);
     ReplyType type = ReplyType.values()[val];
     
     switch(type) {
       case OK: 
-        okResponse(ptr, buf);
+        okResponse(ptr, w);
         break;
       case SIMPLE:
-        simpleResponse(ptr, buf);
+        simpleResponse(ptr, w);
         break;
       case INTEGER: 
-        intResponse(ptr, buf);
+        intResponse(ptr, w);
         break;
       case BULK_STRING:
-        bulkResponse(ptr, buf);
+        bulkResponse(ptr, w);
         break;
       case ARRAY:
-        arrayResponse(ptr, buf);
+        arrayResponse(ptr, w);
         break;
       case INT_ARRAY:
-        intArrayResponse(ptr, buf);
+        intArrayResponse(ptr, w);
         break;
       case VARRAY:
-        varrayResponse(ptr, buf);
+        varrayResponse(ptr, w);
         break;
       case ZARRAY:
-        zarrayResponse(ptr, buf);
+        zarrayResponse(ptr, w);
         break;
       case ZARRAY1:
-        zarray1Response(ptr, buf);
+        zarray1Response(ptr, w);
         break;
       case MULTI_BULK:
-        multiBulkResponse(ptr, buf);
+        multiBulkResponse(ptr, w);
         break;
       case ERROR:
-        errorResponse(ptr, buf);
+        errorResponse(ptr, w);
         break;
       default:
         throw new IllegalArgumentException(String.format("Illegal number response type %d", type.ordinal()));
@@ -413,26 +646,23 @@ public class Utils {
     }
   }
   
-  private static void simpleResponse(long ptr, ByteBuffer buf) {
-    buf.put(PLUS);
+  private static void simpleResponse(long ptr, RespWriter w) {
+    w.write(PLUS);
     int len = UnsafeAccess.toInt(ptr + SIZEOF_BYTE);
-    UnsafeAccess.copy(ptr + SIZEOF_BYTE + SIZEOF_INT, buf, len);
-    buf.put(CRLF);
+    w.write(ptr + SIZEOF_BYTE + SIZEOF_INT, len);
+    w.write(CRLF);
   }
 
-  private static void multiBulkResponse(long ptr, ByteBuffer buf) {
-    buf.put(ARR_TYPE);
-    longToStr(2, buf, buf.position());
-    buf.put(CRLF);
+  private static void multiBulkResponse(long ptr, RespWriter w) {
+    w.writeArrayHeader(2);
     // 1. CURSOR
-    buf.put(BULK_TYPE);
     ptr += SIZEOF_BYTE; // skip multi bulk type    
     ptr += SIZEOF_BYTE; // skip type
     long cursor = UnsafeAccess.toLong(ptr);
     int curlen = stringSize(cursor);
     ptr += SIZEOF_LONG;
-    longToStr(curlen, buf, buf.position());
-    buf.put(CRLF);
+    w.writeHeader(BULK_TYPE, curlen);
+    ByteBuffer buf = w.ensure(RespWriter.MAX_HEADER_SIZE);
     longToStr(cursor, buf, buf.position());
     buf.put(CRLF);
     int itype = UnsafeAccess.toByte(ptr);
@@ -440,10 +670,10 @@ public class Utils {
 
     switch (type) {
       case VARRAY:
-        varrayResponse(ptr, buf);
+        varrayResponse(ptr, w);
         break;
       case ZARRAY:
-        zarrayResponse(ptr, buf);
+        zarrayResponse(ptr, w);
       default:
         //TODO
     }
@@ -452,28 +682,22 @@ public class Utils {
   /**
    * Converts ZARRAY1 Carrot type to a Redis response
    * @param ptr memory address of a serialized Carrot response 
-   * @param buf Redis response buffer
+   * @param w Redis response writer
    */
-  private static void zarray1Response(long ptr, ByteBuffer buf) {
-    buf.put(ARR_TYPE);
+  private static void zarray1Response(long ptr, RespWriter w) {
     ptr += SIZEOF_BYTE;
     // skip serialized size for now TODO: later
     ptr += SIZEOF_INT;
     int len = UnsafeAccess.toInt(ptr);
     ptr += SIZEOF_INT;
-    longToStr(len , buf, buf.position());
-    buf.put(CRLF);
+    w.writeArrayHeader(len);
     
     for (int i = 0; i < len; i++) {
       int size = readUVInt(ptr);
       ptr += sizeUVInt(size) + SIZEOF_DOUBLE;
       size -= SIZEOF_DOUBLE;
       // Write field
-      buf.put(BULK_TYPE);
-      longToStr(size, buf, buf.position());
-      buf.put(CRLF);
-      UnsafeAccess.copy(ptr, buf, size);
-      buf.put(CRLF);
+      w.writeBulk(ptr, size);
       ptr += size;
     }        
   }
@@ -481,17 +705,15 @@ public class Utils {
   /**
    * Converts ZARRAY Carrot type to a Redis response
    * @param ptr memory address of a serialized Carrot response 
-   * @param buf Redis response buffer
+   * @param w Redis response writer
    */
-  private static void zarrayResponse(long ptr, ByteBuffer buf) {
-    buf.put(ARR_TYPE);
+  private static void zarrayResponse(long ptr, RespWriter w) {
     ptr += SIZEOF_BYTE;
     // skip serialized size for now TODO: later
     ptr += SIZEOF_INT;
     int len = UnsafeAccess.toInt(ptr);
     ptr += SIZEOF_INT;
-    longToStr(2 * len /* score+field*/, buf, buf.position());
-    buf.put(CRLF);
+    w.writeArrayHeader(2 * len /* score+field*/);
     
     for (int i = 0; i < len; i++) {
       // Read total size (score + field)
@@ -499,20 +721,15 @@ public class Utils {
       ptr += sizeUVInt(size);
       
       // Write field
-      buf.put(BULK_TYPE);
-      longToStr(size - SIZEOF_DOUBLE, buf, buf.position());
-      buf.put(CRLF);
-      UnsafeAccess.copy(ptr + SIZEOF_DOUBLE, buf, size - SIZEOF_DOUBLE);
-      buf.put(CRLF);
+      w.writeBulk(ptr + SIZEOF_DOUBLE, size - SIZEOF_DOUBLE);
       // Write score (double - 8 bytes)
       double score = lexToDouble(ptr);
       //TODO: optimize conversion w/o object creation
       // Get score
       String s = Double.toString(score);
       int slen = s.length();
-      buf.put(BULK_TYPE);     
-      longToStr(slen, buf, buf.position());
-      buf.put(CRLF);
+      w.writeHeader(BULK_TYPE, slen);
+      ByteBuffer buf = w.ensure(slen + CRLF.length);
       strToByteBuffer(s, buf);
       buf.put(CRLF);
       ptr += size;
@@ -522,28 +739,24 @@ public class Utils {
   /**
    * Converts VARRAY Carrot type to a Redis response
    * @param ptr memory address of a serialized Carrot response 
-   * @param buf Redis response buffer
+   * @param w Redis response writer
    */
-  private static void varrayResponse(long ptr, ByteBuffer buf) {
-    buf.put(ARR_TYPE);
+  private static void varrayResponse(long ptr, RespWriter w) {
     ptr += SIZEOF_BYTE;
     // skip serialized size for now TODO: later
     ptr += SIZEOF_INT;
     int len = UnsafeAccess.toInt(ptr);
     ptr += SIZEOF_INT;
-    longToStr(len, buf, buf.position());
-    buf.put(CRLF);
+    w.writeArrayHeader(len);
     
     for (int i = 0; i < len; i++) {
       int size = readUVInt(ptr);
       int sizeSize = sizeUVInt(size);
       ptr += sizeSize;
-      buf.put(BULK_TYPE);
-      longToStr(size, buf, buf.position());
-      buf.put(CRLF);
+      w.writeHeader(BULK_TYPE, size);
       if(size > 0) {
-        UnsafeAccess.copy(ptr, buf, size);
-        buf.put(CRLF);
+        w.write(ptr, size);
+        w.write(CRLF);
         ptr += size;
       }
     }    
@@ -551,158 +764,140 @@ public class Utils {
   /**
    * Converts ERROR Carrot type to a Redis response
    * @param ptr memory address of a serialized Carrot response 
-   * @param buf Redis response buffer
+   * @param w Redis response writer
    */
-  private static void errorResponse(long ptr, ByteBuffer buf) {
-    buf.put(ERR_TYPE);
+  private static void errorResponse(long ptr, RespWriter w) {
+    w.write(ERR_TYPE);
     ptr += SIZEOF_BYTE;
     int msgLen = UnsafeAccess.toInt(ptr);
     ptr += SIZEOF_INT;
-    UnsafeAccess.copy(ptr, buf, msgLen);
-    buf.position(SIZEOF_BYTE + msgLen);
-    buf.put(CRLF);
-    
+    w.write(ptr, msgLen);
+    w.write(CRLF);
   }
 
   /**
    * Converts TYPED_ARRAY Carrot type to a Redis response
    * TODO: currently we support only INT types
    * @param ptr memory address of a serialized Carrot response 
-   * @param buf Redis response buffer
+   * @param w Redis response writer
    */
-  private static void intArrayResponse(long ptr, ByteBuffer buf) {
-    buf.put(ARR_TYPE);
+  private static void intArrayResponse(long ptr, RespWriter w) {
     ptr += SIZEOF_BYTE;
     // skip serialized size for now TODO: later
     ptr += SIZEOF_INT;
     int len = UnsafeAccess.toInt(ptr);
     ptr += SIZEOF_INT;
-    longToStr(len, buf, buf.position());
-    buf.put(CRLF);
+    w.writeArrayHeader(len);
     for (int i=0; i < len; i++) {
       // Works only with ints
       long val = UnsafeAccess.toLong(ptr);
       ptr += SIZEOF_LONG;
-      buf.put(INT_TYPE);
-      longToStr(val, buf, buf.position());
-      buf.put(CRLF);
+      w.writeInteger(val);
     }    
   }
 
   /**
    * Converts simple ARRAY Carrot type to a Redis response
    * @param ptr memory address of a serialized Carrot response 
-   * @param buf Redis response buffer
+   * @param w Redis response writer
    */
-  private static void arrayResponse(long ptr, ByteBuffer buf) {
-    buf.put(ARR_TYPE);
+  private static void arrayResponse(long ptr, RespWriter w) {
     ptr += SIZEOF_BYTE;
+    if (UnsafeAccess.toInt(ptr) < 0) {
+      // NULL array
+      w.writeArrayHeader(-1);
+      return;
+    }
     // skip serialized size for now TODO: later
     ptr += SIZEOF_INT;
     int len = UnsafeAccess.toInt(ptr);
     ptr += SIZEOF_INT;
-    longToStr(len, buf, buf.position());
-    buf.put(CRLF);
+    w.writeArrayHeader(len);
     
     for (int i = 0; i < len; i++) {
       int size = UnsafeAccess.toInt(ptr);
       ptr += SIZEOF_INT;
-      buf.put(BULK_TYPE);
-      longToStr(size, buf, buf.position());
-      buf.put(CRLF);
+      w.writeBulk(ptr, size);
       if(size >= 0) {
-        UnsafeAccess.copy(ptr, buf, size);
-        buf.put(CRLF);
         ptr += size;
       }
     }
   }
 
   /**
-   * This call is used for CLUSTER SLOTS
+   * This call is used for CLUSTER SLOTS and SLOWLOG GET
    * @param data array objects
    * @param buf buffer to serialize to
    */
   public static void serializeTypedArray(Object[] data, ByteBuffer buf) {
-    buf.put(ARR_TYPE);
+    serializeTypedArray(data, new RespWriter(buf));
+  }
+  
+  /**
+   * This call is used for CLUSTER SLOTS and SLOWLOG GET
+   * @param data array objects
+   * @param w writer to serialize to
+   */
+  public static void serializeTypedArray(Object[] data, RespWriter w) {
     int len = data == null? -1: data.length;
-    longToStr(len, buf, buf.position());
-    buf.put(CRLF);
+    w.writeArrayHeader(len);
     if (len < 0) return;
     for (int i = 0; i < data.length; i++) {
-      serializeObject(data[i], buf);
+      serializeObject(data[i], w);
     }
   }
   
-  private static void serializeObject(Object obj, ByteBuffer buf) {
+  private static void serializeObject(Object obj, RespWriter w) {
     if (obj instanceof Long) {
       Long value = (Long) obj;
-      serializeLong(value, buf);
+      w.writeInteger(value);
     } else if (obj instanceof String) {
       String value = (String) obj;
-      serializeString(value, buf);
+      w.writeBulk(value.getBytes());
+    } else if (obj instanceof byte[]) {
+      byte[] value = (byte[]) obj;
+      w.writeBulk(value);
     } else if (obj instanceof Object[]) {
       Object[] value = (Object[]) obj;
-      serializeTypedArray(value, buf);
-    }
-  }
-
-  private static void serializeLong(long value, ByteBuffer buf) {
-    buf.put(INT_TYPE);
-    longToStr(value, buf, buf.position());
-    buf.put(CRLF);
-  }
-  
-  private static void serializeString(String s, ByteBuffer buf) {
-    buf.put(BULK_TYPE);  
-    int len = s == null? -1: s.length();
-    longToStr(len, buf, buf.position());
-    buf.put(CRLF);
-    if (len > 0) {
-      buf.put(s.getBytes());
-      buf.put(CRLF);
+      serializeTypedArray(value, w);
     }
   }
   
   /**
    * Converts BULK_STRING Carrot type to a Redis response
    * @param ptr memory address of a serialized Carrot response 
-   * @param buf Redis response buffer
+   * @param w Redis response writer
    */
-  private static void bulkResponse(long ptr, ByteBuffer buf) {
-    buf.put(BULK_TYPE);  
+  private static void bulkResponse(long ptr, RespWriter w) {
     ptr += SIZEOF_BYTE;
     int len = UnsafeAccess.toInt(ptr);
     ptr += SIZEOF_INT;
-    longToStr(len, buf, buf.position());
-    buf.put(CRLF);
-    if (len > 0) {
-      UnsafeAccess.copy(ptr, buf, len);
-      buf.put(CRLF);
+    w.writeHeader(BULK_TYPE, len);
+    // Empty string: $0\r\n\r\n, null string: $-1\r\n
+    if (len >= 0) {
+      w.write(ptr, len);
+      w.write(CRLF);
     }
-
   }
 
   /**
    * Converts INTEGER Carrot type to a Redis response
    * @param ptr memory address of a serialized Carrot response 
-   * @param buf Redis response buffer
+   * @param w Redis response writer
    */
-  private static void intResponse(long ptr, ByteBuffer buf) {
-    buf.put(INT_TYPE);
+  private static void intResponse(long ptr, RespWriter w) {
     ptr += SIZEOF_BYTE;
     long value = UnsafeAccess.toLong(ptr);
-    longToStr(value, buf, buf.position());
-    buf.put(CRLF);
+    w.writeInteger(value);
   }
 
   /**
    * Converts OK Carrot type to a Redis response
    * @param ptr memory address of a serialized Carrot response 
-   * @param buf Redis response buffer
+   * @param w Redis response writer
    */
-  private static void okResponse(long ptr, ByteBuffer buf) {
-    buf.put(OK_RESP);
+  private static void okResponse(long ptr, RespWriter w) {
+    w.write(OK_RESP);
   }
   
 }
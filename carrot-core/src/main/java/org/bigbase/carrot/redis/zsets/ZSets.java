@@ -517,15 +517,15 @@ public class ZSets {
   public static long ZADD_GENERIC(BigSortedMap map, long keyPtr, int keySize, double[] scores,
       long[] memberPtrs, int[] memberSizes, boolean changed /* CH */, MutationOptions options) {
     
-    if ( options != MutationOptions.XX && !Sets.keyExists(map, keyPtr, keySize)) {
-      return ZADD_NEW(map, keyPtr, keySize, scores, memberPtrs, memberSizes);
-    }
     Key k = getKey(keyPtr, keySize);
     try {
       
       // Redis lock
       KeysLocker.writeLock(k);
-
+      // Check under lock, concurrent ZADD can create the set
+      if ( options != MutationOptions.XX && !Sets.keyExists(map, keyPtr, keySize)) {
+        return ZADD_NEW(map, keyPtr, keySize, scores, memberPtrs, memberSizes);
+      }
       int toAdd = memberPtrs.length;
       int inserted = 0;
       int updated = 0;
@@ -4818,9 +4818,6 @@ public class ZSets {
  }
  
  /**
-  * 
-  * TODO: optimize for speed
-  * 
   * Returns the scores associated with the specified members in the sorted set stored at key.
   * For every member that does not exist in the sorted set, a nil value is returned.
   * Return value
@@ -4842,24 +4839,53 @@ public class ZSets {
    long ptr = bufferPtr + Utils.SIZEOF_INT;
    long max = bufferPtr + bufferSize;
    int count = 0;
-   
-   for (int i = 0; i < memberPtrs.length; i++) {
-     Double d = ZSCORE(map, keyPtr, keySize, memberPtrs[i], memberSizes[i]);
-     if (d != null) {
-       int len = Utils.doubleToStr(d.doubleValue(), ptr + Utils.SIZEOF_INT, (int) (max - ptr - Utils.SIZEOF_INT));
-       if (len + Utils.SIZEOF_INT <= max - ptr) {
-         UnsafeAccess.putInt(ptr, len);
-         count++;
+   Key key = getKey(keyPtr, keySize);
+   try {
+     KeysLocker.readLock(key);
+     long cardinality = ZCARD(map, keyPtr, keySize, false);
+     long maxCompactSize = RedisConf.getInstance().getMaxZSetCompactSize();
+     long scores = 0;
+     if (cardinality >= maxCompactSize) {
+       // Get all scores from Hash in a single batch
+       int required = memberPtrs.length * (Utils.SIZEOF_INT + Utils.SIZEOF_DOUBLE) + Utils.SIZEOF_INT;
+       long size;
+       checkValueArena(required);
+       while ((size = Hashes.HMGET(map, keyPtr, keySize, memberPtrs, memberSizes, 
+         valueArena.get(), valueArenaSize.get(), false)) > valueArenaSize.get()) {
+         checkValueArena((int) size);
        }
-       ptr += Utils.SIZEOF_INT + len;
-     } else {
-       if (Utils.SIZEOF_INT <= max - ptr) {
-         // NULL
-         UnsafeAccess.putInt(ptr, -1);
-         count++;
+       scores = valueArena.get() + Utils.SIZEOF_INT;
+     }
+     for (int i = 0; i < memberPtrs.length; i++) {
+       Double d = null;
+       if (scores > 0) {
+         int size = UnsafeAccess.toInt(scores);
+         if (size > 0) {
+           d = Utils.lexToDouble(scores + Utils.SIZEOF_INT);
+         }
+         scores += Utils.SIZEOF_INT + (size > 0? size: 0);
+       } else {
+         d = ZSCORE(map, keyPtr, keySize, memberPtrs[i], memberSizes[i]);
+       }
+       if (d != null) {
+         int len = Utils.doubleToStr(d.doubleValue(), ptr + Utils.SIZEOF_INT, 
+           (int) (max - ptr - Utils.SIZEOF_INT));
+         if (len + Utils.SIZEOF_INT <= max - ptr) {
+           UnsafeAccess.putInt(ptr, len);
+           count++;
+         }
+         ptr += Utils.SIZEOF_INT + len;
+       } else {
+         if (Utils.SIZEOF_INT <= max - ptr) {
+           // NULL
+           UnsafeAccess.putInt(ptr, -1);
+           count++;
+         }
+         ptr += Utils.SIZEOF_INT;
        }
-       ptr += Utils.SIZEOF_INT;
      }
+   } finally {
+     KeysLocker.readUnlock(key);
    }
    
    // Write number of elements
@@ -4924,16 +4950,25 @@ public class ZSets {
    * @param timeout timeout in ms
    * @param buffer buffer for the result
    * @param bufferSize buffer size
-   * @return size of a serialized response, if this size is greater than buffer size,
-   *         the call must be repeated with the appropriately sized buffer
+   * @return size of a serialized response (index of a key (4 bytes) + ZPOPMIN response), 
+   *         if this size is greater than buffer size, the call must be repeated with 
+   *         the appropriately sized buffer, 0 - all sets are empty
+   * 
+   * Buffer format:
+   * 
+   * Key index = 4 bytes
+   * ZPOPMIN response
    */
   public static long BZPOPMIN (BigSortedMap map, long[] keys, int[] sizes, long timeout, long buffer, int bufferSize) {
     // This is non-blocking call
-    // Timeout MUST be implemented outside of a handler thread
+    // Timeout is implemented outside of a handler thread (see BlockedClients)
     for(int i=0; i < keys.length; i++) {
-      long size = ZPOPMIN(map, keys[i], sizes[i], 1, buffer, bufferSize);
+      long size = ZPOPMIN(map, keys[i], sizes[i], 1, buffer + Utils.SIZEOF_INT, 
+        bufferSize - Utils.SIZEOF_INT);
       if (size > 0) {
-        return size;
+        // Set index
+        UnsafeAccess.putInt(buffer, i);
+        return size + Utils.SIZEOF_INT;
       }
     }
     return 0;
@@ -4965,16 +5000,25 @@ public class ZSets {
    * @param timeout timeout in ms
    * @param buffer buffer for the result
    * @param bufferSize buffer size
-   * @return size of a serialized response, if this size is greater than buffer size,
-   *         the call must be repeated with the appropriately sized buffer
+   * @return size of a serialized response (index of a key (4 bytes) + ZPOPMAX response), 
+   *         if this size is greater than buffer size, the call must be repeated with 
+   *         the appropriately sized buffer, 0 - all sets are empty
+   * 
+   * Buffer format:
+   * 
+   * Key index = 4 bytes
+   * ZPOPMAX response
    */
   public static long BZPOPMAX (BigSortedMap map, long[] keys, int[] sizes, long timeout, long buffer, int bufferSize) {
     // This is non-blocking call
-    // Timeout MUST be implemented outside of a handler thread
+    // Timeout is implemented outside of a handler thread (see BlockedClients)
     for(int i=0; i < keys.length; i++) {
-      long size = ZPOPMAX(map, keys[i], sizes[i], 1, buffer, bufferSize);
+      long size = ZPOPMAX(map, keys[i], sizes[i], 1, buffer + Utils.SIZEOF_INT, 
+        bufferSize - Utils.SIZEOF_INT);
       if (size > 0) {
-        return size;
+        // Set index
+        UnsafeAccess.putInt(buffer, i);
+        return size + Utils.SIZEOF_INT;
       }
     }
     return 0;
@@ -0,0 +1,190 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * File channel, which computes CRC32 checksum of all bytes sequentially 
+ * written to or read from a file (snapshot files). Positional I/O and 
+ * transfers are not supported.
+ */
+public class ChecksumFileChannel extends FileChannel {
+
+  private final FileChannel fc;
+  
+  private final CRC32 crc = new CRC32();
+  
+  /*
+   * Number of bytes passed through the channel
+   */
+  private long length;
+  
+  /**
+   * Constructor
+   * @param fc file channel
+   */
+  public ChecksumFileChannel(FileChannel fc) {
+    this.fc = fc;
+  }
+  
+  /**
+   * Get checksum of all written (read) bytes
+   * @return checksum
+   */
+  public long getChecksum() {
+    return crc.getValue();
+  }
+  
+  /**
+   * Get number of written (read) bytes
+   * @return number of bytes
+   */
+  public long getLength() {
+    return length;
+  }
+  
+  private void update(ByteBuffer buf, int pos, int n) {
+    if (n <= 0) {
+      return;
+    }
+    ByteBuffer b = buf.duplicate();
+    b.limit(pos + n);
+    b.position(pos);
+    crc.update(b);
+    length += n;
+  }
+  
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    int pos = dst.position();
+    int n = fc.read(dst);
+    update(dst, pos, n);
+    return n;
+  }
+
+  @Override
+  public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+    long total = 0;
+    for (int i = offset; i < offset + length; i++) {
+      int n = read(dsts[i]);
+      if (n < 0) {
+        return total == 0? -1: total;
+      }
+      total += n;
+      if (dsts[i].hasRemaining()) {
+        break;
+      }
+    }
+    return total;
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    int pos = src.position();
+    int n = fc.write(src);
+    update(src, pos, n);
+    return n;
+  }
+
+  @Override
+  public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    long total = 0;
+    for (int i = offset; i < offset + length; i++) {
+      total += write(srcs[i]);
+      if (srcs[i].hasRemaining()) {
+        break;
+      }
+    }
+    return total;
+  }
+
+  @Override
+  public long position() throws IOException {
+    return fc.position();
+  }
+
+  @Override
+  public FileChannel position(long newPosition) throws IOException {
+    throw new UnsupportedOperationException("position");
+  }
+
+  @Override
+  public long size() throws IOException {
+    return fc.size();
+  }
+
+  @Override
+  public FileChannel truncate(long size) throws IOException {
+    throw new UnsupportedOperationException("truncate");
+  }
+
+  @Override
+  public void force(boolean metaData) throws IOException {
+    fc.force(metaData);
+  }
+
+  @Override
+  public long transferTo(long position, long count, WritableByteChannel target)
+      throws IOException {
+    throw new UnsupportedOperationException("transferTo");
+  }
+
+  @Override
+  public long transferFrom(ReadableByteChannel src, long position, long count)
+      throws IOException {
+    throw new UnsupportedOperationException("transferFrom");
+  }
+
+  @Override
+  public int read(ByteBuffer dst, long position) throws IOException {
+    throw new UnsupportedOperationException("read");
+  }
+
+  @Override
+  public int write(ByteBuffer src, long position) throws IOException {
+    throw new UnsupportedOperationException("write");
+  }
+
+  @Override
+  public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+    throw new UnsupportedOperationException("map");
+  }
+
+  @Override
+  public FileLock lock(long position, long size, boolean shared) throws IOException {
+    return fc.lock(position, size, shared);
+  }
+
+  @Override
+  public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+    return fc.tryLock(position, size, shared);
+  }
+
+  @Override
+  protected void implCloseChannel() throws IOException {
+    fc.close();
+  }
+}
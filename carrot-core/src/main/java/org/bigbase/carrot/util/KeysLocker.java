@@ -17,35 +17,187 @@
  */
 package org.bigbase.carrot.util;
 
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.RedisConf;
+
 /**
  * THis helper class performs safe group Key/KeyValue locking/unlocking
  * 
+ * Keys are mapped to lock stripes by hash. Group locks acquire stripes in 
+ * ascending stripe order (duplicates are locked once), therefore concurrent
+ * group locks can not deadlock. Keys are often thread local objects, which
+ * can be reused while lock is held, therefore unlock releases stripes which 
+ * were recorded at lock time (locks must be released in reverse order)
  *
  */
 public class KeysLocker {
 
   /*
-   * Read-Write Lock TODO: StampedLock (Java 8)
+   * Read-Write Locks, number of stripes is a power of 2
+   */
+  static ReentrantReadWriteLock[] locks;
+  
+  /*
+   * Stripe mask
    */
-  static ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[11113];
+  static int mask;
+  
   static {
+    int n = BigSortedMap.getLockStripes(RedisConf.getInstance().getStoreLockStripes());
+    locks = new ReentrantReadWriteLock[n];
+    mask = n - 1;
     for (int i = 0; i < locks.length; i++) {
       locks[i] = new ReentrantReadWriteLock();
     }
   }
 
+  /**
+   * Locks held by a thread. Every lock call pushes its entries 
+   * (stripe << 1 | write) followed by number of entries
+   */
+  static class LockStack {
+    int[] entries = new int[32];
+    int size;
+    
+    void push(int v) {
+      if (size == entries.length) {
+        entries = Arrays.copyOf(entries, 2 * size);
+      }
+      entries[size++] = v;
+    }
+    
+    int pop() {
+      if (size == 0) {
+        throw new IllegalMonitorStateException("No keys locked by current thread");
+      }
+      return entries[--size];
+    }
+  }
+  
+  static ThreadLocal<LockStack> stack = new ThreadLocal<LockStack>() {
+    @Override
+    protected LockStack initialValue() {
+      return new LockStack();
+    }
+  };
+  
+  static ThreadLocal<int[]> stripes = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[16];
+    }
+  };
+  
+  /**
+   * Get lock stripe for a key hash
+   * @param hash key hash
+   * @return stripe index
+   */
+  private static int stripe(int hash) {
+    return hash & mask;
+  }
+  
+  /**
+   * Lock single stripe
+   * @param index stripe index
+   * @param write write lock if true, read lock - otherwise
+   */
+  private static void lock(int index, boolean write) {
+    ReentrantReadWriteLock lock = locks[index];
+    if (write) {
+      checkUpgrade(lock);
+      lock.writeLock().lock();
+    } else {
+      lock.readLock().lock();
+    }
+    LockStack s = stack.get();
+    s.push(index << 1 | (write? 1: 0));
+    s.push(1);
+  }
+  
+  /**
+   * Read lock can not be upgraded to write lock, this would block forever
+   * @param lock stripe lock
+   */
+  private static void checkUpgrade(ReentrantReadWriteLock lock) {
+    if (lock.getReadHoldCount() > 0 && !lock.isWriteLockedByCurrentThread()) {
+      throw new IllegalMonitorStateException("Read lock can not be upgraded to write lock");
+    }
+  }
+  
+  /**
+   * Lock group of stripes in ascending order
+   * @param indexes stripe indexes
+   * @param n number of indexes
+   * @param write write lock if true, read lock - otherwise
+   */
+  private static void lockAll(int[] indexes, int n, boolean write) {
+    Arrays.sort(indexes, 0, n);
+    if (write) {
+      for (int i = 0; i < n; i++) {
+        checkUpgrade(locks[indexes[i]]);
+      }
+    }
+    LockStack s = stack.get();
+    int count = 0;
+    for (int i = 0; i < n; i++) {
+      int index = indexes[i];
+      if (i > 0 && index == indexes[i - 1]) {
+        continue;
+      }
+      ReentrantReadWriteLock lock = locks[index];
+      if (write) {
+        lock.writeLock().lock();
+      } else {
+        lock.readLock().lock();
+      }
+      s.push(index << 1 | (write? 1: 0));
+      count++;
+    }
+    s.push(count);
+  }
+  
+  /**
+   * Releases stripes of the last lock call of the current thread
+   */
+  private static void unlock() {
+    LockStack s = stack.get();
+    int count = s.pop();
+    for (int i = 0; i < count; i++) {
+      int v = s.pop();
+      ReentrantReadWriteLock lock = locks[v >>> 1];
+      if ((v & 1) != 0) {
+        lock.writeLock().unlock();
+      } else {
+        lock.readLock().unlock();
+      }
+    }
+  }
+  
+  /**
+   * Get stripes buffer of a sufficient size
+   * @param n number of keys
+   * @return buffer
+   */
+  private static int[] getStripes(int n) {
+    int[] buf = stripes.get();
+    if (buf.length < n) {
+      buf = new int[n];
+      stripes.set(buf);
+    }
+    return buf;
+  }
+  
   /**
    * Read Lock Key
    * @param key
    */
   public static void readLock(Key key) {
-//    int hash = key.hashCode();
-//    int index = hash % locks.length;
-//    locks[index].readLock().lock();
+    lock(stripe(key.hashCode()), false);
   }
 
   /**
@@ -53,9 +205,7 @@ public class KeysLocker {
    * @param key
    */
   public static void readUnlock(Key key) {
-//    int hash = key.hashCode();
-//    int index = hash % locks.length;
-//    locks[index].readLock().unlock();
+    unlock();
   }
 
   /**
@@ -63,9 +213,7 @@ public class KeysLocker {
    * @param key
    */
   public static void readLock(KeyValue key) {
-//    int hash = key.hashCode();
-//    int index = hash % locks.length;
-//    locks[index].readLock().lock();
+    lock(stripe(key.hashCode()), false);
   }
 
   /**
@@ -73,9 +221,7 @@ public class KeysLocker {
    * @param key
    */
   public static void readUnlock(KeyValue key) {
-//    int hash = key.hashCode();
-//    int index = hash % locks.length;
-//    locks[index].readLock().unlock();
+    unlock();
   }
 
   /**
@@ -83,9 +229,7 @@ public class KeysLocker {
    * @param key
    */
   public static void writeLock(Key key) {
-//    int hash = key.hashCode();
-//    int index = hash % locks.length;
-//    locks[index].writeLock().lock();
+    lock(stripe(key.hashCode()), true);
   }
 
   /**
@@ -93,9 +237,7 @@ public class KeysLocker {
    * @param key
    */
   public static void writeUnlock(Key key) {
-//    int hash = key.hashCode();
-//    int index = hash % locks.length;
-//    locks[index].writeLock().unlock();
+    unlock();
   }
 
   /**
@@ -103,9 +245,7 @@ public class KeysLocker {
    * @param key
    */
   public static void writeLock(KeyValue key) {
-//    int hash = key.hashCode();
-//    int index = hash % locks.length;
-//    locks[index].writeLock().lock();
+    lock(stripe(key.hashCode()), true);
   }
 
   /**
@@ -113,9 +253,7 @@ public class KeysLocker {
    * @param key
    */
   public static void writeUnlock(KeyValue key) {
-//    int hash = key.hashCode(); 
-//    int index = hash % locks.length;
-//    locks[index].writeLock().unlock();
+    unlock();
   }
 
   /**
@@ -123,20 +261,15 @@ public class KeysLocker {
    * @param kvs list of KeyValues
    */
   public static void readLockAllKeyValues(List<KeyValue> kvs) {
-//    // Sort them first to avoid deadlocks in a future
-//    Collections.sort(kvs);
-//    for(int i=0; i < kvs.size(); i++) {
-//      readLock(kvs.get(i));
-//    }
+    lockAllKeyValues(kvs, false);
   }
+  
   /**
    * Read unlock list of KeyValues
    * @param kvs list of KeyValues
    */
   public static void readUnlockAllKeyValues(List<KeyValue> kvs) {
-//    for(int i=0; i < kvs.size(); i++) {
-//      readUnlock(kvs.get(i));
-//    }
+    unlock();
   }
   
   /**
@@ -144,20 +277,15 @@ public class KeysLocker {
    * @param kvs list of KeyValues
    */
   public static void writeLockAllKeyValues(List<KeyValue> kvs) {
-//    // Sort them first to avoid deadlocks in a future
-//    Collections.sort(kvs);
-//    for(int i=0; i < kvs.size(); i++) {
-//      writeLock(kvs.get(i));
-//    }
+    lockAllKeyValues(kvs, true);
   }
+  
   /**
    * Write unlock list of KeyValues
    * @param kvs list of KeyValues
    */
   public static void writeUnlockAllKeyValues(List<KeyValue> kvs) {
-//    for(int i=0; i < kvs.size(); i++) {
-//      writeUnlock(kvs.get(i));
-//    }
+    unlock();
   }
   
   /**
@@ -165,11 +293,7 @@ public class KeysLocker {
    * @param kvs list of Keys
    */
   public static void writeLockAllKeys(List<Key> kvs) {
-//    // Sort them first to avoid deadlocks in a future
-//    Collections.sort(kvs);
-//    for(int i=0; i < kvs.size(); i++) {
-//      writeLock(kvs.get(i));
-//    }
+    lockAllKeys(kvs, true);
   }
   
   /**
@@ -177,9 +301,7 @@ public class KeysLocker {
    * @param kvs list of Keys
    */
   public static void writeUnlockAllKeys(List<Key> kvs) {
-//    for(int i=0; i < kvs.size(); i++) {
-//      writeUnlock(kvs.get(i));
-//    }
+    unlock();
   }
   
   /**
@@ -187,19 +309,51 @@ public class KeysLocker {
    * @param kvs list of Keys
    */
   public static void readLockAllKeys(List<Key> kvs) {
-//    // Sort them first to avoid deadlocks in a future
-//    Collections.sort(kvs);
-//    for(int i=0; i < kvs.size(); i++) {
-//      readLock(kvs.get(i));
-//    }
+    lockAllKeys(kvs, false);
   }
+  
   /**
    * Read unlock list of Keys
    * @param kvs list of Keys
    */
   public static void readUnlockAllKeys(List<Key> kvs) {
-//    for(int i=0; i < kvs.size(); i++) {
-//      readUnlock(kvs.get(i));
-//    }
+    unlock();
+  }
+  
+  /**
+   * Write lock all stripes (commands, which change all keys)
+   */
+  public static void writeLockAll() {
+    int n = locks.length;
+    int[] indexes = getStripes(n);
+    for (int i = 0; i < n; i++) {
+      indexes[i] = i;
+    }
+    lockAll(indexes, n, true);
+  }
+  
+  /**
+   * Write unlock all stripes
+   */
+  public static void writeUnlockAll() {
+    unlock();
+  }
+  
+  private static void lockAllKeys(List<Key> kvs, boolean write) {
+    int n = kvs.size();
+    int[] indexes = getStripes(n);
+    for (int i = 0; i < n; i++) {
+      indexes[i] = stripe(kvs.get(i).hashCode());
+    }
+    lockAll(indexes, n, write);
+  }
+  
+  private static void lockAllKeyValues(List<KeyValue> kvs, boolean write) {
+    int n = kvs.size();
+    int[] indexes = getStripes(n);
+    for (int i = 0; i < n; i++) {
+      indexes[i] = stripe(kvs.get(i).hashCode());
+    }
+    lockAll(indexes, n, write);
   }
 }
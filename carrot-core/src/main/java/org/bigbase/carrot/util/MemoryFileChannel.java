@@ -0,0 +1,210 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * In - memory file channel, which collects all bytes sequentially written 
+ * to it into a byte array (copies of index blocks kept by a snapshot) or reads 
+ * sequentially from a given byte array. Positional I/O and transfers are not supported.
+ */
+public class MemoryFileChannel extends FileChannel {
+
+  private byte[] data;
+  
+  /*
+   * Number of written bytes
+   */
+  private int length;
+  
+  /*
+   * Read position
+   */
+  private int position;
+  
+  /**
+   * Constructor
+   * @param initialCapacity initial capacity in bytes
+   */
+  public MemoryFileChannel(int initialCapacity) {
+    this.data = new byte[Math.max(initialCapacity, 16)];
+  }
+  
+  /**
+   * Constructor of a channel for reading
+   * @param data bytes to read
+   */
+  public MemoryFileChannel(byte[] data) {
+    this.data = data;
+    this.length = data.length;
+  }
+  
+  /**
+   * Get copy of all written bytes
+   * @return byte array
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(data, length);
+  }
+  
+  /**
+   * Get number of written bytes
+   * @return number of bytes
+   */
+  public int getLength() {
+    return length;
+  }
+  
+  /**
+   * Discards all written bytes
+   */
+  public void reset() {
+    length = 0;
+    position = 0;
+  }
+  
+  private void ensureCapacity(int required) {
+    if (required <= data.length) {
+      return;
+    }
+    int capacity = data.length;
+    while (capacity < required) {
+      capacity <<= 1;
+      if (capacity < 0) {
+        capacity = Integer.MAX_VALUE - 8;
+        break;
+      }
+    }
+    data = Arrays.copyOf(data, capacity);
+  }
+  
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    if (position >= length) {
+      return -1;
+    }
+    int n = Math.min(dst.remaining(), length - position);
+    dst.put(data, position, n);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+    long total = 0;
+    for (int i = offset; i < offset + length; i++) {
+      int n = read(dsts[i]);
+      if (n < 0) {
+        return total == 0? -1: total;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    int n = src.remaining();
+    ensureCapacity(length + n);
+    src.get(data, length, n);
+    length += n;
+    return n;
+  }
+
+  @Override
+  public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    long total = 0;
+    for (int i = offset; i < offset + length; i++) {
+      total += write(srcs[i]);
+    }
+    return total;
+  }
+
+  @Override
+  public long position() throws IOException {
+    return position;
+  }
+
+  @Override
+  public FileChannel position(long newPosition) throws IOException {
+    throw new UnsupportedOperationException("position");
+  }
+
+  @Override
+  public long size() throws IOException {
+    return length;
+  }
+
+  @Override
+  public FileChannel truncate(long size) throws IOException {
+    throw new UnsupportedOperationException("truncate");
+  }
+
+  @Override
+  public void force(boolean metaData) throws IOException {
+  }
+
+  @Override
+  public long transferTo(long position, long count, WritableByteChannel target)
+      throws IOException {
+    throw new UnsupportedOperationException("transferTo");
+  }
+
+  @Override
+  public long transferFrom(ReadableByteChannel src, long position, long count)
+      throws IOException {
+    throw new UnsupportedOperationException("transferFrom");
+  }
+
+  @Override
+  public int read(ByteBuffer dst, long position) throws IOException {
+    throw new UnsupportedOperationException("read");
+  }
+
+  @Override
+  public int write(ByteBuffer src, long position) throws IOException {
+    throw new UnsupportedOperationException("write");
+  }
+
+  @Override
+  public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+    throw new UnsupportedOperationException("map");
+  }
+
+  @Override
+  public FileLock lock(long position, long size, boolean shared) throws IOException {
+    throw new UnsupportedOperationException("lock");
+  }
+
+  @Override
+  public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+    throw new UnsupportedOperationException("tryLock");
+  }
+
+  @Override
+  protected void implCloseChannel() throws IOException {
+  }
+}
@@ -950,6 +950,32 @@ public final class UnsafeAccess {
     }
   }
 
+  /**
+   * Move data in memory, source and destination ranges may overlap
+   * @param src source address
+   * @param dst destination address
+   * @param len number of bytes to move
+   */
+  public static void move(long src, long dst, long len) {
+    if (dst <= src || dst >= src + len) {
+      // Forward copy is safe
+      while (len > 0) {
+        long size = (len > UNSAFE_COPY_THRESHOLD) ? UNSAFE_COPY_THRESHOLD : len;
+        theUnsafe.copyMemory(src, dst, size);
+        len -= size;
+        src += size;
+        dst += size;
+      }
+      return;
+    }
+    // Copy backwards
+    while (len > 0) {
+      long size = (len > UNSAFE_COPY_THRESHOLD) ? UNSAFE_COPY_THRESHOLD : len;
+      len -= size;
+      theUnsafe.copyMemory(src + len, dst + len, size);
+    }
+  }
+  
   /**
    * Copy data in memory (no src check in a debug memory mode)
    * @param src source address
@@ -0,0 +1,152 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.bigbase.carrot.compression.CodecFactory;
+import org.bigbase.carrot.compression.CodecType;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Batch (multi - key) get
+ */
+public class BigSortedMapBatchGetTest {
+
+  int numKeys = 100000;
+  
+  BigSortedMap map;
+  
+  long[] keyPtrs;
+  
+  int[] keySizes;
+  
+  @After
+  public void tearDown() {
+    if (keyPtrs != null) {
+      for (long ptr: keyPtrs) {
+        UnsafeAccess.free(ptr);
+      }
+      keyPtrs = null;
+    }
+    if (map != null) {
+      map.dispose();
+      map = null;
+    }
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.NONE));
+  }
+  
+  private void load() {
+    map = new BigSortedMap(BigSortedMap.getGlobalAllocatedMemory() + 100000000L);
+    // Only even keys are loaded
+    for (int i = 0; i < numKeys; i += 2) {
+      byte[] key = ("KEY" + i).getBytes();
+      byte[] value = ("VALUE" + i).getBytes();
+      assertTrue(map.put(key, 0, key.length, value, 0, value.length, 0));
+    }
+  }
+  
+  private void batch(Random r, int n) {
+    keyPtrs = new long[n];
+    keySizes = new int[n];
+    for (int i = 0; i < n; i++) {
+      byte[] key = ("KEY" + r.nextInt(numKeys)).getBytes();
+      keyPtrs[i] = UnsafeAccess.allocAndCopy(key, 0, key.length);
+      keySizes[i] = key.length;
+    }
+  }
+  
+  private void verify(int n, int iterations) {
+    Random r = new Random(1);
+    int bufSize = 64 * n;
+    long buf = UnsafeAccess.malloc(bufSize);
+    int[] sizes = new int[n];
+    int[] offsets = new int[n];
+    for (int k = 0; k < iterations; k++) {
+      batch(r, n);
+      long total = map.get(keyPtrs, keySizes, buf, bufSize, Long.MAX_VALUE, sizes, offsets);
+      assertTrue(total <= bufSize);
+      long expectedTotal = 0;
+      for (int i = 0; i < n; i++) {
+        String key = Utils.toString(keyPtrs[i], keySizes[i]);
+        int id = Integer.parseInt(key.substring(3));
+        if (id % 2 == 1) {
+          assertEquals(-1, sizes[i]);
+          assertEquals(-1, offsets[i]);
+          continue;
+        }
+        String value = "VALUE" + id;
+        assertEquals(value.length(), sizes[i]);
+        assertEquals(value, Utils.toString(buf + offsets[i], sizes[i]));
+        expectedTotal += sizes[i];
+      }
+      assertEquals(expectedTotal, total);
+      for (long ptr: keyPtrs) {
+        UnsafeAccess.free(ptr);
+      }
+      keyPtrs = null;
+    }
+    UnsafeAccess.free(buf);
+  }
+  
+  @Test
+  public void testBatchGet() {
+    load();
+    verify(1, 100);
+    verify(10, 100);
+    verify(1000, 10);
+  }
+  
+  @Test
+  public void testBatchGetCompressed() {
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.LZ4));
+    load();
+    verify(10, 100);
+    verify(1000, 10);
+  }
+  
+  @Test
+  public void testBatchGetSmallBuffer() {
+    load();
+    int n = 100;
+    batch(new Random(2), n);
+    int[] sizes = new int[n];
+    int[] offsets = new int[n];
+    long total = map.get(keyPtrs, keySizes, 0, 0, Long.MAX_VALUE, sizes, offsets);
+    long expectedTotal = 0;
+    for (int i = 0; i < n; i++) {
+      // Nothing was copied
+      assertEquals(-1, offsets[i]);
+      expectedTotal += sizes[i] > 0? sizes[i]: 0;
+    }
+    assertEquals(expectedTotal, total);
+    long buf = UnsafeAccess.malloc(total);
+    assertEquals(total, map.get(keyPtrs, keySizes, buf, (int) total, Long.MAX_VALUE, 
+      sizes, offsets));
+    for (int i = 0; i < n; i++) {
+      assertTrue(sizes[i] < 0 || offsets[i] >= 0);
+    }
+    UnsafeAccess.free(buf);
+  }
+}
@@ -0,0 +1,257 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bigbase.carrot.redis.hashes.Hashes;
+import org.bigbase.carrot.redis.lists.Lists;
+import org.bigbase.carrot.redis.lists.Lists.Side;
+import org.bigbase.carrot.redis.sets.Sets;
+import org.bigbase.carrot.redis.strings.Strings;
+import org.bigbase.carrot.redis.zsets.ZSets;
+import org.bigbase.carrot.util.KeyValue;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Multithreaded tests of all data types over a single shared store. Every test
+ * checks an invariant which holds only if multi-step (read-modify-write) and 
+ * multi-key operations are atomic
+ */
+public class BigSortedMapDataTypesTestMT {
+  
+  static int totalThreads = BigSortedMapTestMT.totalThreads;
+  
+  BigSortedMap map;
+  AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+  
+  interface Task {
+    void run(int id, Random r) throws Exception;
+  }
+  
+  @Before
+  public void setUp() {
+    map = new BigSortedMap(BigSortedMap.getGlobalAllocatedMemory() + 500000000L);
+    failure.set(null);
+  }
+  
+  @After
+  public void tearDown() {
+    map.dispose();
+  }
+  
+  private void runThreads(Task task) throws InterruptedException {
+    Thread[] threads = new Thread[totalThreads];
+    for (int i = 0; i < totalThreads; i++) {
+      final int id = i;
+      threads[i] = new Thread(() -> {
+        try {
+          task.run(id, new Random(id));
+        } catch (Throwable t) {
+          t.printStackTrace();
+          failure.compareAndSet(null, t);
+        }
+      }, Integer.toString(i));
+      threads[i].start();
+    }
+    for (Thread t: threads) {
+      t.join();
+    }
+    assertNull(failure.get());
+  }
+  
+  @Test
+  public void testStringsIncrementAndMSETNX() throws Exception {
+    System.out.println("Test Strings INCRBY and MSETNX");
+    int increments = 20000;
+    int rounds = 2000;
+    long counter = UnsafeAccess.allocAndCopy("counter", 0, "counter".length());
+    runThreads((id, r) -> {
+      for (int i = 0; i < increments; i++) {
+        Strings.INCRBY(map, counter, "counter".length(), 1);
+      }
+      // All threads compete for the same key pairs, only one must win each pair
+      long value = UnsafeAccess.malloc(1);
+      UnsafeAccess.putByte(value, (byte) id);
+      for (int i = 0; i < rounds; i++) {
+        List<KeyValue> kvs = new ArrayList<KeyValue>();
+        for (String k: new String[] {"msetnx:" + i + ":a", "msetnx:" + i + ":b"}) {
+          kvs.add(new KeyValue(UnsafeAccess.allocAndCopy(k, 0, k.length()), k.length(), 
+            value, 1));
+        }
+        Collections.shuffle(kvs, r);
+        Strings.MSETNX(map, kvs);
+        kvs.forEach(x -> UnsafeAccess.free(x.keyPtr));
+      }
+      UnsafeAccess.free(value);
+    });
+    assertEquals((long) totalThreads * increments, 
+      Strings.INCRBY(map, counter, "counter".length(), 0));
+    UnsafeAccess.free(counter);
+    long buf = UnsafeAccess.malloc(16);
+    for (int i = 0; i < rounds; i++) {
+      int[] winners = new int[2];
+      String[] keys = new String[] {"msetnx:" + i + ":a", "msetnx:" + i + ":b"};
+      for (int j = 0; j < keys.length; j++) {
+        long ptr = UnsafeAccess.allocAndCopy(keys[j], 0, keys[j].length());
+        assertEquals(1L, Strings.GET(map, ptr, keys[j].length(), buf, 16));
+        winners[j] = UnsafeAccess.toByte(buf);
+        UnsafeAccess.free(ptr);
+      }
+      assertEquals("MSETNX is not atomic, round " + i, winners[0], winners[1]);
+    }
+    UnsafeAccess.free(buf);
+  }
+  
+  @Test
+  public void testSetsSMOVE() throws InterruptedException {
+    System.out.println("Test Sets SMOVE");
+    int members = 1000;
+    int numSets = 4;
+    int moves = 20000;
+    for (int i = 0; i < members; i++) {
+      Sets.SADD(map, "set:0", "member:" + i);
+    }
+    runThreads((id, r) -> {
+      for (int i = 0; i < moves; i++) {
+        Sets.SMOVE(map, "set:" + r.nextInt(numSets), "set:" + r.nextInt(numSets), 
+          "member:" + r.nextInt(members));
+      }
+    });
+    long total = 0;
+    for (int i = 0; i < numSets; i++) {
+      total += Sets.SCARD(map, "set:" + i);
+    }
+    assertEquals((long) members, total);
+    for (int i = 0; i < members; i++) {
+      int found = 0;
+      for (int j = 0; j < numSets; j++) {
+        found += Sets.SISMEMBER(map, "set:" + j, "member:" + i);
+      }
+      assertEquals("member:" + i, 1, found);
+    }
+  }
+  
+  @Test
+  public void testListsLMOVE() throws InterruptedException {
+    System.out.println("Test Lists LMOVE");
+    int elements = 1000;
+    int numLists = 4;
+    int moves = 10000;
+    long[] keys = new long[numLists];
+    int keySize = "list:0".length();
+    for (int i = 0; i < numLists; i++) {
+      keys[i] = UnsafeAccess.allocAndCopy("list:" + i, 0, keySize);
+    }
+    for (int i = 0; i < elements; i++) {
+      String e = "element:" + i;
+      long ptr = UnsafeAccess.allocAndCopy(e, 0, e.length());
+      Lists.RPUSH(map, keys[0], keySize, new long[] {ptr}, new int[] {e.length()});
+      UnsafeAccess.free(ptr);
+    }
+    runThreads((id, r) -> {
+      int bufSize = 64;
+      long buf = UnsafeAccess.malloc(bufSize);
+      for (int i = 0; i < moves; i++) {
+        Lists.LMOVE(map, keys[r.nextInt(numLists)], keySize, keys[r.nextInt(numLists)], 
+          keySize, r.nextBoolean()? Side.LEFT: Side.RIGHT, 
+            r.nextBoolean()? Side.LEFT: Side.RIGHT, buf, bufSize);
+      }
+      UnsafeAccess.free(buf);
+    });
+    long total = 0;
+    for (int i = 0; i < numLists; i++) {
+      total += Lists.LLEN(map, keys[i], keySize);
+      UnsafeAccess.free(keys[i]);
+    }
+    assertEquals((long) elements, total);
+  }
+  
+  @Test
+  public void testHashesHINCRBYAndHSET() throws InterruptedException {
+    System.out.println("Test Hashes HINCRBY and HSET");
+    int increments = 10000;
+    int numFields = 10;
+    int rounds = 200;
+    runThreads((id, r) -> {
+      for (int i = 0; i < increments; i++) {
+        Hashes.HINCRBY(map, "hash", "field:" + r.nextInt(numFields), 1);
+      }
+      // All threads create the same new hashes with different fields
+      for (int i = 0; i < rounds; i++) {
+        List<KeyValue> kvs = new ArrayList<KeyValue>();
+        for (int j = 0; j < numFields; j++) {
+          String f = "field:" + id + ":" + j;
+          long ptr = UnsafeAccess.allocAndCopy(f, 0, f.length());
+          kvs.add(new KeyValue(ptr, f.length(), ptr, f.length()));
+        }
+        Hashes.HSET(map, "hash:" + i, kvs);
+        kvs.forEach(x -> UnsafeAccess.free(x.keyPtr));
+      }
+    });
+    long total = 0;
+    for (int i = 0; i < numFields; i++) {
+      String v = Hashes.HGET(map, "hash", "field:" + i, 32);
+      total += v == null? 0: Long.parseLong(v);
+    }
+    assertEquals((long) totalThreads * increments, total);
+    for (int i = 0; i < rounds; i++) {
+      assertEquals("hash:" + i, (long) totalThreads * numFields, Hashes.HLEN(map, "hash:" + i));
+    }
+  }
+  
+  @Test
+  public void testZSetsZADD() throws InterruptedException {
+    System.out.println("Test ZSets ZADD");
+    int rounds = 100;
+    int numMembers = 10;
+    // Large set goes over compact size limit
+    int large = 300;
+    runThreads((id, r) -> {
+      for (int i = 0; i < rounds; i++) {
+        String[] members = new String[numMembers];
+        double[] scores = new double[numMembers];
+        for (int j = 0; j < numMembers; j++) {
+          members[j] = "member:" + id + ":" + j;
+          scores[j] = r.nextDouble();
+        }
+        ZSets.ZADD(map, "zset:" + i, members, scores, false);
+      }
+      for (int i = 0; i < large; i++) {
+        ZSets.ZADD(map, "zset", new String[] {"member:" + id + ":" + i}, 
+          new double[] {r.nextDouble()}, false);
+      }
+    });
+    for (int i = 0; i < rounds; i++) {
+      assertEquals("zset:" + i, (long) totalThreads * numMembers, ZSets.ZCARD(map, "zset:" + i));
+    }
+    assertEquals((long) totalThreads * large, ZSets.ZCARD(map, "zset"));
+    assertTrue(Hashes.HLEN(map, "zset") > 0);
+  }
+}
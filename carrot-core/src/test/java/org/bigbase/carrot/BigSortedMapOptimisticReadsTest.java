@@ -0,0 +1,228 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.bigbase.carrot.util.Utils;
+import org.junit.Test;
+
+/**
+ * Lock - free (optimistic) reads under concurrent updates, splits and merges
+ */
+public class BigSortedMapOptimisticReadsTest {
+  
+  static final int KEY_SIZE = 10;
+  static final int MAX_VALUE_SIZE = 8 * 40;
+  
+  int numKeys = 100000;
+  int numReaders = 4;
+  int numWriters = 2;
+  long duration = 5000; // ms
+  
+  BigSortedMap map;
+  AtomicReference<String> failure = new AtomicReference<String>();
+  AtomicLong totalReads = new AtomicLong();
+  AtomicLong totalWrites = new AtomicLong();
+  volatile boolean stopped;
+
+  /**
+   * Key: [id (8 bytes)][suffix (2 bytes)]. Stable keys have suffix 0,  
+   * keys with other suffixes are inserted and deleted to force splits and merges
+   */
+  private void key(long ptr, long id, int suffix) {
+    UnsafeAccess.putLong(ptr, id);
+    UnsafeAccess.putShort(ptr + 8, (short) suffix);
+  }
+  
+  /**
+   * Value: [id][w]...[w] - reader verifies that it was not torn
+   */
+  private int value(long ptr, long id, long w, int words) {
+    UnsafeAccess.putLong(ptr, id);
+    for (int i = 1; i < words; i++) {
+      UnsafeAccess.putLong(ptr + i * 8, w);
+    }
+    return words * 8;
+  }
+  
+  private String verify(long ptr, long id, long size) {
+    if (size < 16 || size > MAX_VALUE_SIZE || size % 8 != 0) {
+      return "key " + id + " wrong value size " + size;
+    }
+    if (UnsafeAccess.toLong(ptr) != id) {
+      return "key " + id + " wrong value id " + UnsafeAccess.toLong(ptr);
+    }
+    long w = UnsafeAccess.toLong(ptr + 8);
+    for (int i = 2; i < size / 8; i++) {
+      if (UnsafeAccess.toLong(ptr + i * 8) != w) {
+        return "key " + id + " torn value at word " + i;
+      }
+    }
+    return null;
+  }
+  
+  private void load() {
+    long key = UnsafeAccess.malloc(KEY_SIZE);
+    long value = UnsafeAccess.malloc(MAX_VALUE_SIZE);
+    Random r = new Random(1);
+    for (int i = 0; i < numKeys; i++) {
+      key(key, i, 0);
+      int size = value(value, i, r.nextLong(), 2 + r.nextInt(MAX_VALUE_SIZE / 8 - 1));
+      assertTrue(map.put(key, KEY_SIZE, value, size, 0));
+    }
+    UnsafeAccess.free(key);
+    UnsafeAccess.free(value);
+  }
+  
+  class Reader extends Thread {
+    @Override
+    public void run() {
+      long key = UnsafeAccess.malloc(KEY_SIZE);
+      long buf = UnsafeAccess.malloc(MAX_VALUE_SIZE);
+      Random r = new Random();
+      long count = 0;
+      while (!stopped && failure.get() == null) {
+        long id = r.nextInt(numKeys);
+        key(key, id, 0);
+        long size = map.get(key, KEY_SIZE, buf, MAX_VALUE_SIZE, Long.MAX_VALUE);
+        if (size < 0) {
+          failure.compareAndSet(null, "key " + id + " not found");
+          break;
+        }
+        String error = verify(buf, id, size);
+        if (error != null) {
+          failure.compareAndSet(null, error);
+          break;
+        }
+        count++;
+      }
+      totalReads.addAndGet(count);
+      UnsafeAccess.free(key);
+      UnsafeAccess.free(buf);
+    }
+  }
+  
+  class Writer extends Thread {
+    int suffix;
+    
+    Writer(int suffix) {
+      this.suffix = suffix;
+    }
+    
+    @Override
+    public void run() {
+      long key = UnsafeAccess.malloc(KEY_SIZE);
+      long value = UnsafeAccess.malloc(MAX_VALUE_SIZE);
+      Random r = new Random();
+      long count = 0;
+      while (!stopped && failure.get() == null) {
+        long id = r.nextInt(numKeys);
+        double d = r.nextDouble();
+        if (d < 0.5) {
+          // Update stable key, value size changes
+          key(key, id, 0);
+          int size = value(value, id, r.nextLong(), 2 + r.nextInt(MAX_VALUE_SIZE / 8 - 1));
+          map.put(key, KEY_SIZE, value, size, 0);
+        } else if (d < 0.8) {
+          key(key, id, suffix);
+          int size = value(value, id, r.nextLong(), 2 + r.nextInt(MAX_VALUE_SIZE / 8 - 1));
+          map.put(key, KEY_SIZE, value, size, 0);
+        } else {
+          key(key, id, suffix);
+          map.delete(key, KEY_SIZE);
+        }
+        count++;
+      }
+      totalWrites.addAndGet(count);
+      UnsafeAccess.free(key);
+      UnsafeAccess.free(value);
+    }
+  }
+  
+  @Test
+  public void testConcurrentReadsWrites() throws InterruptedException {
+    System.out.println("Test concurrent optimistic reads and writes");
+    map = new BigSortedMap(BigSortedMap.getGlobalAllocatedMemory() + 500000000L);
+    try {
+      assertTrue(map.isOptimisticReadsEnabled());
+      load();
+      Thread[] threads = new Thread[numReaders + numWriters];
+      for (int i = 0; i < numReaders; i++) {
+        threads[i] = new Reader();
+      }
+      for (int i = 0; i < numWriters; i++) {
+        threads[numReaders + i] = new Writer(i + 1);
+      }
+      for (Thread t: threads) {
+        t.start();
+      }
+      Thread.sleep(duration);
+      stopped = true;
+      for (Thread t: threads) {
+        t.join();
+      }
+      System.out.println("reads=" + totalReads.get() + " writes=" + totalWrites.get());
+      assertNull(failure.get(), failure.get());
+    } finally {
+      map.dispose();
+    }
+  }
+  
+  @Test
+  public void testOptimisticAndLockedReadsAreEqual() {
+    System.out.println("Test optimistic and locked reads are equal");
+    map = new BigSortedMap(BigSortedMap.getGlobalAllocatedMemory() + 500000000L);
+    long key = UnsafeAccess.malloc(KEY_SIZE);
+    long buf1 = UnsafeAccess.malloc(MAX_VALUE_SIZE);
+    long buf2 = UnsafeAccess.malloc(MAX_VALUE_SIZE);
+    try {
+      load();
+      // Missing keys: between stable keys and after the last one
+      for (int i = 0; i <= numKeys; i++) {
+        for (int suffix = 0; suffix < 2; suffix++) {
+          key(key, i, suffix);
+          map.setOptimisticReadsEnabled(true);
+          long size1 = map.get(key, KEY_SIZE, buf1, MAX_VALUE_SIZE, Long.MAX_VALUE);
+          map.setOptimisticReadsEnabled(false);
+          long size2 = map.get(key, KEY_SIZE, buf2, MAX_VALUE_SIZE, Long.MAX_VALUE);
+          assertEquals(size2, size1);
+          if (suffix == 0 && i < numKeys) {
+            assertTrue(size1 > 0);
+            assertNull(verify(buf1, i, size1));
+            assertEquals(0, Utils.compareTo(buf1, (int) size1, buf2, (int) size1));
+          } else {
+            assertEquals(-1L, size1);
+          }
+        }
+      }
+    } finally {
+      UnsafeAccess.free(key);
+      UnsafeAccess.free(buf1);
+      UnsafeAccess.free(buf2);
+      map.dispose();
+    }
+  }
+}
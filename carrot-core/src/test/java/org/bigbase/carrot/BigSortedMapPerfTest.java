@@ -18,11 +18,15 @@
 package org.bigbase.carrot;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Random;
 
 import org.bigbase.carrot.compression.CodecFactory;
 import org.bigbase.carrot.compression.CodecType;
+import org.bigbase.carrot.redis.RedisConf;
+import org.bigbase.carrot.util.UnsafeAccess;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -76,6 +80,192 @@ public class BigSortedMapPerfTest {
     assertEquals(n * totalLoaded, totalScanned);
   }
   
+  /**
+   * Get/put throughput with and without binary search over data block 
+   * descriptors in index blocks. Number of keys is defined by 'perf.keys' 
+   * system property, comma separated list (for example: -Dperf.keys=10000000,100000000)
+   */
+  @Test
+  public void testGetPutIndexBlockDirectory() {
+    System.out.println("testGetPutIndexBlockDirectory");
+    String[] keys = System.getProperty("perf.keys", "1000000").split(",");
+    int threshold = IndexBlock.DIRECTORY_THRESHOLD;
+    try {
+      for (String s: keys) {
+        long n = Long.parseLong(s.trim());
+        IndexBlock.DIRECTORY_THRESHOLD = 0;
+        runGetPut(n, "linear");
+        IndexBlock.DIRECTORY_THRESHOLD = RedisConf.DEFAULT_INDEX_BLOCK_DIRECTORY_THRESHOLD;
+        runGetPut(n, "binary");
+      }
+    } finally {
+      IndexBlock.DIRECTORY_THRESHOLD = threshold;
+    }
+  }
+  
+  private void runGetPut(long n, String mode) {
+    // ~ 100 bytes per key-value (including index overhead), memory limit is global
+    BigSortedMap map = new BigSortedMap(BigSortedMap.getGlobalAllocatedMemory() + n * 100);
+    try {
+      // Scatter keys to avoid sequential append to the last data block
+      long prime = 1000000007L;
+      long start = System.currentTimeMillis();
+      for (long i = 0; i < n; i++) {
+        byte[] key = ("KEY" + (i * prime % n)).getBytes();
+        byte[] value = ("VALUE" + i).getBytes();
+        boolean res = map.put(key, 0, key.length, value, 0, value.length, 0);
+        assertTrue(res);
+      }
+      long end = System.currentTimeMillis();
+      System.out.println(mode + ": keys=" + n + " put time=" + (end - start) + "ms RPS="
+          + (n * 1000) / Math.max(1, end - start));
+      Random r = new Random(1);
+      int bufSize = 64;
+      long keyBuf = UnsafeAccess.malloc(bufSize);
+      long valueBuf = UnsafeAccess.malloc(bufSize);
+      start = System.currentTimeMillis();
+      for (long i = 0; i < n; i++) {
+        byte[] key = ("KEY" + (Math.abs(r.nextLong()) % n)).getBytes();
+        UnsafeAccess.copy(key, 0, keyBuf, key.length);
+        long size = map.get(keyBuf, key.length, valueBuf, bufSize, Long.MAX_VALUE);
+        assertTrue(size > 0);
+      }
+      end = System.currentTimeMillis();
+      UnsafeAccess.free(keyBuf);
+      UnsafeAccess.free(valueBuf);
+      System.out.println(mode + ": keys=" + n + " get time=" + (end - start) + "ms RPS="
+          + (n * 1000) / Math.max(1, end - start));
+    } finally {
+      map.dispose();
+    }
+  }
+  
+  /**
+   * Multithreaded get performance with and without lock - free (optimistic) reads. 
+   * Number of keys is defined by 'perf.keys', number of threads - by 'perf.threads' 
+   * (default - number of available CPUs) system properties
+   */
+  @Test
+  public void testGetOptimisticReads() throws InterruptedException {
+    System.out.println("testGetOptimisticReads");
+    long n = Long.parseLong(System.getProperty("perf.keys", "1000000").split(",")[0].trim());
+    int numThreads = Integer.getInteger("perf.threads", 
+      Runtime.getRuntime().availableProcessors());
+    BigSortedMap map = new BigSortedMap(BigSortedMap.getGlobalAllocatedMemory() + n * 100);
+    try {
+      for (long i = 0; i < n; i++) {
+        byte[] key = ("KEY" + i).getBytes();
+        byte[] value = ("VALUE" + i).getBytes();
+        assertTrue(map.put(key, 0, key.length, value, 0, value.length, 0));
+      }
+      map.setOptimisticReadsEnabled(false);
+      runGets(map, n, numThreads, "locked");
+      map.setOptimisticReadsEnabled(true);
+      runGets(map, n, numThreads, "optimistic");
+    } finally {
+      map.dispose();
+    }
+  }
+  
+  private void runGets(BigSortedMap map, long n, int numThreads, String mode) 
+      throws InterruptedException {
+    Thread[] threads = new Thread[numThreads];
+    for (int k = 0; k < numThreads; k++) {
+      final int seed = k;
+      threads[k] = new Thread(() -> {
+        Random r = new Random(seed);
+        int bufSize = 64;
+        long keyBuf = UnsafeAccess.malloc(bufSize);
+        long valueBuf = UnsafeAccess.malloc(bufSize);
+        for (long i = 0; i < n; i++) {
+          byte[] key = ("KEY" + (Math.abs(r.nextLong()) % n)).getBytes();
+          UnsafeAccess.copy(key, 0, keyBuf, key.length);
+          long size = map.get(keyBuf, key.length, valueBuf, bufSize, Long.MAX_VALUE);
+          assertTrue(size > 0);
+        }
+        UnsafeAccess.free(keyBuf);
+        UnsafeAccess.free(valueBuf);
+      });
+    }
+    long start = System.currentTimeMillis();
+    for (Thread t: threads) {
+      t.start();
+    }
+    for (Thread t: threads) {
+      t.join();
+    }
+    long end = System.currentTimeMillis();
+    System.out.println(mode + ": keys=" + n + " threads=" + numThreads + " get time=" + 
+      (end - start) + "ms RPS=" + (n * numThreads * 1000) / Math.max(1, end - start));
+  }
+  
+  /**
+   * Single key get vs batch get throughput for batch sizes 10, 100 and 1000 
+   * (comma separated list in 'perf.batch' system property), with and without compression. 
+   * Number of keys is defined by 'perf.keys' system property
+   */
+  @Test
+  public void testBatchGet() {
+    System.out.println("testBatchGet");
+    long n = Long.parseLong(System.getProperty("perf.keys", "1000000").split(",")[0].trim());
+    String[] batches = System.getProperty("perf.batch", "10,100,1000").split(",");
+    for (CodecType type: new CodecType[] {CodecType.NONE, CodecType.LZ4}) {
+      BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(type));
+      BigSortedMap map = new BigSortedMap(BigSortedMap.getGlobalAllocatedMemory() + n * 100);
+      try {
+        for (long i = 0; i < n; i++) {
+          byte[] key = ("KEY" + i).getBytes();
+          byte[] value = ("VALUE" + i).getBytes();
+          assertTrue(map.put(key, 0, key.length, value, 0, value.length, 0));
+        }
+        for (String s: batches) {
+          runBatchGet(map, n, Integer.parseInt(s.trim()), type.toString());
+        }
+      } finally {
+        map.dispose();
+        BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.NONE));
+      }
+    }
+  }
+  
+  private void runBatchGet(BigSortedMap map, long n, int batchSize, String mode) {
+    Random r = new Random(1);
+    int bufSize = 64;
+    long keys = UnsafeAccess.malloc(bufSize * batchSize);
+    long valueBuf = UnsafeAccess.malloc(bufSize * batchSize);
+    long[] keyPtrs = new long[batchSize];
+    int[] keySizes = new int[batchSize];
+    int[] sizes = new int[batchSize];
+    int[] offsets = new int[batchSize];
+    long batches = Math.max(1, n / batchSize);
+    long singleTime = 0, batchTime = 0;
+    for (long k = 0; k < batches; k++) {
+      for (int i = 0; i < batchSize; i++) {
+        byte[] key = ("KEY" + (Math.abs(r.nextLong()) % n)).getBytes();
+        keyPtrs[i] = keys + i * bufSize;
+        keySizes[i] = key.length;
+        UnsafeAccess.copy(key, 0, keyPtrs[i], key.length);
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < batchSize; i++) {
+        long size = map.get(keyPtrs[i], keySizes[i], valueBuf, bufSize, Long.MAX_VALUE);
+        assertTrue(size > 0);
+      }
+      long end = System.nanoTime();
+      singleTime += end - start;
+      long total = map.get(keyPtrs, keySizes, valueBuf, bufSize * batchSize, Long.MAX_VALUE, 
+        sizes, offsets);
+      batchTime += System.nanoTime() - end;
+      assertTrue(total > 0);
+    }
+    UnsafeAccess.free(keys);
+    UnsafeAccess.free(valueBuf);
+    long count = batches * batchSize;
+    System.out.println(mode + ": keys=" + n + " batch=" + batchSize + " single get RPS="
+        + count * 1000000000 / Math.max(1, singleTime) + " batch get RPS=" 
+        + count * 1000000000 / Math.max(1, batchTime));
+  }
+  
   long countRecords() throws IOException {
     BigSortedMapScanner scanner = map.getScanner(0, 0, 0, 0);
     long counter = 0;
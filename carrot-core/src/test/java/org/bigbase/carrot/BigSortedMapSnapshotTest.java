@@ -18,10 +18,16 @@
 package org.bigbase.carrot;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.bigbase.carrot.compression.CodecFactory;
 import org.bigbase.carrot.compression.CodecType;
@@ -40,6 +46,7 @@ public class BigSortedMapSnapshotTest {
   int KEY_SIZE = 10;
   long seed1 = System.currentTimeMillis();
   long seed2 = System.currentTimeMillis() + 1;
+  int partitions = 1;
   
   static {
     //UnsafeAccess.debug = true;
@@ -188,6 +195,7 @@ public class BigSortedMapSnapshotTest {
   private void setUp() throws IOException {
     BigSortedMap.setMaxBlockSize(4096);
     map = new BigSortedMap(10000000000L);
+    map.setSnapshotPartitions(partitions);
     totalLoaded = 0;
     long start = System.currentTimeMillis();
     while (totalLoaded < MAX_ROWS) {
@@ -249,6 +257,244 @@ public class BigSortedMapSnapshotTest {
     }
   }
 
+  @Test
+  public void runAllNoCompressionPartitioned() throws IOException {
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.NONE));
+    partitions = 4;
+    System.out.println("\n********* Partitions = 4 ********** Codec = NONE\n");
+    allTests();
+    UnsafeAccess.mallocStats();
+  }
+
+  @Test
+  public void runAllCompressionLZ4Partitioned() throws IOException {
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.LZ4));
+    partitions = 4;
+    System.out.println("\n********* Partitions = 4 ********** Codec = LZ4\n");
+    allTests();
+    UnsafeAccess.mallocStats();
+  }
+  
+  @Test
+  public void testParallelLoad() throws IOException {
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.NONE));
+    // More partitions than loader threads
+    partitions = 4 * Runtime.getRuntime().availableProcessors() + 1;
+    setUp();
+    map.snapshot();
+    long count = map.countRecords();
+    map.dispose();
+    BigSortedMap.setStatsUpdatesDisabled(true);    
+    map = BigSortedMap.loadStore(0);
+    BigSortedMap.setStatsUpdatesDisabled(false);
+    map.syncStatsToGlobal();
+    assertEquals(count, countRecords());
+    verifyRecords();
+    tearDown();
+  }
+  
+  @Test
+  public void testPointInTimeSnapshot() throws Exception {
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.NONE));
+    // 0 - incremental snapshot
+    for (int n: new int[] {1, 4, 0}) {
+      System.out.println("\n********* Point-in-time snapshot, partitions = " + n + "\n");
+      partitions = Math.max(1, n);
+      setUp();
+      if (n == 0) {
+        // Delta is written concurrently with moves
+        map.setIncrementalSnapshots(true);
+        map.snapshot();
+      }
+      // Moves KEYi -> MOVEDi (delete + put, as SMOVE does) concurrently with snapshot
+      AtomicBoolean stop = new AtomicBoolean();
+      AtomicLong moved = new AtomicLong();
+      Thread mover = new Thread(() -> {
+        for (long j = 0; j < totalLoaded && !stop.get(); j++) {
+          long i = (j * 7919) % totalLoaded + 1;
+          map.beginMutation();
+          try {
+            assertTrue(delete("KEY" + i));
+            assertTrue(put("MOVED" + i));
+          } finally {
+            map.endMutation();
+          }
+          moved.incrementAndGet();
+        }
+      });
+      mover.start();
+      while (moved.get() < 10000) {
+        Thread.sleep(1);
+      }
+      map.snapshot();
+      stop.set(true);
+      mover.join();
+      long movedTotal = moved.get();
+      System.out.println("Moved during test=" + movedTotal);
+      assertEquals(totalLoaded, countRecords());
+      map.dispose();
+      BigSortedMap.setStatsUpdatesDisabled(true);
+      map = BigSortedMap.loadStore(0);
+      BigSortedMap.setStatsUpdatesDisabled(false);
+      map.syncStatsToGlobal();
+      // Every move is either in the snapshot or not
+      assertEquals(totalLoaded, countRecords());
+      long movedInSnapshot = 0;
+      for (int i = 1; i <= totalLoaded; i++) {
+        boolean src = exists("KEY" + i);
+        boolean dst = exists("MOVED" + i);
+        assertTrue(src ^ dst);
+        if (dst) {
+          movedInSnapshot++;
+        }
+      }
+      assertTrue(movedInSnapshot >= 10000 && movedInSnapshot <= movedTotal);
+      tearDown();
+    }
+  }
+  
+  @Test
+  public void testIncrementalSnapshot() throws IOException {
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.NONE));
+    partitions = 1;
+    setUp();
+    map.setIncrementalSnapshots(true);
+    // Base
+    map.snapshot();
+    File dir = new File(map.getSnapshotDir());
+    IncrementalSnapshot inc = map.getIncrementalSnapshot();
+    assertTrue(new File(dir, IncrementalSnapshot.MANIFEST_FILE).exists());
+    assertTrue(!new File(dir, BigSortedMap.SNAPSHOT_FILE).exists());
+    long baseBlocks = inc.getLastBlocksWritten();
+    long baseSize = inc.getLastBytesWritten();
+    assertTrue(baseBlocks > 0);
+    assertEquals(1, inc.getNumberOfFiles());
+    // Delta
+    move(0, 100);
+    map.snapshot();
+    System.out.println("Base blocks=" + baseBlocks + " size=" + baseSize + " delta blocks=" + 
+      inc.getLastBlocksWritten() + " size=" + inc.getLastBytesWritten());
+    assertTrue(inc.getLastBlocksWritten() > 0 && inc.getLastBlocksWritten() <= 10);
+    assertTrue(inc.getLastBytesWritten() < baseSize / 10);
+    assertEquals(2, inc.getNumberOfFiles());
+    // Nothing has changed
+    map.snapshot();
+    assertEquals(0L, inc.getLastBlocksWritten());
+    assertEquals(2, inc.getNumberOfFiles());
+    reload();
+    verifyMoved(100);
+    // Index blocks of a loaded store reference saved locations
+    map.setIncrementalSnapshots(true);
+    inc = map.getIncrementalSnapshot();
+    assertNotNull(inc);
+    move(100, 200);
+    map.snapshot();
+    assertTrue(inc.getLastBlocksWritten() > 0 && inc.getLastBlocksWritten() <= 10);
+    // The same index blocks were changed: the first delta is not referenced anymore
+    assertEquals(2, inc.getNumberOfFiles());
+    // Merge
+    assertTrue(map.mergeSnapshot());
+    assertEquals(1, inc.getNumberOfFiles());
+    assertEquals(1L, inc.getMerges());
+    File[] files = dir.listFiles((d, name) -> name.startsWith("snapshot.base.") || 
+      name.startsWith("snapshot.delta."));
+    assertEquals(1, files.length);
+    reload();
+    verifyMoved(200);
+    // Full snapshot replaces incremental one
+    map.snapshot();
+    assertNull(map.getIncrementalSnapshot());
+    assertTrue(!new File(dir, IncrementalSnapshot.MANIFEST_FILE).exists());
+    assertTrue(new File(dir, BigSortedMap.SNAPSHOT_FILE).exists());
+    tearDown();
+  }
+  
+  /**
+   * Moves KEYi -> MOVEDi for i = totalLoaded / 2 + j, j in [from, to). Keys 
+   * are adjacent, therefore only a few index blocks are changed
+   */
+  private void move(int from, int to) {
+    for (long j = from; j < to; j++) {
+      long i = totalLoaded / 2 + j;
+      assertTrue(delete("KEY" + i));
+      assertTrue(put("MOVED" + i));
+    }
+  }
+  
+  private void verifyMoved(int n) throws IOException {
+    assertEquals(totalLoaded, countRecords());
+    for (long j = 0; j < n; j++) {
+      long i = totalLoaded / 2 + j;
+      assertTrue(!exists("KEY" + i));
+      assertTrue(exists("MOVED" + i));
+    }
+    assertTrue(exists("KEY" + (totalLoaded / 2 + n)));
+  }
+  
+  private void reload() {
+    map.dispose();
+    BigSortedMap.setStatsUpdatesDisabled(true);
+    map = BigSortedMap.loadStore(0);
+    BigSortedMap.setStatsUpdatesDisabled(false);
+    map.syncStatsToGlobal();
+  }
+  
+  private boolean put(String k) {
+    byte[] key = k.getBytes();
+    long keyPtr = UnsafeAccess.allocAndCopy(key, 0, key.length);
+    boolean result = map.put(keyPtr, key.length, keyPtr, key.length, 0);
+    UnsafeAccess.free(keyPtr);
+    return result;
+  }
+  
+  private boolean delete(String k) {
+    byte[] key = k.getBytes();
+    long keyPtr = UnsafeAccess.allocAndCopy(key, 0, key.length);
+    boolean result = map.delete(keyPtr, key.length);
+    UnsafeAccess.free(keyPtr);
+    return result;
+  }
+  
+  private boolean exists(String k) {
+    byte[] key = k.getBytes();
+    long keyPtr = UnsafeAccess.allocAndCopy(key, 0, key.length);
+    boolean result = map.exists(keyPtr, key.length);
+    UnsafeAccess.free(keyPtr);
+    return result;
+  }
+  
+  @Test
+  public void testCorruptedPartition() throws IOException {
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.NONE));
+    partitions = 4;
+    setUp();
+    map.snapshot();
+    File dir = new File(map.getSnapshotDir());
+    File[] files = dir.listFiles((d, name) -> name.matches("snapshot\\.\\d+\\.\\d+\\.data"));
+    assertEquals(partitions, files.length);
+    assertTrue(new File(dir, BigSortedMap.SNAPSHOT_MANIFEST_FILE).exists());
+    assertTrue(!new File(dir, BigSortedMap.SNAPSHOT_FILE).exists());
+    // Flip one byte in the middle of a partition
+    try (RandomAccessFile raf = new RandomAccessFile(files[0], "rw")) {
+      long pos = raf.length() / 2;
+      raf.seek(pos);
+      int b = raf.read();
+      raf.seek(pos);
+      raf.write(b ^ 0xff);
+    }
+    map.dispose();
+    BigSortedMap.setStatsUpdatesDisabled(true);    
+    map = BigSortedMap.loadStore(0);
+    BigSortedMap.setStatsUpdatesDisabled(false);
+    assertNull(map);
+    // Restore valid snapshot for other tests
+    setUp();
+    map.setSnapshotPartitions(1);
+    map.snapshot();
+    assertTrue(!new File(dir, BigSortedMap.SNAPSHOT_MANIFEST_FILE).exists());
+    tearDown();
+  }
+
   @Ignore
   @Test
   public void runAllCompressionLZ4HC() throws IOException {
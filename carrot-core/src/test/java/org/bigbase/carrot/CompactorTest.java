@@ -0,0 +1,147 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.bigbase.carrot.compression.CodecFactory;
+import org.bigbase.carrot.compression.CodecType;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Background compaction of under-filled data blocks
+ */
+public class CompactorTest {
+
+  static final int KEY_SIZE = 16;
+  
+  int numKeys = 200000;
+  
+  BigSortedMap map;
+  long key = UnsafeAccess.malloc(KEY_SIZE);
+  long buf = UnsafeAccess.malloc(KEY_SIZE);
+  
+  @Before
+  public void setUp() {
+    map = new BigSortedMap(BigSortedMap.getGlobalAllocatedMemory() + 100000000L);
+    for (int i = 0; i < numKeys; i++) {
+      key(i);
+      assertTrue(map.put(key, KEY_SIZE, key, KEY_SIZE, 0));
+    }
+    // Leave every 10th key 
+    for (int i = 0; i < numKeys; i++) {
+      if (i % 10 != 0) {
+        key(i);
+        assertTrue(map.delete(key, KEY_SIZE));
+      }
+    }
+  }
+  
+  @After
+  public void tearDown() {
+    map.dispose();
+  }
+  
+  private void key(int i) {
+    UnsafeAccess.putLong(key, i);
+    UnsafeAccess.putLong(key + 8, i);
+  }
+  
+  private void verify() {
+    for (int i = 0; i < numKeys; i++) {
+      key(i);
+      long size = map.get(key, KEY_SIZE, buf, KEY_SIZE, Long.MAX_VALUE);
+      if (i % 10 == 0) {
+        assertEquals(KEY_SIZE, (int) size);
+        assertEquals((long) i, UnsafeAccess.toLong(buf));
+      } else {
+        assertEquals(-1L, size);
+      }
+    }
+  }
+  
+  @Test
+  public void testCompactionSlices() {
+    System.out.println("Test compaction slices");
+    runSlices();
+  }
+  
+  @Test
+  public void testCompactionSlicesCompressed() {
+    System.out.println("Test compaction slices (LZ4)");
+    map.dispose();
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.LZ4));
+    try {
+      setUp();
+      runSlices();
+    } finally {
+      BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.NONE));
+    }
+  }
+  
+  private void runSlices() {
+    long allocated = map.getInstanceAllocatedMemory();
+    Compactor compactor = new Compactor(map);
+    // Run slices until a full pass over the store compacts nothing
+    int compacted = 0;
+    int passes = 0;
+    do {
+      compacted = 0;
+      long pass = compactor.getPasses();
+      while (pass == compactor.getPasses()) {
+        compacted += compactor.runSlice();
+      }
+      passes++;
+    } while (compacted > 0 && passes < 10);
+    System.out.println(String.join("\n", compactor.getStats()));
+    // Nothing is selected again, when there is nothing to merge or shrink
+    assertEquals(0, compacted);
+    assertTrue(compactor.getDataBlocksMerged() > 0);
+    assertTrue(compactor.getMemoryFreed() > 0);
+    assertTrue(map.getInstanceAllocatedMemory() < allocated);
+    verify();
+  }
+  
+  @Test
+  public void testBackgroundCompaction() throws InterruptedException {
+    System.out.println("Test background compaction");
+    long allocated = map.getInstanceAllocatedMemory();
+    map.startCompactor();
+    Compactor compactor = map.getCompactor();
+    assertTrue(compactor.isRunning());
+    long start = System.currentTimeMillis();
+    while (compactor.getDataBlocksMerged() == 0 && System.currentTimeMillis() - start < 10000) {
+      Thread.sleep(100);
+    }
+    // Updates and compaction in parallel
+    for (int i = 0; i < numKeys; i += 10) {
+      key(i);
+      assertTrue(map.put(key, KEY_SIZE, key, KEY_SIZE, 0));
+    }
+    map.stopCompactor();
+    assertTrue(!compactor.isRunning());
+    System.out.println(String.join("\n", compactor.getStats()));
+    assertTrue(compactor.getDataBlocksMerged() > 0);
+    assertTrue(map.getInstanceAllocatedMemory() < allocated);
+    verify();
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.bigbase.carrot.compression.CodecFactory;
+import org.bigbase.carrot.compression.CodecType;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Decompressed data block cache (LZ4 compressed store)
+ */
+public class DataBlockCacheTest {
+
+  static final int KEY_SIZE = 16;
+  
+  static final int VALUE_SIZE = 64;
+  
+  int numKeys = 100000;
+  
+  BigSortedMap map;
+  
+  @Before
+  public void setUp() {
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.LZ4));
+    // 1MB - much smaller than data set
+    DataBlockCache.setCapacity(1 << 20);
+    map = new BigSortedMap(BigSortedMap.getGlobalAllocatedMemory() + 100000000L);
+  }
+  
+  @After
+  public void tearDown() {
+    map.dispose();
+    assertEquals(0L, DataBlockCache.size());
+    DataBlockCache.setCapacity(0);
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.NONE));
+  }
+  
+  private static void key(long key, int i) {
+    UnsafeAccess.putLong(key, i);
+    UnsafeAccess.putLong(key + 8, i);
+  }
+  
+  private static void value(long value, int i, int gen) {
+    // Compressible value
+    for (int off = 0; off < VALUE_SIZE; off += 8) {
+      UnsafeAccess.putLong(value + off, (long) i * 31 + gen);
+    }
+  }
+  
+  private void load(long key, long value, int from, int to, int step, int gen) {
+    for (int i = from; i < to; i += step) {
+      key(key, i);
+      value(value, i, gen);
+      assertTrue(map.put(key, KEY_SIZE, value, VALUE_SIZE, 0));
+    }
+  }
+  
+  private void verify(long key, long buf, int from, int to, int step, int gen) {
+    for (int i = from; i < to; i += step) {
+      key(key, i);
+      long size = map.get(key, KEY_SIZE, buf, VALUE_SIZE, Long.MAX_VALUE);
+      assertEquals((long) VALUE_SIZE, size);
+      assertEquals((long) i * 31 + gen, UnsafeAccess.toLong(buf + VALUE_SIZE - 8));
+    }
+  }
+  
+  @Test
+  public void testHotBlocks() {
+    System.out.println("Test hot blocks");
+    long key = UnsafeAccess.malloc(KEY_SIZE);
+    long value = UnsafeAccess.malloc(VALUE_SIZE);
+    long buf = UnsafeAccess.malloc(VALUE_SIZE);
+    
+    load(key, value, 0, numKeys, 1, 0);
+    assertTrue(map.getInstanceCompressedDataSize() > 0);
+    // Hot set fits the cache
+    int hot = 1000;
+    long hits = DataBlockCache.getHits();
+    long misses = DataBlockCache.getMisses();
+    for (int k = 0; k < 10; k++) {
+      verify(key, buf, 0, hot, 1, 0);
+    }
+    System.out.println(String.join("\n", DataBlockCache.getStats()));
+    hits = DataBlockCache.getHits() - hits;
+    misses = DataBlockCache.getMisses() - misses;
+    assertTrue(hits > 9 * misses);
+    assertTrue(DataBlockCache.getAllocatedMemory() <= DataBlockCache.getCapacity());
+    
+    // Full scan does not fit the cache - evictions
+    verify(key, buf, 0, numKeys, 1, 0);
+    assertTrue(DataBlockCache.size() > 0);
+    
+    // Updates invalidate cached blocks
+    load(key, value, 0, numKeys, 2, 1);
+    verify(key, buf, 0, numKeys, 2, 1);
+    verify(key, buf, 1, numKeys, 2, 0);
+    verify(key, buf, 0, numKeys, 2, 1);
+    
+    // Deletes 
+    for (int i = 0; i < numKeys; i += 3) {
+      key(key, i);
+      assertTrue(map.delete(key, KEY_SIZE));
+    }
+    for (int i = 0; i < numKeys; i++) {
+      key(key, i);
+      long size = map.get(key, KEY_SIZE, buf, VALUE_SIZE, Long.MAX_VALUE);
+      if (i % 3 == 0) {
+        assertEquals(-1L, size);
+      } else {
+        assertEquals((long) VALUE_SIZE, size);
+        assertEquals((long) i * 31 + (i % 2 == 0? 1: 0), UnsafeAccess.toLong(buf));
+      }
+    }
+    System.out.println(String.join("\n", DataBlockCache.getStats()));
+    
+    UnsafeAccess.free(key);
+    UnsafeAccess.free(value);
+    UnsafeAccess.free(buf);
+  }
+}
@@ -29,6 +29,7 @@ import java.util.Random;
 
 import org.bigbase.carrot.compression.CodecFactory;
 import org.bigbase.carrot.compression.CodecType;
+import org.bigbase.carrot.redis.util.DataType;
 import org.bigbase.carrot.util.Bytes;
 import org.bigbase.carrot.util.Key;
 import org.bigbase.carrot.util.UnsafeAccess;
@@ -69,6 +70,174 @@ public class DataBlockTest extends DataBlockTestBase {
   }
     
   
+  @Test
+  public void testMaxBlockSizePerDataType() throws RetryOperationException {
+    System.out.println("testMaxBlockSizePerDataType");
+    int max = DataBlock.getMaximumBlockSize();
+    int stringMax = DataBlockSizePolicy.getMaxBlockSize(DataType.STRING);
+    try {
+      DataBlockSizePolicy.setMaxBlockSize(DataType.STRING, max / 2);
+      assertEquals(max / 2, DataBlockSizePolicy.getMaxBlockSize(DataType.STRING));
+      // Can not go below half of maximum block size
+      DataBlockSizePolicy.setMaxBlockSize(DataType.STRING, 256);
+      assertEquals(max / 2, DataBlockSizePolicy.getMaxBlockSize(DataType.STRING));
+      
+      DataBlock b = fillDataBlock(DataType.STRING);
+      assertTrue(b.getDataInBlockSize() <= max / 2);
+      assertTrue(b.getDataInBlockSize() > max / 2 - 64);
+      
+      b = fillDataBlock(DataType.SET);
+      assertEquals(max, DataBlockSizePolicy.getMaxBlockSize(DataType.SET));
+      assertTrue(b.getDataInBlockSize() > max - 64);
+    } finally {
+      DataBlockSizePolicy.setMaxBlockSize(DataType.STRING, stringMax);
+    }
+    System.out.println("testMaxBlockSizePerDataType DONE");
+  }
+  
+  /**
+   * Fills a new data block with keys of a given data type until put fails 
+   * @param type data type
+   * @return data block
+   * @throws RetryOperationException
+   */
+  private DataBlock fillDataBlock(DataType type) throws RetryOperationException {
+    IndexBlock ib = new IndexBlock(null, 4096);
+    Random r = new Random();
+    byte[] key = new byte[16];
+    r.nextBytes(key);
+    key[0] = (byte) type.ordinal();
+    long ptr = UnsafeAccess.allocAndCopy(key, 0, key.length);
+    assertTrue(ib.put(ptr, key.length, ptr, key.length, 0, -1));
+    UnsafeAccess.free(ptr);
+    DataBlock b = ib.firstBlock();
+    while (true) {
+      r.nextBytes(key);
+      key[0] = (byte) type.ordinal();
+      if (!b.put(key, 0, key.length, key, 0, key.length, -1)) {
+        break;
+      }
+    }
+    return b;
+  }
+  
+  @Test
+  public void testAdaptiveBlockSize() {
+    System.out.println("testAdaptiveBlockSize");
+    int max = DataBlock.getMaximumBlockSize();
+    int interval = DataBlockSizePolicy.ADAPT_INTERVAL;
+    int size = DataBlockSizePolicy.getMaxBlockSize(DataType.HASH);
+    int range = DataType.HASH.ordinal();
+    try {
+      DataBlockSizePolicy.ADAPT_INTERVAL = 16;
+      DataBlockSizePolicy.setAdaptive(true);
+      DataBlockSizePolicy.setMaxBlockSize(DataType.HASH, max);
+      // Many small records and no compression - shrink
+      for (int i = 0; i < 16; i++) {
+        DataBlockSizePolicy.splitDone(range, 100);
+      }
+      int shrunk = DataBlockSizePolicy.getMaxBlockSize(DataType.HASH);
+      assertTrue(shrunk < max);
+      // Many small records, but good compression - grow 
+      for (int i = 0; i < 16; i++) {
+        DataBlockSizePolicy.compressionDone(range, 3000, 1000);
+        DataBlockSizePolicy.splitDone(range, 100);
+      }
+      assertTrue(DataBlockSizePolicy.getMaxBlockSize(DataType.HASH) > shrunk);
+      DataBlockSizePolicy.setMaxBlockSize(DataType.HASH, shrunk);
+      // Few large records - grow
+      for (int i = 0; i < 16; i++) {
+        DataBlockSizePolicy.splitDone(range, 2);
+      }
+      assertTrue(DataBlockSizePolicy.getMaxBlockSize(DataType.HASH) > shrunk);
+      // Never goes beyond bounds
+      for (int i = 0; i < 1000; i++) {
+        DataBlockSizePolicy.splitDone(range, 2);
+      }
+      assertEquals(max, DataBlockSizePolicy.getMaxBlockSize(DataType.HASH));
+      for (int i = 0; i < 1000; i++) {
+        DataBlockSizePolicy.splitDone(range, 100);
+      }
+      assertEquals(max / 2, DataBlockSizePolicy.getMaxBlockSize(DataType.HASH));
+    } finally {
+      DataBlockSizePolicy.ADAPT_INTERVAL = interval;
+      DataBlockSizePolicy.setAdaptive(false);
+      DataBlockSizePolicy.setMaxBlockSize(DataType.HASH, size);
+    }
+    System.out.println("testAdaptiveBlockSize DONE");
+  }
+  
+  @Test
+  public void testDirectorySearch() throws RetryOperationException {
+    System.out.println("testDirectorySearch");
+    DataBlock b = getDataBlock();
+    Random r = new Random();
+    int keyLength = 16;
+    ArrayList<Key> keys = new ArrayList<Key>();
+    // Leave free space for the directory
+    while (b.getNumberOfRecords() < 3 * DataBlock.DIRECTORY_INTERVAL) {
+      byte[] key = new byte[keyLength];
+      r.nextBytes(key);
+      long ptr = UnsafeAccess.allocAndCopy(key, 0, keyLength);
+      assertTrue(b.put(key, 0, keyLength, key, 0, keyLength, -1));
+      keys.add(new Key(ptr, keyLength));
+    }
+    long dirSize = BigSortedMap.getGlobalDirectorySize();
+    assertTrue(!b.hasDirectory());
+    for (Key key: keys) {
+      long off = b.get(key.address, key.length, Long.MAX_VALUE);
+      assertTrue(off > 0);
+      assertEquals(0, Utils.compareTo(DataBlock.keyAddress(off), key.length, 
+        key.address, key.length));
+    }
+    assertTrue(b.hasDirectory());
+    assertEquals(dirSize + DataBlock.getDirectorySize(b.getNumberOfRecords()), 
+      BigSortedMap.getGlobalDirectorySize());
+    
+    // Compare with a linear search
+    int interval = DataBlock.DIRECTORY_INTERVAL;
+    long probe = UnsafeAccess.malloc(keyLength);
+    byte[] buf = new byte[keyLength];
+    try {
+      for (int i = 0; i < 1000; i++) {
+        r.nextBytes(buf);
+        if (i % 2 == 0) {
+          // Existing key
+          Key k = keys.get(r.nextInt(keys.size()));
+          UnsafeAccess.copy(k.address, probe, keyLength);
+        } else {
+          UnsafeAccess.copy(buf, 0, probe, keyLength);
+        }
+        int len = 1 + r.nextInt(keyLength);
+        long ptr = b.search(probe, len, Long.MAX_VALUE);
+        long floor = b.searchFloor(probe, len, Long.MAX_VALUE);
+        DataBlock.DIRECTORY_INTERVAL = 0;
+        assertEquals(b.search(probe, len, Long.MAX_VALUE), ptr);
+        assertEquals(b.searchFloor(probe, len, Long.MAX_VALUE), floor);
+        DataBlock.DIRECTORY_INTERVAL = interval;
+      }
+    } finally {
+      DataBlock.DIRECTORY_INTERVAL = interval;
+      UnsafeAccess.free(probe);
+    }
+    // Any update of a block layout invalidates directory, next search rebuilds it
+    Key k = keys.remove(0);
+    assertEquals(OpResult.OK, b.delete(k.address, k.length, Long.MAX_VALUE));
+    assertEquals(DataBlock.NOT_FOUND, b.get(k.address, k.length, Long.MAX_VALUE));
+    assertTrue(b.hasDirectory());
+    assertEquals(dirSize + DataBlock.getDirectorySize(b.getNumberOfRecords()), 
+      BigSortedMap.getGlobalDirectorySize());
+    b.invalidateDirectory();
+    assertTrue(!b.hasDirectory());
+    assertEquals(dirSize, BigSortedMap.getGlobalDirectorySize());
+    for (Key key: keys) {
+      assertTrue(b.get(key.address, key.length, Long.MAX_VALUE) > 0);
+    }
+    b.free();
+    assertEquals(dirSize, BigSortedMap.getGlobalDirectorySize());
+    System.out.println("testDirectorySearch DONE");
+  }
+  
   byte[] key;
   byte[] value;
   
@@ -361,6 +530,55 @@ public class DataBlockTest extends DataBlockTestBase {
     
   }
   
+  @Test
+  public void testPrefixCompressionDecompression() throws RetryOperationException, IOException {
+    System.out.println("testPrefixCompressionDecompression");
+    CodecType[] types = new CodecType[] {CodecType.PREFIX, CodecType.PREFIX_LZ4};
+    try {
+      for (CodecType type: types) {
+        BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(type));
+        DataBlock b = getDataBlock();
+        // Hash - like keys: long shared prefix + member
+        Random r = new Random();
+        byte[] prefix = new byte[40];
+        r.nextBytes(prefix);
+        ArrayList<Key> keys = new ArrayList<Key>();
+        boolean result = true;
+        while (result) {
+          byte[] key = new byte[prefix.length + 8];
+          System.arraycopy(prefix, 0, key, 0, prefix.length);
+          for (int i = prefix.length; i < key.length; i++) {
+            key[i] = (byte) r.nextInt(256);
+          }
+          result = b.put(key, 0, key.length, key, prefix.length, 8, -1);
+          if (result) {
+            keys.add(new Key(UnsafeAccess.allocAndCopy(key, 0, key.length), key.length));
+          }
+        }
+        int dataSize = b.getDataInBlockSize();
+        b.compressDataBlockIfNeeded();
+        assertTrue(b.isCompressed());
+        System.out.println(type + ": data size=" + dataSize + " compressed=" + 
+            b.getDataInBlockSize());
+        assertTrue(b.getDataInBlockSize() < dataSize);
+        b.decompressDataBlockIfNeeded();
+        assertEquals(dataSize, (int) b.getDataInBlockSize());
+        for (Key k: keys) {
+          long off = b.get(k.address, k.length, Long.MAX_VALUE);
+          assertTrue(off > 0);
+          assertEquals(8, DataBlock.valueLength(off));
+          assertEquals(0, Utils.compareTo(DataBlock.valueAddress(off), 8, 
+            k.address + prefix.length, 8));
+        }
+        scanAndVerify(b, keys);
+        b.compressDataBlockIfNeeded();
+        keys.stream().forEach(x -> UnsafeAccess.free(x.address));
+      }
+    } finally {
+      BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.NONE));
+    }
+  }
+  
   @Test
   public void testFirstKey() throws IOException {
     System.out.println("testFirstKey");
@@ -0,0 +1,86 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Snapshot quiescence point for write commands
+ */
+public class MutationBarrierTest {
+
+  @Test
+  public void testNestedMutations() {
+    MutationBarrier barrier = new MutationBarrier(4);
+    assertFalse(barrier.isInMutation());
+    barrier.enter();
+    barrier.enter();
+    barrier.exit();
+    assertTrue(barrier.isInMutation());
+    barrier.exit();
+    assertFalse(barrier.isInMutation());
+    // Nothing in progress
+    barrier.close();
+    barrier.open();
+  }
+
+  @Test
+  public void testCloseWaitsForMutations() throws InterruptedException {
+    MutationBarrier barrier = new MutationBarrier(Runtime.getRuntime().availableProcessors());
+    int numThreads = 8;
+    AtomicBoolean stop = new AtomicBoolean();
+    // Mutation: a and b are always updated together
+    AtomicLong a = new AtomicLong();
+    AtomicLong b = new AtomicLong();
+    Thread[] threads = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      threads[i] = new Thread(() -> {
+        while (!stop.get()) {
+          barrier.enter();
+          try {
+            a.incrementAndGet();
+            b.incrementAndGet();
+          } finally {
+            barrier.exit();
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (int i = 0; i < 1000; i++) {
+      barrier.close();
+      try {
+        assertEquals(a.get(), b.get());
+      } finally {
+        barrier.open();
+      }
+    }
+    stop.set(true);
+    for (Thread t: threads) {
+      t.join();
+    }
+    assertEquals(a.get(), b.get());
+  }
+}
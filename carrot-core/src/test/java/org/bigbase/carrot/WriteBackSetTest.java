@@ -0,0 +1,169 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.bigbase.carrot.compression.CodecFactory;
+import org.bigbase.carrot.compression.CodecType;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Deferred recompression of mutated data blocks (LZ4 compressed store)
+ */
+public class WriteBackSetTest {
+
+  static final int KEY_SIZE = 16;
+  
+  static final int VALUE_SIZE = 64;
+  
+  int numKeys = 100000;
+  
+  BigSortedMap map;
+  
+  long key = UnsafeAccess.malloc(KEY_SIZE);
+  long value = UnsafeAccess.malloc(VALUE_SIZE);
+  long buf = UnsafeAccess.malloc(VALUE_SIZE);
+  
+  @Before
+  public void setUp() {
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.LZ4));
+    map = new BigSortedMap(BigSortedMap.getGlobalAllocatedMemory() + 100000000L);
+    load(0, numKeys, 1, 0);
+  }
+  
+  @After
+  public void tearDown() {
+    map.dispose();
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.NONE));
+  }
+  
+  private void key(int i) {
+    UnsafeAccess.putLong(key, i);
+    UnsafeAccess.putLong(key + 8, i);
+  }
+  
+  private void load(int from, int to, int step, int gen) {
+    for (int i = from; i < to; i += step) {
+      key(i);
+      // Compressible value
+      for (int off = 0; off < VALUE_SIZE; off += 8) {
+        UnsafeAccess.putLong(value + off, (long) i * 31 + gen);
+      }
+      assertTrue(map.put(key, KEY_SIZE, value, VALUE_SIZE, 0));
+    }
+  }
+  
+  private void verify(int from, int to, int step, int gen) {
+    for (int i = from; i < to; i += step) {
+      key(i);
+      long size = map.get(key, KEY_SIZE, buf, VALUE_SIZE, Long.MAX_VALUE);
+      assertEquals((long) VALUE_SIZE, size);
+      assertEquals((long) i * 31 + gen, UnsafeAccess.toLong(buf + VALUE_SIZE - 8));
+    }
+  }
+  
+  @Test
+  public void testDeferredCompression() {
+    System.out.println("Test deferred compression");
+    long compressed = map.getInstanceCompressedDataSize();
+    long allocated = map.getInstanceAllocatedMemory();
+    assertTrue(compressed > 0);
+    
+    map.enableDeferredCompression();
+    WriteBackSet writeBack = map.getWriteBackSet();
+    // No background write - back
+    writeBack.setInterval(1000000);
+    // Hot keys: many updates of the same blocks 
+    int hot = 2000;
+    for (int gen = 1; gen <= 50; gen++) {
+      load(0, hot, 1, gen);
+    }
+    long dirty = writeBack.getDirtyBlocks();
+    System.out.println(String.join("\n", writeBack.getStats()));
+    assertTrue(dirty > 0);
+    assertTrue(map.getInstanceAllocatedMemory() > allocated);
+    verify(0, hot, 1, 50);
+    verify(hot, numKeys, 1, 0);
+    
+    // Write back
+    assertEquals(dirty, (long) writeBack.flush());
+    assertEquals(0L, writeBack.getDirtyBlocks());
+    verify(0, hot, 1, 50);
+    verify(hot, numKeys, 1, 0);
+    // Compression ratio is restored
+    assertTrue(map.getInstanceAllocatedMemory() < allocated * 1.05);
+    
+    // Deletes of dirty blocks
+    load(0, numKeys, 7, 51);
+    assertTrue(writeBack.getDirtyBlocks() > 0);
+    for (int i = 0; i < numKeys; i++) {
+      if (i % 7 == 0) {
+        key(i);
+        assertTrue(map.delete(key, KEY_SIZE));
+      }
+    }
+    map.disableDeferredCompression();
+    assertEquals(0L, writeBack.getDirtyBlocks());
+    for (int i = 0; i < numKeys; i++) {
+      key(i);
+      long size = map.get(key, KEY_SIZE, buf, VALUE_SIZE, Long.MAX_VALUE);
+      if (i % 7 == 0) {
+        assertEquals(-1L, size);
+      } else {
+        assertEquals((long) VALUE_SIZE, size);
+      }
+    }
+  }
+  
+  @Test
+  public void testMaxMemory() {
+    System.out.println("Test maximum memory of dirty blocks");
+    map.enableDeferredCompression();
+    WriteBackSet writeBack = map.getWriteBackSet();
+    // 16 blocks
+    writeBack.setMaxMemory(16 * DataBlock.getMaximumBlockSize());
+    load(0, numKeys, 1, 1);
+    System.out.println(String.join("\n", writeBack.getStats()));
+    assertTrue(writeBack.getDirtyBlocks() <= 16);
+    verify(0, numKeys, 1, 1);
+  }
+  
+  @Test
+  public void testBackgroundWriteBack() throws InterruptedException {
+    System.out.println("Test background write - back");
+    map.enableDeferredCompression();
+    WriteBackSet writeBack = map.getWriteBackSet();
+    assertTrue(writeBack.isRunning());
+    load(0, numKeys, 3, 1);
+    assertTrue(writeBack.getDirtyBlocks() > 0);
+    long start = System.currentTimeMillis();
+    while (writeBack.getDirtyBlocks() > 0 && System.currentTimeMillis() - start < 10000) {
+      Thread.sleep(100);
+    }
+    System.out.println(String.join("\n", writeBack.getStats()));
+    assertEquals(0L, writeBack.getDirtyBlocks());
+    assertTrue(writeBack.getWrittenBlocks() > 0);
+    verify(0, numKeys, 3, 1);
+    verify(1, numKeys, 3, 0);
+  }
+}
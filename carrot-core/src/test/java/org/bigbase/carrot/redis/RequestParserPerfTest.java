@@ -0,0 +1,104 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.bigbase.carrot.redis.util.Utils;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.junit.Test;
+
+/**
+ * Compares two request parsing paths: conversion to a separate memory buffer 
+ * (requestToCarrot) and in place conversion inside a receive buffer 
+ * (requestToCarrotInPlace) for SET requests with 16B, 1KB and 64KB values.
+ */
+public class RequestParserPerfTest {
+
+  static final int[] VALUE_SIZES = new int[] {16, 1024, 64 * 1024};
+  
+  static final long TOTAL_BYTES = 1L << 28; // 256MB of requests per round
+  
+  private byte[] request(int valueSize) {
+    byte[] value = new byte[valueSize];
+    for (int i = 0; i < valueSize; i++) {
+      value[i] = (byte) ('a' + i % 26);
+    }
+    String request = "*3\r\n$3\r\nSET\r\n$10\r\nkey0000001\r\n$" + valueSize + "\r\n" +
+        new String(value) + "\r\n";
+    return request.getBytes();
+  }
+  
+  @Test
+  public void testParsers() {
+    for (int valueSize: VALUE_SIZES) {
+      byte[] request = request(valueSize);
+      int len = request.length;
+      ByteBuffer buf = ByteBuffer.allocateDirect(len);
+      long ptr = UnsafeAccess.malloc(len);
+      
+      // Verify that both paths produce the same result
+      buf.put(request);
+      Utils.requestToCarrot(buf, 0, len, ptr, len);
+      buf.clear();
+      long inplace = Utils.requestToCarrotInPlace(buf, 0, len);
+      assertTrue(inplace > 0);
+      int carrotSize = 4 + 4 + 3 + 4 + 10 + 4 + valueSize;
+      assertEquals(0, 
+        org.bigbase.carrot.util.Utils.compareTo(ptr, carrotSize, inplace, carrotSize));
+      
+      int n = (int) (TOTAL_BYTES / len);
+      // First round is a warm up
+      for (int round = 0; round < 2; round++) {
+        // Baseline: request refill only
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+          buf.clear();
+          buf.put(request);
+        }
+        long baseline = System.nanoTime() - start;
+      
+        start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+          buf.clear();
+          buf.put(request);
+          Utils.requestToCarrot(buf, 0, len, ptr, len);
+        }
+        long copy = System.nanoTime() - start - baseline;
+      
+        start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+          buf.clear();
+          buf.put(request);
+          Utils.requestToCarrotInPlace(buf, 0, len);
+        }
+        long zeroCopy = System.nanoTime() - start - baseline;
+        if (round == 0) {
+          continue;
+        }
+        System.out.println("value=" + valueSize + " requests=" + n + 
+          " copy=" + Math.max(0, copy) / n + "ns/request" +
+          " in-place=" + Math.max(0, zeroCopy) / n + "ns/request");
+      }
+      UnsafeAccess.free(ptr);
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import static org.bigbase.carrot.util.Utils.byteBufferToString;
+import static org.bigbase.carrot.util.Utils.strToByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.db.DBSystem;
+import org.bigbase.carrot.redis.util.RespWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBlockedClients {
+
+  BigSortedMap map;
+  Selector selector;
+  WaitQueue queue;
+  
+  /*
+   * Blocked client: connection's input, output and waiter
+   */
+  class Client {
+    ByteBuffer in = ByteBuffer.allocateDirect(4096);
+    ByteBuffer out = ByteBuffer.allocateDirect(4096);
+    Waiter waiter = queue.newWaiter(map, null);
+    
+    int send(String request) {
+      strToByteBuffer(request, in);
+      return process();
+    }
+    
+    int process() {
+      int processed = CommandProcessor.processPipeline(map, in, new RespWriter(out), waiter);
+      if (waiter.isBlocked()) {
+        queue.park(waiter);
+      }
+      return processed;
+    }
+    
+    String reply() {
+      String s = byteBufferToString(out);
+      out.clear();
+      return s;
+    }
+  }
+  
+  @Before
+  public void setUp() throws IOException {
+    map = new BigSortedMap(1000000);
+    selector = Selector.open();
+    queue = new WaitQueue(selector);
+  }
+  
+  @After
+  public void tearDown() throws IOException {
+    selector.close();
+    map.dispose();
+    DBSystem.reset();
+  }
+  
+  private void execute(String request) {
+    ByteBuffer in = ByteBuffer.allocateDirect(4096);
+    ByteBuffer out = ByteBuffer.allocateDirect(4096);
+    strToByteBuffer(request, in);
+    CommandProcessor.processPipeline(map, in, out);
+  }
+  
+  @Test
+  public void testBlockAndSignal() {
+    Client c = new Client();
+    assertEquals(0, c.send("BLPOP list1 list2 0\r\n"));
+    assertTrue(c.waiter.isBlocked());
+    assertEquals("", c.reply());
+    assertEquals(1, BlockedClients.size());
+    
+    execute("RPUSH list2 v1\r\n");
+    queue.poll(w -> c.process());
+    assertFalse(c.waiter.isBlocked());
+    assertEquals("*2\r\n$5\r\nlist2\r\n$2\r\nv1\r\n", c.reply());
+    assertEquals(0, BlockedClients.size());
+  }
+  
+  @Test
+  public void testSignalWakesFirstWaiter() {
+    Client c1 = new Client();
+    Client c2 = new Client();
+    c1.send("BZPOPMIN zset 0\r\n");
+    c2.send("BZPOPMIN zset 0\r\n");
+    assertEquals(2, BlockedClients.size());
+    
+    execute("ZADD zset 1.0 m1\r\n");
+    queue.poll(w -> (w == c1.waiter? c1: c2).process());
+    assertEquals("*3\r\n$4\r\nzset\r\n$2\r\nm1\r\n$3\r\n1.0\r\n", c1.reply());
+    // Second client has been woken up by the first one, but nothing was left
+    assertEquals("", c2.reply());
+    assertTrue(c2.waiter.isBlocked());
+    assertEquals(1, BlockedClients.size());
+    
+    execute("ZADD zset 2.0 m2\r\n");
+    queue.poll(w -> (w == c1.waiter? c1: c2).process());
+    assertEquals("*3\r\n$4\r\nzset\r\n$2\r\nm2\r\n$3\r\n2.0\r\n", c2.reply());
+    assertEquals(0, BlockedClients.size());
+  }
+  
+  @Test
+  public void testPipelineAfterBlockedRequest() {
+    Client c = new Client();
+    assertEquals(0, c.send("BRPOP list 0\r\nSET key value\r\nGET key\r\n"));
+    assertTrue(c.waiter.isBlocked());
+    // Blocked request has been consumed, the rest of pipeline is waiting
+    assertTrue(c.in.position() > 0);
+    
+    execute("LPUSH list v1\r\n");
+    queue.poll(w -> c.process());
+    assertEquals("*2\r\n$4\r\nlist\r\n$2\r\nv1\r\n+OK\r\n$5\r\nvalue\r\n", c.reply());
+    assertEquals(0, c.in.position());
+  }
+  
+  @Test
+  public void testTimeout() throws InterruptedException {
+    Client c = new Client();
+    c.send("BLMOVE src dst LEFT RIGHT 0.05\r\n");
+    assertTrue(c.waiter.isBlocked());
+    long timeout = queue.getSelectTimeout();
+    assertTrue(timeout > 0 && timeout <= 50);
+    queue.poll(w -> c.process());
+    assertTrue(c.waiter.isBlocked());
+    Thread.sleep(100);
+    queue.poll(w -> c.process());
+    assertFalse(c.waiter.isBlocked());
+    assertEquals("$-1\r\n", c.reply());
+    assertEquals(0L, queue.getSelectTimeout());
+    assertEquals(0, BlockedClients.size());
+  }
+  
+  @Test
+  public void testCancel() {
+    Client c1 = new Client();
+    Client c2 = new Client();
+    c1.send("BLPOP list 0\r\n");
+    c2.send("BLPOP list 0\r\n");
+    // First client disconnects
+    queue.cancel(c1.waiter);
+    execute("RPUSH list v1\r\n");
+    queue.poll(w -> (w == c1.waiter? c1: c2).process());
+    assertEquals("", c1.reply());
+    assertEquals("*2\r\n$4\r\nlist\r\n$2\r\nv1\r\n", c2.reply());
+    assertEquals(0, BlockedClients.size());
+  }
+}
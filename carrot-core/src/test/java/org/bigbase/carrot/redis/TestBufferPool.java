@@ -0,0 +1,61 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class TestBufferPool {
+
+  @Test
+  public void testGetRelease() {
+    ByteBuffer buf = BufferPool.get();
+    assertEquals(BufferPool.MIN_BUFFER_SIZE, buf.capacity());
+    assertTrue(buf.isDirect());
+    buf.put((byte) 1);
+    BufferPool.release(buf);
+    ByteBuffer b = BufferPool.get(100);
+    assertSame(buf, b);
+    assertEquals(0, b.position());
+    BufferPool.release(b);
+    
+    b = BufferPool.get(BufferPool.MIN_BUFFER_SIZE + 1);
+    assertEquals(2 * BufferPool.MIN_BUFFER_SIZE, b.capacity());
+    BufferPool.release(b);
+  }
+  
+  @Test
+  public void testGrow() {
+    ByteBuffer buf = BufferPool.get();
+    for (int i = 0; i < buf.capacity(); i++) {
+      buf.put((byte) i);
+    }
+    ByteBuffer b = BufferPool.grow(buf, buf.capacity() + 1);
+    assertEquals(2 * BufferPool.MIN_BUFFER_SIZE, b.capacity());
+    assertEquals(buf.capacity(), b.position());
+    for (int i = 0; i < buf.capacity(); i++) {
+      assertEquals((byte) i, b.get(i));
+    }
+    BufferPool.release(b);
+  }
+}
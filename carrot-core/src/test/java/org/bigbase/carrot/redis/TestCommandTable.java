@@ -0,0 +1,123 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import static org.bigbase.carrot.util.Utils.byteBufferToString;
+import static org.bigbase.carrot.util.Utils.strToByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.commands.RedisCommand;
+import org.bigbase.carrot.redis.db.DBSystem;
+import org.bigbase.carrot.redis.util.Utils;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.junit.Test;
+
+public class TestCommandTable {
+
+  private int lookup(String name) {
+    long ptr = UnsafeAccess.allocAndCopy(name, 0, name.length());
+    try {
+      return CommandTable.lookup(ptr, name.length());
+    } finally {
+      UnsafeAccess.free(ptr);
+    }
+  }
+  
+  @Test
+  public void testLookup() {
+    CommandStats[] stats = CommandTable.getStats();
+    assertEquals(CommandTable.size(), stats.length);
+    for (int i = 0; i < stats.length; i++) {
+      String name = stats[i].getName();
+      assertEquals(i, lookup(name));
+      RedisCommand cmd = CommandTable.getCommand(i);
+      assertNotNull(cmd);
+      assertEquals(name, cmd.getClass().getSimpleName());
+      // Per thread instance
+      assertTrue(cmd == CommandTable.getCommand(i));
+    }
+    assertTrue(lookup("GET") >= 0);
+    assertEquals(-1, lookup("get"));
+    assertEquals(-1, lookup("GE"));
+    assertEquals(-1, lookup("GETT"));
+    assertEquals(-1, lookup("RedisCommand"));
+    assertEquals(-1, lookup("ERRORS"));
+    assertEquals(-1, lookup(""));
+    assertEquals(-1, lookup("ZREVRANGEBYSCOREXXXXXXX"));
+  }
+  
+  @Test
+  public void testStats() {
+    CommandStats stats = new CommandStats("TEST");
+    assertEquals(0L, stats.getPercentile(50));
+    for (int i = 0; i < 98; i++) {
+      stats.record(500); // 0us
+    }
+    stats.record(3000); // 3us
+    stats.record(1000000); // 1000us
+    assertEquals(100L, stats.getCalls());
+    assertEquals(1003L, stats.getTotalTime());
+    assertEquals(1L, stats.getPercentile(50));
+    assertEquals(4L, stats.getPercentile(99));
+    assertEquals(1024L, stats.getPercentile(99.9));
+    stats.reset();
+    assertEquals(0L, stats.getCalls());
+  }
+  
+  @Test
+  public void testCommandStats() {
+    BigSortedMap map = new BigSortedMap(1000000);
+    ByteBuffer in = ByteBuffer.allocateDirect(4096);
+    ByteBuffer out = ByteBuffer.allocateDirect(4096);
+    try {
+      CommandTable.resetStats();
+      String[] requests = new String[] {"SET key1 value1", "get key1", "GET key2"};
+      for (String r: requests) {
+        in.clear();
+        out.clear();
+        strToByteBuffer(Utils.inlineToRedisRequest(r), in);
+        CommandProcessor.process(map, in, out);
+      }
+      assertEquals(1L, CommandTable.getStats(lookup("SET")).getCalls());
+      assertEquals(2L, CommandTable.getStats(lookup("GET")).getCalls());
+      
+      in.clear();
+      out.clear();
+      strToByteBuffer(Utils.inlineToRedisRequest("INFO COMMANDSTATS"), in);
+      CommandProcessor.process(map, in, out);
+      String reply = byteBufferToString(out);
+      assertTrue(reply.contains("cmdstat_get:calls=2,"));
+      assertTrue(reply.contains("cmdstat_set:calls=1,"));
+      
+      in.clear();
+      out.clear();
+      strToByteBuffer(Utils.inlineToRedisRequest("INFO LATENCYSTATS"), in);
+      CommandProcessor.process(map, in, out);
+      reply = byteBufferToString(out);
+      assertTrue(reply.contains("latency_percentiles_usec_get:p50="));
+    } finally {
+      map.dispose();
+      DBSystem.reset();
+    }
+  }
+}
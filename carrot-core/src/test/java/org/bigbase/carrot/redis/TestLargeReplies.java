@@ -0,0 +1,181 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import static org.bigbase.carrot.util.Utils.byteBufferToString;
+import static org.bigbase.carrot.util.Utils.strToByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.db.DBSystem;
+import org.bigbase.carrot.redis.util.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLargeReplies {
+
+  BigSortedMap map;
+  ByteBuffer in, out;
+  
+  @Before
+  public void setUp() {
+    map = new BigSortedMap(100000000);
+    in = ByteBuffer.allocateDirect(8 * 1024 * 1024);
+    out = ByteBuffer.allocateDirect(8 * 1024 * 1024);
+  }
+  
+  @After
+  public void tearDown() {
+    map.dispose();
+    DBSystem.reset();
+    CommandProcessor.setMaxReplySize(RedisConf.getInstance().getMaxReplySize());
+  }
+  
+  private String value(int size, char c) {
+    char[] chars = new char[size];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+  
+  private String execute(String request) {
+    in.clear();
+    out.clear();
+    strToByteBuffer(Utils.inlineToRedisRequest(request), in);
+    CommandProcessor.process(map, in, out);
+    return byteBufferToString(out);
+  }
+  
+  @Test
+  public void testLargeGet() {
+    String v = value(3 * 1024 * 1024, 'a');
+    assertEquals("+OK\r\n", execute("SET key " + v));
+    assertEquals("$" + v.length() + "\r\n" + v + "\r\n", execute("GET key"));
+    // Pooled buffer is not used anymore
+    assertEquals(0L, ReplyBufferPool.getAllocatedSize() - ReplyBufferPool.getPooledSize());
+  }
+  
+  @Test
+  public void testLargeMget() {
+    int n = 5;
+    int size = 512 * 1024;
+    StringBuilder expected = new StringBuilder("*" + n + "\r\n");
+    StringBuilder request = new StringBuilder("MGET");
+    for (int i = 0; i < n; i++) {
+      String v = value(size, (char)('a' + i));
+      assertEquals("+OK\r\n", execute("SET key" + i + " " + v));
+      expected.append("$" + size + "\r\n" + v + "\r\n");
+      request.append(" key" + i);
+    }
+    assertEquals(expected.toString(), execute(request.toString()));
+  }
+  
+  @Test
+  public void testLargeHgetall() {
+    int n = 8;
+    int size = 256 * 1024;
+    StringBuilder expected = new StringBuilder("*" + 2 * n + "\r\n");
+    for (int i = 0; i < n; i++) {
+      String v = value(size, (char)('a' + i));
+      assertEquals(":1\r\n", execute("HSET hash field" + i + " " + v));
+      expected.append("$6\r\nfield" + i + "\r\n$" + size + "\r\n" + v + "\r\n");
+    }
+    assertEquals(expected.toString(), execute("HGETALL hash"));
+  }
+  
+  @Test
+  public void testWriteCommandIsNotRepeated() {
+    int n = 8;
+    int size = 256 * 1024;
+    for (int i = 0; i < n; i++) {
+      assertEquals(":1\r\n", execute("SADD set " + value(size, (char)('a' + i))));
+    }
+    // Reply does not fit the default buffer, SPOP must not be executed again
+    assertEquals("-ERR: Reply is too large\r\n", execute("SPOP set " + n / 2));
+    // Members which did not fit the buffer are not popped
+    String card = execute("SCARD set");
+    long remaining = Long.parseLong(card.substring(1, card.length() - 2));
+    assertTrue(remaining >= n - n / 2 && remaining < n);
+  }
+  
+  @Test
+  public void testMaxReplySize() {
+    String v = value(2 * 1024 * 1024, 'a');
+    assertEquals("+OK\r\n", execute("SET key " + v));
+    CommandProcessor.setMaxReplySize(1024 * 1024);
+    assertEquals("-ERR: Reply is too large\r\n", execute("GET key"));
+    // Small replies are not affected
+    assertEquals("+OK\r\n", execute("SET key1 value1"));
+    assertEquals("$6\r\nvalue1\r\n", execute("GET key1"));
+  }
+  
+  @Test
+  public void testReplyDoesNotFitOutputBuffer() {
+    // Writer without a flusher: reply must not overflow caller's buffer
+    out = ByteBuffer.allocateDirect(1024);
+    String v = value(200, 'a');
+    for (int i = 0; i < 10; i++) {
+      assertEquals(":1\r\n", execute("HSET hash field" + i + " " + v));
+    }
+    assertEquals("-ERR: Reply is too large\r\n", execute("HGETALL hash"));
+    assertEquals("+OK\r\n", execute("SET key " + value(2000, 'b')));
+    assertEquals("-ERR: Reply is too large\r\n", execute("GET key"));
+    // Small replies are not affected
+    assertEquals("$200\r\n" + v + "\r\n", execute("HGET hash field1"));
+  }
+  
+  @Test
+  public void testMaxReplySizeLimit() {
+    // Maximum reply size must fit the largest pooled buffer
+    CommandProcessor.setMaxReplySize(Integer.MAX_VALUE);
+    assertEquals(ReplyBufferPool.MAX_BUFFER_SIZE, CommandProcessor.getMaxReplySize());
+    assertEquals(ReplyBufferPool.NUM_CLASSES - 1, 
+      ReplyBufferPool.sizeClass(CommandProcessor.getMaxReplySize()));
+  }
+  
+  @Test
+  public void testReclaimIdleBuffers() throws InterruptedException {
+    long timeout = ReplyBufferPool.getIdleTimeout();
+    try {
+      // Start with an empty pool
+      ReplyBufferPool.setIdleTimeout(0);
+      ReplyBufferPool.reclaim();
+      ReplyBufferPool.setIdleTimeout(100000);
+      ReplyBufferPool.Buffer buf = ReplyBufferPool.get(3 * 1024 * 1024);
+      assertEquals(4 * 1024 * 1024, buf.getSize());
+      long allocated = ReplyBufferPool.getAllocatedSize();
+      ReplyBufferPool.release(buf);
+      assertEquals(buf.getSize(), (int) ReplyBufferPool.getPooledSize());
+      // Pooled buffer is reused
+      assertTrue(buf == ReplyBufferPool.get(4 * 1024 * 1024));
+      ReplyBufferPool.release(buf);
+      assertEquals(0, ReplyBufferPool.reclaim());
+      // Background reclaimer must free idle buffer
+      ReplyBufferPool.setIdleTimeout(100);
+      Thread.sleep(500);
+      assertEquals(0L, ReplyBufferPool.getPooledSize());
+      assertEquals(allocated - buf.getSize(), ReplyBufferPool.getAllocatedSize());
+    } finally {
+      ReplyBufferPool.setIdleTimeout(timeout);
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import static org.bigbase.carrot.util.Utils.byteBufferToString;
+import static org.bigbase.carrot.util.Utils.strToByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.db.DBSystem;
+import org.bigbase.carrot.redis.util.Utils;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPipelining {
+
+  BigSortedMap map;
+  ByteBuffer in, out;
+  
+  @Before
+  public void setUp() {
+    map = new BigSortedMap(1000000);
+    in = ByteBuffer.allocateDirect(4096);
+    out = ByteBuffer.allocateDirect(4096);
+  }
+  
+  @After
+  public void tearDown() {
+    map.dispose();
+    DBSystem.reset();
+  }
+  
+  @Test
+  public void testRequestLength() {
+    String request = Utils.inlineToRedisRequest("SET key1 value1");
+    strToByteBuffer(request + request, in);
+    int len = request.length();
+    assertEquals(len, Utils.requestLength(in, 0, in.position()));
+    assertEquals(len, Utils.requestLength(in, len, in.position()));
+    // Incomplete requests
+    for (int i = 0; i < len; i++) {
+      assertEquals(0, Utils.requestLength(in, 0, i));
+    }
+    in.clear();
+    strToByteBuffer("GET key1\r\nGET", in);
+    assertEquals("GET key1\r\n".length(), Utils.requestLength(in, 0, in.position()));
+    assertEquals(0, Utils.requestLength(in, "GET key1\r\n".length(), in.position()));
+    in.clear();
+    strToByteBuffer("*1\r\n:10\r\n", in);
+    assertEquals(-1, Utils.requestLength(in, 0, in.position()));
+    // Empty bulk string
+    in.clear();
+    strToByteBuffer("*3\r\n$3\r\nSET\r\n$1\r\nk\r\n$0\r\n\r\n", in);
+    assertEquals(in.position(), Utils.requestLength(in, 0, in.position()));
+  }
+  
+  @Test
+  public void testEmptyBulkString() {
+    strToByteBuffer("*3\r\n$3\r\nSET\r\n$1\r\nk\r\n$0\r\n\r\n" + 
+      Utils.inlineToRedisRequest("GET k") + Utils.inlineToRedisRequest("STRLEN k"), in);
+    int processed = CommandProcessor.processPipeline(map, in, out);
+    assertEquals(3, processed);
+    assertEquals("+OK\r\n$0\r\n\r\n:0\r\n", byteBufferToString(out));
+  }
+  
+  @Test
+  public void testWrongRequestInPipeline() {
+    // Wrong request is answered with an error, other requests are executed
+    strToByteBuffer(Utils.inlineToRedisRequest("SET key1 value1") + "*2\r\n:10\r\n:20\r\n" + 
+      Utils.inlineToRedisRequest("GET key1"), in);
+    int processed = CommandProcessor.processPipeline(map, in, out);
+    assertEquals(3, processed);
+    String reply = byteBufferToString(out);
+    assertTrue(reply.startsWith("+OK\r\n-"));
+    assertTrue(reply.endsWith("\r\n$6\r\nvalue1\r\n"));
+    assertEquals(0, in.position());
+  }
+  
+  @Test
+  public void testPipeline() {
+    String[] requests = new String[] {
+        "SET key1 value1", "GET key1", "SET key2 value2", "GET key2", "GET key3"
+    };
+    String expected = "+OK\r\n$6\r\nvalue1\r\n+OK\r\n$6\r\nvalue2\r\n$-1\r\n";
+    StringBuilder sb = new StringBuilder();
+    for (String r: requests) {
+      sb.append(Utils.inlineToRedisRequest(r));
+    }
+    String pipeline = sb.toString();
+    String partial = Utils.inlineToRedisRequest("GET key1");
+    // Add incomplete request
+    strToByteBuffer(pipeline + partial.substring(0, 10), in);
+    int processed = CommandProcessor.processPipeline(map, in, out);
+    assertEquals(requests.length, processed);
+    assertEquals(expected, byteBufferToString(out));
+    // Incomplete request must be kept in the input buffer
+    assertEquals(10, in.position());
+    // Complete last request
+    out.clear();
+    strToByteBuffer(partial.substring(10), in);
+    processed = CommandProcessor.processPipeline(map, in, out);
+    assertEquals(1, processed);
+    assertEquals("$6\r\nvalue1\r\n", byteBufferToString(out));
+    assertEquals(0, in.position());
+  }
+  
+  @Test
+  public void testPipelineInline() {
+    strToByteBuffer("SET key1 value1\r\nGET key1\r\nGET key2\n", in);
+    int processed = CommandProcessor.processPipeline(map, in, out);
+    assertEquals(3, processed);
+    assertEquals("+OK\r\n$6\r\nvalue1\r\n$-1\r\n", byteBufferToString(out));
+    assertEquals(0, in.position());
+  }
+  
+  @Test
+  public void testRequestToCarrotInPlace() {
+    String request = Utils.inlineToRedisRequest("SET key1 value1 EX 100");
+    strToByteBuffer(request, in);
+    int len = in.position();
+    long ptr = UnsafeAccess.malloc(len);
+    Utils.requestToCarrot(in, 0, len, ptr, len);
+    in.clear();
+    long inplace = Utils.requestToCarrotInPlace(in, 0, len);
+    // Carrot format must end where the last argument ends
+    long address = UnsafeAccess.address(in);
+    int size = 4 + 4 * 5 + "SETkey1value1EX100".length();
+    assertEquals(address + len - 2 - size, inplace);
+    assertEquals(0, org.bigbase.carrot.util.Utils.compareTo(ptr, size, inplace, size));
+    UnsafeAccess.free(ptr);
+    // In-line requests and heap buffers are not supported
+    in.clear();
+    strToByteBuffer("SET key1 value1\r\n", in);
+    assertEquals(0L, Utils.requestToCarrotInPlace(in, 0, in.position()));
+    ByteBuffer heap = ByteBuffer.allocate(4096);
+    strToByteBuffer(request, heap);
+    assertEquals(0L, Utils.requestToCarrotInPlace(heap, 0, heap.position()));
+  }
+}
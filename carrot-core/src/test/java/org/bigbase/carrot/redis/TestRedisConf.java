@@ -96,4 +96,28 @@ public class TestRedisConf {
     
   }
   
+  @Test
+  public void testCpuList() {
+    Properties p = new Properties();
+    RedisConf conf = new RedisConf(p);
+    assertEquals(0, conf.getCpuList().length);
+    
+    p.setProperty(RedisConf.CONF_SERVER_CPU_LIST, "0-3, 8,10-11");
+    int[] cpus = conf.getCpuList();
+    assertEquals(7, cpus.length);
+    int[] expected = new int[] {0, 1, 2, 3, 8, 10, 11};
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], cpus[i]);
+    }
+    // One node per CPU, when nodes are not configured
+    p.setProperty(RedisConf.CONF_SERVER_PORT, "7000");
+    String[] nodes = conf.getNodes();
+    assertEquals(7, nodes.length);
+    assertEquals("127.0.0.1:7000", nodes[0]);
+    assertEquals("127.0.0.1:7006", nodes[6]);
+    
+    // Wrong format
+    p.setProperty(RedisConf.CONF_SERVER_CPU_LIST, "0-a");
+    assertEquals(0, conf.getCpuList().length);
+  }
 }
@@ -0,0 +1,133 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import static org.bigbase.carrot.util.Utils.strToByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.db.DBSystem;
+import org.bigbase.carrot.redis.hashes.Hashes;
+import org.bigbase.carrot.redis.sets.Sets;
+import org.bigbase.carrot.redis.util.RespWriter;
+import org.bigbase.carrot.redis.util.Utils;
+import org.bigbase.carrot.util.UnsafeAccess;
+import org.junit.Test;
+
+public class TestRespWriter {
+
+  /**
+   * Collects flushed chunks
+   */
+  static class Collector implements RespWriter.Flusher {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    int chunks = 0;
+    
+    @Override
+    public ByteBuffer flush(ByteBuffer buf, int required) {
+      chunks++;
+      buf.flip();
+      byte[] b = new byte[buf.remaining()];
+      buf.get(b);
+      bos.write(b, 0, b.length);
+      buf.clear();
+      return buf.capacity() >= required? buf: ByteBuffer.allocateDirect(required);
+    }
+    
+    String getData(ByteBuffer buf) {
+      flush(buf, 0);
+      return new String(bos.toByteArray());
+    }
+  }
+  
+  @Test
+  public void testWriter() {
+    ByteBuffer buf = ByteBuffer.allocateDirect(16);
+    Collector c = new Collector();
+    RespWriter w = new RespWriter(buf, c);
+    w.writeArrayHeader(3);
+    w.writeInteger(100);
+    w.writeBulk("a long bulk string".getBytes());
+    long ptr = UnsafeAccess.allocAndCopy("value", 0, 5);
+    w.writeBulk(ptr, 5);
+    UnsafeAccess.free(ptr);
+    assertTrue(w.getFlushCount() > 0);
+    assertEquals("*3\r\n:100\r\n$18\r\na long bulk string\r\n$5\r\nvalue\r\n", 
+      c.getData(w.getBuffer()));
+    
+    // No flusher
+    w = new RespWriter(ByteBuffer.allocate(8));
+    w.writeInteger(1);
+    try {
+      w.writeBulk("overflow".getBytes());
+      assertTrue(false);
+    } catch (BufferOverflowException e) {
+    }
+  }
+  
+  @Test
+  public void testLargeReplies() {
+    BigSortedMap map = new BigSortedMap(100000000);
+    try {
+      int n = 20000;
+      String value = new String(new char[100]).replace('\0', 'v');
+      for (int i = 0; i < n; i++) {
+        Hashes.HSET(map, "hash", "field" + i, value);
+        Sets.SADD(map, "set", "member" + i);
+      }
+      ByteBuffer in = ByteBuffer.allocateDirect(4096);
+      ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+      
+      strToByteBuffer(Utils.inlineToRedisRequest("HGETALL hash"), in);
+      Collector c = new Collector();
+      int processed = CommandProcessor.processPipeline(map, in, new RespWriter(out, c));
+      assertEquals(1, processed);
+      String reply = c.getData(out);
+      assertTrue(c.chunks > 1);
+      assertTrue(reply.startsWith("*" + (2 * n) + "\r\n"));
+      int expected = ("*" + (2 * n) + "\r\n").length();
+      for (int i = 0; i < n; i++) {
+        expected += ("$" + ("field" + i).length() + "\r\nfield" + i + "\r\n").length();
+        expected += ("$100\r\n" + value + "\r\n").length(); 
+      }
+      assertEquals(expected, reply.length());
+      
+      out.clear();
+      strToByteBuffer(Utils.inlineToRedisRequest("SMEMBERS set"), in);
+      c = new Collector();
+      processed = CommandProcessor.processPipeline(map, in, new RespWriter(out, c));
+      assertEquals(1, processed);
+      reply = c.getData(out);
+      assertTrue(reply.startsWith("*" + n + "\r\n"));
+      assertEquals(n + 1, reply.split("\\$").length);
+      
+      out.clear();
+      strToByteBuffer(Utils.inlineToRedisRequest("SMEMBERS nokey"), in);
+      CommandProcessor.processPipeline(map, in, out);
+      assertEquals("*0\r\n", org.bigbase.carrot.util.Utils.byteBufferToString(out));
+    } finally {
+      map.dispose();
+      DBSystem.reset();
+    }
+  }
+}
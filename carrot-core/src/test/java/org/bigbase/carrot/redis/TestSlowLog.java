@@ -0,0 +1,120 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import static org.bigbase.carrot.util.Utils.byteBufferToString;
+import static org.bigbase.carrot.util.Utils.strToByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.db.DBSystem;
+import org.bigbase.carrot.redis.util.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSlowLog {
+
+  BigSortedMap map;
+  ByteBuffer in, out;
+  
+  @Before
+  public void setUp() {
+    map = new BigSortedMap(1000000);
+    in = ByteBuffer.allocateDirect(4096);
+    out = ByteBuffer.allocateDirect(4096);
+    SlowLog.reset();
+  }
+  
+  @After
+  public void tearDown() {
+    RedisConf conf = RedisConf.getInstance();
+    SlowLog.setThreshold(conf.getSlowLogThreshold());
+    SlowLog.setMaxLength(conf.getSlowLogMaxLength());
+    SlowLog.reset();
+    map.dispose();
+    DBSystem.reset();
+  }
+  
+  private String execute(String request) {
+    in.clear();
+    out.clear();
+    strToByteBuffer(Utils.inlineToRedisRequest(request), in);
+    CommandProcessor.process(map, in, out);
+    return byteBufferToString(out);
+  }
+  
+  @Test
+  public void testDisabled() {
+    SlowLog.setThreshold(-1);
+    assertTrue(!SlowLog.isEnabled());
+    assertTrue(!SlowLog.isSampled());
+    execute("SET key1 value1");
+    assertEquals(0, SlowLog.length());
+    assertEquals(":0\r\n", execute("SLOWLOG LEN"));
+  }
+  
+  @Test
+  public void testGetLenReset() {
+    SlowLog.setThreshold(0);
+    SlowLog.setMaxLength(3);
+    execute("SET key1 value1");
+    execute("GET key1");
+    assertEquals(2, SlowLog.length());
+    SlowLog.Entry[] entries = SlowLog.get(-1);
+    assertEquals(2, entries.length);
+    // Most recent first
+    assertEquals("GET", new String(entries[0].getArgs()[0]));
+    assertEquals("key1", new String(entries[0].getArgs()[1]));
+    assertEquals("SET", new String(entries[1].getArgs()[0]));
+    assertTrue(entries[0].getId() > entries[1].getId());
+    
+    execute("GET key2");
+    execute("GET key3");
+    // Oldest entries are evicted
+    assertEquals(3, SlowLog.length());
+    
+    String reply = execute("SLOWLOG GET 1");
+    // Command is logged after execution
+    assertTrue(reply.startsWith("*1\r\n*4\r\n:"));
+    assertTrue(reply.endsWith("*2\r\n$3\r\nGET\r\n$4\r\nkey3\r\n"));
+    assertEquals(":3\r\n", execute("SLOWLOG LEN"));
+    assertEquals("+OK\r\n", execute("SLOWLOG RESET"));
+    // SLOWLOG RESET is logged after reset
+    assertEquals(1, SlowLog.length());
+    assertEquals("-ERR: Unsupported command: SLOWLOG X\r\n", execute("SLOWLOG X"));
+    assertEquals("-ERR: Wrong number of arguments\r\n", execute("SLOWLOG LEN 1"));
+  }
+  
+  @Test
+  public void testTruncation() {
+    SlowLog.setThreshold(0);
+    StringBuilder sb = new StringBuilder("MGET");
+    for (int i = 0; i < SlowLog.MAX_ARGS + 10; i++) {
+      sb.append(" key").append(i);
+    }
+    execute(sb.toString());
+    SlowLog.Entry[] entries = SlowLog.get(1);
+    byte[][] args = entries[0].getArgs();
+    assertEquals(SlowLog.MAX_ARGS, args.length);
+    assertEquals("... (12 more arguments)", new String(args[SlowLog.MAX_ARGS - 1]));
+  }
+}
@@ -0,0 +1,296 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis;
+
+import static org.bigbase.carrot.util.Utils.byteBufferToString;
+import static org.bigbase.carrot.util.Utils.strToByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.bigbase.carrot.BigSortedMap;
+import org.bigbase.carrot.redis.WriteAheadLog.FsyncPolicy;
+import org.bigbase.carrot.redis.db.DBSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestWriteAheadLog {
+
+  BigSortedMap map;
+  File dir;
+  ByteBuffer in, out;
+  
+  @Before
+  public void setUp() throws IOException {
+    map = new BigSortedMap(100000000);
+    dir = Files.createTempDirectory("wal").toFile();
+    in = ByteBuffer.allocateDirect(64 * 1024);
+    out = ByteBuffer.allocateDirect(64 * 1024);
+  }
+  
+  @After
+  public void tearDown() {
+    WriteAheadLog wal = map.getWAL();
+    if (wal != null) {
+      wal.close();
+    }
+    map.dispose();
+    DBSystem.reset();
+    delete(dir);
+  }
+  
+  private void delete(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f: files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+  
+  private String execute(BigSortedMap map, String... requests) {
+    in.clear();
+    out.clear();
+    StringBuilder sb = new StringBuilder();
+    for (String r: requests) {
+      sb.append(r).append("\r\n");
+    }
+    strToByteBuffer(sb.toString(), in);
+    int processed = CommandProcessor.processPipeline(map, in, out);
+    assertEquals(requests.length, processed);
+    return byteBufferToString(out);
+  }
+  
+  private BigSortedMap reopen(FsyncPolicy policy, long segmentSize) throws IOException {
+    map.getWAL().close();
+    BigSortedMap copy = new BigSortedMap(100000000);
+    WriteAheadLog wal = new WriteAheadLog(dir.getAbsolutePath(), policy, segmentSize, 4096);
+    wal.replay(copy);
+    copy.setWAL(wal);
+    map.setWAL(null);
+    return copy;
+  }
+  
+  private int segmentCount() {
+    return dir.list().length;
+  }
+  
+  @Test
+  public void testReplay() throws IOException {
+    map.setWAL(new WriteAheadLog(dir.getAbsolutePath(), FsyncPolicy.ALWAYS, 1 << 20, 4096));
+    execute(map, "SET key1 value1", "SET key2 value2", "APPEND key1 _appended", 
+      "INCR counter", "INCRBY counter 10", "INCR key2", "DEL key2", 
+      "HSET hash f1 v1 f2 v2", "HDEL hash f1", "SADD set a b c d e", "SPOP set", "SPOP set 2", 
+      "LPUSH list 1 2 3", "RPOP list", "ZADD zset 1 a 2 b 3 c", "ZPOPMIN zset", "GET key1");
+    // Read-only and failed commands are not logged
+    assertEquals(15L, map.getWAL().getRecordCount());
+    String[] check = new String[] {"GET key1", "GET key2", "GET counter", "HGETALL hash", 
+        "SMEMBERS set", "LRANGE list 0 -1", "ZRANGE zset 0 -1 WITHSCORES"};
+    String expected = execute(map, check);
+    
+    BigSortedMap copy = reopen(FsyncPolicy.EVERYSEC, 1 << 20);
+    try {
+      assertEquals(expected, execute(copy, check));
+      // Replayed records are not logged again
+      assertEquals(0L, copy.getWAL().getRecordCount());
+    } finally {
+      copy.getWAL().close();
+      copy.dispose();
+    }
+  }
+  
+  @Test
+  public void testConcurrentWritersReplay() throws Exception {
+    map.setWAL(new WriteAheadLog(dir.getAbsolutePath(), FsyncPolicy.EVERYSEC, 1 << 30, 1 << 20));
+    int threads = 8;
+    int count = 1000;
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      final int id = i;
+      workers[i] = new Thread(() -> {
+        ByteBuffer in = ByteBuffer.allocateDirect(4096);
+        ByteBuffer out = ByteBuffer.allocateDirect(4096);
+        for (int j = 0; j < count; j++) {
+          in.clear();
+          out.clear();
+          // Commands on the same keys: log order must be the order of execution
+          strToByteBuffer("SET shared v" + id + "_" + j + "\r\nAPPEND log " + id + 
+            "\r\nLPUSH list " + id + "\r\n", in);
+          assertEquals(3, CommandProcessor.processPipeline(map, in, out));
+        }
+      });
+      workers[i].start();
+    }
+    for (Thread t: workers) {
+      t.join();
+    }
+    String[] check = new String[] {"GET shared", "GET log", "LRANGE list 0 -1"};
+    String expected = execute(map, check);
+    BigSortedMap copy = reopen(FsyncPolicy.EVERYSEC, 1 << 30);
+    try {
+      assertEquals(expected, execute(copy, check));
+    } finally {
+      copy.getWAL().close();
+      copy.dispose();
+    }
+  }
+  
+  @Test
+  public void testSegmentRotationAndTruncate() throws IOException {
+    WriteAheadLog wal = new WriteAheadLog(dir.getAbsolutePath(), FsyncPolicy.NO, 4096, 4096);
+    map.setWAL(wal);
+    for (int i = 0; i < 1000; i++) {
+      execute(map, "SET key" + i + " value" + i);
+    }
+    assertTrue(segmentCount() > 1);
+    long id = wal.roll();
+    execute(map, "SET key1000 value1000");
+    // Snapshot was taken: all segments before the current one are deleted 
+    wal.truncate(id);
+    assertEquals(1, segmentCount());
+    assertEquals(id, wal.getSegmentId());
+    
+    BigSortedMap copy = reopen(FsyncPolicy.NO, 4096);
+    try {
+      assertEquals("$-1\r\n", execute(copy, "GET key999"));
+      assertEquals("$9\r\nvalue1000\r\n", execute(copy, "GET key1000"));
+    } finally {
+      copy.getWAL().close();
+      copy.dispose();
+    }
+  }
+  
+  @Test
+  public void testSnapshotTruncatesLog() throws IOException {
+    WriteAheadLog wal = new WriteAheadLog(dir.getAbsolutePath(), FsyncPolicy.NO, 4096, 4096);
+    map.setWAL(wal);
+    for (int i = 0; i < 1000; i++) {
+      execute(map, "SET key" + i + " value" + i);
+    }
+    assertTrue(segmentCount() > 1);
+    File snapshotDir = Files.createTempDirectory("snapshot").toFile();
+    try {
+      map.setSnapshotDir(snapshotDir.getAbsolutePath());
+      map.snapshot();
+      assertEquals(1, segmentCount());
+    } finally {
+      delete(snapshotDir);
+    }
+  }
+  
+  @Test
+  public void testTornTail() throws IOException {
+    WriteAheadLog wal = new WriteAheadLog(dir.getAbsolutePath(), FsyncPolicy.ALWAYS, 1 << 20, 4096);
+    map.setWAL(wal);
+    for (int i = 0; i < 10; i++) {
+      execute(map, "SET key" + i + " value" + i);
+    }
+    wal.close();
+    File segment = dir.listFiles()[0];
+    long length = segment.length();
+    // Last record is incomplete
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      raf.setLength(length - 3);
+    }
+    BigSortedMap copy = new BigSortedMap(100000000);
+    try {
+      WriteAheadLog log = new WriteAheadLog(dir.getAbsolutePath(), FsyncPolicy.NO, 1 << 20, 4096);
+      assertEquals(9L, log.replay(copy));
+      log.close();
+      assertEquals("$6\r\nvalue8\r\n$-1\r\n", execute(copy, "GET key8", "GET key9"));
+      assertTrue(segment.length() < length - 3);
+      // Corrupted record
+      try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+        raf.seek(segment.length() - 1);
+        raf.write('X');
+      }
+      log = new WriteAheadLog(dir.getAbsolutePath(), FsyncPolicy.NO, 1 << 20, 4096);
+      copy.dispose();
+      copy = new BigSortedMap(100000000);
+      assertEquals(8L, log.replay(copy));
+      log.close();
+    } finally {
+      copy.dispose();
+    }
+  }
+  
+  @Test
+  public void testGroupCommit() throws Exception {
+    WriteAheadLog wal = new WriteAheadLog(dir.getAbsolutePath(), FsyncPolicy.ALWAYS, 1 << 30, 1 << 20);
+    int threads = 8;
+    int count = 2000;
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      final String key = "key" + i;
+      workers[i] = new Thread(() -> {
+        long ptr = org.bigbase.carrot.util.UnsafeAccess.allocAndCopy("1234567890", 0, 10);
+        for (int j = 0; j < count; j++) {
+          wal.append(ptr, 10);
+          wal.commit();
+        }
+        org.bigbase.carrot.util.UnsafeAccess.free(ptr);
+      }, key);
+      workers[i].start();
+    }
+    for (Thread t: workers) {
+      t.join();
+    }
+    assertEquals((long) threads * count, wal.getRecordCount());
+    assertEquals(wal.getAppendedLSN(), wal.getSyncedLSN());
+    System.out.println("records=" + wal.getRecordCount() + " syncs=" + wal.getSyncCount());
+    assertTrue(wal.getSyncCount() <= wal.getRecordCount());
+    wal.close();
+  }
+  
+  @Test
+  public void testThroughput() throws IOException {
+    int batches = 2000;
+    int batchSize = 100;
+    // Warm up
+    setThroughput(batches, batchSize);
+    map.dispose();
+    map = new BigSortedMap(100000000);
+    long noWal = setThroughput(batches, batchSize);
+    map.dispose();
+    map = new BigSortedMap(100000000);
+    map.setWAL(new WriteAheadLog(dir.getAbsolutePath(), FsyncPolicy.EVERYSEC, 1 << 26, 1 << 20));
+    long everysec = setThroughput(batches, batchSize);
+    System.out.println("SET RPS: no WAL=" + noWal + " WAL everysec=" + everysec + " (" + 
+      (everysec * 100 / noWal) + "%)");
+  }
+  
+  private long setThroughput(int batches, int batchSize) {
+    String[] requests = new String[batchSize];
+    long start = System.nanoTime();
+    for (int i = 0; i < batches; i++) {
+      for (int j = 0; j < batchSize; j++) {
+        requests[j] = "SET key" + (i * batchSize + j) + " value" + j;
+      }
+      execute(map, requests);
+    }
+    long time = System.nanoTime() - start;
+    return (long) batches * batchSize * 1000000000L / time;
+  }
+}
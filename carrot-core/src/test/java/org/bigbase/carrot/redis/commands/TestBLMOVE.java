@@ -0,0 +1,84 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis.commands;
+
+public class TestBLMOVE extends CommandBase {
+  
+  protected String[] validRequests = new String[] {
+      "RPUSH key1 v11 v12 v13",                 /* 3 */
+      "BLMOVE key1 key2 LEFT LEFT 0",           /* v11 */
+      "blmove key1 key2 right right 0",         /* v13 */
+      "BLMOVE key1 key2 LEFT RIGHT 0",          /* v12 */
+      "BLMOVE key1 key2 LEFT RIGHT 0.1",        /* NULL - not blocked in a direct mode */
+      "LLEN key1",                              /* 0 */
+      "LLEN key2",                              /* 3 */
+      "LINDEX key2 0",                          /* v11 */
+      "LINDEX key2 1",                          /* v13 */
+      "LINDEX key2 2",                          /* v12 */
+  };
+  
+  protected String[] validResponses = new String[] {
+      ":3\r\n",
+      "$3\r\nv11\r\n",
+      "$3\r\nv13\r\n",
+      "$3\r\nv12\r\n",
+      "$-1\r\n",
+      ":0\r\n",
+      ":3\r\n",
+      "$3\r\nv11\r\n",
+      "$3\r\nv13\r\n",
+      "$3\r\nv12\r\n"
+  };
+  
+  protected String[] invalidRequests = new String[] {
+      "blmov x y",                             /* unsupported command */
+      "BLMOVE",                                /* wrong number of arguments*/
+      "BLMOVE x y LEFT LEFT",                  /* wrong number of arguments*/
+      "BLMOVE x y z LEFT 0",                   /* wrong command format */
+      "BLMOVE x y LEFT RIGH 0",                /* wrong command format */
+      "BLMOVE x y LEFT LEFT z",                /* wrong number format */
+      "BLMOVE x y LEFT LEFT -1",               /* timeout is negative */
+  };
+  
+  protected String[] invalidResponses = new String[] {
+    "-ERR: Unsupported command: BLMOV\r\n",
+    "-ERR: Wrong number of arguments\r\n",
+    "-ERR: Wrong number of arguments\r\n",
+    "-ERR: Wrong command format, unexpected argument: z\r\n",   
+    "-ERR: Wrong command format, unexpected argument: RIGH\r\n",
+    "-ERR: Wrong number format\r\n",
+    "-ERR: Timeout is negative\r\n"
+  };
+  
+  /**
+   * Subclasses must override
+   */
+  protected String[] getValidRequests() {
+    return validRequests;
+  }
+  
+  protected String[] getValidResponses() {
+    return validResponses;
+  }
+  protected String[] getInvalidRequests() {
+    return invalidRequests;
+  }
+  protected String[] getInvalidResponses() {
+    return invalidResponses;
+  }
+}
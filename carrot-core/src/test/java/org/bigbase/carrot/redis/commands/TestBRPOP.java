@@ -0,0 +1,76 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis.commands;
+
+public class TestBRPOP extends CommandBase {
+  
+  protected String[] validRequests = new String[] {
+      "RPUSH key1 v11 v12",                   /* 2 */
+      "RPUSH key2 v21",                       /* 1 */
+      "BRPOP key1 key2 0",                    /* key1 v12 */
+      "BRPOP key1 key2 0",                    /* key1 v11 */
+      "brpop key1 key2 0",                    /* key2 v21 */
+      "BRPOP key1 key2 1",                    /* NULL - not blocked in a direct mode */
+      "LLEN key1",                            /* 0 */
+      "LLEN key2"                             /* 0 */
+  };
+  
+  protected String[] validResponses = new String[] {
+      ":2\r\n",
+      ":1\r\n",
+      "*2\r\n$4\r\nkey1\r\n$3\r\nv12\r\n",
+      "*2\r\n$4\r\nkey1\r\n$3\r\nv11\r\n",
+      "*2\r\n$4\r\nkey2\r\n$3\r\nv21\r\n",
+      "*-1\r\n",
+      ":0\r\n",
+      ":0\r\n"
+  };
+  
+  protected String[] invalidRequests = new String[] {
+      "brpo x y",                      /* unsupported command */
+      "BRPOP",                         /* wrong number of arguments*/
+      "BRPOP x",                       /* wrong number of arguments*/
+      "BRPOP x y",                     /* wrong number format */
+      "BRPOP x -1",                    /* timeout is negative */
+  };
+  
+  protected String[] invalidResponses = new String[] {
+    "-ERR: Unsupported command: BRPO\r\n",
+    "-ERR: Wrong number of arguments\r\n",
+    "-ERR: Wrong number of arguments\r\n",
+    "-ERR: Wrong number format\r\n",
+    "-ERR: Timeout is negative\r\n"
+  };
+  
+  /**
+   * Subclasses must override
+   */
+  protected String[] getValidRequests() {
+    return validRequests;
+  }
+  
+  protected String[] getValidResponses() {
+    return validResponses;
+  }
+  protected String[] getInvalidRequests() {
+    return invalidRequests;
+  }
+  protected String[] getInvalidResponses() {
+    return invalidResponses;
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ *    Copyright (C) 2021-present Carrot, Inc.
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the Server Side Public License, version 1,
+ *    as published by MongoDB, Inc.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    Server Side Public License for more details.
+ *
+ *    You should have received a copy of the Server Side Public License
+ *    along with this program. If not, see
+ *    <http://www.mongodb.com/licensing/server-side-public-license>.
+ *
+ */
+package org.bigbase.carrot.redis.commands;
+
+public class TestBZPOPMAX extends CommandBase {
+  
+  protected String[] validRequests = new String[] {
+      "ZADD key1 1.0 c1 2.0 c2",                                /* 2 */
+      "ZADD key2 3.0 c3",                                       /* 1 */
+      "BZPOPMAX key1 key2 0",                                   /* key1 c2 2.0 */
+      "BZPOPMAX key1 key2 0",                                   /* key1 c1 1.0 */
+      "bzpopmax key1 key2 0",                                   /* key2 c3 3.0 */
+      "BZPOPMAX key1 key2 0.5",                                 /* NULL - not blocked in a direct mode */
+      "ZCARD key1",                                             /* 0 */
+      "ZCARD key2"                                              /* 0 */
+  };
+  
+  protected String[] validResponses = new String[] {
+      ":2\r\n",
+      ":1\r\n",
+      "*3\r\n$4\r\nkey1\r\n$2\r\nc2\r\n$3\r\n2.0\r\n",
+      "*3\r\n$4\r\nkey1\r\n$2\r\nc1\r\n$3\r\n1.0\r\n",
+      "*3\r\n$4\r\nkey2\r\n$2\r\nc3\r\n$3\r\n3.0\r\n",
+      "*-1\r\n",
+      ":0\r\n",
+      ":0\r\n"
+  };
+  
+  protected String[] invalidRequests = new String[] {
+      "bzpopma x y",                      /* unsupported command */
+      "BZPOPMAX",                         /* wrong number of arguments*/
+      "BZPOPMAX x",                       /* wrong number of arguments*/
+      "BZPOPMAX x y",                     /* wrong number format */
+      "BZPOPMAX x -1",                    /* timeout is negative */
+  };
+  
+  protected String[] invalidResponses = new String[] {
+    "-ERR: Unsupported command: BZPOPMA\r\n",
+    "-ERR: Wrong number of arguments\r\n",
+    "-ERR: Wrong number of arguments\r\n",
+    "-ERR: Wrong number format\r\n",
+    "-ERR: Timeout is negative\r\n"
+  };
+  
+  /**
+   * Subclasses must override
+   */
+  protected String[] getValidRequests() {
+    return validRequests;
+  }
+  
+  protected String[] getValidResponses() {
+    return validResponses;
+  }
+  protected String[] getInvalidRequests() {
+    return invalidRequests;
+  }
+  protected String[] getInvalidResponses() {
+    return invalidResponses;
+  }
+}
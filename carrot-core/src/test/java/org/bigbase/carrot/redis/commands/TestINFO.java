@@ -22,10 +22,12 @@ public class TestINFO extends CommandBase {
   
   protected String[] validRequests = new String[] {
       "INFO MEMORY"               /* OK  */,
-      "info memory"
+      "info memory",
+      "INFO COMPACTION"           /* OK  */
   };
   
   protected String[] validResponses = new String[] {
+      SKIP_VERIFY,
       SKIP_VERIFY,
       SKIP_VERIFY
   };
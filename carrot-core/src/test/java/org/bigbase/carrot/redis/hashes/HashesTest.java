@@ -130,6 +130,30 @@ public class HashesTest {
     }
   }
   
+  @Test
+  public void runAllCompressionPrefix() throws IOException {
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.PREFIX));
+    System.out.println();
+    for (int i = 0; i < 1; i++) {
+      System.out.println("*************** RUN = " + (i + 1) +" Compression=PREFIX");
+      allTests();
+      BigSortedMap.printGlobalMemoryAllocationStats();
+      UnsafeAccess.mallocStats.printStats();
+    }
+  }
+  
+  @Test
+  public void runAllCompressionPrefixLZ4() throws IOException {
+    BigSortedMap.setCompressionCodec(CodecFactory.getInstance().getCodec(CodecType.PREFIX_LZ4));
+    System.out.println();
+    for (int i = 0; i < 1; i++) {
+      System.out.println("*************** RUN = " + (i + 1) +" Compression=PREFIX_LZ4");
+      allTests();
+      BigSortedMap.printGlobalMemoryAllocationStats();
+      UnsafeAccess.mallocStats.printStats();
+    }
+  }
+  
   @Ignore
   @Test
   public void runAllCompressionLZ4HC() throws IOException {
@@ -18,6 +18,7 @@
 package org.bigbase.carrot.redis.zsets;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
@@ -191,6 +192,19 @@ public class ZSetsTest {
       Double res = ZSets.ZSCORE(map, key.address, key.length, elemPtrs[i], elemSizes[i]);
       assertEquals(scores[i], res);
     }
+    // All scores in a single batch
+    int bufSize = total * 32;
+    long buf = UnsafeAccess.malloc(bufSize);
+    long size = ZSets.ZMSCORE(map, key.address, key.length, elemPtrs, elemSizes, buf, bufSize);
+    assertTrue(size <= bufSize);
+    assertEquals(total, UnsafeAccess.toInt(buf));
+    long ptr = buf + Utils.SIZEOF_INT;
+    for (int i = 0; i < total; i++) {
+      int sz = UnsafeAccess.toInt(ptr);
+      assertEquals(scores[i], Double.parseDouble(Utils.toString(ptr + Utils.SIZEOF_INT, sz)), 0.0);
+      ptr += Utils.SIZEOF_INT + sz;
+    }
+    UnsafeAccess.free(buf);
 
     BigSortedMap.printGlobalMemoryAllocationStats();
     ZSets.DELETE(map, key.address, key.length);
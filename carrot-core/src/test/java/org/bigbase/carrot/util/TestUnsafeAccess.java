@@ -68,4 +68,18 @@ public class TestUnsafeAccess {
     assertEquals(testStr, str);
     
   }
+  
+  @Test
+  public void testMove() {
+    String testStr = "0123456789";
+    long ptr = UnsafeAccess.malloc(20);
+    // Overlapping forward move
+    UnsafeAccess.copy(testStr.getBytes(), 0, ptr, testStr.length());
+    UnsafeAccess.move(ptr, ptr + 3, testStr.length());
+    assertEquals(testStr, Utils.toString(ptr + 3, testStr.length()));
+    // Overlapping backward move
+    UnsafeAccess.move(ptr + 3, ptr, testStr.length());
+    assertEquals(testStr, Utils.toString(ptr, testStr.length()));
+    UnsafeAccess.free(ptr);
+  }
 }